@@ -0,0 +1,73 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.anarres.dhcp.benchmarks;
+
+import java.net.InetAddress;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import javax.annotation.Nonnull;
+import org.anarres.dhcp.common.address.NetworkAddress;
+import org.anarres.dhcp.common.address.Subnet;
+import org.apache.directory.server.dhcp.DhcpException;
+import org.apache.directory.server.dhcp.io.DhcpRequestContext;
+import org.apache.directory.server.dhcp.messages.DhcpMessage;
+import org.apache.directory.server.dhcp.messages.HardwareAddress;
+import org.apache.directory.server.dhcp.service.manager.AbstractDynamicLeaseManager;
+
+/**
+ * An in-memory dynamic lease manager, so that the benchmarks measure
+ * the protocol and allocation path rather than a backing store.
+ *
+ * @author shevek
+ */
+public class BenchmarkLeaseManager extends AbstractDynamicLeaseManager {
+
+    private final Subnet subnet;
+    private final ConcurrentMap<InetAddress, HardwareAddress> leasesByAddress = new ConcurrentHashMap<InetAddress, HardwareAddress>();
+    private final ConcurrentMap<HardwareAddress, InetAddress> leasesByHardwareAddress = new ConcurrentHashMap<HardwareAddress, InetAddress>();
+
+    public BenchmarkLeaseManager(@Nonnull Subnet subnet) {
+        this.subnet = subnet;
+    }
+
+    @Override
+    protected InetAddress getFixedAddressFor(HardwareAddress hardwareAddress) throws DhcpException {
+        return null;
+    }
+
+    @Override
+    protected Subnet getSubnetFor(NetworkAddress networkAddress) throws DhcpException {
+        if (subnet.getNetworkAddress().equals(networkAddress))
+            return subnet;
+        return null;
+    }
+
+    @Override
+    protected boolean leaseIp(InetAddress address, HardwareAddress hardwareAddress, long ttl) throws Exception {
+        HardwareAddress prev = leasesByAddress.putIfAbsent(address, hardwareAddress);
+        if (prev != null && !prev.equals(hardwareAddress))
+            return false;
+        leasesByHardwareAddress.put(hardwareAddress, address);
+        return true;
+    }
+
+    @Override
+    protected InetAddress leaseMac(DhcpRequestContext context, DhcpMessage request, InetAddress clientRequestedAddress, long ttl) throws Exception {
+        HardwareAddress hardwareAddress = request.getHardwareAddress();
+        InetAddress currentAddress = leasesByHardwareAddress.get(hardwareAddress);
+        return leaseMac(context, hardwareAddress, currentAddress, clientRequestedAddress, ttl);
+    }
+
+    @Override
+    public boolean leaseRelease(DhcpRequestContext context, DhcpMessage request, InetAddress clientAddress) throws DhcpException {
+        HardwareAddress hardwareAddress = request.getHardwareAddress();
+        if (!leasesByAddress.remove(clientAddress, hardwareAddress))
+            return false;
+        leasesByHardwareAddress.remove(hardwareAddress, clientAddress);
+        releaseAddress(clientAddress);
+        return true;
+    }
+}
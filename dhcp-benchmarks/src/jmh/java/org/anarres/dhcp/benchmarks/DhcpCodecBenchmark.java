@@ -0,0 +1,75 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.anarres.dhcp.benchmarks;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import org.apache.directory.server.dhcp.io.DhcpMessageDecoder;
+import org.apache.directory.server.dhcp.io.DhcpMessageEncoder;
+import org.apache.directory.server.dhcp.io.DhcpMessageView;
+import org.apache.directory.server.dhcp.messages.DhcpMessage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Measures {@link DhcpMessageDecoder#decode(ByteBuffer)},
+ * {@link DhcpMessageView#wrap(ByteBuffer)} and
+ * {@link DhcpMessageEncoder#encode(ByteBuffer, DhcpMessage)}.
+ *
+ * Run with the gc profiler (the default in build.gradle) to see
+ * the allocation rate per operation.
+ *
+ * @author shevek
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+public class DhcpCodecBenchmark {
+
+    @Param
+    public DhcpPackets.Kind kind;
+
+    private final DhcpMessageDecoder decoder = new DhcpMessageDecoder();
+    private final DhcpMessageEncoder encoder = new DhcpMessageEncoder();
+    private final DhcpMessageView view = new DhcpMessageView();
+    private final ByteBuffer output = ByteBuffer.allocate(1536);
+    private ByteBuffer input;
+    private DhcpMessage reply;
+
+    @Setup
+    public void setUp() throws Exception {
+        DhcpMessage request = DhcpPackets.newMessage(kind, DhcpPackets.newHardwareAddress(1));
+        input = ByteBuffer.wrap(DhcpPackets.encode(request));
+
+        reply = DhcpPackets.newOffer(kind, request, DhcpPackets.SERVER_ADDRESS.toNetworkAddress().getMachineAddress(300));
+    }
+
+    @Benchmark
+    public DhcpMessage decode() throws Exception {
+        return decoder.decode(input.duplicate());
+    }
+
+    /** The fields an I/O adapter inspects before deciding to decode fully. */
+    @Benchmark
+    public long view() throws Exception {
+        view.wrap(input);
+        return view.getTransactionId() ^ view.getHardwareAddressAsLong() ^ view.getRelayAgentAddressAsInt()
+                ^ view.getMessageType().ordinal();
+    }
+
+    @Benchmark
+    public ByteBuffer encode() throws Exception {
+        output.clear();
+        encoder.encode(output, reply);
+        return output;
+    }
+}
@@ -0,0 +1,249 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.anarres.dhcp.benchmarks;
+
+import com.google.common.base.Charsets;
+import com.google.common.net.InetAddresses;
+import com.google.common.primitives.Bytes;
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import javax.annotation.Nonnull;
+import org.anarres.dhcp.common.address.InterfaceAddress;
+import org.apache.directory.server.dhcp.io.DhcpMessageEncoder;
+import org.apache.directory.server.dhcp.messages.DhcpMessage;
+import org.apache.directory.server.dhcp.messages.HardwareAddress;
+import org.apache.directory.server.dhcp.messages.MessageType;
+import org.apache.directory.server.dhcp.options.OptionsField;
+import org.apache.directory.server.dhcp.options.dhcp.BootfileName;
+import org.apache.directory.server.dhcp.options.dhcp.ClientIdentifier;
+import org.apache.directory.server.dhcp.options.dhcp.ClientNetworkInterface;
+import org.apache.directory.server.dhcp.options.dhcp.ClientSystemArchitecture;
+import org.apache.directory.server.dhcp.options.dhcp.IpAddressLeaseTime;
+import org.apache.directory.server.dhcp.options.dhcp.MaximumDhcpMessageSize;
+import org.apache.directory.server.dhcp.options.dhcp.ParameterRequestList;
+import org.apache.directory.server.dhcp.options.dhcp.RelayAgentInformation;
+import org.apache.directory.server.dhcp.options.dhcp.RequestedIpAddress;
+import org.apache.directory.server.dhcp.options.dhcp.ServerIdentifier;
+import org.apache.directory.server.dhcp.options.dhcp.TftpServerName;
+import org.apache.directory.server.dhcp.options.dhcp.UUIDClientIdentifier;
+import org.apache.directory.server.dhcp.options.dhcp.VendorClassIdentifier;
+import org.apache.directory.server.dhcp.options.vendor.ClientFQDN;
+import org.apache.directory.server.dhcp.options.vendor.DomainName;
+import org.apache.directory.server.dhcp.options.vendor.DomainNameServers;
+import org.apache.directory.server.dhcp.options.vendor.HostName;
+import org.apache.directory.server.dhcp.options.vendor.Routers;
+import org.apache.directory.server.dhcp.options.vendor.SubnetMask;
+
+/**
+ * Canned client messages for the benchmarks.
+ *
+ * The option layouts follow what the respective clients put on the wire:
+ * an Intel UNDI PXE ROM, a Windows 10 DHCP client, and a client behind a
+ * relay agent which inserts option 82.
+ *
+ * @author shevek
+ */
+public class DhcpPackets {
+
+    public static enum Kind {
+
+        PXE, WINDOWS, RELAYED;
+    }
+
+    /** The address of the (simulated) server interface. */
+    public static final InterfaceAddress SERVER_ADDRESS = InterfaceAddress.forString("10.0.0.1/16");
+    public static final InetAddress RELAY_ADDRESS = InetAddresses.forString("10.0.5.1");
+    public static final InetAddress ZERO_ADDRESS = InetAddresses.forString("0.0.0.0");
+
+    private static final byte[] PXE_PRL = {
+        1, 2, 3, 4, 5, 6, 11, 12, 13, 15, 16, 17, 18, 22, 23, 28, 40, 41, 42, 43,
+        50, 51, 54, 58, 59, 60, 66, 67, 97,
+        (byte) 128, (byte) 129, (byte) 130, (byte) 131, (byte) 132, (byte) 133, (byte) 134, (byte) 135
+    };
+    private static final byte[] WINDOWS_PRL = {
+        1, 3, 6, 15, 31, 33, 43, 44, 46, 47, 119, 121, (byte) 249, (byte) 252
+    };
+    private static final byte[] RELAYED_PRL = {
+        1, 3, 6, 12, 15, 28, 42
+    };
+
+    @Nonnull
+    public static HardwareAddress newHardwareAddress(int index) {
+        byte[] address = {0x00, 0x1b, 0x21, (byte) (index >> 16), (byte) (index >> 8), (byte) index};
+        return new HardwareAddress((short) 1, (short) 6, address);
+    }
+
+    @Nonnull
+    private static DhcpMessage newMessage(@Nonnull MessageType type, @Nonnull HardwareAddress hardwareAddress, int xid) {
+        DhcpMessage message = new DhcpMessage();
+        message.setMessageType(type);
+        message.setOp(DhcpMessage.OP_BOOTREQUEST);
+        message.setHardwareAddress(hardwareAddress);
+        message.setTransactionId(xid);
+        message.setCurrentClientAddress(ZERO_ADDRESS);
+        message.setAssignedClientAddress(ZERO_ADDRESS);
+        message.setNextServerAddress(ZERO_ADDRESS);
+        message.setRelayAgentAddress(ZERO_ADDRESS);
+        message.setOptions(new OptionsField());
+        return message;
+    }
+
+    @Nonnull
+    private static byte[] newClientIdentifier(@Nonnull HardwareAddress hardwareAddress) {
+        return Bytes.concat(new byte[]{(byte) hardwareAddress.getType()}, hardwareAddress.getAddress());
+    }
+
+    /** A PXE DHCPDISCOVER as sent by an Intel UNDI 2.1 option ROM. */
+    @Nonnull
+    public static DhcpMessage newPxeDiscover(@Nonnull HardwareAddress hardwareAddress) {
+        DhcpMessage message = newMessage(MessageType.DHCPDISCOVER, hardwareAddress, 0x6a2f1d04);
+        message.setSeconds(4);
+        message.setFlags((short) 0x8000);
+        OptionsField options = message.getOptions();
+        options.setShortOption(MaximumDhcpMessageSize.class, 1260);
+        options.setShortOption(ClientSystemArchitecture.class, 0);
+        options.setOption(ClientNetworkInterface.class, new byte[]{1, 2, 1});
+        byte[] uuid = new byte[17];
+        for (int i = 1; i < uuid.length; i++)
+            uuid[i] = (byte) (0x40 + i);
+        options.setOption(UUIDClientIdentifier.class, uuid);
+        options.setOption(ParameterRequestList.class, PXE_PRL.clone());
+        options.setStringOption(VendorClassIdentifier.class, "PXEClient:Arch:00000:UNDI:002001");
+        return message;
+    }
+
+    /** A DHCPDISCOVER as sent by a Windows 10 client which remembers its previous address. */
+    @Nonnull
+    public static DhcpMessage newWindowsDiscover(@Nonnull HardwareAddress hardwareAddress, @Nonnull InetAddress previousAddress) {
+        DhcpMessage message = newMessage(MessageType.DHCPDISCOVER, hardwareAddress, 0x3903f326);
+        OptionsField options = message.getOptions();
+        options.setOption(ClientIdentifier.class, newClientIdentifier(hardwareAddress));
+        options.setAddressOption(RequestedIpAddress.class, previousAddress);
+        options.setStringOption(HostName.class, "DESKTOP-4F7K2QH");
+        options.setStringOption(VendorClassIdentifier.class, "MSFT 5.0");
+        options.setOption(ParameterRequestList.class, WINDOWS_PRL.clone());
+        return message;
+    }
+
+    /** A DHCPREQUEST in SELECTING state as sent by a Windows 10 client. */
+    @Nonnull
+    public static DhcpMessage newWindowsRequest(@Nonnull HardwareAddress hardwareAddress, @Nonnull InetAddress requestedAddress) {
+        DhcpMessage message = newMessage(MessageType.DHCPREQUEST, hardwareAddress, 0x3903f326);
+        OptionsField options = message.getOptions();
+        options.setOption(ClientIdentifier.class, newClientIdentifier(hardwareAddress));
+        options.setAddressOption(RequestedIpAddress.class, requestedAddress);
+        options.setAddressOption(ServerIdentifier.class, SERVER_ADDRESS.getAddress());
+        options.setStringOption(HostName.class, "DESKTOP-4F7K2QH");
+        options.setOption(ClientFQDN.class, Bytes.concat(new byte[]{0, 0, 0}, "DESKTOP-4F7K2QH.corp.example.com".getBytes(Charsets.ISO_8859_1)));
+        options.setStringOption(VendorClassIdentifier.class, "MSFT 5.0");
+        options.setOption(ParameterRequestList.class, WINDOWS_PRL.clone());
+        return message;
+    }
+
+    /** A DHCPDISCOVER forwarded by a relay agent which inserted option 82. */
+    @Nonnull
+    public static DhcpMessage newRelayedDiscover(@Nonnull HardwareAddress hardwareAddress) {
+        DhcpMessage message = newMessage(MessageType.DHCPDISCOVER, hardwareAddress, 0x1c7e0b55);
+        message.setHopCount((short) 1);
+        message.setRelayAgentAddress(RELAY_ADDRESS);
+        OptionsField options = message.getOptions();
+        options.setOption(ClientIdentifier.class, newClientIdentifier(hardwareAddress));
+        options.setOption(ParameterRequestList.class, RELAYED_PRL.clone());
+        byte[] circuitId = "ge-0/0/12.0:1234".getBytes(Charsets.ISO_8859_1);
+        byte[] remoteId = {0x00, 0x0c, 0x29, 0x3a, 0x51, 0x7e};
+        options.setOption(RelayAgentInformation.class, Bytes.concat(
+                new byte[]{1, (byte) circuitId.length}, circuitId,
+                new byte[]{2, (byte) remoteId.length}, remoteId));
+        return message;
+    }
+
+    /** A DHCPRELEASE for the given address. */
+    @Nonnull
+    public static DhcpMessage newRelease(@Nonnull HardwareAddress hardwareAddress, @Nonnull InetAddress clientAddress) {
+        DhcpMessage message = newMessage(MessageType.DHCPRELEASE, hardwareAddress, 0x0d4f2a71);
+        message.setCurrentClientAddress(clientAddress);
+        OptionsField options = message.getOptions();
+        options.setOption(ClientIdentifier.class, newClientIdentifier(hardwareAddress));
+        options.setAddressOption(RequestedIpAddress.class, clientAddress);
+        options.setAddressOption(ServerIdentifier.class, SERVER_ADDRESS.getAddress());
+        return message;
+    }
+
+    /** A DHCPOFFER carrying the options a typical site configures, with boot parameters for PXE. */
+    @Nonnull
+    public static DhcpMessage newOffer(@Nonnull Kind kind, @Nonnull DhcpMessage request, @Nonnull InetAddress clientAddress) {
+        DhcpMessage reply = new DhcpMessage();
+        reply.setOp(DhcpMessage.OP_BOOTREPLY);
+        reply.setMessageType(MessageType.DHCPOFFER);
+        reply.setHardwareAddress(request.getHardwareAddress());
+        reply.setTransactionId(request.getTransactionId());
+        reply.setFlags(request.getFlags());
+        reply.setCurrentClientAddress(ZERO_ADDRESS);
+        reply.setAssignedClientAddress(clientAddress);
+        reply.setNextServerAddress(ZERO_ADDRESS);
+        reply.setRelayAgentAddress(request.getRelayAgentAddress());
+        reply.setServerHostname(InetAddresses.toAddrString(SERVER_ADDRESS.getAddress()));
+        OptionsField options = new OptionsField();
+        options.setIntOption(IpAddressLeaseTime.class, 3600);
+        options.setAddressOption(ServerIdentifier.class, SERVER_ADDRESS.getAddress());
+        options.setAddressOption(SubnetMask.class, SERVER_ADDRESS.getNetmaskAddress());
+        options.setAddressListOption(Routers.class, (Inet4Address) SERVER_ADDRESS.getAddress());
+        options.setAddressListOption(DomainNameServers.class, (Inet4Address) SERVER_ADDRESS.getAddress(), (Inet4Address) InetAddresses.forString("10.0.0.2"));
+        options.setStringOption(DomainName.class, "corp.example.com");
+        if (kind == Kind.PXE) {
+            reply.setNextServerAddress(SERVER_ADDRESS.getAddress());
+            reply.setBootFileName("pxelinux.0");
+            options.setStringOption(TftpServerName.class, InetAddresses.toAddrString(SERVER_ADDRESS.getAddress()));
+            options.setStringOption(BootfileName.class, "pxelinux.0");
+            options.setStringOption(VendorClassIdentifier.class, "PXEClient");
+        }
+        reply.setOptions(options);
+        return reply;
+    }
+
+    @Nonnull
+    public static DhcpMessage newDiscover(@Nonnull Kind kind, @Nonnull HardwareAddress hardwareAddress, @Nonnull InetAddress previousAddress) {
+        switch (kind) {
+            case PXE:
+                return newPxeDiscover(hardwareAddress);
+            case WINDOWS:
+                return newWindowsDiscover(hardwareAddress, previousAddress);
+            case RELAYED:
+                return newRelayedDiscover(hardwareAddress);
+            default:
+                throw new IllegalArgumentException("Unknown packet kind " + kind);
+        }
+    }
+
+    /** Returns the message which dominates traffic from the given kind of client. */
+    @Nonnull
+    public static DhcpMessage newMessage(@Nonnull Kind kind, @Nonnull HardwareAddress hardwareAddress) {
+        switch (kind) {
+            case PXE:
+                return newPxeDiscover(hardwareAddress);
+            case WINDOWS:
+                return newWindowsRequest(hardwareAddress, SERVER_ADDRESS.toNetworkAddress().getMachineAddress(300));
+            case RELAYED:
+                return newRelayedDiscover(hardwareAddress);
+            default:
+                throw new IllegalArgumentException("Unknown packet kind " + kind);
+        }
+    }
+
+    @Nonnull
+    public static byte[] encode(@Nonnull DhcpMessage message) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(1536);
+        new DhcpMessageEncoder().encode(buffer, message);
+        buffer.flip();
+        return Arrays.copyOf(buffer.array(), buffer.limit());
+    }
+
+    private DhcpPackets() {
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.anarres.dhcp.benchmarks;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import org.anarres.dhcp.common.address.NetworkAddress;
+import org.anarres.dhcp.common.address.Subnet;
+import org.apache.directory.server.dhcp.io.DhcpMessageDecoder;
+import org.apache.directory.server.dhcp.io.DhcpRequestContext;
+import org.apache.directory.server.dhcp.messages.DhcpMessage;
+import org.apache.directory.server.dhcp.messages.HardwareAddress;
+import org.apache.directory.server.dhcp.service.DhcpService;
+import org.apache.directory.server.dhcp.service.manager.LeaseManagerDhcpService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures {@link LeaseManagerDhcpService#getReplyFor(DhcpRequestContext, DhcpMessage)}
+ * through DISCOVER, REQUEST and RELEASE, from decoded requests, using an
+ * in-memory {@link BenchmarkLeaseManager}.
+ *
+ * Requests rotate through a population of clients so that the allocator
+ * path is exercised as well as the existing-lease path.
+ *
+ * @author shevek
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+public class DhcpServiceBenchmark {
+
+    private static final InetSocketAddress LOCAL = new InetSocketAddress(DhcpPackets.SERVER_ADDRESS.getAddress(), DhcpService.SERVER_PORT);
+    private static final InetSocketAddress BROADCAST = new InetSocketAddress(DhcpPackets.ZERO_ADDRESS, DhcpService.CLIENT_PORT);
+    private static final InetSocketAddress RELAY = new InetSocketAddress(DhcpPackets.RELAY_ADDRESS, DhcpService.SERVER_PORT);
+
+    @Param
+    public DhcpPackets.Kind kind;
+    @Param({"1024"})
+    public int clients;
+
+    private DhcpService service;
+    private DhcpMessage[] discovers;
+    private DhcpMessage[] requests;
+    private DhcpMessage[] releases;
+    private int index;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        NetworkAddress network = DhcpPackets.SERVER_ADDRESS.toNetworkAddress();
+        Subnet subnet = new Subnet(network, network.getMachineAddress(256), network.getMachineAddress(65000));
+        service = new LeaseManagerDhcpService(new BenchmarkLeaseManager(subnet));
+
+        // Round-trip through the codec so that the benchmark sees decoded option instances.
+        DhcpMessageDecoder decoder = new DhcpMessageDecoder();
+        discovers = new DhcpMessage[clients];
+        requests = new DhcpMessage[clients];
+        releases = new DhcpMessage[clients];
+        for (int i = 0; i < clients; i++) {
+            HardwareAddress hardwareAddress = DhcpPackets.newHardwareAddress(i);
+            InetAddress address = network.getMachineAddress(256 + i);
+            DhcpMessage discover = DhcpPackets.newDiscover(kind, hardwareAddress, address);
+            discovers[i] = decoder.decode(ByteBuffer.wrap(DhcpPackets.encode(discover)));
+            requests[i] = decoder.decode(ByteBuffer.wrap(DhcpPackets.encode(DhcpPackets.newWindowsRequest(hardwareAddress, address))));
+            releases[i] = decoder.decode(ByteBuffer.wrap(DhcpPackets.encode(DhcpPackets.newRelease(hardwareAddress, address))));
+        }
+    }
+
+    private int next() {
+        int i = index++;
+        if (index == clients)
+            index = 0;
+        return i;
+    }
+
+    @Benchmark
+    public DhcpMessage discover() throws Exception {
+        DhcpMessage request = discovers[next()];
+        InetSocketAddress remote = (kind == DhcpPackets.Kind.RELAYED) ? RELAY : BROADCAST;
+        DhcpRequestContext context = new DhcpRequestContext(DhcpPackets.SERVER_ADDRESS, remote, LOCAL);
+        return service.getReplyFor(context, request);
+    }
+
+    /** A REQUEST for a fresh binding followed by its RELEASE, so the pool stays in steady state. */
+    @Benchmark
+    public void requestRelease(Blackhole blackhole) throws Exception {
+        int i = next();
+        DhcpRequestContext context = new DhcpRequestContext(DhcpPackets.SERVER_ADDRESS, BROADCAST, LOCAL);
+        blackhole.consume(service.getReplyFor(context, requests[i]));
+        DhcpMessage release = releases[i];
+        context = new DhcpRequestContext(DhcpPackets.SERVER_ADDRESS,
+                new InetSocketAddress(release.getCurrentClientAddress(), DhcpService.CLIENT_PORT), LOCAL);
+        blackhole.consume(service.getReplyFor(context, release));
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.anarres.dhcp.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import org.apache.directory.server.dhcp.options.DhcpOption;
+import org.apache.directory.server.dhcp.options.OptionsField;
+import org.apache.directory.server.dhcp.options.dhcp.IpAddressLeaseTime;
+import org.apache.directory.server.dhcp.options.dhcp.ParameterRequestList;
+import org.apache.directory.server.dhcp.options.dhcp.RequestedIpAddress;
+import org.apache.directory.server.dhcp.options.dhcp.VendorClassIdentifier;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures the {@link OptionsField} lookups which the service performs on every request.
+ *
+ * @author shevek
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+public class OptionsFieldBenchmark {
+
+    @Param
+    public DhcpPackets.Kind kind;
+
+    private OptionsField options;
+
+    @Setup
+    public void setUp() throws Exception {
+        options = DhcpPackets.newMessage(kind, DhcpPackets.newHardwareAddress(1)).getOptions();
+    }
+
+    @Benchmark
+    public DhcpOption getByTag() {
+        return options.get((byte) 55);
+    }
+
+    @Benchmark
+    public ParameterRequestList getByClass() {
+        return options.get(ParameterRequestList.class);
+    }
+
+    /** The lookups performed by LeaseManagerDhcpService.handleDISCOVER and handleREQUEST. */
+    @Benchmark
+    public void getTypedOptions(Blackhole blackhole) throws Exception {
+        blackhole.consume(options.getAddressOption(RequestedIpAddress.class));
+        blackhole.consume(options.getIntOption(IpAddressLeaseTime.class));
+        blackhole.consume(options.getStringOption(VendorClassIdentifier.class));
+    }
+
+    @Benchmark
+    public void iterate(Blackhole blackhole) {
+        for (DhcpOption option : options)
+            blackhole.consume(option);
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.anarres.dhcp.metrics.micrometer;
+
+import com.google.common.base.Preconditions;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+import org.anarres.dhcp.common.metrics.DhcpMetrics;
+import org.anarres.dhcp.v6.messages.Dhcp6MessageType;
+import org.apache.directory.server.dhcp.messages.MessageType;
+
+/**
+ * A {@link DhcpMetrics} which publishes to a Micrometer {@link MeterRegistry}.
+ *
+ * Counters are registered up front, so recording is an array lookup
+ * and a call to the meter. Latency timers are registered on first use,
+ * as most combinations of stage and message type never occur.
+ *
+ * Meters are named dhcp.requests, dhcp.replies, dhcp.drops and
+ * dhcp.latency, tagged with the protocol version and message type,
+ * the drop reason, or the stage. Timers publish a percentile histogram
+ * only if requested, as each adds many series to the registry.
+ *
+ * @author shevek
+ */
+@ThreadSafe
+public class MicrometerDhcpMetrics implements DhcpMetrics {
+
+    private static final String UNKNOWN = "unknown";
+    private static final int V4_TYPES = MessageType.values().length + 1;
+    private static final int V6_TYPES = Dhcp6MessageType.values().length + 1;
+
+    private final MeterRegistry registry;
+    private final Tags v4Tags;
+    private final Tags v6Tags;
+    private final boolean percentileHistogram;
+    private final Counter[] v4Requests = new Counter[MessageType.values().length];
+    private final Counter[] v6Requests = new Counter[Dhcp6MessageType.values().length];
+    private final Counter[] v4Replies = new Counter[MessageType.values().length];
+    private final Counter[] v6Replies = new Counter[Dhcp6MessageType.values().length];
+    private final Counter[] drops = new Counter[Drop.values().length];
+    /** Indexed by stage, then by type, with unknown types last; null until first used. */
+    private final AtomicReferenceArray<Timer> v4Latencies = new AtomicReferenceArray<Timer>(Stage.values().length * V4_TYPES);
+    private final AtomicReferenceArray<Timer> v6Latencies = new AtomicReferenceArray<Timer>(Stage.values().length * V6_TYPES);
+
+    /**
+     * Constructs a new MicrometerDhcpMetrics.
+     *
+     * @param percentileHistogram Whether latency timers publish a percentile histogram.
+     */
+    public MicrometerDhcpMetrics(@Nonnull MeterRegistry registry, @Nonnull Tags tags, boolean percentileHistogram) {
+        this.registry = Preconditions.checkNotNull(registry, "MeterRegistry was null.");
+        Preconditions.checkNotNull(tags, "Tags was null.");
+        this.v4Tags = tags.and("version", "4");
+        this.v6Tags = tags.and("version", "6");
+        this.percentileHistogram = percentileHistogram;
+        for (MessageType type : MessageType.values()) {
+            Tags t = v4Tags.and("type", type.name());
+            v4Requests[type.ordinal()] = registry.counter("dhcp.requests", t);
+            v4Replies[type.ordinal()] = registry.counter("dhcp.replies", t);
+        }
+        for (Dhcp6MessageType type : Dhcp6MessageType.values()) {
+            Tags t = v6Tags.and("type", type.name());
+            v6Requests[type.ordinal()] = registry.counter("dhcp.requests", t);
+            v6Replies[type.ordinal()] = registry.counter("dhcp.replies", t);
+        }
+        for (Drop reason : Drop.values())
+            drops[reason.ordinal()] = registry.counter("dhcp.drops", tags.and("reason", reason.name()));
+    }
+
+    public MicrometerDhcpMetrics(@Nonnull MeterRegistry registry, @Nonnull Tags tags) {
+        this(registry, tags, false);
+    }
+
+    public MicrometerDhcpMetrics(@Nonnull MeterRegistry registry) {
+        this(registry, Tags.empty());
+    }
+
+    /**
+     * Returns the timer at the given index, registering it if this is its first use.
+     *
+     * Two threads may race to register the same timer; the registry
+     * returns the same meter to both.
+     */
+    @Nonnull
+    private Timer getTimer(@Nonnull AtomicReferenceArray<Timer> timers, int index, @Nonnull Tags tags, @Nonnull Stage stage, @Nonnull String type) {
+        Timer timer = timers.get(index);
+        if (timer == null) {
+            Timer.Builder builder = Timer.builder("dhcp.latency")
+                    .tags(tags.and("stage", stage.name(), "type", type));
+            if (percentileHistogram)
+                builder.publishPercentileHistogram();
+            timer = builder.register(registry);
+            timers.set(index, timer);
+        }
+        return timer;
+    }
+
+    @Override
+    public void recordRequest(MessageType type) {
+        v4Requests[type.ordinal()].increment();
+    }
+
+    @Override
+    public void recordRequest(Dhcp6MessageType type) {
+        v6Requests[type.ordinal()].increment();
+    }
+
+    @Override
+    public void recordReply(MessageType type) {
+        v4Replies[type.ordinal()].increment();
+    }
+
+    @Override
+    public void recordReply(Dhcp6MessageType type) {
+        v6Replies[type.ordinal()].increment();
+    }
+
+    @Override
+    public void recordDrop(Drop reason) {
+        drops[reason.ordinal()].increment();
+    }
+
+    @Override
+    public void recordLatency(Stage stage, @CheckForNull MessageType type, long nanos) {
+        int index = stage.ordinal() * V4_TYPES + (type == null ? V4_TYPES - 1 : type.ordinal());
+        getTimer(v4Latencies, index, v4Tags, stage, type == null ? UNKNOWN : type.name()).record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public void recordLatency(Stage stage, @CheckForNull Dhcp6MessageType type, long nanos) {
+        int index = stage.ordinal() * V6_TYPES + (type == null ? V6_TYPES - 1 : type.ordinal());
+        getTimer(v6Latencies, index, v6Tags, stage, type == null ? UNKNOWN : type.name()).record(nanos, TimeUnit.NANOSECONDS);
+    }
+}
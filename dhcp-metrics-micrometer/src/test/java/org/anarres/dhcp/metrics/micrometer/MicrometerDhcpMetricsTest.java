@@ -0,0 +1,103 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.anarres.dhcp.metrics.micrometer;
+
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.config.MeterFilter;
+import io.micrometer.core.instrument.distribution.DistributionStatisticConfig;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Nonnull;
+import org.anarres.dhcp.common.metrics.DhcpMetrics;
+import org.anarres.dhcp.v6.messages.Dhcp6MessageType;
+import org.apache.directory.server.dhcp.messages.MessageType;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author shevek
+ */
+public class MicrometerDhcpMetricsTest {
+
+    private static final Logger LOG = LoggerFactory.getLogger(MicrometerDhcpMetricsTest.class);
+
+    @Test
+    public void testCounters() {
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        MicrometerDhcpMetrics metrics = new MicrometerDhcpMetrics(registry, Tags.of("server", "test"));
+        metrics.recordRequest(MessageType.DHCPDISCOVER);
+        metrics.recordRequest(MessageType.DHCPDISCOVER);
+        metrics.recordRequest(Dhcp6MessageType.DHCP_SOLICIT);
+        metrics.recordReply(MessageType.DHCPOFFER);
+        metrics.recordDrop(DhcpMetrics.Drop.EXPIRED);
+
+        assertEquals(2, registry.get("dhcp.requests").tags("server", "test", "version", "4", "type", "DHCPDISCOVER").counter().count(), 0);
+        assertEquals(1, registry.get("dhcp.requests").tags("version", "6", "type", "DHCP_SOLICIT").counter().count(), 0);
+        assertEquals(0, registry.get("dhcp.requests").tags("version", "6", "type", "DHCP_REQUEST").counter().count(), 0);
+        assertEquals(1, registry.get("dhcp.replies").tags("version", "4", "type", "DHCPOFFER").counter().count(), 0);
+        assertEquals(1, registry.get("dhcp.drops").tags("reason", "EXPIRED").counter().count(), 0);
+        assertEquals(0, registry.get("dhcp.drops").tags("reason", "ERROR").counter().count(), 0);
+    }
+
+    @Test
+    public void testLatency() {
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        MicrometerDhcpMetrics metrics = new MicrometerDhcpMetrics(registry);
+        assertTrue(registry.find("dhcp.latency").timers().isEmpty());
+
+        metrics.recordLatency(DhcpMetrics.Stage.DECODE, (MessageType) null, 1000);
+        metrics.recordLatency(DhcpMetrics.Stage.DECODE, MessageType.DHCPDISCOVER, 2000);
+        metrics.recordLatency(DhcpMetrics.Stage.DECODE, MessageType.DHCPDISCOVER, 3000);
+        metrics.recordLatency(DhcpMetrics.Stage.LEASE, Dhcp6MessageType.DHCP_SOLICIT, 4000);
+        LOG.info("Timers are " + registry.find("dhcp.latency").timers());
+        assertEquals(3, registry.find("dhcp.latency").timers().size());
+
+        Timer unknown = registry.get("dhcp.latency").tags("version", "4", "stage", "DECODE", "type", "unknown").timer();
+        assertEquals(1, unknown.count());
+        assertEquals(1000, unknown.max(TimeUnit.NANOSECONDS), 0);
+        Timer discover = registry.get("dhcp.latency").tags("version", "4", "stage", "DECODE", "type", "DHCPDISCOVER").timer();
+        assertEquals(2, discover.count());
+        assertEquals(5000, discover.totalTime(TimeUnit.NANOSECONDS), 0);
+        Timer solicit = registry.get("dhcp.latency").tags("version", "6", "stage", "LEASE", "type", "DHCP_SOLICIT").timer();
+        assertEquals(1, solicit.count());
+    }
+
+    @Nonnull
+    private static SimpleMeterRegistry newRegistry(@Nonnull final List<Boolean> histograms) {
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        registry.config().meterFilter(new MeterFilter() {
+            @Override
+            public DistributionStatisticConfig configure(Meter.Id id, DistributionStatisticConfig config) {
+                if (id.getType() == Meter.Type.TIMER)
+                    histograms.add(Boolean.TRUE.equals(config.isPercentileHistogram()));
+                return config;
+            }
+        });
+        return registry;
+    }
+
+    @Test
+    public void testPercentileHistogram() {
+        List<Boolean> histograms = new ArrayList<Boolean>();
+        MicrometerDhcpMetrics metrics = new MicrometerDhcpMetrics(newRegistry(histograms), Tags.empty());
+        metrics.recordLatency(DhcpMetrics.Stage.SEND, MessageType.DHCPACK, 2000);
+        metrics.recordLatency(DhcpMetrics.Stage.SEND, MessageType.DHCPACK, 2000);
+        assertEquals(Arrays.asList(Boolean.FALSE), histograms);
+
+        histograms.clear();
+        metrics = new MicrometerDhcpMetrics(newRegistry(histograms), Tags.empty(), true);
+        metrics.recordLatency(DhcpMetrics.Stage.SEND, MessageType.DHCPACK, 2000);
+        assertEquals(Arrays.asList(Boolean.TRUE), histograms);
+    }
+}
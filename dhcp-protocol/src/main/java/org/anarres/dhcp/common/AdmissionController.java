@@ -0,0 +1,332 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.anarres.dhcp.common;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Ticker;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.Immutable;
+import javax.annotation.concurrent.ThreadSafe;
+import org.apache.directory.server.dhcp.DhcpException;
+import org.apache.directory.server.dhcp.io.DhcpMessageView;
+
+/**
+ * Hierarchical token-bucket admission control for DHCPv4 requests.
+ *
+ * Each request is charged one token at each {@link Level} which has a
+ * {@link Limit}: its client (htype and chaddr), its relay circuit (giaddr
+ * and the circuit-id of option 82), its relay (giaddr), and finally the
+ * server as a whole. The levels are checked in that order, and a request
+ * refused at one level is not charged at the levels above it, and is
+ * refunded the tokens it took at the levels below, so a single
+ * misbehaving client exhausts only its own bucket, and a flood from one
+ * relay does not starve the others.
+ *
+ * The request is inspected with a {@link DhcpMessageView}, so it can be
+ * refused before it is decoded or reaches a lease manager.
+ *
+ * The buckets of each level are a fixed-size hashed table of longs,
+ * updated by compare-and-set. Each bucket is kept as the generic cell
+ * rate algorithm does, as the time at which it would next be full, so
+ * refill is exact and lazy, however often a client retries; there is no
+ * per-client allocation and no background thread. Clients
+ * whose keys collide share a bucket, so the table should be several times
+ * larger than the number of clients expected to be active at once.
+ *
+ * @author shevek
+ */
+@ThreadSafe
+public class AdmissionController {
+
+    public static final int DEFAULT_TABLE_SIZE = 1 << 16;
+    private static final byte TAG_RELAY_AGENT_INFORMATION = 82;
+    private static final int SUBOPTION_CIRCUIT_ID = 1;
+
+
+    public static enum Level {
+
+        CLIENT, CIRCUIT, RELAY, GLOBAL;
+    }
+
+    /** The rate and burst size of the buckets of one {@link Level}. */
+    @Immutable
+    public static class Limit {
+
+        public static final int MAX_BURST = 65535;
+        /** About 2.4 hours, so that a full bucket cannot overflow. */
+        private static final long MAX_INTERVAL = Long.MAX_VALUE >> 20;
+
+        private final double rate;
+        private final int burst;
+        /** The time in which one token accrues. */
+        /* pp */ final long intervalNanos;
+        /** How far the bucket may be from full, and still have a token. */
+        /* pp */ final long toleranceNanos;
+
+        /**
+         * @param rate The sustained rate, in requests per second.
+         * Rates below one request in {@link #MAX_INTERVAL} nanoseconds are rounded up.
+         * @param burst The number of requests admitted at once after an idle period.
+         */
+        public Limit(double rate, @Nonnegative int burst) {
+            Preconditions.checkArgument(rate > 0, "Rate must be positive: %s", rate);
+            Preconditions.checkArgument(burst >= 1 && burst <= MAX_BURST, "Burst must be between 1 and %s: %s", MAX_BURST, burst);
+            this.rate = rate;
+            this.burst = burst;
+            this.intervalNanos = Math.max(1, Math.min(MAX_INTERVAL, Math.round(TimeUnit.SECONDS.toNanos(1) / rate)));
+            this.toleranceNanos = (burst - 1) * intervalNanos;
+        }
+
+        public double getRate() {
+            return rate;
+        }
+
+        @Nonnegative
+        public int getBurst() {
+            return burst;
+        }
+
+        @Override
+        public String toString() {
+            return "Limit(" + rate + "/s, burst " + burst + ")";
+        }
+    }
+
+    /** The finalizer of MurmurHash3. */
+    private static long hash(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return key;
+    }
+
+    /** Returns a key for the client, from the hardware address type and chaddr. */
+    private static long getClientKey(@Nonnull DhcpMessageView view) {
+        return hash(view.getHardwareAddressAsLong()) ^ view.getHardwareAddressType();
+    }
+
+    /**
+     * Returns a key for the circuit-id in option 82, qualified by the relay,
+     * or 0 if there is none.
+     *
+     * Only the first fragment of option 82 is inspected.
+     */
+    private static long getCircuitKey(@Nonnull DhcpMessageView view, int relay) {
+        int index = 0;
+        for (;;) {
+            int type = view.getOptionByteAt(TAG_RELAY_AGENT_INFORMATION, index);
+            int length = view.getOptionByteAt(TAG_RELAY_AGENT_INFORMATION, index + 1);
+            if (type < 0 || length < 0)
+                return 0;
+            if (type == SUBOPTION_CIRCUIT_ID) {
+                // FNV-1a, seeded with the relay.
+                long key = 0xcbf29ce484222325L ^ relay;
+                for (int i = 0; i < length; i++) {
+                    int b = view.getOptionByteAt(TAG_RELAY_AGENT_INFORMATION, index + 2 + i);
+                    if (b < 0)
+                        return 0;
+                    key = (key ^ b) * 0x100000001b3L;
+                }
+                return key == 0 ? 1 : key;
+            }
+            index += 2 + length;
+        }
+    }
+
+    private final Ticker ticker;
+    private final long origin;
+    private final int mask;
+    private final AtomicLongArray[] buckets = new AtomicLongArray[Level.values().length];
+    private final AtomicReferenceArray<Limit> limits = new AtomicReferenceArray<Limit>(Level.values().length);
+    private final AtomicLong admitted = new AtomicLong();
+    private final AtomicLongArray dropped = new AtomicLongArray(Level.values().length);
+    private final ThreadLocal<DhcpMessageView> views = new ThreadLocal<DhcpMessageView>() {
+        @Override
+        protected DhcpMessageView initialValue() {
+            return new DhcpMessageView();
+        }
+    };
+
+    /**
+     * Constructs a new AdmissionController with no limits.
+     *
+     * @param ticker The source of time.
+     * @param tableSize The number of buckets at each of the client, circuit
+     * and relay levels, rounded up to a power of two.
+     */
+    public AdmissionController(@Nonnull Ticker ticker, @Nonnegative int tableSize) {
+        Preconditions.checkArgument(tableSize > 0 && tableSize <= 1 << 30, "Illegal table size %s", tableSize);
+        this.ticker = Preconditions.checkNotNull(ticker, "Ticker was null.");
+        this.origin = ticker.read();
+        int size = Integer.highestOneBit(tableSize - 1) << 1;
+        this.mask = Math.max(size, 1) - 1;
+        for (Level level : Level.values())
+            buckets[level.ordinal()] = new AtomicLongArray(level == Level.GLOBAL ? 1 : mask + 1);
+    }
+
+    public AdmissionController(@Nonnegative int tableSize) {
+        this(Ticker.systemTicker(), tableSize);
+    }
+
+    public AdmissionController() {
+        this(DEFAULT_TABLE_SIZE);
+    }
+
+    @CheckForNull
+    public Limit getLimit(@Nonnull Level level) {
+        return limits.get(level.ordinal());
+    }
+
+    /** Sets the limit at the given level, or removes it if null. */
+    public void setLimit(@Nonnull Level level, @CheckForNull Limit limit) {
+        limits.set(level.ordinal(), limit);
+    }
+
+    /** Returns the current time, in nanoseconds since construction, offset by one so that 0 means unused. */
+    private long now() {
+        return ticker.read() - origin + 1;
+    }
+
+    /**
+     * Takes one token from the given bucket, if it has one.
+     *
+     * The bucket holds the time at which it will next be full; an unused
+     * bucket, or one which filled in the past, is full now. Each token
+     * pushes that time one interval further into the future, and no token
+     * is left once it is more than the burst away.
+     */
+    private boolean acquire(@Nonnull AtomicLongArray table, @Nonnegative int index, @Nonnull Limit limit, long now) {
+        for (;;) {
+            long state = table.get(index);
+            long full = Math.max(state, now);
+            if (full - now > limit.toleranceNanos)
+                return false;
+            if (table.compareAndSet(index, state, full + limit.intervalNanos))
+                return true;
+        }
+    }
+
+    private boolean acquire(@Nonnull Level level, long key, long now) {
+        Limit limit = limits.get(level.ordinal());
+        if (limit == null)
+            return true;
+        int index = level == Level.GLOBAL ? 0 : (int) (hash(key) & mask);
+        if (acquire(buckets[level.ordinal()], index, limit, now))
+            return true;
+        dropped.incrementAndGet(level.ordinal());
+        return false;
+    }
+
+    /** Returns one token to the bucket from which it was taken. */
+    private void release(@Nonnull Level level, long key) {
+        Limit limit = limits.get(level.ordinal());
+        if (limit == null)
+            return;
+        int index = level == Level.GLOBAL ? 0 : (int) (hash(key) & mask);
+        buckets[level.ordinal()].addAndGet(index, -limit.intervalNanos);
+    }
+
+    /** Refunds the tokens taken at the levels below the one which refused a request. */
+    private void release(@Nonnull Level refused, long client, int relay, long circuit) {
+        switch (refused) {
+            case GLOBAL:
+                if (relay != 0)
+                    release(Level.RELAY, relay);
+            // fall through
+            case RELAY:
+                if (relay != 0 && circuit != 0)
+                    release(Level.CIRCUIT, circuit);
+            // fall through
+            case CIRCUIT:
+                release(Level.CLIENT, client);
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Returns true if a request with the given keys should be processed.
+     *
+     * @param client The key of the client.
+     * @param relay The relay agent address (giaddr), or 0 if the request was not relayed.
+     * @param circuit The key of the relay circuit, or 0 if there is none.
+     */
+    public boolean admit(long client, int relay, long circuit) {
+        long now = now();
+        if (!acquire(Level.CLIENT, client, now))
+            return false;
+        if (relay != 0) {
+            if (circuit != 0 && !acquire(Level.CIRCUIT, circuit, now)) {
+                release(Level.CIRCUIT, client, relay, circuit);
+                return false;
+            }
+            if (!acquire(Level.RELAY, relay, now)) {
+                release(Level.RELAY, client, relay, circuit);
+                return false;
+            }
+        }
+        if (!acquire(Level.GLOBAL, 0, now)) {
+            release(Level.GLOBAL, client, relay, circuit);
+            return false;
+        }
+        admitted.incrementAndGet();
+        return true;
+    }
+
+    /** Returns true if the given request should be processed. */
+    public boolean admit(@Nonnull DhcpMessageView view) {
+        int relay = view.getRelayAgentAddressAsInt();
+        long circuit = relay == 0 ? 0 : getCircuitKey(view, relay);
+        return admit(getClientKey(view), relay, circuit);
+    }
+
+    /**
+     * Returns true if the encoded request between the position and the
+     * limit of the given buffer should be processed.
+     *
+     * The buffer is not modified. A malformed request is admitted, so
+     * that it is rejected, and logged, by the decoder as before.
+     */
+    public boolean admit(@Nonnull ByteBuffer buffer) {
+        DhcpMessageView view = views.get();
+        try {
+            view.wrap(buffer);
+        } catch (DhcpException e) {
+            return true;
+        }
+        return admit(view);
+    }
+
+    /** Returns the number of requests admitted. */
+    @Nonnegative
+    public long getAdmittedCount() {
+        return admitted.get();
+    }
+
+    /** Returns the number of requests refused at the given level. */
+    @Nonnegative
+    public long getDroppedCount(@Nonnull Level level) {
+        return dropped.get(level.ordinal());
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder buf = new StringBuilder("AdmissionController(admitted=").append(getAdmittedCount());
+        for (Level level : Level.values())
+            buf.append(", ").append(level).append('=').append(getLimit(level)).append(" dropped ").append(getDroppedCount(level));
+        return buf.append(')').toString();
+    }
+}
@@ -0,0 +1,230 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.anarres.dhcp.common;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.Immutable;
+import javax.annotation.concurrent.ThreadSafe;
+import org.anarres.dhcp.v6.messages.Dhcp6Message;
+import org.anarres.dhcp.v6.options.ClientIdOption;
+import org.apache.directory.server.dhcp.messages.DhcpMessage;
+import org.apache.directory.server.dhcp.messages.HardwareAddress;
+import org.apache.directory.server.dhcp.messages.MessageType;
+
+/**
+ * A bounded, time-limited cache of encoded replies, keyed by transaction
+ * id, client and message type, so that a retransmitted request is
+ * answered with the reply already sent, without consulting the service.
+ *
+ * A client retransmits with the same transaction id until it is answered,
+ * so during a storm most requests are retransmissions. Concurrent
+ * duplicates of a request wait for the first to be answered.
+ *
+ * A decision not to reply is shared with concurrent duplicates, but is
+ * not cached, as the service may answer a later retransmission, for
+ * example once an address has been freed.
+ *
+ * @author shevek
+ */
+@ThreadSafe
+public class ReplyCache {
+
+    public static final long DEFAULT_MAXIMUM_SIZE = 65536;
+    /** Long enough to cover the first two retransmissions (RFC 2131 section 4.1). */
+    public static final long DEFAULT_EXPIRY_MILLIS = 8000;
+
+    /** The giaddr of a request which was not relayed. */
+    private static final byte[] NO_RELAY = new byte[4];
+
+    @Immutable
+    public static class Key {
+
+        private final int transactionId;
+        private final byte[] client;
+        private final int type;
+
+        public Key(int transactionId, @Nonnull byte[] client, int type) {
+            this.transactionId = transactionId;
+            this.client = Preconditions.checkNotNull(client, "Client was null.");
+            this.type = type;
+        }
+
+        @Override
+        public int hashCode() {
+            return (transactionId * 31 + Arrays.hashCode(client)) * 31 + type;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj)
+                return true;
+            if (!(obj instanceof Key))
+                return false;
+            Key o = (Key) obj;
+            return transactionId == o.transactionId
+                    && type == o.type
+                    && Arrays.equals(client, o.client);
+        }
+
+        @Override
+        public String toString() {
+            return "Key(tx=" + transactionId + ", type=" + type + ")";
+        }
+    }
+
+    /** An encoded reply and its destination, or the absence of a reply. */
+    @Immutable
+    public static class Reply {
+
+        public static final Reply NONE = new Reply(null, null);
+
+        @CheckForNull
+        private final byte[] data;
+        @CheckForNull
+        private final InetSocketAddress recipient;
+
+        public Reply(@CheckForNull byte[] data, @CheckForNull InetSocketAddress recipient) {
+            this.data = data;
+            this.recipient = recipient;
+        }
+
+        /** Returns the encoded reply, or null if no reply is sent. */
+        @CheckForNull
+        public byte[] getData() {
+            return data;
+        }
+
+        @CheckForNull
+        public InetSocketAddress getRecipient() {
+            return recipient;
+        }
+
+        @Override
+        public String toString() {
+            return data == null ? "NoReply" : "Reply(" + data.length + " bytes to " + recipient + ")";
+        }
+    }
+
+    /**
+     * Returns the key of the given DHCPv4 request, or null if it has no message type.
+     *
+     * The client is identified by its hardware address and by its relay
+     * agent address (giaddr), as the reply to a relayed request is sent to
+     * the relay, and a client may be heard through more than one relay.
+     */
+    @CheckForNull
+    public static Key newKey(@Nonnull DhcpMessage request) {
+        MessageType type = request.getMessageType();
+        HardwareAddress hardwareAddress = request.getHardwareAddress();
+        if (type == null || hardwareAddress == null)
+            return null;
+        byte[] address = hardwareAddress.getAddress();
+        InetAddress relayAgentAddress = request.getRelayAgentAddress();
+        byte[] relay = relayAgentAddress == null ? NO_RELAY : relayAgentAddress.getAddress();
+        byte[] client = new byte[1 + address.length + relay.length];
+        client[0] = (byte) hardwareAddress.getType();
+        System.arraycopy(address, 0, client, 1, address.length);
+        System.arraycopy(relay, 0, client, 1 + address.length, relay.length);
+        return new Key(request.getTransactionId(), client, type.getCode());
+    }
+
+    /** Returns the key of the given DHCPv6 request, or null if it has no client DUID. */
+    @CheckForNull
+    public static Key newKey(@Nonnull Dhcp6Message request) {
+        ClientIdOption clientId = request.getOptions().get(ClientIdOption.class);
+        if (clientId == null || request.getMessageType() == null)
+            return null;
+        return new Key(request.getTransactionId(), clientId.getData(), request.getMessageType().getCode());
+    }
+
+    private final Cache<Key, Reply> cache;
+
+    public ReplyCache(@Nonnegative long maximumSize, @Nonnegative long expiry, @Nonnull TimeUnit unit) {
+        this.cache = CacheBuilder.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterWrite(expiry, unit)
+                .recordStats()
+                .build();
+    }
+
+    public ReplyCache() {
+        this(DEFAULT_MAXIMUM_SIZE, DEFAULT_EXPIRY_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Returns the cached reply for the given key, or computes and caches it.
+     *
+     * A failure to compute the reply, or a decision not to reply, is not cached.
+     */
+    @Nonnull
+    public Reply get(@Nonnull Key key, @Nonnull Callable<? extends Reply> loader) throws Exception {
+        try {
+            Reply reply = cache.get(key, loader);
+            if (reply.getData() == null)
+                cache.asMap().remove(key, reply);
+            return reply;
+        } catch (ExecutionException e) {
+            Throwables.propagateIfInstanceOf(e.getCause(), Exception.class);
+            throw Throwables.propagate(e.getCause());
+        } catch (UncheckedExecutionException e) {
+            throw Throwables.propagate(e.getCause());
+        }
+    }
+
+    @CheckForNull
+    public Reply getIfPresent(@Nonnull Key key) {
+        return cache.getIfPresent(key);
+    }
+
+    public void put(@Nonnull Key key, @Nonnull Reply reply) {
+        cache.put(key, reply);
+    }
+
+    public void invalidateAll() {
+        cache.invalidateAll();
+    }
+
+    @Nonnegative
+    public long size() {
+        return cache.size();
+    }
+
+    @Nonnull
+    public CacheStats getStats() {
+        return cache.stats();
+    }
+
+    /** Returns the number of requests answered from the cache. */
+    @Nonnegative
+    public long getHitCount() {
+        return cache.stats().hitCount();
+    }
+
+    /** Returns the number of requests passed to the service. */
+    @Nonnegative
+    public long getMissCount() {
+        return cache.stats().missCount();
+    }
+
+    @Override
+    public String toString() {
+        return "ReplyCache(" + size() + " replies, " + getStats() + ")";
+    }
+}
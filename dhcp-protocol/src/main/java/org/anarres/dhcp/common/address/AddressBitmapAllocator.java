@@ -0,0 +1,254 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.anarres.dhcp.common.address;
+
+import com.google.common.base.Preconditions;
+import com.google.common.primitives.UnsignedBytes;
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import javax.annotation.CheckForNull;
+import javax.annotation.CheckForSigned;
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * Allocates addresses from the range of a {@link Subnet}, using a bitmap
+ * of the addresses in use.
+ *
+ * Allocation finds the next clear bit after the most recent allocation,
+ * wrapping at the end of the range, so a full word of 64 addresses is
+ * tested at once, and no address object is created until one is chosen.
+ * Rotating through the range also delays the reuse of a recently
+ * released address. All operations are lock-free.
+ *
+ * @author shevek
+ */
+@ThreadSafe
+public class AddressBitmapAllocator {
+
+    /** The largest range supported, being a /8. */
+    public static final long MAX_SIZE = 1L << 24;
+    private static final Comparator<byte[]> COMPARATOR = UnsignedBytes.lexicographicalComparator();
+
+    private final byte[] rangeStart;
+    private final byte[] rangeEnd;
+    private final int size;
+    private final AtomicLongArray words;
+    private final AtomicInteger cursor = new AtomicInteger();
+    private final AtomicInteger allocated = new AtomicInteger();
+
+    /**
+     * Constructs a new AddressBitmapAllocator over the current range of the given subnet.
+     */
+    public AddressBitmapAllocator(@Nonnull Subnet subnet) {
+        Preconditions.checkNotNull(subnet, "Subnet was null.");
+        long rangeSize = subnet.getRangeSize();
+        Preconditions.checkArgument(rangeSize > 0 && rangeSize <= MAX_SIZE, "Illegal range size %s for %s.", rangeSize, subnet);
+        this.rangeStart = subnet.getRangeStart().getAddress();
+        this.rangeEnd = subnet.getRangeEnd().getAddress();
+        this.size = (int) rangeSize;
+        this.words = new AtomicLongArray((size + Long.SIZE - 1) / Long.SIZE);
+    }
+
+    @Nonnegative
+    public int getSize() {
+        return size;
+    }
+
+    /** Returns the index of the given address within the range, or -1. */
+    @CheckForSigned
+    public int indexOf(@Nonnull InetAddress address) {
+        byte[] data = address.getAddress();
+        if (data.length != rangeStart.length)
+            return -1;
+        if (COMPARATOR.compare(data, rangeStart) < 0 || COMPARATOR.compare(data, rangeEnd) > 0)
+            return -1;
+        return (int) AddressUtils.toLong(AddressUtils.subtract(data, rangeStart));
+    }
+
+    @Nonnull
+    public InetAddress addressOf(@Nonnegative int index) {
+        Preconditions.checkElementIndex(index, size, "Index");
+        return AddressUtils.toInetAddress(AddressUtils.add(Arrays.copyOf(rangeStart, rangeStart.length), index));
+    }
+
+    public boolean contains(@Nonnull InetAddress address) {
+        return indexOf(address) >= 0;
+    }
+
+    /** Returns the bits of the given word which correspond to addresses in the range. */
+    private long validMask(int word) {
+        int bits = size - word * Long.SIZE;
+        if (bits >= Long.SIZE)
+            return -1L;
+        return (1L << bits) - 1;
+    }
+
+    /** Sets the given bit, and returns true if it was clear. */
+    private boolean set(@Nonnegative int index) {
+        int word = index / Long.SIZE;
+        long bit = 1L << (index % Long.SIZE);
+        for (;;) {
+            long value = words.get(word);
+            if ((value & bit) != 0)
+                return false;
+            if (words.compareAndSet(word, value, value | bit)) {
+                allocated.incrementAndGet();
+                return true;
+            }
+        }
+    }
+
+    /** Clears the given bit, and returns true if it was set. */
+    private boolean clear(@Nonnegative int index) {
+        int word = index / Long.SIZE;
+        long bit = 1L << (index % Long.SIZE);
+        for (;;) {
+            long value = words.get(word);
+            if ((value & bit) == 0)
+                return false;
+            if (words.compareAndSet(word, value, value & ~bit)) {
+                allocated.decrementAndGet();
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Allocates the next free address.
+     *
+     * @return the allocated address, or null if the range is exhausted.
+     */
+    @CheckForNull
+    public InetAddress allocate() {
+        int index = allocateIndex();
+        if (index < 0)
+            return null;
+        return addressOf(index);
+    }
+
+    @CheckForSigned
+    private int allocateIndex() {
+        int wordCount = words.length();
+        int start = cursor.get();
+        int startWord = start / Long.SIZE;
+        long startMask = -1L << (start % Long.SIZE);
+        // Visit the start word last a second time, for the bits below the cursor.
+        for (int i = 0; i <= wordCount; i++) {
+            int word = (startWord + i) % wordCount;
+            long mask = validMask(word);
+            if (i == 0)
+                mask &= startMask;
+            else if (i == wordCount)
+                mask &= ~startMask;
+            for (;;) {
+                long free = ~words.get(word) & mask;
+                if (free == 0)
+                    break;
+                int bit = Long.numberOfTrailingZeros(free);
+                int index = word * Long.SIZE + bit;
+                if (set(index)) {
+                    cursor.set(index + 1 < size ? index + 1 : 0);
+                    return index;
+                }
+                // Lost a race for this bit; look again.
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Allocates the given address, if it is in the range and free.
+     *
+     * @return true if the address was allocated.
+     */
+    public boolean allocate(@Nonnull InetAddress address) {
+        int index = indexOf(address);
+        return index >= 0 && set(index);
+    }
+
+    /**
+     * Returns the given address to the range.
+     *
+     * @return false if the address is not in the range, or was already free.
+     */
+    public boolean release(@Nonnull InetAddress address) {
+        int index = indexOf(address);
+        return index >= 0 && clear(index);
+    }
+
+    /** Returns true if the given address is in the range and free. */
+    public boolean isFree(@Nonnull InetAddress address) {
+        int index = indexOf(address);
+        if (index < 0)
+            return false;
+        return (words.get(index / Long.SIZE) & (1L << (index % Long.SIZE))) == 0;
+    }
+
+    /**
+     * Returns the index of the first allocated address at or after the given index.
+     *
+     * @return the index, or -1 if there is none.
+     */
+    @CheckForSigned
+    public int nextAllocatedIndex(@Nonnegative int fromIndex) {
+        if (fromIndex >= size)
+            return -1;
+        int word = fromIndex / Long.SIZE;
+        long value = words.get(word) & (-1L << (fromIndex % Long.SIZE));
+        for (;;) {
+            if (value != 0)
+                return word * Long.SIZE + Long.numberOfTrailingZeros(value);
+            if (++word >= words.length())
+                return -1;
+            value = words.get(word);
+        }
+    }
+
+    /**
+     * Allocates every address allocated in the given allocator which is
+     * within the range of this one.
+     *
+     * @return The number of addresses newly allocated.
+     */
+    @Nonnegative
+    public int copyFrom(@Nonnull AddressBitmapAllocator other) {
+        int count = 0;
+        for (int index = other.nextAllocatedIndex(0); index >= 0; index = other.nextAllocatedIndex(index + 1))
+            if (allocate(other.addressOf(index)))
+                count++;
+        return count;
+    }
+
+    @Nonnegative
+    public int getAllocatedCount() {
+        return allocated.get();
+    }
+
+    /** Returns true if no address is free. */
+    public boolean isExhausted() {
+        return allocated.get() >= size;
+    }
+
+    /** Releases every address. */
+    public void clear() {
+        for (int i = 0; i < words.length(); i++) {
+            long value = words.getAndSet(i, 0L);
+            allocated.addAndGet(-Long.bitCount(value));
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "AddressBitmapAllocator(" + AddressUtils.toInetAddress(rangeStart).getHostAddress()
+                + "-" + AddressUtils.toInetAddress(rangeEnd).getHostAddress()
+                + ", " + getAllocatedCount() + "/" + size + " allocated)";
+    }
+}
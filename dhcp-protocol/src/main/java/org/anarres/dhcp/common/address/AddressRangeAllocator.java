@@ -0,0 +1,200 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.anarres.dhcp.common.address;
+
+import com.google.common.base.Preconditions;
+import com.google.common.primitives.UnsignedBytes;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * Allocates addresses from a pool, by maintaining the set of free ranges.
+ *
+ * The free set is a sorted map from the start to the end of each free
+ * range, both inclusive, and adjacent free ranges are always coalesced.
+ * Allocation and release are O(log n) in the number of free ranges, and
+ * independent of the size of the pool, so a /64 costs no more than a /120.
+ *
+ * The lowest free address is allocated unless a specific address is
+ * requested.
+ *
+ * @author shevek
+ */
+@ThreadSafe
+public class AddressRangeAllocator {
+
+    private static final Comparator<byte[]> COMPARATOR = UnsignedBytes.lexicographicalComparator();
+
+    private static int compare(@Nonnull byte[] a, @Nonnull byte[] b) {
+        return COMPARATOR.compare(a, b);
+    }
+
+    @Nonnull
+    private static byte[] successor(@Nonnull byte[] in) {
+        return AddressUtils.increment(Arrays.copyOf(in, in.length));
+    }
+
+    @Nonnull
+    private static byte[] predecessor(@Nonnull byte[] in) {
+        return AddressUtils.decrement(Arrays.copyOf(in, in.length));
+    }
+
+    private final byte[] poolStart;
+    private final byte[] poolEnd;
+    @GuardedBy("this")
+    private final TreeMap<byte[], byte[]> free = new TreeMap<byte[], byte[]>(COMPARATOR);
+
+    /**
+     * Constructs a new AddressRangeAllocator, with all addresses initially free.
+     *
+     * @param start The first address in the pool, inclusive.
+     * @param end The last address in the pool, inclusive.
+     */
+    public AddressRangeAllocator(@Nonnull InetAddress start, @Nonnull InetAddress end) {
+        this.poolStart = start.getAddress();
+        this.poolEnd = end.getAddress();
+        Preconditions.checkArgument(poolStart.length == poolEnd.length, "Address families differ: %s, %s", start, end);
+        Preconditions.checkArgument(compare(poolStart, poolEnd) <= 0, "Start %s is after end %s.", start, end);
+        free.put(poolStart, poolEnd);
+    }
+
+    public AddressRangeAllocator(@Nonnull InetAddressRange range) {
+        this(range.getStart(), range.getEnd());
+    }
+
+    private boolean isInPool(@Nonnull byte[] address) {
+        return address.length == poolStart.length
+                && compare(address, poolStart) >= 0
+                && compare(address, poolEnd) <= 0;
+    }
+
+    /**
+     * Allocates the lowest free address.
+     *
+     * @return the allocated address, or null if the pool is exhausted.
+     */
+    @CheckForNull
+    public synchronized InetAddress allocate() {
+        Map.Entry<byte[], byte[]> e = free.pollFirstEntry();
+        if (e == null)
+            return null;
+        byte[] start = e.getKey();
+        byte[] end = e.getValue();
+        if (compare(start, end) < 0)
+            free.put(successor(start), end);
+        return AddressUtils.toInetAddress(start);
+    }
+
+    /**
+     * Allocates the given address, if it is in the pool and free.
+     *
+     * @return true if the address was allocated.
+     */
+    public synchronized boolean allocate(@Nonnull InetAddress address) {
+        byte[] data = address.getAddress();
+        if (!isInPool(data))
+            return false;
+        Map.Entry<byte[], byte[]> e = free.floorEntry(data);
+        if (e == null)
+            return false;
+        byte[] start = e.getKey();
+        byte[] end = e.getValue();
+        if (compare(data, end) > 0)
+            return false;
+        // Split [start, end] into [start, data) and (data, end].
+        free.remove(start);
+        if (compare(start, data) < 0)
+            free.put(start, predecessor(data));
+        if (compare(data, end) < 0)
+            free.put(successor(data), end);
+        return true;
+    }
+
+    /**
+     * Allocates the first of the hinted addresses which is free,
+     * or the lowest free address if none is.
+     *
+     * @return the allocated address, or null if the pool is exhausted.
+     */
+    @CheckForNull
+    public synchronized InetAddress allocate(@Nonnull Iterable<? extends InetAddress> hints) {
+        for (InetAddress hint : hints)
+            if (allocate(hint))
+                return hint;
+        return allocate();
+    }
+
+    /**
+     * Returns the given address to the pool.
+     *
+     * @return false if the address is not in the pool, or was already free.
+     */
+    public synchronized boolean release(@Nonnull InetAddress address) {
+        byte[] data = address.getAddress();
+        if (!isInPool(data))
+            return false;
+        byte[] start = data;
+        byte[] end = data;
+
+        Map.Entry<byte[], byte[]> lower = free.floorEntry(data);
+        if (lower != null) {
+            int cmp = compare(lower.getValue(), data);
+            if (cmp >= 0)
+                return false;   // Already free.
+            if (Arrays.equals(successor(lower.getValue()), data)) {
+                start = lower.getKey();
+                free.remove(start);
+            }
+        }
+
+        if (compare(data, poolEnd) < 0) {
+            byte[] next = successor(data);
+            byte[] higher = free.remove(next);
+            if (higher != null)
+                end = higher;
+        }
+
+        free.put(start, end);
+        return true;
+    }
+
+    /** Returns true if the given address is in the pool and free. */
+    public synchronized boolean isFree(@Nonnull InetAddress address) {
+        byte[] data = address.getAddress();
+        if (!isInPool(data))
+            return false;
+        Map.Entry<byte[], byte[]> e = free.floorEntry(data);
+        return e != null && compare(data, e.getValue()) <= 0;
+    }
+
+    /** Returns true if no address is free. */
+    public synchronized boolean isExhausted() {
+        return free.isEmpty();
+    }
+
+    /** Returns the free ranges, in order. */
+    @Nonnull
+    public synchronized List<InetAddressRange> toAddressRangeList() {
+        List<InetAddressRange> out = new ArrayList<InetAddressRange>(free.size());
+        for (Map.Entry<byte[], byte[]> e : free.entrySet())
+            out.add(new InetAddressRange(AddressUtils.toInetAddress(e.getKey()), AddressUtils.toInetAddress(e.getValue())));
+        return out;
+    }
+
+    @Override
+    public String toString() {
+        return "AddressRangeAllocator(" + toAddressRangeList() + ")";
+    }
+}
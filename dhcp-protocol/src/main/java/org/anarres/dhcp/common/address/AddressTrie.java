@@ -0,0 +1,151 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.anarres.dhcp.common.address;
+
+import com.google.common.base.Preconditions;
+import java.net.InetAddress;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.Immutable;
+
+/**
+ * An immutable binary trie of address prefixes, for longest-prefix matching.
+ *
+ * A lookup walks one node per bit of the matched prefix, so costs at most
+ * 32 steps for IPv4 and 128 for IPv6, regardless of the number of prefixes.
+ * Adding a prefix copies only the path to its node and shares the rest,
+ * so a new trie may be built and published while readers use the old one.
+ *
+ * @author shevek
+ */
+@Immutable
+public final class AddressTrie<V> {
+
+    private static final class Node<V> {
+
+        @CheckForNull
+        private final V value;
+        @CheckForNull
+        private final Node<V> zero;
+        @CheckForNull
+        private final Node<V> one;
+
+        private Node(@CheckForNull V value, @CheckForNull Node<V> zero, @CheckForNull Node<V> one) {
+            this.value = value;
+            this.zero = zero;
+            this.one = one;
+        }
+    }
+
+    private static final AddressTrie<Object> EMPTY = new AddressTrie<Object>(null, null, 0);
+
+    /** Returns the empty trie. */
+    @SuppressWarnings("unchecked")
+    @Nonnull
+    public static <V> AddressTrie<V> empty() {
+        return (AddressTrie<V>) EMPTY;
+    }
+
+    private static boolean bit(@Nonnull byte[] data, @Nonnegative int index) {
+        return (data[index / Byte.SIZE] & (0x80 >>> (index % Byte.SIZE))) != 0;
+    }
+
+    /** Returns a copy of the subtrie at the given node, with the value set at the given prefix. */
+    @Nonnull
+    private static <V> Node<V> with(@CheckForNull Node<V> node, @Nonnull byte[] prefix, @Nonnegative int depth, @Nonnegative int prefixLength, @Nonnull V value) {
+        V nodeValue = node == null ? null : node.value;
+        Node<V> zero = node == null ? null : node.zero;
+        Node<V> one = node == null ? null : node.one;
+        if (depth == prefixLength)
+            return new Node<V>(value, zero, one);
+        if (bit(prefix, depth))
+            return new Node<V>(nodeValue, zero, with(one, prefix, depth + 1, prefixLength, value));
+        else
+            return new Node<V>(nodeValue, with(zero, prefix, depth + 1, prefixLength, value), one);
+    }
+
+    @CheckForNull
+    private final Node<V> root4;
+    @CheckForNull
+    private final Node<V> root6;
+    @Nonnegative
+    private final int size;
+
+    private AddressTrie(@CheckForNull Node<V> root4, @CheckForNull Node<V> root6, @Nonnegative int size) {
+        this.root4 = root4;
+        this.root6 = root6;
+        this.size = size;
+    }
+
+    @CheckForNull
+    private Node<V> root(@Nonnull byte[] data) {
+        return data.length == 4 ? root4 : root6;
+    }
+
+    /**
+     * Returns a trie which maps the given prefix to the given value,
+     * replacing any value previously mapped to the same prefix.
+     *
+     * Bits of the address beyond the prefix length are ignored.
+     */
+    @Nonnull
+    public AddressTrie<V> with(@Nonnull InetAddress address, @Nonnegative int prefixLength, @Nonnull V value) {
+        Preconditions.checkNotNull(value, "Value was null.");
+        byte[] data = address.getAddress();
+        Preconditions.checkArgument(prefixLength >= 0 && prefixLength <= data.length * Byte.SIZE,
+                "Illegal prefix length %s for %s", prefixLength, address);
+        int nextSize = getExact(address, prefixLength) == null ? size + 1 : size;
+        Node<V> root = with(root(data), data, 0, prefixLength, value);
+        if (data.length == 4)
+            return new AddressTrie<V>(root, root6, nextSize);
+        else
+            return new AddressTrie<V>(root4, root, nextSize);
+    }
+
+    @Nonnull
+    public AddressTrie<V> with(@Nonnull AbstractMaskedAddress prefix, @Nonnull V value) {
+        return with(prefix.getAddress(), prefix.getNetmask(), value);
+    }
+
+    /** Returns the value of the longest prefix which contains the given address. */
+    @CheckForNull
+    public V get(@Nonnull InetAddress address) {
+        byte[] data = address.getAddress();
+        int length = data.length * Byte.SIZE;
+        Node<V> node = root(data);
+        V out = null;
+        for (int depth = 0; node != null; depth++) {
+            if (node.value != null)
+                out = node.value;
+            if (depth == length)
+                break;
+            node = bit(data, depth) ? node.one : node.zero;
+        }
+        return out;
+    }
+
+    /** Returns the value mapped to exactly the given prefix. */
+    @CheckForNull
+    public V getExact(@Nonnull InetAddress address, @Nonnegative int prefixLength) {
+        byte[] data = address.getAddress();
+        Node<V> node = root(data);
+        for (int depth = 0; node != null && depth < prefixLength; depth++)
+            node = bit(data, depth) ? node.one : node.zero;
+        return node == null ? null : node.value;
+    }
+
+    /** Returns the number of prefixes in this trie. */
+    @Nonnegative
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public String toString() {
+        return "AddressTrie(" + size + " prefixes)";
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.anarres.dhcp.common.address;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * An index of values by network, such as the subnet configurations of a
+ * lease manager, which finds the value for the most specific network
+ * containing an address, such as a relay agent address.
+ *
+ * Lookups are lock-free and take one step per bit of the matched prefix,
+ * however many networks are indexed. Additions replace the index.
+ *
+ * @see AddressTrie
+ * @author shevek
+ */
+@ThreadSafe
+public class SubnetIndex<V> {
+
+    /** Replaced under the lock, never modified, so that lookups need no lock. */
+    private volatile AddressTrie<V> trie = AddressTrie.empty();
+    @GuardedBy("this")
+    private final List<V> values = new ArrayList<V>();
+
+    /**
+     * Adds a value for the given network.
+     *
+     * @return false if the network already had a value, which is left unchanged.
+     */
+    public synchronized boolean add(@Nonnull AbstractMaskedAddress network, @Nonnull V value) {
+        Preconditions.checkNotNull(network, "Network was null.");
+        Preconditions.checkNotNull(value, "Value was null.");
+        if (trie.getExact(network.getAddress(), network.getNetmask()) != null)
+            return false;
+        trie = trie.with(network, value);
+        values.add(value);
+        return true;
+    }
+
+    /** Returns the value for the most specific network containing the given address. */
+    @CheckForNull
+    public V find(@Nonnull InetAddress address) {
+        return trie.get(address);
+    }
+
+    /** Returns the value for exactly the given network. */
+    @CheckForNull
+    public V get(@Nonnull AbstractMaskedAddress network) {
+        return trie.getExact(network.getAddress(), network.getNetmask());
+    }
+
+    /** Returns the indexed values, in the order in which they were added. */
+    @Nonnull
+    public synchronized List<V> getValues() {
+        return ImmutableList.copyOf(values);
+    }
+
+    @Nonnegative
+    public int size() {
+        return trie.size();
+    }
+
+    @Override
+    public String toString() {
+        return "SubnetIndex(" + size() + " networks)";
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.anarres.dhcp.common.concurrent;
+
+import com.google.common.base.Preconditions;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A fixed pool of worker threads serving a bounded queue which discards
+ * tasks, rather than blocking or rejecting them, when it is full.
+ *
+ * Subclasses provide the queue, and count each task against one of a
+ * fixed number of indices, such as a priority level. A task which
+ * implements {@link PriorityExecutor.Prioritized}, and whose deadline has
+ * passed when a worker takes it, is discarded without being run.
+ * Discarded tasks are passed to {@link #discarded(Runnable)}, and those
+ * which implement {@link Discardable} are told why.
+ *
+ * @author shevek
+ */
+@ThreadSafe
+public abstract class AbstractDiscardingExecutor implements Executor {
+
+    private static final Logger LOG = LoggerFactory.getLogger(AbstractDiscardingExecutor.class);
+
+    private class Worker implements Runnable {
+
+        @Override
+        public void run() {
+            try {
+                while (!shutdown) {
+                    Runnable task = take();
+                    int counter = getIndex(task);
+                    if (task instanceof PriorityExecutor.Prioritized && System.nanoTime() - ((PriorityExecutor.Prioritized) task).getDeadline() > 0) {
+                        expired.incrementAndGet(counter);
+                        if (task instanceof Discardable)
+                            ((Discardable) task).expired();
+                        discarded(task);
+                        continue;
+                    }
+                    try {
+                        task.run();
+                    } catch (Throwable t) {
+                        // Including Errors: nothing would replace this worker if it died.
+                        LOG.error("Task failed: " + task, t);
+                    }
+                    executed.incrementAndGet(counter);
+                }
+            } catch (InterruptedException e) {
+                // Shutdown.
+            }
+        }
+    }
+
+    private final Thread[] threads;
+    private final AtomicLongArray executed;
+    private final AtomicLongArray dropped;
+    private final AtomicLongArray expired;
+    private volatile boolean shutdown = false;
+
+    /**
+     * Constructs a new AbstractDiscardingExecutor.
+     *
+     * The subclass must call {@link #start()} once it is ready to serve {@link #take()}.
+     *
+     * @param threadCount The number of worker threads.
+     * @param indexCount The number of indices against which tasks are counted.
+     * @param threadFactory The factory for the worker threads.
+     */
+    protected AbstractDiscardingExecutor(@Nonnegative int threadCount, @Nonnegative int indexCount, @Nonnull ThreadFactory threadFactory) {
+        Preconditions.checkArgument(threadCount > 0, "Thread count must be positive.");
+        Preconditions.checkNotNull(threadFactory, "ThreadFactory was null.");
+        this.threads = new Thread[threadCount];
+        for (int i = 0; i < threadCount; i++)
+            threads[i] = threadFactory.newThread(new Worker());
+        this.executed = new AtomicLongArray(indexCount);
+        this.dropped = new AtomicLongArray(indexCount);
+        this.expired = new AtomicLongArray(indexCount);
+    }
+
+    /** Starts the worker threads. */
+    protected void start() {
+        for (Thread thread : threads)
+            thread.start();
+    }
+
+    /** Throws RejectedExecutionException if this executor has been shut down. */
+    protected void checkNotShutdown() {
+        if (shutdown)
+            throw new RejectedExecutionException("Executor is shut down.");
+    }
+
+    /** Waits for, and removes, the next task to run. */
+    @Nonnull
+    protected abstract Runnable take() throws InterruptedException;
+
+    /** Returns the index against which the given task is counted. */
+    @Nonnegative
+    protected abstract int getIndex(@Nonnull Runnable task);
+
+    /** Discards a queued task, or a new one, because the queue was full. */
+    protected void overflowed(@Nonnull Runnable task, @Nonnegative int index) {
+        dropped.incrementAndGet(index);
+        if (task instanceof Discardable)
+            ((Discardable) task).overflowed();
+        discarded(task);
+    }
+
+    /**
+     * Called when a task is discarded, because the queue was full or its
+     * deadline passed.
+     *
+     * The default implementation logs the task at debug level.
+     */
+    protected void discarded(@Nonnull Runnable task) {
+        if (LOG.isDebugEnabled())
+            LOG.debug("Discarded task {}", task);
+    }
+
+    /** Returns the number of tasks run from the given index. */
+    @Nonnegative
+    public long getExecutedCount(@Nonnegative int index) {
+        return executed.get(index);
+    }
+
+    /** Returns the number of tasks discarded from the given index because the queue was full. */
+    @Nonnegative
+    public long getDroppedCount(@Nonnegative int index) {
+        return dropped.get(index);
+    }
+
+    /** Returns the total number of tasks discarded because the queue was full. */
+    @Nonnegative
+    public long getDroppedCount() {
+        long count = 0;
+        for (int i = 0; i < dropped.length(); i++)
+            count += dropped.get(i);
+        return count;
+    }
+
+    /** Returns the number of tasks discarded from the given index because their deadline passed. */
+    @Nonnegative
+    public long getExpiredCount(@Nonnegative int index) {
+        return expired.get(index);
+    }
+
+    /**
+     * Stops the worker threads.
+     *
+     * Tasks which have not yet started are not run.
+     */
+    public void shutdown() {
+        shutdown = true;
+        for (Thread thread : threads)
+            thread.interrupt();
+    }
+
+    public boolean awaitTermination(@Nonnegative long timeout, @Nonnull TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        for (Thread thread : threads) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0)
+                return false;
+            TimeUnit.NANOSECONDS.timedJoin(thread, remaining);
+            if (thread.isAlive())
+                return false;
+        }
+        return true;
+    }
+}
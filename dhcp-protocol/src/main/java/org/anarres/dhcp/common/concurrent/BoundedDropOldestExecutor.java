@@ -0,0 +1,92 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.anarres.dhcp.common.concurrent;
+
+import com.google.common.base.Preconditions;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * A fixed pool of worker threads sharing a bounded queue.
+ *
+ * When the queue is full, the oldest task in it is discarded to make room
+ * for the new one. A DHCP client retransmits a request which goes
+ * unanswered, so a stale request is worth less than a fresh one, and
+ * answering it only delays the answer to the retransmission.
+ *
+ * Every idle worker takes from the same queue, so a slow task delays only
+ * the worker running it. A task whose deadline has passed by the time it
+ * is taken is not run.
+ *
+ * @author shevek
+ */
+@ThreadSafe
+public class BoundedDropOldestExecutor extends AbstractDiscardingExecutor {
+
+    private final BlockingQueue<Runnable> queue;
+
+    /**
+     * Constructs and starts a new BoundedDropOldestExecutor.
+     *
+     * @param threadCount The number of worker threads.
+     * @param queueCapacity The capacity of the queue.
+     * @param threadFactory The factory for the worker threads.
+     */
+    public BoundedDropOldestExecutor(@Nonnegative int threadCount, @Nonnegative int queueCapacity, @Nonnull ThreadFactory threadFactory) {
+        super(threadCount, 1, threadFactory);
+        Preconditions.checkArgument(queueCapacity > 0, "Queue capacity must be positive.");
+        this.queue = new ArrayBlockingQueue<Runnable>(queueCapacity);
+        start();
+    }
+
+    @Override
+    public void execute(@Nonnull Runnable task) {
+        Preconditions.checkNotNull(task, "Task was null.");
+        checkNotShutdown();
+        while (!queue.offer(task)) {
+            Runnable victim = queue.poll();
+            if (victim != null)
+                overflowed(victim, 0);
+        }
+    }
+
+    @Override
+    protected Runnable take() throws InterruptedException {
+        return queue.take();
+    }
+
+    @Override
+    protected int getIndex(Runnable task) {
+        return 0;
+    }
+
+    /** Returns the number of tasks currently waiting in the queue. */
+    @Nonnegative
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    /** Returns the number of tasks run. */
+    @Nonnegative
+    public long getExecutedCount() {
+        return getExecutedCount(0);
+    }
+
+    /** Returns the number of tasks discarded because their deadline passed. */
+    @Nonnegative
+    public long getExpiredCount() {
+        return getExpiredCount(0);
+    }
+
+    @Override
+    public String toString() {
+        return "BoundedDropOldestExecutor(" + getQueueDepth() + '/' + getDroppedCount() + '/' + getExpiredCount() + ')';
+    }
+}
@@ -0,0 +1,22 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.anarres.dhcp.common.concurrent;
+
+/**
+ * A task which is told when an executor discards it without running it.
+ *
+ * @see BoundedDropOldestExecutor
+ * @see PriorityExecutor
+ * @author shevek
+ */
+public interface Discardable extends Runnable {
+
+    /** Called, instead of {@link #run()}, if the task is discarded because the queue was full. */
+    public void overflowed();
+
+    /** Called, instead of {@link #run()}, if the task is discarded because its deadline passed. */
+    public void expired();
+}
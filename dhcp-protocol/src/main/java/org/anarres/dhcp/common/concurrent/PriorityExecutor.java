@@ -0,0 +1,177 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.anarres.dhcp.common.concurrent;
+
+import com.google.common.base.Preconditions;
+import java.util.ArrayDeque;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * A fixed pool of worker threads sharing a bounded multi-level queue.
+ *
+ * Workers always take the oldest task from the highest-priority level
+ * which has one. When the queue is full, the oldest task of the
+ * lowest-priority level is discarded to make room, unless every queued
+ * task has a higher priority than the new one, in which case the new
+ * task is discarded. So under overload, low-priority work is shed first,
+ * and within a level, stale work is shed before fresh work.
+ *
+ * Tasks which implement {@link Prioritized} give their own priority and
+ * deadline; a task whose deadline has passed when it reaches the head of
+ * the queue is discarded without being run. Other tasks have the lowest
+ * priority, and no deadline. Tasks are counted by priority level.
+ *
+ * @see BoundedDropOldestExecutor
+ * @author shevek
+ */
+@ThreadSafe
+public class PriorityExecutor extends AbstractDiscardingExecutor {
+
+    /** A task with a priority and a deadline. */
+    public static interface Prioritized extends Runnable {
+
+        /** Returns the priority of this task, where 0 is the highest. */
+        @Nonnegative
+        public int getPriority();
+
+        /** Returns the time, on the {@link System#nanoTime()} clock, after which this task is not worth running. */
+        public long getDeadline();
+    }
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    @GuardedBy("lock")
+    private final ArrayDeque<Runnable>[] queues;
+    @GuardedBy("lock")
+    private int size = 0;
+    private final int capacity;
+
+    /**
+     * Constructs and starts a new PriorityExecutor.
+     *
+     * @param threadCount The number of worker threads.
+     * @param levelCount The number of priority levels.
+     * @param capacity The total capacity of the queue, over all levels.
+     * @param threadFactory The factory for the worker threads.
+     */
+    @SuppressWarnings("unchecked")
+    public PriorityExecutor(@Nonnegative int threadCount, @Nonnegative int levelCount, @Nonnegative int capacity, @Nonnull ThreadFactory threadFactory) {
+        super(threadCount, checkLevelCount(levelCount), threadFactory);
+        Preconditions.checkArgument(capacity > 0, "Queue capacity must be positive.");
+        this.queues = new ArrayDeque[levelCount];
+        for (int i = 0; i < levelCount; i++)
+            queues[i] = new ArrayDeque<Runnable>();
+        this.capacity = capacity;
+        start();
+    }
+
+    @Nonnegative
+    private static int checkLevelCount(@Nonnegative int levelCount) {
+        Preconditions.checkArgument(levelCount > 0, "Level count must be positive.");
+        return levelCount;
+    }
+
+    @Nonnegative
+    private int getPriority(@Nonnull Runnable task) {
+        if (task instanceof Prioritized)
+            return Math.max(0, Math.min(((Prioritized) task).getPriority(), queues.length - 1));
+        return queues.length - 1;
+    }
+
+    @Override
+    public void execute(@Nonnull Runnable task) {
+        Preconditions.checkNotNull(task, "Task was null.");
+        checkNotShutdown();
+        int priority = getPriority(task);
+        Runnable victim = null;
+        int victimPriority = priority;
+        lock.lock();
+        try {
+            if (size >= capacity) {
+                for (int i = queues.length - 1; i >= priority; i--) {
+                    victim = queues[i].pollFirst();
+                    if (victim != null) {
+                        victimPriority = i;
+                        size--;
+                        break;
+                    }
+                }
+                if (victim == null) {
+                    // Everything queued is more important.
+                    victim = task;
+                    task = null;
+                }
+            }
+            if (task != null) {
+                queues[priority].addLast(task);
+                size++;
+                notEmpty.signal();
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (victim != null)
+            overflowed(victim, victimPriority);
+    }
+
+    @Override
+    protected Runnable take() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            for (;;) {
+                for (ArrayDeque<Runnable> queue : queues) {
+                    Runnable task = queue.pollFirst();
+                    if (task != null) {
+                        size--;
+                        return task;
+                    }
+                }
+                notEmpty.await();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    protected int getIndex(Runnable task) {
+        return getPriority(task);
+    }
+
+    /** Returns the number of priority levels. */
+    @Nonnegative
+    public int getLevelCount() {
+        return queues.length;
+    }
+
+    /** Returns the number of tasks currently waiting at the given level. */
+    @Nonnegative
+    public int getQueueDepth(@Nonnegative int priority) {
+        lock.lock();
+        try {
+            return queues[priority].size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder buf = new StringBuilder("PriorityExecutor(");
+        for (int i = 0; i < queues.length; i++) {
+            if (i > 0)
+                buf.append(", ");
+            buf.append(getQueueDepth(i)).append('/').append(getDroppedCount(i)).append('/').append(getExpiredCount(i));
+        }
+        return buf.append(')').toString();
+    }
+}
@@ -0,0 +1,269 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.anarres.dhcp.common.concurrent;
+
+import com.google.common.base.Preconditions;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * A hierarchical hashed timing wheel.
+ *
+ * Scheduling and cancelling a timeout are O(1). Each timeout is moved
+ * down at most once per level as its deadline approaches, so expiry is
+ * O(1) amortized per timeout, and never requires a scan of all timeouts.
+ * Advancing over a span in which nothing is due skips to the next
+ * occupied level, so catching up after an idle period is cheap.
+ *
+ * The wheel has no thread of its own; time advances only when
+ * {@link #advance(long)} is called, which returns the values whose
+ * deadlines have passed. Times are in milliseconds on any monotonic clock,
+ * and deadlines are rounded up to the next tick, so a timeout never
+ * expires early.
+ *
+ * @author shevek
+ */
+@ThreadSafe
+public class TimingWheel<T> {
+
+    private static final int SLOT_BITS = 6;
+    private static final int SLOTS = 1 << SLOT_BITS;
+    private static final int SLOT_MASK = SLOTS - 1;
+    private static final int LEVELS = 4;
+    /** Timeouts beyond the range of the top level wait here. */
+    private static final int OVERFLOW = LEVELS * SLOTS;
+
+    /** A handle to a scheduled value. */
+    public static class Timeout<T> {
+
+        private final T value;
+        private final long deadline;    // In ticks.
+        @GuardedBy("TimingWheel.this")
+        private int bucket = -1;
+        @GuardedBy("TimingWheel.this")
+        private Timeout<T> prev;
+        @GuardedBy("TimingWheel.this")
+        private Timeout<T> next;
+
+        private Timeout(@Nonnull T value, long deadline) {
+            this.value = value;
+            this.deadline = deadline;
+        }
+
+        @Nonnull
+        public T getValue() {
+            return value;
+        }
+
+        @Override
+        public String toString() {
+            return "Timeout(" + value + " at tick " + deadline + ")";
+        }
+    }
+
+    private final long origin;
+    private final long tickMillis;
+    @GuardedBy("this")
+    private final Timeout<?>[] buckets = new Timeout<?>[OVERFLOW + 1];
+    /** The number of timeouts in the slots of each level, and in the overflow. */
+    @GuardedBy("this")
+    private final int[] levelSizes = new int[LEVELS + 1];
+    @GuardedBy("this")
+    private long currentTick = 0;
+    @GuardedBy("this")
+    private int size = 0;
+
+    /**
+     * Constructs a new TimingWheel.
+     *
+     * @param tickDuration The resolution of the wheel.
+     * @param unit The unit of tickDuration.
+     * @param nowMillis The current time, in milliseconds.
+     */
+    public TimingWheel(@Nonnegative long tickDuration, @Nonnull TimeUnit unit, long nowMillis) {
+        this.tickMillis = unit.toMillis(tickDuration);
+        Preconditions.checkArgument(tickMillis > 0, "Tick duration must be at least one millisecond.");
+        this.origin = nowMillis;
+    }
+
+    /** Returns the last tick which has passed at the given time. */
+    private long toTick(long millis) {
+        return Math.max(0, (millis - origin) / tickMillis);
+    }
+
+    @SuppressWarnings("unchecked")
+    private Timeout<T> head(int bucket) {
+        return (Timeout<T>) buckets[bucket];
+    }
+
+    @GuardedBy("this")
+    private void link(@Nonnull Timeout<T> timeout, int bucket) {
+        Timeout<T> head = head(bucket);
+        timeout.bucket = bucket;
+        timeout.prev = null;
+        timeout.next = head;
+        if (head != null)
+            head.prev = timeout;
+        buckets[bucket] = timeout;
+        levelSizes[bucket / SLOTS]++;
+    }
+
+    @GuardedBy("this")
+    private void unlink(@Nonnull Timeout<T> timeout) {
+        if (timeout.prev != null)
+            timeout.prev.next = timeout.next;
+        else
+            buckets[timeout.bucket] = timeout.next;
+        if (timeout.next != null)
+            timeout.next.prev = timeout.prev;
+        levelSizes[timeout.bucket / SLOTS]--;
+        timeout.bucket = -1;
+        timeout.prev = null;
+        timeout.next = null;
+    }
+
+    /** Places the timeout in the slot of the highest level at which its deadline differs from now. */
+    @GuardedBy("this")
+    private void insert(@Nonnull Timeout<T> timeout) {
+        long deadline = Math.max(timeout.deadline, currentTick);
+        long diff = deadline ^ currentTick;
+        int level = diff == 0 ? 0 : (Long.SIZE - 1 - Long.numberOfLeadingZeros(diff)) / SLOT_BITS;
+        if (level >= LEVELS)
+            link(timeout, OVERFLOW);
+        else
+            link(timeout, level * SLOTS + (int) ((deadline >>> (level * SLOT_BITS)) & SLOT_MASK));
+    }
+
+    /**
+     * Schedules the given value to expire at the given time.
+     *
+     * @return A handle with which the timeout may be cancelled.
+     */
+    @Nonnull
+    public synchronized Timeout<T> schedule(@Nonnull T value, long deadlineMillis) {
+        Preconditions.checkNotNull(value, "Value was null.");
+        // Round up, and never expire in the current tick, which may already have been processed.
+        long deadline = Math.max(toTick(deadlineMillis + tickMillis - 1), currentTick + 1);
+        Timeout<T> timeout = new Timeout<T>(value, deadline);
+        insert(timeout);
+        size++;
+        return timeout;
+    }
+
+    /**
+     * Cancels the given timeout.
+     *
+     * @return false if the timeout had already expired or been cancelled.
+     */
+    public synchronized boolean cancel(@CheckForNull Timeout<T> timeout) {
+        if (timeout == null || timeout.bucket < 0)
+            return false;
+        unlink(timeout);
+        size--;
+        return true;
+    }
+
+    /** Re-inserts every timeout in the given bucket, which moves each down at least one level. */
+    @GuardedBy("this")
+    private void cascade(int bucket) {
+        Timeout<T> timeout = head(bucket);
+        buckets[bucket] = null;
+        while (timeout != null) {
+            Timeout<T> next = timeout.next;
+            levelSizes[bucket / SLOTS]--;
+            insert(timeout);
+            timeout = next;
+        }
+    }
+
+    /** Returns the lowest level with any timeouts, LEVELS for the overflow, or LEVELS + 1 if none. */
+    @GuardedBy("this")
+    private int lowestLevel() {
+        for (int level = 0; level <= LEVELS; level++)
+            if (levelSizes[level] != 0)
+                return level;
+        return LEVELS + 1;
+    }
+
+    /**
+     * Advances the wheel to the given time.
+     *
+     * @return The values whose deadlines have passed, in no particular order.
+     */
+    @Nonnull
+    public synchronized List<T> advance(long nowMillis) {
+        long targetTick = toTick(nowMillis);
+        List<T> out = null;
+        while (currentTick < targetTick) {
+            if (size == 0) {
+                currentTick = targetTick;
+                break;
+            }
+            // If every level below this one is empty, nothing expires or cascades
+            // until the next tick at which a slot of this level is reached.
+            int lowest = lowestLevel();
+            if (lowest > 0) {
+                int shift = Math.min(lowest, LEVELS) * SLOT_BITS;
+                long boundary = ((currentTick >>> shift) + 1) << shift;
+                if (boundary > targetTick) {
+                    currentTick = targetTick;
+                    break;
+                }
+                currentTick = boundary - 1;
+            }
+            currentTick++;
+
+            CASCADE:
+            {
+                for (int level = 1; level < LEVELS; level++) {
+                    int shift = level * SLOT_BITS;
+                    if ((currentTick & ((1L << shift) - 1)) != 0)
+                        break CASCADE;
+                    cascade(level * SLOTS + (int) ((currentTick >>> shift) & SLOT_MASK));
+                }
+                if ((currentTick & ((1L << (LEVELS * SLOT_BITS)) - 1)) == 0)
+                    cascade(OVERFLOW);
+            }
+
+            int bucket = (int) (currentTick & SLOT_MASK);
+            Timeout<T> timeout = head(bucket);
+            buckets[bucket] = null;
+            while (timeout != null) {
+                Timeout<T> next = timeout.next;
+                levelSizes[0]--;
+                timeout.bucket = -1;
+                timeout.prev = null;
+                timeout.next = null;
+                size--;
+                if (out == null)
+                    out = new ArrayList<T>();
+                out.add(timeout.value);
+                timeout = next;
+            }
+        }
+        if (out == null)
+            return Collections.emptyList();
+        return out;
+    }
+
+    /** Returns the number of scheduled timeouts. */
+    @Nonnegative
+    public synchronized int size() {
+        return size;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "TimingWheel(" + size + " timeouts at tick " + currentTick + " of " + tickMillis + " ms)";
+    }
+}
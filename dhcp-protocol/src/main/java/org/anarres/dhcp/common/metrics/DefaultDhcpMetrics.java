@@ -0,0 +1,187 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.anarres.dhcp.common.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+import org.anarres.dhcp.v6.messages.Dhcp6MessageType;
+import org.apache.directory.server.dhcp.messages.MessageType;
+
+/**
+ * A dependency-free {@link DhcpMetrics} which keeps everything in memory.
+ *
+ * Counters are striped over a few cache lines, indexed by thread, so
+ * that I/O threads incrementing the same counter do not contend. Latencies
+ * are kept in a {@link LatencyHistogram} per stage and message type,
+ * created when first used.
+ *
+ * @author shevek
+ */
+@ThreadSafe
+public class DefaultDhcpMetrics implements DhcpMetrics {
+
+    private static final int STRIPES = 8;
+    /** Each stripe of a counter is on its own 64-byte cache line. */
+    private static final int PAD_SHIFT = 3;
+
+    private static final int V4_TYPES = MessageType.values().length;
+    private static final int V6_TYPES = Dhcp6MessageType.values().length;
+    /** Counter indices: v4 requests, v6 requests, v4 replies, v6 replies, drops. */
+    private static final int V4_REQUEST = 0;
+    private static final int V6_REQUEST = V4_REQUEST + V4_TYPES;
+    private static final int V4_REPLY = V6_REQUEST + V6_TYPES;
+    private static final int V6_REPLY = V4_REPLY + V4_TYPES;
+    private static final int DROP = V6_REPLY + V6_TYPES;
+    private static final int COUNTERS = DROP + Drop.values().length;
+    /** Histogram indices within a stage: v4 types, unknown v4, v6 types, unknown v6. */
+    private static final int V4_UNKNOWN = V4_TYPES;
+    private static final int V6_LATENCY = V4_UNKNOWN + 1;
+    private static final int V6_UNKNOWN = V6_LATENCY + V6_TYPES;
+    private static final int LATENCIES = V6_UNKNOWN + 1;
+
+    private final AtomicLongArray counters = new AtomicLongArray((COUNTERS * STRIPES) << PAD_SHIFT);
+    private final AtomicReferenceArray<LatencyHistogram> histograms = new AtomicReferenceArray<LatencyHistogram>(Stage.values().length * LATENCIES);
+
+    private static int getStripe() {
+        return (int) Thread.currentThread().getId() & (STRIPES - 1);
+    }
+
+    private void increment(@Nonnegative int counter) {
+        counters.incrementAndGet((counter * STRIPES + getStripe()) << PAD_SHIFT);
+    }
+
+    @Nonnegative
+    private long get(@Nonnegative int counter) {
+        long count = 0;
+        for (int i = 0; i < STRIPES; i++)
+            count += counters.get((counter * STRIPES + i) << PAD_SHIFT);
+        return count;
+    }
+
+    private static int getIndex(@CheckForNull MessageType type) {
+        return type == null ? V4_UNKNOWN : type.ordinal();
+    }
+
+    private static int getIndex(@CheckForNull Dhcp6MessageType type) {
+        return type == null ? V6_UNKNOWN : V6_LATENCY + type.ordinal();
+    }
+
+    @Nonnull
+    private LatencyHistogram getHistogram(@Nonnull Stage stage, @Nonnegative int index) {
+        int i = stage.ordinal() * LATENCIES + index;
+        LatencyHistogram histogram = histograms.get(i);
+        if (histogram == null) {
+            // Allocates once per stage and type, on first use.
+            histograms.compareAndSet(i, null, new LatencyHistogram());
+            histogram = histograms.get(i);
+        }
+        return histogram;
+    }
+
+    @Override
+    public void recordRequest(MessageType type) {
+        increment(V4_REQUEST + type.ordinal());
+    }
+
+    @Override
+    public void recordRequest(Dhcp6MessageType type) {
+        increment(V6_REQUEST + type.ordinal());
+    }
+
+    @Override
+    public void recordReply(MessageType type) {
+        increment(V4_REPLY + type.ordinal());
+    }
+
+    @Override
+    public void recordReply(Dhcp6MessageType type) {
+        increment(V6_REPLY + type.ordinal());
+    }
+
+    @Override
+    public void recordDrop(Drop reason) {
+        increment(DROP + reason.ordinal());
+    }
+
+    @Override
+    public void recordLatency(Stage stage, MessageType type, long nanos) {
+        getHistogram(stage, getIndex(type)).record(nanos);
+    }
+
+    @Override
+    public void recordLatency(Stage stage, Dhcp6MessageType type, long nanos) {
+        getHistogram(stage, getIndex(type)).record(nanos);
+    }
+
+    @Nonnegative
+    public long getRequestCount(@Nonnull MessageType type) {
+        return get(V4_REQUEST + type.ordinal());
+    }
+
+    @Nonnegative
+    public long getRequestCount(@Nonnull Dhcp6MessageType type) {
+        return get(V6_REQUEST + type.ordinal());
+    }
+
+    @Nonnegative
+    public long getReplyCount(@Nonnull MessageType type) {
+        return get(V4_REPLY + type.ordinal());
+    }
+
+    @Nonnegative
+    public long getReplyCount(@Nonnull Dhcp6MessageType type) {
+        return get(V6_REPLY + type.ordinal());
+    }
+
+    @Nonnegative
+    public long getDropCount(@Nonnull Drop reason) {
+        return get(DROP + reason.ordinal());
+    }
+
+    /** Returns the latencies of the given stage for DHCPv4 requests of the given type, or of unknown type if null. */
+    @Nonnull
+    public LatencyHistogram getLatency(@Nonnull Stage stage, @CheckForNull MessageType type) {
+        return getHistogram(stage, getIndex(type));
+    }
+
+    /** Returns the latencies of the given stage for DHCPv6 requests of the given type, or of unknown type if null. */
+    @Nonnull
+    public LatencyHistogram getLatency(@Nonnull Stage stage, @CheckForNull Dhcp6MessageType type) {
+        return getHistogram(stage, getIndex(type));
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder buf = new StringBuilder("DefaultDhcpMetrics(");
+        String sep = "";
+        for (MessageType type : MessageType.values()) {
+            long count = getRequestCount(type);
+            if (count > 0) {
+                buf.append(sep).append(type).append('=').append(count);
+                sep = ", ";
+            }
+        }
+        for (Dhcp6MessageType type : Dhcp6MessageType.values()) {
+            long count = getRequestCount(type);
+            if (count > 0) {
+                buf.append(sep).append(type).append('=').append(count);
+                sep = ", ";
+            }
+        }
+        for (Drop reason : Drop.values()) {
+            long count = getDropCount(reason);
+            if (count > 0) {
+                buf.append(sep).append(reason).append('=').append(count);
+                sep = ", ";
+            }
+        }
+        return buf.append(')').toString();
+    }
+}
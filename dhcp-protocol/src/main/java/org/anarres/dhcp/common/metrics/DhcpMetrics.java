@@ -0,0 +1,122 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.anarres.dhcp.common.metrics;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+import org.anarres.dhcp.v6.messages.Dhcp6MessageType;
+import org.apache.directory.server.dhcp.messages.MessageType;
+
+/**
+ * A sink for counters and latencies recorded by the services and I/O adapters.
+ *
+ * Methods are called on the request path, so implementations must not
+ * block, and should neither lock nor allocate.
+ *
+ * @see DefaultDhcpMetrics
+ * @author shevek
+ */
+@ThreadSafe
+public interface DhcpMetrics {
+
+    /** A stage in the processing of a request. */
+    public static enum Stage {
+
+        /** Decoding the request. */
+        DECODE,
+        /** Computing the reply, including any lease manager work. */
+        LEASE,
+        /** Encoding the reply. */
+        ENCODE,
+        /** Sending the reply, from its write until the transport has written it to the socket. */
+        SEND;
+    }
+
+    /** The reason a request was not answered. */
+    public static enum Drop {
+
+        /** The request could not be decoded. */
+        MALFORMED,
+        /** The request was refused by an admission controller. */
+        ADMISSION,
+        /** The request was valid, but not one this server may answer. */
+        INVALID,
+        /** The request was directed to another server. */
+        NOT_FOR_US,
+        /** The request waited in a queue beyond its deadline. */
+        EXPIRED,
+        /** The request was discarded from a full queue. */
+        OVERFLOW,
+        /** The service chose not to reply. */
+        NO_REPLY,
+        /** No local interface could send the reply. */
+        NO_INTERFACE,
+        /** Processing the request failed, the service threw an exception for it, or its reply could not be sent. */
+        ERROR;
+    }
+
+    /** Records nothing. */
+    public static final DhcpMetrics NOOP = new DhcpMetrics() {
+        @Override
+        public void recordRequest(MessageType type) {
+        }
+
+        @Override
+        public void recordRequest(Dhcp6MessageType type) {
+        }
+
+        @Override
+        public void recordReply(MessageType type) {
+        }
+
+        @Override
+        public void recordReply(Dhcp6MessageType type) {
+        }
+
+        @Override
+        public void recordDrop(Drop reason) {
+        }
+
+        @Override
+        public void recordLatency(Stage stage, MessageType type, long nanos) {
+        }
+
+        @Override
+        public void recordLatency(Stage stage, Dhcp6MessageType type, long nanos) {
+        }
+
+        @Override
+        public String toString() {
+            return "DhcpMetrics.NOOP";
+        }
+    };
+
+    public void recordRequest(@Nonnull MessageType type);
+
+    public void recordRequest(@Nonnull Dhcp6MessageType type);
+
+    public void recordReply(@Nonnull MessageType type);
+
+    public void recordReply(@Nonnull Dhcp6MessageType type);
+
+    public void recordDrop(@Nonnull Drop reason);
+
+    /**
+     * Records the time taken by a stage for a DHCPv4 request.
+     *
+     * @param type The type of the request, or null if not known, such as when decoding fails.
+     */
+    public void recordLatency(@Nonnull Stage stage, @CheckForNull MessageType type, @Nonnegative long nanos);
+
+    /**
+     * Records the time taken by a stage for a DHCPv6 request.
+     *
+     * @param type The type of the request, or null if not known.
+     */
+    public void recordLatency(@Nonnull Stage stage, @CheckForNull Dhcp6MessageType type, @Nonnegative long nanos);
+}
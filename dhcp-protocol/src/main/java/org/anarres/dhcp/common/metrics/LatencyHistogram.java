@@ -0,0 +1,141 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.anarres.dhcp.common.metrics;
+
+import com.google.common.base.Preconditions;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import javax.annotation.Nonnegative;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * A lock-free histogram of durations in nanoseconds, with log-linear buckets.
+ *
+ * As in HdrHistogram, each power of two is divided into 2^SUB_BITS
+ * linear sub-buckets, so a recorded value is known to within about 3%
+ * at any magnitude, from a nanosecond to a minute, in a fixed 8K of
+ * counts. Recording is a few shifts and one atomic increment, and never
+ * allocates. Durations beyond the range are counted in the last bucket.
+ *
+ * @author shevek
+ */
+@ThreadSafe
+public class LatencyHistogram {
+
+    private static final int SUB_BITS = 5;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    /** Values of 2^MAX_BITS nanoseconds (about 68 seconds) and above go into the last bucket. */
+    private static final int MAX_BITS = 36;
+    /* pp */ static final int BUCKET_COUNT = (MAX_BITS - SUB_BITS + 1) * SUB_COUNT;
+
+    /** Returns the bucket of the given value. */
+    /* pp */ static int getBucket(long value) {
+        if (value < SUB_COUNT)
+            return (int) Math.max(value, 0);
+        if (value >= 1L << MAX_BITS)
+            return BUCKET_COUNT - 1;
+        int shift = (Long.SIZE - 1 - Long.numberOfLeadingZeros(value)) - SUB_BITS;
+        return ((shift + 1) << SUB_BITS) + (int) ((value >>> shift) - SUB_COUNT);
+    }
+
+    /** Returns the least value in the given bucket. */
+    /* pp */ static long getLowerBound(@Nonnegative int bucket) {
+        if (bucket < SUB_COUNT)
+            return bucket;
+        int shift = (bucket >>> SUB_BITS) - 1;
+        return (long) (SUB_COUNT + (bucket & (SUB_COUNT - 1))) << shift;
+    }
+
+    /** Returns the greatest value in the given bucket. */
+    /* pp */ static long getUpperBound(@Nonnegative int bucket) {
+        if (bucket >= BUCKET_COUNT - 1)
+            return Long.MAX_VALUE;
+        return getLowerBound(bucket + 1) - 1;
+    }
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(@Nonnegative long nanos) {
+        counts.incrementAndGet(getBucket(nanos));
+        total.addAndGet(nanos);
+        for (;;) {
+            long current = max.get();
+            if (nanos <= current || max.compareAndSet(current, nanos))
+                break;
+        }
+    }
+
+    /** Returns the number of durations recorded. */
+    @Nonnegative
+    public long getCount() {
+        long count = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++)
+            count += counts.get(i);
+        return count;
+    }
+
+    /** Returns the sum of the durations recorded, in nanoseconds. */
+    @Nonnegative
+    public long getTotal() {
+        return total.get();
+    }
+
+    /** Returns the greatest duration recorded, in nanoseconds. */
+    @Nonnegative
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * Returns an upper bound on the given quantile of the durations
+     * recorded, in nanoseconds, or 0 if none have been recorded.
+     *
+     * Concurrent recording may make the result slightly inconsistent.
+     *
+     * @param quantile The quantile, between 0 and 1.
+     */
+    @Nonnegative
+    public long getValueAtQuantile(double quantile) {
+        Preconditions.checkArgument(quantile >= 0 && quantile <= 1, "Quantile must be between 0 and 1: %s", quantile);
+        long[] snapshot = new long[BUCKET_COUNT];
+        long count = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++)
+            count += snapshot[i] = counts.get(i);
+        if (count == 0)
+            return 0;
+        long rank = Math.max(1, (long) Math.ceil(quantile * count));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += snapshot[i];
+            if (seen >= rank)
+                return Math.min(getUpperBound(i), getMax());
+        }
+        return getMax();
+    }
+
+    /** Discards all recorded durations. Concurrently recorded durations may be partially discarded. */
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++)
+            counts.set(i, 0);
+        total.set(0);
+        max.set(0);
+    }
+
+    @Override
+    public String toString() {
+        long count = getCount();
+        if (count == 0)
+            return "LatencyHistogram(empty)";
+        return "LatencyHistogram(count=" + count
+                + ", mean=" + TimeUnit.NANOSECONDS.toMicros(getTotal() / count) + "us"
+                + ", p50=" + TimeUnit.NANOSECONDS.toMicros(getValueAtQuantile(0.5)) + "us"
+                + ", p99=" + TimeUnit.NANOSECONDS.toMicros(getValueAtQuantile(0.99)) + "us"
+                + ", max=" + TimeUnit.NANOSECONDS.toMicros(getMax()) + "us)";
+    }
+}
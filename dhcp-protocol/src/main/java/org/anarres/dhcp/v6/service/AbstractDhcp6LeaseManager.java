@@ -8,9 +8,15 @@ import com.google.common.collect.Iterables;
 import java.net.InetAddress;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 import javax.annotation.CheckForNull;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import org.anarres.dhcp.common.concurrent.TimingWheel;
 import org.anarres.dhcp.v6.Dhcp6Exception;
 import org.anarres.dhcp.v6.io.Dhcp6RequestContext;
 import org.anarres.dhcp.v6.messages.Dhcp6Message;
@@ -38,20 +44,134 @@ import org.slf4j.LoggerFactory;
 public abstract class AbstractDhcp6LeaseManager implements Dhcp6LeaseManager {
 
     private static final Logger LOG = LoggerFactory.getLogger(PooledDhcp6LeaseManager.class);
+    private static final int MAX_BIND_ATTEMPTS = 8;
 
     private final ClientBindingRegistry iaNaRegistry;
     private final ClientBindingRegistry iaTaRegistry;
     private final Lifetimes lifetimes;
+    private final TimingWheel<Expiry> expiries = new TimingWheel<Expiry>(1, TimeUnit.SECONDS, now());
+    /** Held while advancing the expiries, so that requests need not queue behind one another to do so. */
+    private final Lock expiryLock = new ReentrantLock();
+    private final List<ExpiryListener> expiryListeners = new CopyOnWriteArrayList<>();
 
     public AbstractDhcp6LeaseManager(@Nonnull final Lifetimes lifetimes, final ClientBindingRegistry iaNa,
                     final ClientBindingRegistry iaTa) {
         this.lifetimes = lifetimes;
         iaNaRegistry = iaNa;
         iaTaRegistry = iaTa;
+        final ClientBindingRegistry.ReplacementListener listener = new ClientBindingRegistry.ReplacementListener() {
+            @Override
+            public void bindingReplaced(final ClientBindingRegistry registry, final DuidOption.Duid clientId,
+                final ClientBindingRegistry.ClientBinding binding) {
+                // Two concurrent requests for the same IA may each allocate an address; the loser's must be freed.
+                LOG.debug("Client {} binding replaced IA:{} for {}", clientId, registry, binding);
+                cancelExpiry(binding.setExpiry(null));
+                releaseIp(clientId, binding.getIaId(), binding.getIp());
+            }
+        };
+        iaNa.setReplacementListener(listener);
+        iaTa.setReplacementListener(listener);
     }
 
-    // TODO add a timer to monitor valid lifetimes of leased addresses. After the valid lifetime has passed, make the
-    // address available again.
+    /**
+     * Listener for bindings whose valid lifetime has passed.
+     */
+    public interface ExpiryListener {
+
+        /**
+         * Invoked after the binding has been removed from the registry, and its address released.
+         */
+        void bindingExpired(@Nonnull ClientBindingRegistry registry, @Nonnull DuidOption.Duid clientId,
+            @Nonnull ClientBindingRegistry.ClientBinding binding);
+    }
+
+    private static class Expiry {
+
+        private final ClientBindingRegistry registry;
+        private final DuidOption.Duid clientId;
+        private final ClientBindingRegistry.ClientBinding binding;
+
+        private Expiry(final ClientBindingRegistry registry, final DuidOption.Duid clientId, final ClientBindingRegistry.ClientBinding binding) {
+            this.registry = registry;
+            this.clientId = clientId;
+            this.binding = binding;
+        }
+
+        @Override public String toString() {
+            return "Expiry{" + registry + ", " + clientId + ", " + binding + '}';
+        }
+    }
+
+    /* pp */ static long now() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+    }
+
+    private void scheduleExpiry(final ClientBindingRegistry iaRegistry, final DuidOption.Duid clientId, final int iaid,
+        final InetAddress ip) {
+        final ClientBindingRegistry.ClientBinding binding = iaRegistry.get(clientId, iaid);
+        if (binding == null || !binding.getIp().equals(ip))
+            return;
+        final long deadline = now() + TimeUnit.SECONDS.toMillis(lifetimes.getValidLt());
+        cancelExpiry(binding.setExpiry(expiries.schedule(new Expiry(iaRegistry, clientId, binding), deadline)));
+    }
+
+    @SuppressWarnings("unchecked")
+    private void cancelExpiry(@CheckForNull final TimingWheel.Timeout<?> timeout) {
+        expiries.cancel((TimingWheel.Timeout<Expiry>) timeout);
+    }
+
+    public void addExpiryListener(@Nonnull final ExpiryListener listener) {
+        expiryListeners.add(listener);
+    }
+
+    public void removeExpiryListener(@Nonnull final ExpiryListener listener) {
+        expiryListeners.remove(listener);
+    }
+
+    /**
+     * Removes the bindings whose valid lifetime has passed, and releases their addresses.
+     *
+     * This is also attempted before each lease, renew and rebind, but is
+     * skipped if another thread is already doing it, so a server with
+     * infrequent requests should also call it periodically.
+     */
+    public void expireBindings() {
+        expireBindings(now());
+    }
+
+    /* pp */ void expireBindings(final long nowMillis) {
+        expiryLock.lock();
+        try {
+            expire(nowMillis);
+        } finally {
+            expiryLock.unlock();
+        }
+    }
+
+    /** Expires bindings on the request path, unless another thread is already doing so. */
+    private void tryExpireBindings() {
+        if (!expiryLock.tryLock())
+            return;
+        try {
+            expire(now());
+        } finally {
+            expiryLock.unlock();
+        }
+    }
+
+    @GuardedBy("expiryLock")
+    private void expire(final long nowMillis) {
+        for (Expiry expiry : expiries.advance(nowMillis)) {
+            // The binding may have been released or replaced since this expiry was scheduled,
+            // in which case its address was released at that time.
+            if (!expiry.registry.remove(expiry.clientId, expiry.binding))
+                continue;
+            LOG.debug("Client {} binding expired IA:{} for {}", expiry.clientId, expiry.registry, expiry.binding);
+            releaseIp(expiry.clientId, expiry.binding.getIaId(), expiry.binding.getIp());
+            for (ExpiryListener listener : expiryListeners)
+                listener.bindingExpired(expiry.registry, expiry.clientId, expiry.binding);
+        }
+    }
 
     protected ClientBindingRegistry getIaNaRegistry() {
         return iaNaRegistry;
@@ -69,6 +189,7 @@ public abstract class AbstractDhcp6LeaseManager implements Dhcp6LeaseManager {
     @Override
     public Dhcp6Message lease(final Dhcp6RequestContext requestContext, @Nonnull final Dhcp6Message incomingMsg, @Nonnull final Dhcp6Message reply)
         throws Dhcp6Exception {
+        tryExpireBindings();
         leaseIA(requestContext, incomingMsg, reply, IaNaOption.class, iaNaRegistry);
         leaseIA(requestContext, incomingMsg, reply, IaTaOption.class, iaTaRegistry);
 
@@ -86,13 +207,35 @@ public abstract class AbstractDhcp6LeaseManager implements Dhcp6LeaseManager {
 
             final Dhcp6Options iaResponseOptions = new Dhcp6Options();
 
-            InetAddress ip = getIp(requestContext, clientId, incomingIaOption, iaRegistry);
+            final ClientBindingRegistry.ClientBinding binding = iaRegistry.get(clientId, incomingIaOption.getIAID());
+            InetAddress ip;
+            // True if ip came from newIp, and must be released if it is not bound.
+            boolean allocated;
+            if (binding != null) {
+                ip = binding.getIp();
+                allocated = false;
+            } else {
+                ip = newIp(requestContext, clientId, incomingIaOption);
+                allocated = true;
+            }
+            // Another thread may have bound the new address since it was chosen.
+            for (int attempt = 0; ip != null && !iaRegistry.add(clientId, incomingIaOption.getIAID(), ip); attempt++) {
+                if (allocated)
+                    releaseIp(clientId, incomingIaOption.getIAID(), ip);
+                if (attempt >= MAX_BIND_ATTEMPTS) {
+                    LOG.warn("Client {} IA:{} for {}: lost the race to bind an address {} times", clientId, iaRegistry,
+                                    incomingIaOption.getIAID(), attempt);
+                    ip = null;
+                    break;
+                }
+                ip = newIp(requestContext, clientId, incomingIaOption);
+                allocated = true;
+            }
             if (ip != null) {
                 // For any IAs to which the server can assign addresses, the server
                 // includes the IA with addresses and other configuration parameters,
                 // and records the IA as a new client binding.
-                final IaAddressOption option = wrapIp(clientId, incomingIaOption, iaRegistry,
-                                getIp(requestContext, clientId, incomingIaOption, iaRegistry));
+                final IaAddressOption option = wrapIp(clientId, incomingIaOption, iaRegistry, ip);
                 iaResponseOptions.add(option);
             } else {
                 // If the server cannot assign any addresses to an IA in the message
@@ -123,6 +266,7 @@ public abstract class AbstractDhcp6LeaseManager implements Dhcp6LeaseManager {
     @Override
     public Dhcp6Message renew(final Dhcp6RequestContext requestContext, @Nonnull final Dhcp6Message incomingMsg, @Nonnull final Dhcp6Message reply)
         throws Dhcp6Exception {
+        tryExpireBindings();
         renewIA(requestContext, incomingMsg, reply, IaNaOption.class, iaNaRegistry);
         renewIA(requestContext, incomingMsg, reply, IaTaOption.class, iaTaRegistry);
 
@@ -139,8 +283,10 @@ public abstract class AbstractDhcp6LeaseManager implements Dhcp6LeaseManager {
             final Dhcp6Options iaResponseOptions = new Dhcp6Options();
             final Dhcp6Option option;
 
-            if (iaRegistry.contains(clientId, incomingIaOption.getIAID())) {
-                option = renewIAInstance(requestContext, iaRegistry, clientId, incomingIaOption, "renews");
+            // A single read, as the binding may expire concurrently.
+            final ClientBindingRegistry.ClientBinding binding = iaRegistry.get(clientId, incomingIaOption.getIAID());
+            if (binding != null) {
+                option = renewIAInstance(requestContext, iaRegistry, clientId, incomingIaOption, binding, "renews");
             } else {
                 LOG.debug("Client {} renews UNKNOWN IA:{} for {}. IA option: {}", clientId, iaRegistry,
                                 incomingIaOption.getIAID(), incomingIaOption);
@@ -162,14 +308,15 @@ public abstract class AbstractDhcp6LeaseManager implements Dhcp6LeaseManager {
     }
 
     private <T extends IaOption> Dhcp6Option renewIAInstance(final Dhcp6RequestContext requestContext,
-        final ClientBindingRegistry iaRegistry, final DuidOption.Duid clientId, final T incomingIaOption, final String type)
+        final ClientBindingRegistry iaRegistry, final DuidOption.Duid clientId, final T incomingIaOption,
+        final ClientBindingRegistry.ClientBinding binding, final String type)
         throws Dhcp6Exception {
 
         final Dhcp6Option option;
         LOG.debug("Client {} {} IA:{} for {}. IA option: {}", clientId, type, iaRegistry, incomingIaOption.getIAID(), incomingIaOption);
         // FIXME what if the address from client does not match address stored for the client on server ?
         // should it return NO_BINDING or UNSPEC_FAIL?
-        final InetAddress ip = iaRegistry.get(clientId, incomingIaOption.getIAID()).getIp();
+        final InetAddress ip = binding.getIp();
 
         final Iterable<InetAddress> addressesFromIa = getAddressesFromIa(incomingIaOption);
 
@@ -186,7 +333,7 @@ public abstract class AbstractDhcp6LeaseManager implements Dhcp6LeaseManager {
 
         // Check whether client provided the same address as is assigned to it
         final InetAddress ipFromClient = Iterables.getFirst(addressesFromIa, null);
-        if (!ipFromClient.equals(ip)) {
+        if (ipFromClient != null && !ipFromClient.equals(ip)) {
             LOG.warn("Client {} {} UNKNOWN address:{} vs {}, IA:{} for {}.", clientId, type, ipFromClient, ip,
                             iaRegistry, incomingIaOption.getIAID());
         }
@@ -208,6 +355,7 @@ public abstract class AbstractDhcp6LeaseManager implements Dhcp6LeaseManager {
     @Override
     public Dhcp6Message rebind(final Dhcp6RequestContext requestContext, @Nonnull final Dhcp6Message incomingMsg, @Nonnull final Dhcp6Message reply)
         throws Dhcp6Exception {
+        tryExpireBindings();
         try {
             rebindIA(requestContext, incomingMsg, reply, IaNaOption.class, iaNaRegistry);
             rebindIA(requestContext, incomingMsg, reply, IaTaOption.class, iaTaRegistry);
@@ -229,8 +377,9 @@ public abstract class AbstractDhcp6LeaseManager implements Dhcp6LeaseManager {
             final Dhcp6Options iaResponseOptions = new Dhcp6Options();
             final Dhcp6Option option;
 
-            if (iaRegistry.contains(clientId, incomingIaOption.getIAID())) {
-                option = renewIAInstance(requestContext, iaRegistry, clientId, incomingIaOption, "rebinds");
+            final ClientBindingRegistry.ClientBinding binding = iaRegistry.get(clientId, incomingIaOption.getIAID());
+            if (binding != null) {
+                option = renewIAInstance(requestContext, iaRegistry, clientId, incomingIaOption, binding, "rebinds");
             } else {
                 LOG.debug("Client {} rebinds UNKNOWN IA:{} for {}. IA option: {}", clientId, iaRegistry, incomingIaOption.getIAID(), incomingIaOption);
                 throw new Dhcp6Exception.UnableToAnswerException("No IA found for " + incomingIaOption.getIAID());
@@ -250,8 +399,11 @@ public abstract class AbstractDhcp6LeaseManager implements Dhcp6LeaseManager {
     @Override
     public Dhcp6Message release(final Dhcp6RequestContext requestContext, final Dhcp6Message incomingMsg,
         final Dhcp6Message reply) {
-        releaseIa(incomingMsg, reply, IaNaOption.class, iaNaRegistry);
-        releaseIa(incomingMsg, reply, IaTaOption.class, iaTaRegistry);
+        final DuidOption.Duid clientId = getClientId(incomingMsg);
+        for (ClientBindingRegistry.ClientBinding binding : releaseIa(incomingMsg, reply, IaNaOption.class, iaNaRegistry))
+            releaseIp(clientId, binding.getIaId(), binding.getIp());
+        for (ClientBindingRegistry.ClientBinding binding : releaseIa(incomingMsg, reply, IaTaOption.class, iaTaRegistry))
+            releaseIp(clientId, binding.getIaId(), binding.getIp());
         reply.getOptions().add(StatusCodeOption.create(StatusCodeOption.SUCCESS));
         return reply;
     }
@@ -265,8 +417,10 @@ public abstract class AbstractDhcp6LeaseManager implements Dhcp6LeaseManager {
         for (T incomingIaOption : incomingMsg.getOptions().getAll(iaType)) {
             LOG.debug("Client {} trying to release IA:{} for {}. Ia option: {}", clientId, iaRegistry, incomingIaOption.getIAID(), incomingIaOption);
 
-            if (iaRegistry.contains(clientId, incomingIaOption.getIAID())) {
-                removedBindings.add(iaRegistry.remove(clientId, incomingIaOption.getIAID()));
+            final ClientBindingRegistry.ClientBinding removed = iaRegistry.remove(clientId, incomingIaOption.getIAID());
+            if (removed != null) {
+                cancelExpiry(removed.setExpiry(null));
+                removedBindings.add(removed);
                 LOG.debug("Client {} released IA:{} successfully {}", clientId, iaRegistry, incomingIaOption.getIAID());
             } else {
                 LOG.warn("Client {} tried to release unknown IA:{}: {}", clientId, iaRegistry, incomingIaOption.getIAID());
@@ -361,7 +515,7 @@ public abstract class AbstractDhcp6LeaseManager implements Dhcp6LeaseManager {
         for (IaOption incomingIaOption : incomingMsg.getOptions().getAll(iaType)) {
             LOG.debug("Client {} confirming IA:{} for {}. IA option: {}", clientId, iaRegistry, incomingIaOption.getIAID(), incomingIaOption);
 
-            if (iaRegistry.contains(clientId, incomingIaOption.getIAID())) {
+            if (iaRegistry.get(clientId, incomingIaOption.getIAID()) != null) {
                 final Iterable<InetAddress> addresses = getAddressesFromIa(incomingIaOption);
 
                 //or there were no addresses in any of the IAs sent by the client, the server MUST NOT send a reply to the client.
@@ -402,22 +556,11 @@ public abstract class AbstractDhcp6LeaseManager implements Dhcp6LeaseManager {
         final IaAddressOption option = IaAddressOption
             .create(ip, lifetimes.getPreferredLt(), lifetimes.getValidLt(), Optional.<Dhcp6Options>absent());
 
-        iaRegistry.add(clientId, incomingIaOption.getIAID(), ip);
+        scheduleExpiry(iaRegistry, clientId, incomingIaOption.getIAID(), ip);
         LOG.debug("Client {} leased: {} for IaNa {}", clientId, ip, incomingIaOption.getIAID());
         return option;
     }
 
-    private InetAddress getIp(final Dhcp6RequestContext requestContext, final DuidOption.Duid clientId, final IaOption incomingIaNaOption,
-        final ClientBindingRegistry iaRegistry) throws Dhcp6Exception {
-        final InetAddress ip;
-        if (iaRegistry.contains(clientId, incomingIaNaOption.getIAID())) {
-            ip = iaRegistry.get(clientId, incomingIaNaOption.getIAID()).getIp();
-        } else {
-            ip = newIp(requestContext, clientId, incomingIaNaOption);
-        }
-        return ip;
-    }
-
     @CheckForNull
     private DuidOption.Duid getClientId(final Dhcp6Message incomingMsg) {
         ClientIdOption option = incomingMsg.getOptions().get(ClientIdOption.class);
@@ -430,6 +573,14 @@ public abstract class AbstractDhcp6LeaseManager implements Dhcp6LeaseManager {
         IaOption iaOption)
         throws Dhcp6Exception;
 
+    /**
+     * Invoked when the client releases an address obtained from {@link #newIp},
+     * or when such an address could not be bound because another client took it first.
+     * Declined addresses are not released, as they are in use elsewhere.
+     */
+    protected void releaseIp(DuidOption.Duid clientId, int iaid, InetAddress ip) {
+    }
+
     /**
      * Static lifetimes container
      */
@@ -1,12 +1,14 @@
 package org.anarres.dhcp.v6.service;
 
 import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
 import com.google.common.base.Predicate;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Sets;
 import java.net.InetAddress;
 import java.util.HashSet;
 import javax.annotation.Nonnull;
+import org.anarres.dhcp.common.metrics.DhcpMetrics;
 import org.anarres.dhcp.v6.Dhcp6Exception;
 import org.anarres.dhcp.v6.io.Dhcp6RequestContext;
 import org.anarres.dhcp.v6.messages.Dhcp6Message;
@@ -34,6 +36,7 @@ public abstract class AbstractDhcp6Service implements Dhcp6Service {
     private static final Logger LOG = LoggerFactory.getLogger(LeaseManagerDhcp6Service.class);
 
     private final Optional<ServerUnicastOption> serverUnicastOption;
+    private volatile DhcpMetrics metrics = DhcpMetrics.NOOP;
 
     // TODO add preference option
     // TODO add Authentication handling https://tools.ietf.org/html/rfc3315#section-21
@@ -47,9 +50,50 @@ public abstract class AbstractDhcp6Service implements Dhcp6Service {
         this.serverUnicastOption = Optional.of(ServerUnicastOption.create(serverUnicastAddress));;
     }
 
+    @Nonnull
+    public DhcpMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Sets the metrics which record the type, outcome and latency of each request.
+     *
+     * A relayed request is recorded as a relay-forward, and again as the
+     * message it carries.
+     */
+    public void setMetrics(@Nonnull DhcpMetrics metrics) {
+        this.metrics = Preconditions.checkNotNull(metrics, "DhcpMetrics was null.");
+    }
+
     @Override
     public Optional<Dhcp6Message> getReplyFor(@Nonnull Dhcp6RequestContext requestContext, @Nonnull final Dhcp6Message incomingMsg)
             throws Dhcp6Exception {
+        DhcpMetrics metrics = getMetrics();
+        Dhcp6MessageType type = incomingMsg.getMessageType();
+        if (type != null)
+            metrics.recordRequest(type);
+        long start = System.nanoTime();
+        Optional<Dhcp6Message> reply;
+        try {
+            reply = dispatch(requestContext, incomingMsg);
+        } catch (Dhcp6Exception e) {
+            metrics.recordDrop(DhcpMetrics.Drop.ERROR);
+            throw e;
+        } catch (RuntimeException e) {
+            metrics.recordDrop(DhcpMetrics.Drop.ERROR);
+            throw e;
+        }
+        metrics.recordLatency(DhcpMetrics.Stage.LEASE, type, System.nanoTime() - start);
+        if (!reply.isPresent())
+            metrics.recordDrop(DhcpMetrics.Drop.NO_REPLY);
+        else if (reply.get().getMessageType() != null)
+            metrics.recordReply(reply.get().getMessageType());
+        return reply;
+    }
+
+    @Nonnull
+    private Optional<Dhcp6Message> dispatch(@Nonnull Dhcp6RequestContext requestContext, @Nonnull final Dhcp6Message incomingMsg)
+            throws Dhcp6Exception {
         Dhcp6Message reply;
 
         switch (incomingMsg.getMessageType()) {
@@ -1,63 +1,173 @@
 package org.anarres.dhcp.v6.service;
 
 import com.google.common.annotations.Beta;
+import com.google.common.util.concurrent.Striped;
 import java.net.InetAddress;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Map;
 import java.util.Objects;
-import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.Lock;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import javax.annotation.concurrent.GuardedBy;
 import javax.annotation.concurrent.ThreadSafe;
+import org.anarres.dhcp.common.concurrent.TimingWheel;
 import org.anarres.dhcp.v6.options.DuidOption;
 
+/**
+ * Registry of the addresses bound to each IA of each client.
+ *
+ * Reads are lock-free. Updates lock a stripe selected by the client DUID,
+ * so updates for different clients proceed in parallel, while the client
+ * map and the address index are always updated together.
+ */
 @Beta
 @ThreadSafe
 public class ClientBindingRegistry {
 
-    @GuardedBy("this")
-    private final Map<DuidOption.Duid, ClientBindings> bindings = new HashMap<>();
-    @GuardedBy("this")
-    private final Set<InetAddress> allIps = new HashSet<>();
+    private static final int STRIPES = 64;
+
+    private final ConcurrentMap<DuidOption.Duid, ClientBindings> bindings = new ConcurrentHashMap<>();
+    /** Index of every bound address to its binding. */
+    private final ConcurrentMap<InetAddress, ClientBinding> allIps = new ConcurrentHashMap<>();
+    private final Striped<Lock> locks = Striped.lock(STRIPES);
 
     private final String id;
+    @Nullable
+    private volatile ReplacementListener replacementListener;
+
+    /**
+     * Listener for bindings replaced by a new binding for the same IA.
+     */
+    public interface ReplacementListener {
+
+        /**
+         * Invoked after the binding has been replaced in the registry.
+         *
+         * The address of the replaced binding is no longer bound, but has
+         * not been released to any allocator; that is up to the listener.
+         */
+        void bindingReplaced(@Nonnull ClientBindingRegistry registry, @Nonnull DuidOption.Duid clientId,
+            @Nonnull ClientBinding binding);
+    }
 
     public ClientBindingRegistry(@Nonnull final String id) {
         this.id = id;
     }
 
-    public synchronized void add(final DuidOption.Duid clientId, final int iaid, final InetAddress ip) {
-        if(!bindings.containsKey(clientId)) {
-            bindings.put(clientId, new ClientBindings());
-        }
+    public void setReplacementListener(@Nullable final ReplacementListener replacementListener) {
+        this.replacementListener = replacementListener;
+    }
 
-        final ClientBindings clientBindings = bindings.get(clientId);
-        clientBindings.add(new ClientBinding(iaid, ip));
-        allIps.add(ip);
+    /**
+     * Binds the given address to the given IA of the given client.
+     *
+     * Any binding previously held by the IA is removed, and passed to the
+     * {@link ReplacementListener}, if any.
+     *
+     * @return false if the address is already bound to a different IA, in which case nothing is changed.
+     */
+    public boolean add(final DuidOption.Duid clientId, final int iaid, final InetAddress ip) {
+        final Lock lock = locks.get(clientId);
+        final ClientBinding previous;
+        lock.lock();
+        try {
+            final ClientBinding binding = new ClientBinding(iaid, ip);
+            final ClientBinding owner = allIps.putIfAbsent(ip, binding);
+            ClientBindings clientBindings = bindings.get(clientId);
+            if(owner != null) {
+                // Allow a client to rebind its own address.
+                return clientBindings != null && clientBindings.get(iaid) == owner;
+            }
+
+            if(clientBindings == null) {
+                clientBindings = new ClientBindings();
+                bindings.put(clientId, clientBindings);
+            }
+            previous = clientBindings.add(binding);
+            if(previous != null)
+                removeIp(previous);
+        } finally {
+            lock.unlock();
+        }
+        final ReplacementListener listener = replacementListener;
+        if(previous != null && listener != null)
+            listener.bindingReplaced(this, clientId, previous);
+        return true;
     }
 
-    public synchronized ClientBinding remove(final DuidOption.Duid clientId, final int iaid) {
-        if(bindings.containsKey(clientId)) {
-            final ClientBinding removed = bindings.get(clientId).remove(iaid);
-            allIps.remove(removed.getIp());
+    @Nullable
+    public ClientBinding remove(final DuidOption.Duid clientId, final int iaid) {
+        final Lock lock = locks.get(clientId);
+        lock.lock();
+        try {
+            final ClientBindings clientBindings = bindings.get(clientId);
+            if(clientBindings == null)
+                return null;
+            final ClientBinding removed = clientBindings.remove(iaid);
+            if(removed == null)
+                return null;
+            removeIp(removed);
+            if(clientBindings.isEmpty())
+                bindings.remove(clientId);
             return removed;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes the given binding, if it is still the current binding for the IA.
+     *
+     * @return true if the binding was removed.
+     */
+    public boolean remove(final DuidOption.Duid clientId, final ClientBinding binding) {
+        final Lock lock = locks.get(clientId);
+        lock.lock();
+        try {
+            final ClientBindings clientBindings = bindings.get(clientId);
+            if(clientBindings == null || clientBindings.get(binding.getIaId()) != binding)
+                return false;
+            clientBindings.remove(binding.getIaId());
+            removeIp(binding);
+            if(clientBindings.isEmpty())
+                bindings.remove(clientId);
+            return true;
+        } finally {
+            lock.unlock();
         }
-        return null;
+    }
+
+    /**
+     * Unmaps the address of the given binding, if it is still mapped to that binding.
+     *
+     * ClientBinding.equals compares only the IAID, so a binding of another client
+     * would match {@link ConcurrentMap#remove(Object, Object)}. The caller holds the
+     * client's lock, and other clients only ever add unmapped addresses, so this
+     * check-then-remove is atomic.
+     */
+    private void removeIp(@Nonnull final ClientBinding binding) {
+        if(allIps.get(binding.getIp()) == binding)
+            allIps.remove(binding.getIp());
     }
 
     public boolean containsIp(final InetAddress ip) {
-        return allIps.contains(ip);
+        return allIps.containsKey(ip);
     }
 
     public boolean contains(final DuidOption.Duid clientId, final int iaid) {
-        return bindings.containsKey(clientId) && bindings.get(clientId).contains(iaid);
+        return get(clientId, iaid) != null;
     }
 
     @Nullable
     public ClientBinding get(final DuidOption.Duid clientId, final int iaid) {
-        return bindings.get(clientId) == null ? null : bindings.get(clientId).get(iaid);
+        final ClientBindings clientBindings = bindings.get(clientId);
+        return clientBindings == null ? null : clientBindings.get(iaid);
+    }
+
+    /** Returns the number of bound addresses. */
+    public int size() {
+        return allIps.size();
     }
 
     @Override public String toString() {
@@ -79,6 +189,8 @@ public class ClientBindingRegistry {
 
         private final int iaId;
         private InetAddress ip;
+        @GuardedBy("this")
+        private TimingWheel.Timeout<?> expiry;
 
         public ClientBinding(final int iaId, @Nonnull final InetAddress ip) {
             this.iaId = iaId;
@@ -93,6 +205,14 @@ public class ClientBindingRegistry {
             return ip;
         }
 
+        /** Sets the expiry of this binding, and returns the previous one. */
+        @Nullable
+        /* pp */ synchronized TimingWheel.Timeout<?> setExpiry(@Nullable final TimingWheel.Timeout<?> expiry) {
+            final TimingWheel.Timeout<?> previous = this.expiry;
+            this.expiry = expiry;
+            return previous;
+        }
+
         @Override public String toString() {
             return "ClientBinding{" +
                 "iaId=" + iaId +
@@ -114,19 +234,20 @@ public class ClientBindingRegistry {
         }
     }
 
+    /** Modified only under the stripe lock for the client; read without locking. */
     private static class ClientBindings {
-        private final Map<Integer, ClientBinding> bindings;
+        private final ConcurrentMap<Integer, ClientBinding> bindings;
 
         private ClientBindings() {
-            this.bindings = new HashMap<>();
+            this.bindings = new ConcurrentHashMap<>(4);
         }
 
         ClientBinding get(int iaid) {
             return bindings.get(iaid);
         }
 
-        void add(ClientBinding binding) {
-            bindings.put(binding.iaId, binding);
+        ClientBinding add(ClientBinding binding) {
+            return bindings.put(binding.iaId, binding);
         }
 
         ClientBinding remove(int iaid) {
@@ -137,5 +258,9 @@ public class ClientBindingRegistry {
             return bindings.containsKey(iaid);
         }
 
+        boolean isEmpty() {
+            return bindings.isEmpty();
+        }
+
     }
 }
@@ -1,9 +1,11 @@
 package org.anarres.dhcp.v6.service;
 
 import com.google.common.annotations.Beta;
-import com.google.common.net.InetAddresses;
 import java.net.InetAddress;
+import javax.annotation.CheckForNull;
 import javax.annotation.Nonnull;
+import org.anarres.dhcp.common.address.AddressRangeAllocator;
+import org.anarres.dhcp.common.address.AddressUtils;
 import org.anarres.dhcp.v6.Dhcp6Exception;
 import org.anarres.dhcp.v6.io.Dhcp6RequestContext;
 import org.anarres.dhcp.v6.options.DuidOption;
@@ -19,16 +21,23 @@ public class PooledDhcp6LeaseManager extends AbstractDhcp6LeaseManager {
 
     private static final Logger LOG = LoggerFactory.getLogger(PooledDhcp6LeaseManager.class);
 
-    private final InetAddress startingAddress;
-    private final InetAddress endingAddress;
-
-    // TODO should we use utilities from package org.anarres.dhcp.common.address here ??
+    /** Null if the pool is empty. */
+    @CheckForNull
+    private final AddressRangeAllocator allocator;
 
+    /**
+     * @param startingAddress The first address in the pool, inclusive.
+     * @param endingAddress The end of the pool, exclusive. If equal to the
+     * starting address, the pool is empty, and no address is ever leased.
+     */
     public PooledDhcp6LeaseManager(@Nonnull final InetAddress startingAddress, @Nonnull final InetAddress endingAddress,
         @Nonnull final Lifetimes lifetimes) {
         super(lifetimes, ClientBindingRegistry.createForIaNa(), ClientBindingRegistry.createForIaTa());
-        this.startingAddress = startingAddress;
-        this.endingAddress = endingAddress;
+        if(startingAddress.equals(endingAddress)) {
+            this.allocator = null;
+        } else {
+            this.allocator = new AddressRangeAllocator(startingAddress, AddressUtils.decrement(endingAddress));
+        }
     }
 
     /**
@@ -42,27 +51,22 @@ public class PooledDhcp6LeaseManager extends AbstractDhcp6LeaseManager {
     }
 
     /**
-     * @return next available IP
+     * @return next available IP, preferring the addresses hinted by the client
      */
     @Override protected InetAddress newIp(final Dhcp6RequestContext requestContext, final DuidOption.Duid clientId, final IaOption iaOption)
         throws Dhcp6Exception {
         // Client provided address hints
         final Iterable<InetAddress> requestedAddresses = getAddressesFromIa(iaOption);
-        // TODO try to use hints in address allocation
-        
-        // Warning, this is highly inefficient
-        InetAddress current = startingAddress;
-        while (true) {
-            if(current.equals(endingAddress)) {
-                LOG.warn("IP pool exhausted");
-                return null;
-            }
-
-            if(!getIaNaRegistry().containsIp(current) && !getIaTaRegistry().containsIp(current)) {
-                return current;
-            }
+        final InetAddress ip = allocator == null ? null : allocator.allocate(requestedAddresses);
+        if(ip == null) {
+            LOG.warn("IP pool exhausted");
+        }
+        return ip;
+    }
 
-            current = InetAddresses.increment(current);
+    @Override protected void releaseIp(final DuidOption.Duid clientId, final int iaid, final InetAddress ip) {
+        if(allocator != null) {
+            allocator.release(ip);
         }
     }
 
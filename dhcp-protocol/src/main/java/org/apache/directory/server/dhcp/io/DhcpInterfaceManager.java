@@ -7,6 +7,7 @@ package org.apache.directory.server.dhcp.io;
 
 import com.google.common.base.Preconditions;
 import com.google.common.base.Predicate;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Lists;
 import java.io.IOException;
 import java.net.Inet4Address;
@@ -25,6 +26,7 @@ import javax.annotation.CheckForNull;
 import javax.annotation.Nonnull;
 import org.anarres.dhcp.common.address.AddressUtils;
 import org.anarres.dhcp.common.address.InterfaceAddress;
+import org.anarres.dhcp.common.address.SubnetIndex;
 import org.apache.directory.server.dhcp.DhcpException;
 import org.apache.directory.server.dhcp.messages.DhcpMessage;
 import org.apache.directory.server.dhcp.service.manager.LeaseManager;
@@ -116,11 +118,13 @@ public class DhcpInterfaceManager {
         }
     }
     private final ConcurrentMap<InterfaceAddress, Dummy> interfaces = new ConcurrentHashMap<InterfaceAddress, Dummy>();
+    /** The first interface added on each network, so that {@link #getInterface(InetAddress)} needs no lock. */
+    private final SubnetIndex<InterfaceAddress> interfaceIndex = new SubnetIndex<InterfaceAddress>();
     // private final Multimap<NetworkInterface, InterfaceAddress> interfaces = Multimaps.synchronizedSetMultimap(HashMultimap.create());
 
     @Nonnull
     public Set<? extends InterfaceAddress> getInterfaces() {
-        return interfaces.keySet();
+        return ImmutableSet.copyOf(interfaces.keySet());
     }
 
     /**
@@ -158,19 +162,21 @@ public class DhcpInterfaceManager {
         return new DhcpRequestContext(interfaceAddress, remoteAddress, localAddress);
     }
 
+    /**
+     * Returns the interface on the most specific network containing the given address.
+     *
+     * If several interfaces share that network, the first to be added is returned.
+     */
     @CheckForNull
     public InterfaceAddress getInterface(@Nonnull InetAddress address) {
         Preconditions.checkNotNull(address, "Address was null.");
-        for (InterfaceAddress iface : interfaces.keySet()) {
-            if (iface.isLocal(address))
-                return iface;
-        }
-        return null;
+        return interfaceIndex.find(address);
     }
 
     public void addInterface(@Nonnull InterfaceAddress address) throws IOException, InterruptedException {
         LOG.debug("Adding InterfaceAddress: {}", address);
         interfaces.put(address, Dummy.INSTANCE);
+        interfaceIndex.add(address, address);
     }
 
     public void addInterface(@Nonnull NetworkInterface iface) throws IOException, InterruptedException {
@@ -37,7 +37,6 @@ import org.apache.directory.server.dhcp.options.DhcpOption;
 import org.apache.directory.server.dhcp.options.DhcpOptionsRegistry;
 import org.apache.directory.server.dhcp.options.OptionsField;
 import org.apache.directory.server.dhcp.options.dhcp.DhcpMessageType;
-import org.apache.directory.server.dhcp.options.dhcp.UnrecognizedOption;
 
 /**
  * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
@@ -161,8 +160,7 @@ public class DhcpMessageDecoder {
 
     @Nonnull
     private DhcpOption newOptionInstance(@Nonnegative byte tag, @Nonnull byte[] value) throws DhcpException {
-        Class<? extends DhcpOption> type = registry.getOptionType(tag);
-        DhcpOption option = (type != null) ? DhcpOptionsRegistry.newInstance(type) : new UnrecognizedOption(tag);
+        DhcpOption option = registry.newOption(tag);
         option.setData(value);
         return option;
     }
@@ -32,10 +32,21 @@ import org.apache.directory.server.dhcp.messages.HardwareAddress;
 import org.apache.directory.server.dhcp.options.DhcpOption;
 import org.apache.directory.server.dhcp.options.OptionsField;
 import org.apache.directory.server.dhcp.options.dhcp.DhcpMessageType;
+import org.apache.directory.server.dhcp.options.dhcp.MaximumDhcpMessageSize;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
+ * Encodes a {@link DhcpMessage}.
+ *
+ * The encoder lays out the options before writing anything, so
+ * {@link #getLength(DhcpMessage, int)} returns the exact size of the
+ * encoded message, and a buffer of exactly that size may be allocated.
+ * If the options do not fit within the maximum message size, they are
+ * overloaded into the file and sname fields (RFC 2131 section 4.1,
+ * option 52) where those are unused, and as a last resort, options
+ * which still do not fit are dropped and logged.
+ *
  * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
  */
 public class DhcpMessageEncoder {
@@ -43,15 +54,228 @@ public class DhcpMessageEncoder {
     private static final Logger LOG = LoggerFactory.getLogger(DhcpMessageEncoder.class);
     private static final byte EMPTY_HARDWARE_ADDRESS[] = {};
     private static final byte EMPTY_INET_ADDRESS[] = {0, 0, 0, 0};
+    /** The length of the IP and UDP headers, which {@link MaximumDhcpMessageSize} includes. */
+    private static final int LENGTH_IP_UDP_HEADERS = 20 + 8;
+    /**
+     * The maximum message size every client must accept: a 576 byte IP
+     * datagram, less the IP and UDP headers. See RFC 2131 section 2.
+     */
+    public static final int MINIMUM_MAXIMUM_MESSAGE_SIZE = 576 - LENGTH_IP_UDP_HEADERS;
+    /** The maximum message size if the client does not send {@link MaximumDhcpMessageSize}. */
+    public static final int DEFAULT_MAXIMUM_MESSAGE_SIZE = 1024;
+    private static final int LENGTH_HEADER = 236;
+    private static final int LENGTH_OPTIONS_HEADER = LENGTH_HEADER + 4;  // Magic cookie.
+    private static final int LENGTH_SNAME = 64;
+    private static final int LENGTH_FILE = 128;
+    private static final int LENGTH_OPTION_OVERLOAD = 3;
+    private static final byte TAG_OPTION_OVERLOAD = 52;
+    private static final byte TAG_END = (byte) 0xFF;
+    private static final int OVERLOAD_FILE = 1;
+    private static final int OVERLOAD_SNAME = 2;
+    // Where each option is placed.
+    private static final byte AREA_NONE = 0;
+    private static final byte AREA_OPTIONS = 1;
+    private static final byte AREA_FILE = 2;
+    private static final byte AREA_SNAME = 3;
+
+    /** The planned placement of the options of a message. */
+    private static class Layout {
+
+        private final DhcpOption[] options;
+        private final byte[] areas;
+        private int optionsLength;
+        private int overload;
+        /** Written whole at the end of the options area, if set. */
+        @CheckForNull
+        private ReplyTemplate template;
+
+        public Layout(@Nonnegative int size) {
+            this.options = new DhcpOption[size];
+            this.areas = new byte[size];
+        }
+
+        /** Returns the total length of the encoded message. */
+        @Nonnegative
+        public int getLength() {
+            int length = LENGTH_OPTIONS_HEADER + optionsLength + 1;
+            if (overload != 0)
+                length += LENGTH_OPTION_OVERLOAD;
+            return length;
+        }
+    }
+
+    /**
+     * Returns the largest message which may be sent in reply to the given request.
+     *
+     * {@link MaximumDhcpMessageSize} counts the whole IP datagram, so the
+     * IP and UDP headers are subtracted from it.
+     */
+    @Nonnegative
+    public static int getMaximumMessageSize(@Nonnull DhcpMessage request) {
+        int size = request.getOptions().getShortOption(MaximumDhcpMessageSize.class, -1);
+        if (size < 0)
+            return DEFAULT_MAXIMUM_MESSAGE_SIZE;
+        return Math.max(size - LENGTH_IP_UDP_HEADERS, MINIMUM_MAXIMUM_MESSAGE_SIZE);
+    }
+
+    /** Returns the encoded length of an option, including continuations per RFC 3396. */
+    @Nonnegative
+    /* pp */ static int getLength(@Nonnull DhcpOption option) {
+        int length = option.getData().length;
+        int fragments = Math.max(1, (length + 0xFE) / 0xFF);
+        return length + 2 * fragments;
+    }
+
+    /** Options which the client can't do without, and are placed first. */
+    private static boolean isEssential(byte tag) {
+        switch (tag) {
+            case 51:    // IpAddressLeaseTime
+            case 53:    // DhcpMessageType
+            case 54:    // ServerIdentifier
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Adds the essential or the other options to the layout, in order,
+     * except any also in the excluded set.
+     */
+    @Nonnegative
+    private static int addOptions(@Nonnull Layout layout, @Nonnegative int count,
+            @Nonnull Iterable<? extends DhcpOption> options, @CheckForNull OptionsField excluded, boolean essential) {
+        for (DhcpOption option : options) {
+            byte tag = option.getTag();
+            if (isEssential(tag) != essential || tag == TAG_OPTION_OVERLOAD)
+                continue;
+            if (excluded != null && excluded.get(tag) != null)
+                continue;
+            layout.options[count++] = option;
+        }
+        return count;
+    }
+
+    private static boolean isNullOrEmpty(@CheckForNull String string) {
+        return string == null || string.isEmpty();
+    }
+
+    /** Places each option in the first area with room for it, in order of preference. */
+    private static void place(@Nonnull Layout layout, int count, int optionsBudget, int fileBudget, int snameBudget) {
+        layout.optionsLength = 0;
+        layout.overload = 0;
+        for (int i = 0; i < count; i++) {
+            int length = getLength(layout.options[i]);
+            if (length <= optionsBudget) {
+                layout.areas[i] = AREA_OPTIONS;
+                optionsBudget -= length;
+                layout.optionsLength += length;
+            } else if (length <= fileBudget) {
+                layout.areas[i] = AREA_FILE;
+                fileBudget -= length;
+                layout.overload |= OVERLOAD_FILE;
+            } else if (length <= snameBudget) {
+                layout.areas[i] = AREA_SNAME;
+                snameBudget -= length;
+                layout.overload |= OVERLOAD_SNAME;
+            } else {
+                layout.areas[i] = AREA_NONE;
+            }
+        }
+    }
+
+    @Nonnull
+    private Layout layout(@Nonnull DhcpMessage message, @Nonnegative int maxLength) throws IOException {
+        OptionsField options = message.getOptions();
+
+        // update message type option (if set)
+        if (message.getMessageType() != null) {
+            options.add(new DhcpMessageType(message.getMessageType()));
+        }
+
+        ReplyTemplate template = ReplyTemplate.getTemplate(message);
+        Layout layout = new Layout(options.size() + (template == null ? 0 : template.getOptions().size()));
+        int count = addOptions(layout, 0, options, null, true);
+        count = addOptions(layout, count, options, null, false);
+
+        // Leave room for the end option.
+        int optionsBudget = maxLength - LENGTH_OPTIONS_HEADER - 1;
+        if (optionsBudget < 0)
+            throw new IOException("Maximum message size " + maxLength + " too small to encode " + message);
+        if (template != null) {
+            // The common case: The template is copied whole after the message's own options.
+            if (!template.overlaps(options)) {
+                place(layout, count, optionsBudget - template.getLength(), 0, 0);
+                if (isPlaced(layout, count)) {
+                    layout.template = template;
+                    layout.optionsLength += template.getLength();
+                    return layout;
+                }
+            }
+            // Otherwise, lay out the template's options individually.
+            count = addOptions(layout, 0, options, null, true);
+            count = addOptions(layout, count, template.getOptions(), options, true);
+            count = addOptions(layout, count, options, null, false);
+            count = addOptions(layout, count, template.getOptions(), options, false);
+        }
+        place(layout, count, optionsBudget, 0, 0);
+        if (isPlaced(layout, count))
+            return layout;
+
+        int fileBudget = isNullOrEmpty(message.getBootFileName()) ? LENGTH_FILE - 1 : 0;
+        int snameBudget = isNullOrEmpty(message.getServerHostname()) ? LENGTH_SNAME - 1 : 0;
+        if (fileBudget > 0 || snameBudget > 0) {
+            place(layout, count, optionsBudget - LENGTH_OPTION_OVERLOAD, fileBudget, snameBudget);
+            if (layout.overload == 0)   // Nothing fitted in file or sname after all.
+                place(layout, count, optionsBudget, 0, 0);
+        }
+
+        for (int i = 0; i < count; i++)
+            if (layout.areas[i] == AREA_NONE)
+                LOG.warn("Dropped option {} which does not fit in {} bytes from {}", layout.options[i], maxLength, message);
+        return layout;
+    }
+
+    private static boolean isPlaced(@Nonnull Layout layout, int count) {
+        for (int i = 0; i < count; i++)
+            if (layout.areas[i] == AREA_NONE)
+                return false;
+        return true;
+    }
+
+    /**
+     * Returns the exact number of bytes which
+     * {@link #encode(ByteBuffer, DhcpMessage, int)} will write.
+     */
+    @Nonnegative
+    public int getLength(@Nonnull DhcpMessage message, @Nonnegative int maxLength) throws IOException {
+        return layout(message, maxLength).getLength();
+    }
 
     /**
      * Converts a DhcpMessage object into a byte buffer.
      *
+     * The message is limited to the remaining space in the buffer.
+     *
      * @param byteBuffer ByteBuffer to put DhcpMessage into
      * @param message DhcpMessage to encode into ByteBuffer
      */
     public void encode(@Nonnull ByteBuffer byteBuffer, @Nonnull DhcpMessage message)
             throws IOException {
+        encode(byteBuffer, message, byteBuffer.remaining());
+    }
+
+    /**
+     * Converts a DhcpMessage object into a byte buffer, in at most maxLength bytes.
+     *
+     * @param byteBuffer ByteBuffer to put DhcpMessage into
+     * @param message DhcpMessage to encode into ByteBuffer
+     * @param maxLength The maximum length of the encoded message.
+     * @see #getMaximumMessageSize(DhcpMessage)
+     */
+    public void encode(@Nonnull ByteBuffer byteBuffer, @Nonnull DhcpMessage message, @Nonnegative int maxLength)
+            throws IOException {
+        Layout layout = layout(message, maxLength);
         try {
             byteBuffer.put(message.getOp());
 
@@ -71,17 +295,22 @@ public class DhcpMessageEncoder {
 
             writeBytes(byteBuffer, (null != hardwareAddress ? hardwareAddress.getAddress() : EMPTY_HARDWARE_ADDRESS), 16);
 
-            writeString(byteBuffer, message.getServerHostname(), 64);
-            writeString(byteBuffer, message.getBootFileName(), 128);
+            if ((layout.overload & OVERLOAD_SNAME) != 0)
+                writeOptions(byteBuffer, layout, AREA_SNAME, LENGTH_SNAME);
+            else
+                writeString(byteBuffer, message.getServerHostname(), LENGTH_SNAME);
+            if ((layout.overload & OVERLOAD_FILE) != 0)
+                writeOptions(byteBuffer, layout, AREA_FILE, LENGTH_FILE);
+            else
+                writeString(byteBuffer, message.getBootFileName(), LENGTH_FILE);
 
-            OptionsField options = message.getOptions();
-
-            // update message type option (if set)
-            if (message.getMessageType() != null) {
-                options.add(new DhcpMessageType(message.getMessageType()));
+            byteBuffer.put(VENDOR_MAGIC_COOKIE);
+            if (layout.overload != 0) {
+                byteBuffer.put(TAG_OPTION_OVERLOAD);
+                byteBuffer.put((byte) 1);
+                byteBuffer.put((byte) layout.overload);
             }
-
-            encodeOptions(options, byteBuffer);
+            writeOptions(byteBuffer, layout, AREA_OPTIONS, 0);
         } catch (BufferOverflowException e) {
             throw new IOException("Failed to encode " + message + " into " + byteBuffer, e);
         } catch (IndexOutOfBoundsException e) {
@@ -89,6 +318,23 @@ public class DhcpMessageEncoder {
         }
     }
 
+    /**
+     * Writes the options placed in the given area, and an end option.
+     * Pads to len bytes, if given.
+     */
+    private static void writeOptions(@Nonnull ByteBuffer byteBuffer, @Nonnull Layout layout, byte area, @Nonnegative int len) {
+        int start = byteBuffer.position();
+        for (int i = 0; i < layout.options.length; i++)
+            if (layout.areas[i] == area)
+                writeOption(byteBuffer, layout.options[i]);
+        if (area == AREA_OPTIONS && layout.template != null)
+            layout.template.writeTo(byteBuffer);
+        byteBuffer.put(TAG_END);
+        len -= byteBuffer.position() - start;
+        while (len-- > 0)
+            byteBuffer.put((byte) 0);
+    }
+
     /**
      * Write a string to a field of len bytes.
      *
@@ -137,19 +383,22 @@ public class DhcpMessageEncoder {
     public void encodeOptions(@Nonnull OptionsField options, @Nonnull ByteBuffer message) {
         message.put(VENDOR_MAGIC_COOKIE);
 
-        for (DhcpOption option : options) {
-            // Option continuation per RFC3396
-            byte tag = option.getTag();
-            byte[] data = option.getData();
-            for (int offset = 0; offset < data.length || offset == 0; offset += 0xFF) {
-                int length = Math.min(data.length - offset, 0xFF);
-                message.put(tag);
-                message.put((byte) length);
-                message.put(data, offset, length);
-            }
-        }
+        for (DhcpOption option : options)
+            writeOption(message, option);
 
         // add end option
-        message.put((byte) 0xff);
+        message.put(TAG_END);
+    }
+
+    /* pp */ static void writeOption(@Nonnull ByteBuffer message, @Nonnull DhcpOption option) {
+        // Option continuation per RFC3396
+        byte tag = option.getTag();
+        byte[] data = option.getData();
+        for (int offset = 0; offset < data.length || offset == 0; offset += 0xFF) {
+            int length = Math.min(data.length - offset, 0xFF);
+            message.put(tag);
+            message.put((byte) length);
+            message.put(data, offset, length);
+        }
     }
 }
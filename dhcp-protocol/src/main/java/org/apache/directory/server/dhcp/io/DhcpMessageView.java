@@ -0,0 +1,437 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.apache.directory.server.dhcp.io;
+
+import com.google.common.base.Charsets;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.NotThreadSafe;
+import org.apache.directory.server.dhcp.DhcpException;
+import org.apache.directory.server.dhcp.messages.HardwareAddress;
+import org.apache.directory.server.dhcp.messages.MessageType;
+
+/**
+ * A read-only flyweight view of an encoded DHCPv4 message.
+ *
+ * Fields are read directly from the underlying {@link ByteBuffer} at
+ * fixed offsets; nothing is copied, and no {@link java.net.InetAddress},
+ * {@link String} or option object is created unless one of the explicitly
+ * allocating accessors is called. The option area is indexed once by
+ * {@link #wrap(ByteBuffer)} into a per-view tag table, so a single
+ * instance can be reused for every packet received on a thread.
+ *
+ * This is intended for the fast path: deciding whether a packet is worth
+ * a full {@link DhcpMessageDecoder#decode(ByteBuffer)} at all.
+ *
+ * Options split per RFC 3396 are indexed as a single option whose length
+ * is the total length; the scalar accessors read the first fragment, and
+ * {@link #getOption(byte)} reassembles the fragments. Options overloaded
+ * into the file and sname fields (option 52) are indexed as well.
+ *
+ * @author shevek
+ */
+@NotThreadSafe
+public class DhcpMessageView {
+
+    private static final int OFFSET_OP = 0;
+    private static final int OFFSET_HTYPE = 1;
+    private static final int OFFSET_HLEN = 2;
+    private static final int OFFSET_HOPS = 3;
+    private static final int OFFSET_XID = 4;
+    private static final int OFFSET_SECS = 8;
+    private static final int OFFSET_FLAGS = 10;
+    private static final int OFFSET_CIADDR = 12;
+    private static final int OFFSET_YIADDR = 16;
+    private static final int OFFSET_SIADDR = 20;
+    private static final int OFFSET_GIADDR = 24;
+    private static final int OFFSET_CHADDR = 28;
+    private static final int OFFSET_SNAME = 44;
+    private static final int OFFSET_FILE = 108;
+    private static final int OFFSET_COOKIE = 236;
+    private static final int OFFSET_OPTIONS = 240;
+    private static final int LENGTH_CHADDR = 16;
+    private static final int LENGTH_SNAME = 64;
+    private static final int LENGTH_FILE = 128;
+    private static final int VENDOR_MAGIC_COOKIE = 0x63825363;
+    private static final int TAG_PAD = 0;
+    private static final int TAG_END = 0xFF;
+    private static final int TAG_MESSAGE_TYPE = 53;
+    private static final int TAG_OPTION_OVERLOAD = 52;
+    private static final int OVERLOAD_FILE = 1;
+    private static final int OVERLOAD_SNAME = 2;
+
+    private ByteBuffer buffer;
+    /** The absolute index of the start of the message in the buffer. */
+    private int base;
+    /** The absolute index of the end of the message in the buffer. */
+    private int limit;
+    private int overload;
+    /** Absolute index of the data of the first fragment of each option, or -1. */
+    private final int[] optionOffsets = new int[256];
+    /** Length of the data of the first fragment of each option. */
+    private final int[] optionFragmentLengths = new int[256];
+    /** Total length of the data of each option, over all fragments. */
+    private final int[] optionLengths = new int[256];
+    /** The tags present, in wire order, so that reset is proportional to the option count. */
+    private final byte[] optionTags = new byte[256];
+    private int optionCount;
+
+    public DhcpMessageView() {
+        Arrays.fill(optionOffsets, -1);
+    }
+
+    /**
+     * Points this view at the message between the position and the limit of the given buffer.
+     *
+     * The position and limit of the buffer are not modified, and the
+     * buffer must not be modified while this view is in use.
+     *
+     * @throws DhcpException if the buffer does not contain a well-formed DHCP message.
+     */
+    @Nonnull
+    public DhcpMessageView wrap(@Nonnull ByteBuffer buffer) throws DhcpException {
+        reset();
+        this.buffer = buffer;
+        this.base = buffer.position();
+        this.limit = buffer.limit();
+        if (limit - base < OFFSET_OPTIONS)
+            throw new DhcpException("Message too short: " + (limit - base) + " bytes.");
+        if (buffer.getInt(base + OFFSET_COOKIE) != VENDOR_MAGIC_COOKIE)
+            throw new DhcpException("Parse exception.");
+        if (getHardwareAddressLength() > LENGTH_CHADDR)
+            throw new DhcpException("Illegal hardware address length " + getHardwareAddressLength());
+
+        index(base + OFFSET_OPTIONS, limit);
+        if (optionOffsets[TAG_OPTION_OVERLOAD] >= 0) {
+            overload = getOptionByte((byte) TAG_OPTION_OVERLOAD, 0);
+            // RFC 2131 section 4.1: options, then file, then sname.
+            if ((overload & OVERLOAD_FILE) != 0)
+                index(base + OFFSET_FILE, base + OFFSET_FILE + LENGTH_FILE);
+            if ((overload & OVERLOAD_SNAME) != 0)
+                index(base + OFFSET_SNAME, base + OFFSET_SNAME + LENGTH_SNAME);
+        }
+        return this;
+    }
+
+    private void reset() {
+        for (int i = 0; i < optionCount; i++) {
+            int tag = optionTags[i] & 0xFF;
+            optionOffsets[tag] = -1;
+            optionFragmentLengths[tag] = 0;
+            optionLengths[tag] = 0;
+        }
+        optionCount = 0;
+        overload = 0;
+        buffer = null;
+    }
+
+    private void index(@Nonnegative int start, @Nonnegative int end) throws DhcpException {
+        int offset = start;
+        while (offset < end) {
+            int tag = buffer.get(offset++) & 0xFF;
+            if (tag == TAG_PAD)
+                continue;
+            if (tag == TAG_END)
+                return;
+            if (offset >= end)
+                throw new DhcpException("Truncated option " + tag + " at offset " + (offset - base));
+            int length = buffer.get(offset++) & 0xFF;
+            if (offset + length > end)
+                throw new DhcpException("Option " + tag + " of length " + length + " overruns message at offset " + (offset - base));
+            if (optionOffsets[tag] < 0) {
+                optionOffsets[tag] = offset;
+                optionFragmentLengths[tag] = length;
+                optionTags[optionCount++] = (byte) tag;
+            }
+            optionLengths[tag] += length;
+            offset += length;
+        }
+        // Tolerate a missing end option, as many clients do.
+    }
+
+    /**
+     * Returns the underlying buffer, duplicated and positioned at the start of the message.
+     *
+     * This is suitable for passing to {@link DhcpMessageDecoder#decode(ByteBuffer)}.
+     */
+    @Nonnull
+    public ByteBuffer getBuffer() {
+        ByteBuffer out = buffer.duplicate();
+        out.limit(limit);
+        out.position(base);
+        return out;
+    }
+
+    /** Returns the length of the message in bytes. */
+    @Nonnegative
+    public int getLength() {
+        return limit - base;
+    }
+
+    public byte getOp() {
+        return buffer.get(base + OFFSET_OP);
+    }
+
+    public short getHardwareAddressType() {
+        return (short) (buffer.get(base + OFFSET_HTYPE) & 0xFF);
+    }
+
+    public short getHardwareAddressLength() {
+        return (short) (buffer.get(base + OFFSET_HLEN) & 0xFF);
+    }
+
+    public short getHopCount() {
+        return (short) (buffer.get(base + OFFSET_HOPS) & 0xFF);
+    }
+
+    public int getTransactionId() {
+        return buffer.getInt(base + OFFSET_XID);
+    }
+
+    public int getSeconds() {
+        return buffer.getShort(base + OFFSET_SECS) & 0xFFFF;
+    }
+
+    public short getFlags() {
+        return buffer.getShort(base + OFFSET_FLAGS);
+    }
+
+    /** Returns ciaddr in network byte order. */
+    public int getCurrentClientAddressAsInt() {
+        return buffer.getInt(base + OFFSET_CIADDR);
+    }
+
+    /** Returns yiaddr in network byte order. */
+    public int getAssignedClientAddressAsInt() {
+        return buffer.getInt(base + OFFSET_YIADDR);
+    }
+
+    /** Returns siaddr in network byte order. */
+    public int getNextServerAddressAsInt() {
+        return buffer.getInt(base + OFFSET_SIADDR);
+    }
+
+    /** Returns giaddr in network byte order. */
+    public int getRelayAgentAddressAsInt() {
+        return buffer.getInt(base + OFFSET_GIADDR);
+    }
+
+    /** Returns the given byte of chaddr. */
+    public byte getHardwareAddressByte(@Nonnegative int index) {
+        if (index >= LENGTH_CHADDR)
+            throw new IndexOutOfBoundsException("Hardware address index " + index + " out of range.");
+        return buffer.get(base + OFFSET_CHADDR + index);
+    }
+
+    /**
+     * Returns the first (up to) eight bytes of chaddr as a big-endian long.
+     *
+     * For Ethernet, this is the 48-bit MAC address in the low bits.
+     */
+    public long getHardwareAddressAsLong() {
+        int length = Math.min(getHardwareAddressLength(), Long.SIZE / Byte.SIZE);
+        long out = 0;
+        for (int i = 0; i < length; i++)
+            out = (out << Byte.SIZE) | (buffer.get(base + OFFSET_CHADDR + i) & 0xFF);
+        return out;
+    }
+
+    /** Allocates and returns the hardware address, as {@link DhcpMessageDecoder} would. */
+    @Nonnull
+    public HardwareAddress getHardwareAddress() {
+        byte[] address = new byte[LENGTH_CHADDR];
+        for (int i = 0; i < address.length; i++)
+            address[i] = buffer.get(base + OFFSET_CHADDR + i);
+        return new HardwareAddress(getHardwareAddressType(), getHardwareAddressLength(), address);
+    }
+
+    @Nonnull
+    private String getString(@Nonnegative int offset, @Nonnegative int length) {
+        int end = offset + length;
+        for (int i = offset; i < end; i++) {
+            if (buffer.get(i) == 0) {
+                end = i;
+                break;
+            }
+        }
+        byte[] bytes = new byte[end - offset];
+        for (int i = 0; i < bytes.length; i++)
+            bytes[i] = buffer.get(offset + i);
+        return new String(bytes, Charsets.ISO_8859_1);
+    }
+
+    /**
+     * Allocates and returns the sname field.
+     *
+     * @return the server hostname, or null if the field is overloaded with options.
+     */
+    @CheckForNull
+    public String getServerHostname() {
+        if ((overload & OVERLOAD_SNAME) != 0)
+            return null;
+        return getString(base + OFFSET_SNAME, LENGTH_SNAME);
+    }
+
+    /**
+     * Allocates and returns the file field.
+     *
+     * @return the boot file name, or null if the field is overloaded with options.
+     */
+    @CheckForNull
+    public String getBootFileName() {
+        if ((overload & OVERLOAD_FILE) != 0)
+            return null;
+        return getString(base + OFFSET_FILE, LENGTH_FILE);
+    }
+
+    /** Returns the number of distinct options in the message. */
+    @Nonnegative
+    public int getOptionCount() {
+        return optionCount;
+    }
+
+    /** Returns the tag of the given option, in wire order. */
+    public byte getOptionTag(@Nonnegative int index) {
+        if (index >= optionCount)
+            throw new IndexOutOfBoundsException("Option index " + index + " out of range.");
+        return optionTags[index];
+    }
+
+    public boolean hasOption(byte tag) {
+        return optionOffsets[tag & 0xFF] >= 0;
+    }
+
+    /** Returns the total data length of the given option, or -1 if not present. */
+    public int getOptionLength(byte tag) {
+        int index = tag & 0xFF;
+        if (optionOffsets[index] < 0)
+            return -1;
+        return optionLengths[index];
+    }
+
+    /**
+     * Returns the absolute index in the buffer of the data of the first
+     * fragment of the given option, or -1 if not present.
+     */
+    public int getOptionOffset(byte tag) {
+        return optionOffsets[tag & 0xFF];
+    }
+
+    private int getScalarOffset(byte tag, @Nonnegative int length) {
+        int index = tag & 0xFF;
+        int offset = optionOffsets[index];
+        if (offset < 0)
+            return -1;
+        if (optionFragmentLengths[index] < length)
+            return -1;
+        return offset;
+    }
+
+    /** Returns the first byte of the given option, unsigned, or dflt if absent or empty. */
+    public int getOptionByte(byte tag, int dflt) {
+        int offset = getScalarOffset(tag, 1);
+        if (offset < 0)
+            return dflt;
+        return buffer.get(offset) & 0xFF;
+    }
+
+    /**
+     * Returns the byte at the given index in the first fragment of the
+     * given option, unsigned, or -1 if absent or too short.
+     *
+     * This allows structured options, such as the sub-options of option 82,
+     * to be walked without allocation.
+     */
+    public int getOptionByteAt(byte tag, @Nonnegative int index) {
+        int offset = getScalarOffset(tag, index + 1);
+        if (offset < 0)
+            return -1;
+        return buffer.get(offset + index) & 0xFF;
+    }
+
+    /** Returns the first two bytes of the given option, unsigned, or dflt if absent or too short. */
+    public int getOptionShort(byte tag, int dflt) {
+        int offset = getScalarOffset(tag, 2);
+        if (offset < 0)
+            return dflt;
+        return buffer.getShort(offset) & 0xFFFF;
+    }
+
+    /** Returns the first four bytes of the given option, unsigned, or dflt if absent or too short. */
+    public long getOptionInt(byte tag, long dflt) {
+        int offset = getScalarOffset(tag, 4);
+        if (offset < 0)
+            return dflt;
+        return buffer.getInt(offset) & 0xFFFFFFFFL;
+    }
+
+    /**
+     * Returns the message type from option 53, or null if absent (BOOTP).
+     */
+    @CheckForNull
+    public MessageType getMessageType() {
+        int code = getOptionByte((byte) TAG_MESSAGE_TYPE, -1);
+        if (code < 0)
+            return null;
+        return MessageType.forTypeCode((byte) code);
+    }
+
+    /**
+     * Allocates and returns the data of the given option, reassembling fragments.
+     *
+     * @return the option data, or null if the option is not present.
+     */
+    @CheckForNull
+    public byte[] getOption(byte tag) {
+        int index = tag & 0xFF;
+        int offset = optionOffsets[index];
+        if (offset < 0)
+            return null;
+        byte[] out = new byte[optionLengths[index]];
+        int length = optionFragmentLengths[index];
+        for (int i = 0; i < length; i++)
+            out[i] = buffer.get(offset + i);
+        if (length < out.length) {
+            // Rare: the option was split per RFC 3396, so walk the option areas again.
+            length = gather(index, out, length, base + OFFSET_OPTIONS, limit);
+            if ((overload & OVERLOAD_FILE) != 0)
+                length = gather(index, out, length, base + OFFSET_FILE, base + OFFSET_FILE + LENGTH_FILE);
+            if ((overload & OVERLOAD_SNAME) != 0)
+                length = gather(index, out, length, base + OFFSET_SNAME, base + OFFSET_SNAME + LENGTH_SNAME);
+        }
+        return out;
+    }
+
+    /** Appends all but the first fragment of the given option in [start, end) to out. */
+    private int gather(int tag, @Nonnull byte[] out, @Nonnegative int length, @Nonnegative int start, @Nonnegative int end) {
+        int offset = start;
+        while (offset < end && length < out.length) {
+            int t = buffer.get(offset++) & 0xFF;
+            if (t == TAG_PAD)
+                continue;
+            if (t == TAG_END)
+                break;
+            int l = buffer.get(offset++) & 0xFF;
+            if (t == tag && offset != optionOffsets[tag]) {
+                for (int i = 0; i < l; i++)
+                    out[length++] = buffer.get(offset + i);
+            }
+            offset += l;
+        }
+        return length;
+    }
+
+    @Override
+    public String toString() {
+        if (buffer == null)
+            return "DhcpMessageView(<empty>)";
+        return "DhcpMessageView(op=" + getOp() + ", type=" + getMessageType() + ", xid=" + getTransactionId()
+                + ", length=" + getLength() + ", options=" + optionCount + ")";
+    }
+}
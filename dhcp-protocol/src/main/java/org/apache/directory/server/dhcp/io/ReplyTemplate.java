@@ -0,0 +1,154 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.apache.directory.server.dhcp.io;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.MapMaker;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.ConcurrentMap;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.Immutable;
+import org.apache.directory.server.dhcp.messages.DhcpMessage;
+import org.apache.directory.server.dhcp.options.DhcpOption;
+import org.apache.directory.server.dhcp.options.OptionsField;
+
+/**
+ * A set of reply options, filtered by a parameter request list and
+ * encoded once, for use by every reply which shares them.
+ *
+ * A reply carrying a template holds only its per-client options, such as
+ * the lease time and server identifier, in its {@link OptionsField}; the
+ * {@link DhcpMessageEncoder} copies the template's bytes after those.
+ * Where an option is in both, the reply's own option is used.
+ *
+ * The template of a reply is held here, rather than in the
+ * {@link DhcpMessage}, so that the messages package does not depend
+ * upon the encoder; see {@link #setTemplate(DhcpMessage, ReplyTemplate)}.
+ *
+ * @see ReplyTemplateCache
+ * @author shevek
+ */
+@Immutable
+public class ReplyTemplate {
+
+    /** Options which must never appear in a reply. */
+    private static boolean isForbidden(byte tag) {
+        switch (tag) {
+            case 50:    // RequestedIpAddress
+            case 55:    // ParameterRequestList
+            case 57:    // MaximumDhcpMessageSize
+            case 61:    // ClientIdentifier
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /** Options which are sent whether or not they were requested. */
+    private static boolean isMandatory(byte tag) {
+        switch (tag) {
+            case 51:    // IpAddressLeaseTime
+            case 54:    // ServerIdentifier
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /* pp */ static boolean isSet(@Nonnull long[] tags, byte tag) {
+        int index = tag & 0xFF;
+        return (tags[index >>> 6] & (1L << index)) != 0;
+    }
+
+    /* pp */ static void set(@Nonnull long[] tags, byte tag) {
+        int index = tag & 0xFF;
+        tags[index >>> 6] |= 1L << index;
+    }
+
+    /** Weak and identity-keyed, so a reply's template is dropped with the reply. */
+    private static final ConcurrentMap<DhcpMessage, ReplyTemplate> TEMPLATES = new MapMaker().weakKeys().makeMap();
+
+    /** Returns the pre-encoded options sent in addition to the options of the given reply. */
+    @CheckForNull
+    public static ReplyTemplate getTemplate(@Nonnull DhcpMessage reply) {
+        return TEMPLATES.get(reply);
+    }
+
+    /** Sets the pre-encoded options sent in addition to the options of the given reply. */
+    public static void setTemplate(@Nonnull DhcpMessage reply, @CheckForNull ReplyTemplate template) {
+        if (template == null)
+            TEMPLATES.remove(reply);
+        else
+            TEMPLATES.put(reply, template);
+    }
+
+    private final List<DhcpOption> options;
+    /** A bitmap of the tags of {@link #options}. */
+    private final long[] tags = new long[4];
+    private final byte[] encoded;
+
+    /**
+     * Constructs a template of the given options.
+     *
+     * @param options The options which the replies share.
+     * @param requested A bitmap of the requested tags, or null to send all options.
+     */
+    public ReplyTemplate(@Nonnull OptionsField options, @CheckForNull long[] requested) {
+        ImmutableList.Builder<DhcpOption> builder = ImmutableList.builder();
+        int length = 0;
+        for (DhcpOption option : options) {
+            byte tag = option.getTag();
+            if (isForbidden(tag))
+                continue;
+            if (requested != null && !isMandatory(tag) && !isSet(requested, tag))
+                continue;
+            builder.add(option);
+            set(tags, tag);
+            length += DhcpMessageEncoder.getLength(option);
+        }
+        this.options = builder.build();
+        ByteBuffer buf = ByteBuffer.allocate(length);
+        for (DhcpOption option : this.options)
+            DhcpMessageEncoder.writeOption(buf, option);
+        this.encoded = buf.array();
+    }
+
+    @Nonnull
+    public List<DhcpOption> getOptions() {
+        return options;
+    }
+
+    public boolean contains(byte tag) {
+        return isSet(tags, tag);
+    }
+
+    /** Returns true if any of the given options are also in this template. */
+    public boolean overlaps(@Nonnull OptionsField options) {
+        for (DhcpOption option : options)
+            if (contains(option.getTag()))
+                return true;
+        return false;
+    }
+
+    /** Returns the length of the encoded options. */
+    @Nonnegative
+    public int getLength() {
+        return encoded.length;
+    }
+
+    /** Writes the encoded options to the given buffer. */
+    public void writeTo(@Nonnull ByteBuffer buffer) {
+        buffer.put(encoded);
+    }
+
+    @Override
+    public String toString() {
+        return "ReplyTemplate(" + options + ")";
+    }
+}
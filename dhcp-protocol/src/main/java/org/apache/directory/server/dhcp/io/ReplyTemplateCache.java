@@ -0,0 +1,130 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.apache.directory.server.dhcp.io;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.Immutable;
+import javax.annotation.concurrent.ThreadSafe;
+import org.apache.directory.server.dhcp.messages.DhcpMessage;
+import org.apache.directory.server.dhcp.options.OptionsField;
+import org.apache.directory.server.dhcp.options.dhcp.ParameterRequestList;
+
+/**
+ * A cache of {@link ReplyTemplate ReplyTemplates}, keyed by a profile and
+ * the set of options requested by the client.
+ *
+ * A profile is any object, such as a subnet configuration or a network
+ * address, which determines the options sent to a client; clients with
+ * equal profiles which request the same options share a template. The
+ * options of a profile must not change while it is in use; if they do,
+ * call {@link #invalidateAll()}.
+ *
+ * @author shevek
+ */
+@ThreadSafe
+public class ReplyTemplateCache {
+
+    public static final long DEFAULT_MAXIMUM_SIZE = 4096;
+
+    @Immutable
+    private static class Key {
+
+        private final Object profile;
+        @CheckForNull
+        private final long[] requested;
+
+        public Key(@Nonnull Object profile, @CheckForNull long[] requested) {
+            this.profile = profile;
+            this.requested = requested;
+        }
+
+        @Override
+        public int hashCode() {
+            return profile.hashCode() * 31 + Arrays.hashCode(requested);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj)
+                return true;
+            if (!(obj instanceof Key))
+                return false;
+            Key o = (Key) obj;
+            return profile.equals(o.profile)
+                    && Arrays.equals(requested, o.requested);
+        }
+    }
+
+    /** Returns a bitmap of the tags in the request's parameter request list, or null if it has none. */
+    @CheckForNull
+    private static long[] getRequested(@Nonnull DhcpMessage request) {
+        ParameterRequestList prl = request.getOptions().get(ParameterRequestList.class);
+        if (prl == null)
+            return null;
+        long[] requested = new long[4];
+        for (byte tag : prl.getData())
+            ReplyTemplate.set(requested, tag);
+        return requested;
+    }
+
+    private final Cache<Key, ReplyTemplate> cache;
+
+    public ReplyTemplateCache(@Nonnegative long maximumSize) {
+        this.cache = CacheBuilder.newBuilder()
+                .maximumSize(maximumSize)
+                .build();
+    }
+
+    public ReplyTemplateCache() {
+        this(DEFAULT_MAXIMUM_SIZE);
+    }
+
+    /**
+     * Returns the template of the given profile's options for the given request.
+     *
+     * @param profile The profile which determines the options.
+     * @param options The options of the profile, used if no template is cached.
+     * @param request The request, whose parameter request list filters the options.
+     */
+    @Nonnull
+    public ReplyTemplate get(@Nonnull Object profile, @Nonnull final OptionsField options, @Nonnull DhcpMessage request) {
+        Preconditions.checkNotNull(profile, "Profile was null.");
+        final long[] requested = getRequested(request);
+        try {
+            return cache.get(new Key(profile, requested), new Callable<ReplyTemplate>() {
+                @Override
+                public ReplyTemplate call() throws Exception {
+                    return new ReplyTemplate(options, requested);
+                }
+            });
+        } catch (ExecutionException e) {
+            throw Throwables.propagate(e.getCause());
+        }
+    }
+
+    @Nonnegative
+    public long size() {
+        return cache.size();
+    }
+
+    public void invalidateAll() {
+        cache.invalidateAll();
+    }
+
+    @Override
+    public String toString() {
+        return "ReplyTemplateCache(" + size() + " templates)";
+    }
+}
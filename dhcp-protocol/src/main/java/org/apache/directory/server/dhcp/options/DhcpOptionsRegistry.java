@@ -5,10 +5,11 @@
  */
 package org.apache.directory.server.dhcp.options;
 
-import java.util.HashMap;
+import com.google.common.base.Supplier;
 import java.util.Map;
-import java.util.WeakHashMap;
+import java.util.TreeMap;
 import javax.annotation.CheckForNull;
+import javax.annotation.Nonnegative;
 import javax.annotation.Nonnull;
 import org.apache.directory.server.dhcp.options.dhcp.BootfileName;
 import org.apache.directory.server.dhcp.options.dhcp.ClientIdentifier;
@@ -239,11 +240,268 @@ public class DhcpOptionsRegistry {
     public static DhcpOptionsRegistry getInstance() {
         return Inner.INSTANCE;
     }
-    private final Map<Byte, Class<? extends DhcpOption>> optionTypes = new HashMap<Byte, Class<? extends DhcpOption>>();
-    private final Map<Class<? extends DhcpOption>, Byte> optionTags = new WeakHashMap<Class<? extends DhcpOption>, Byte>();
+
+    /**
+     * Instantiates a built-in option type without reflection.
+     *
+     * This must agree with {@link Inner#OPTION_CLASSES}; a type whose
+     * case is missing or wrong here falls back to a reflective factory.
+     */
+    @CheckForNull
+    private static DhcpOption newBuiltinInstance(@Nonnegative int tag) {
+        switch (tag) {
+            case 1:
+                return new SubnetMask();
+            case 2:
+                return new TimeOffset();
+            case 3:
+                return new Routers();
+            case 4:
+                return new TimeServers();
+            case 5:
+                return new NameServers();
+            case 6:
+                return new DomainNameServers();
+            case 7:
+                return new LogServers();
+            case 8:
+                return new CookieServers();
+            case 9:
+                return new LprServers();
+            case 10:
+                return new ImpressServers();
+            case 11:
+                return new ResourceLocationServers();
+            case 12:
+                return new HostName();
+            case 13:
+                return new BootFileSize();
+            case 14:
+                return new MeritDumpFile();
+            case 15:
+                return new DomainName();
+            case 16:
+                return new SwapServer();
+            case 17:
+                return new RootPath();
+            case 18:
+                return new ExtensionsPath();
+            case 19:
+                return new IpForwarding();
+            case 20:
+                return new NonLocalSourceRouting();
+            case 21:
+                return new PolicyFilter();
+            case 22:
+                return new MaximumDatagramSize();
+            case 23:
+                return new DefaultIpTimeToLive();
+            case 24:
+                return new PathMtuAgingTimeout();
+            case 25:
+                return new PathMtuPlateauTable();
+            case 26:
+                return new InterfaceMtu();
+            case 27:
+                return new AllSubnetsAreLocal();
+            case 28:
+                return new BroadcastAddress();
+            case 29:
+                return new PerformMaskDiscovery();
+            case 30:
+                return new MaskSupplier();
+            case 31:
+                return new PerformRouterDiscovery();
+            case 32:
+                return new RouterSolicitationAddress();
+            case 33:
+                return new StaticRoute();
+            case 34:
+                return new TrailerEncapsulation();
+            case 35:
+                return new ArpCacheTimeout();
+            case 36:
+                return new EthernetEncapsulation();
+            case 37:
+                return new TcpDefaultTimeToLive();
+            case 38:
+                return new TcpKeepaliveGarbage();
+            case 39:
+                return new TcpKeepaliveInterval();
+            case 40:
+                return new NisDomain();
+            case 41:
+                return new NisServers();
+            case 42:
+                return new NtpServers();
+            case 43:
+                return new VendorSpecificInformation();
+            case 44:
+                return new NetbiosNameServers();
+            case 45:
+                return new NbddServers();
+            case 46:
+                return new NetbiosNodeType();
+            case 47:
+                return new NetbiosScope();
+            case 48:
+                return new XWindowFontServers();
+            case 49:
+                return new XWindowDisplayManagers();
+            case 50:
+                return new RequestedIpAddress();
+            case 51:
+                return new IpAddressLeaseTime();
+            case 52:
+                return new OptionOverload();
+            case 53:
+                return new DhcpMessageType();
+            case 54:
+                return new ServerIdentifier();
+            case 55:
+                return new ParameterRequestList();
+            case 56:
+                return new Message();
+            case 57:
+                return new MaximumDhcpMessageSize();
+            case 58:
+                return new RenewalTimeValue();
+            case 59:
+                return new RebindingTimeValue();
+            case 60:
+                return new VendorClassIdentifier();
+            case 61:
+                return new ClientIdentifier();
+            case 62:
+                return new NetwareDomainName();
+            case 63:
+                return new NetwareOptions();
+            case 64:
+                return new NisPlusDomain();
+            case 65:
+                return new NisPlusServers();
+            case 66:
+                return new TftpServerName();
+            case 67:
+                return new BootfileName();
+            case 68:
+                return new MobileIpHomeAgents();
+            case 69:
+                return new SmtpServers();
+            case 70:
+                return new Pop3Servers();
+            case 71:
+                return new NntpServers();
+            case 72:
+                return new DefaultWwwServers();
+            case 73:
+                return new DefaultFingerServers();
+            case 74:
+                return new DefaultIrcServers();
+            case 75:
+                return new StreetTalkServers();
+            case 76:
+                return new StdaServers();
+            case 77:
+                return new UserClass();
+            case 78:
+                return new DirectoryAgent();
+            case 79:
+                return new ServiceScope();
+            case 81:
+                return new ClientFQDN();
+            case 82:
+                return new RelayAgentInformation();
+            case 93:
+                return new ClientSystemArchitecture();
+            case 94:
+                return new ClientNetworkInterface();
+            case 97:
+                return new UUIDClientIdentifier();
+            case 100:
+                return new PCode();
+            case 101:
+                return new TCode();
+            case 119:
+                return new DomainSearch();
+            case 128:
+                return new PxeReserved128();
+            case 129:
+                return new PxeReserved129();
+            case 130:
+                return new PxeReserved130();
+            case 131:
+                return new PxeReserved131();
+            case 132:
+                return new PxeReserved132();
+            case 133:
+                return new PxeReserved133();
+            case 134:
+                return new PxeReserved134();
+            case 135:
+                return new PxeReserved135();
+            case 255:
+                return new UnrecognizedOption();
+            default:
+                return null;
+        }
+    }
+
+    /** A factory for a built-in option type. */
+    private static class BuiltinOptionFactory implements Supplier<DhcpOption> {
+
+        private final int tag;
+
+        public BuiltinOptionFactory(int tag) {
+            this.tag = tag;
+        }
+
+        @Override
+        public DhcpOption get() {
+            return newBuiltinInstance(tag);
+        }
+    }
+
+    /** A factory for an option type registered by the application. */
+    private static class ReflectiveOptionFactory implements Supplier<DhcpOption> {
+
+        private final Class<? extends DhcpOption> type;
+
+        public ReflectiveOptionFactory(Class<? extends DhcpOption> type) {
+            this.type = type;
+        }
+
+        @Override
+        public DhcpOption get() {
+            return newReflectiveInstance(type);
+        }
+    }
+
+    /**
+     * Resolves each option class to its tag exactly once.
+     *
+     * The tag of an option class is fixed, so after the first call
+     * this is a constant lookup which neither locks nor instantiates.
+     */
+    private static final ClassValue<Byte> OPTION_TAGS = new ClassValue<Byte>() {
+        @Override
+        protected Byte computeValue(Class<?> type) {
+            Class<? extends DhcpOption> optionType = type.asSubclass(DhcpOption.class);
+            byte tag = newReflectiveInstance(optionType).getTag();
+            if (getInstance().getOptionType(tag) != optionType)
+                LOG.warn("Unregistered option type: {}", type);
+            return tag;
+        }
+    };
+
+    // Indexed by (tag & 0xFF).
+    @SuppressWarnings("unchecked")
+    private final Class<? extends DhcpOption>[] optionTypes = new Class[256];
+    @SuppressWarnings("unchecked")
+    private final Supplier<? extends DhcpOption>[] optionFactories = new Supplier[256];
 
     @Nonnull
-    public static <T extends DhcpOption> T newInstance(@Nonnull Class<T> type) {
+    private static <T extends DhcpOption> T newReflectiveInstance(@Nonnull Class<T> type) {
         try {
             return type.newInstance();
         } catch (InstantiationException e) {
@@ -253,36 +511,66 @@ public class DhcpOptionsRegistry {
         }
     }
 
-    private byte getTagFrom(@Nonnull Class<? extends DhcpOption> type) {
-        DhcpOption o = newInstance(type);
-        byte tag = o.getTag();
-        optionTags.put(type, tag);
-        return tag;
+    /**
+     * Returns a new instance of the given option type.
+     *
+     * Registered types are instantiated through the factory table;
+     * others reflectively.
+     */
+    @Nonnull
+    public static <T extends DhcpOption> T newInstance(@Nonnull Class<T> type) {
+        DhcpOptionsRegistry registry = getInstance();
+        int index = registry.getOptionTag(type) & 0xFF;
+        if (registry.optionTypes[index] == type)
+            return type.cast(registry.optionFactories[index].get());
+        return newReflectiveInstance(type);
     }
 
     public void addOptionType(@Nonnull Class<? extends DhcpOption> type) {
-        byte tag = getTagFrom(type);
-        if (optionTypes.put(tag, type) != null)
+        // Not getOptionTag(), which would warn that the type is unregistered.
+        int index = newReflectiveInstance(type).getTag() & 0xFF;
+        if (optionTypes[index] != null)
             throw new IllegalArgumentException("Duplicate tag: " + type);
-        optionTags.put(type, tag);
+        DhcpOption builtin = newBuiltinInstance(index);
+        if (builtin != null && builtin.getClass() == type)
+            optionFactories[index] = new BuiltinOptionFactory(index);
+        else
+            optionFactories[index] = new ReflectiveOptionFactory(type);
+        optionTypes[index] = type;
     }
 
     @CheckForNull
     public Class<? extends DhcpOption> getOptionType(byte tag) {
-        return optionTypes.get(tag);
+        return optionTypes[tag & 0xFF];
     }
 
+    /**
+     * Returns a new instance of the option type registered for the given tag,
+     * or an {@link UnrecognizedOption} if there is none.
+     */
     @Nonnull
+    public DhcpOption newOption(byte tag) {
+        Supplier<? extends DhcpOption> factory = optionFactories[tag & 0xFF];
+        if (factory == null)
+            return new UnrecognizedOption(tag);
+        return factory.get();
+    }
+
+    /** Returns true if the given option type is instantiated without reflection. */
+    /* pp */ boolean isBuiltin(byte tag) {
+        return optionFactories[tag & 0xFF] instanceof BuiltinOptionFactory;
+    }
+
     public byte getOptionTag(@Nonnull Class<? extends DhcpOption> type) {
-        Byte tag = optionTags.get(type);
-        if (tag != null)
-            return tag.byteValue();
-        LOG.warn("Unregistered option type: {}", type);
-        return getTagFrom(type);
+        return OPTION_TAGS.get(type).byteValue();
     }
 
     @Override
     public String toString() {
-        return getClass().getSimpleName() + "(" + optionTypes + ")";
+        Map<Integer, Class<? extends DhcpOption>> out = new TreeMap<Integer, Class<? extends DhcpOption>>();
+        for (int i = 0; i < optionTypes.length; i++)
+            if (optionTypes[i] != null)
+                out.put(i, optionTypes[i]);
+        return getClass().getSimpleName() + "(" + out + ")";
     }
 }
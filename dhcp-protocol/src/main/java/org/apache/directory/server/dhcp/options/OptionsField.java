@@ -22,9 +22,9 @@ package org.apache.directory.server.dhcp.options;
 import com.google.common.net.InetAddresses;
 import java.net.Inet4Address;
 import java.net.InetAddress;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.Iterator;
-import java.util.Map;
+import java.util.NoSuchElementException;
 import javax.annotation.CheckForNull;
 import javax.annotation.CheckForSigned;
 import javax.annotation.Nonnegative;
@@ -42,19 +42,76 @@ import org.apache.directory.server.dhcp.DhcpException;
  */
 public class OptionsField implements Iterable<DhcpOption> {
 
+    private static final byte[] EMPTY_INDEX = new byte[0];
+    private static final DhcpOption[] EMPTY_OPTIONS = new DhcpOption[0];
+
     /**
-     * A map of option code (Integer)->DhcpOption. FIXME: use IntHashtable from
-     * commons collections
+     * A table of (tag &amp; 0xFF) -&gt; (1 + position in {@link #options}),
+     * or 0 if the option is not present. Allocated on first use.
      */
-    private final Map<Byte, DhcpOption> options = new HashMap<Byte, DhcpOption>();
+    private byte[] index = EMPTY_INDEX;
+    /** The options, in insertion order. */
+    private DhcpOption[] options = EMPTY_OPTIONS;
+    private int size = 0;
+
+    public OptionsField() {
+    }
+
+    /**
+     * Constructs a (shallow) copy of the given OptionsField.
+     *
+     * The copy shares the option instances, exactly as {@link #addAll(OptionsField)} would.
+     */
+    public OptionsField(@Nonnull OptionsField source) {
+        if (source.size > 0) {
+            this.index = source.index.clone();
+            this.options = Arrays.copyOf(source.options, source.size);
+            this.size = source.size;
+        }
+    }
 
     public boolean isEmpty() {
-        return options.isEmpty();
+        return size == 0;
     }
 
+    @Nonnegative
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Iterates the options in insertion order. Replacing an option
+     * with {@link #add(DhcpOption)} retains its original position.
+     *
+     * The iterator supports {@link Iterator#remove()}.
+     */
     @Override
     public Iterator<DhcpOption> iterator() {
-        return options.values().iterator();
+        return new Iterator<DhcpOption>() {
+            private int cursor = 0;
+            private boolean removable = false;
+
+            @Override
+            public boolean hasNext() {
+                return cursor < size;
+            }
+
+            @Override
+            public DhcpOption next() {
+                if (cursor >= size)
+                    throw new NoSuchElementException();
+                removable = true;
+                return options[cursor++];
+            }
+
+            @Override
+            public void remove() {
+                if (!removable)
+                    throw new IllegalStateException();
+                removable = false;
+                removeAt(--cursor);
+            }
+        };
     }
 
     /**
@@ -82,11 +139,33 @@ public class OptionsField implements Iterable<DhcpOption> {
      */
     @CheckForNull
     public DhcpOption get(byte tag) {
-        return options.get(tag);
+        if (size == 0)
+            return null;
+        int position = index[tag & 0xFF] & 0xFF;
+        if (position == 0)
+            return null;
+        return options[position - 1];
     }
 
+    /**
+     * Adds the given option, replacing any existing option with the same tag.
+     */
     public void add(@Nonnull DhcpOption option) {
-        options.put(option.getTag(), option);
+        int tag = option.getTag() & 0xFF;
+        if (index.length == 0)
+            index = new byte[256];
+        int position = index[tag] & 0xFF;
+        if (position != 0) {
+            options[position - 1] = option;
+            return;
+        }
+        // Tags 0 (pad) and 255 (end) are never carried as options, so this can't overflow a byte.
+        if (size >= 255)
+            throw new IllegalStateException("Too many options: " + this);
+        if (size == options.length)
+            options = Arrays.copyOf(options, Math.max(8, size * 2));
+        options[size++] = option;
+        index[tag] = (byte) size;
     }
 
     /**
@@ -98,8 +177,14 @@ public class OptionsField implements Iterable<DhcpOption> {
     public void addAll(@CheckForNull OptionsField options) {
         if (options == null)
             return;
-        for (DhcpOption option : options)
-            add(option);
+        if (size == 0 && options.size > 0) {
+            this.index = options.index.clone();
+            this.options = Arrays.copyOf(options.options, options.size);
+            this.size = options.size;
+            return;
+        }
+        for (int i = 0; i < options.size; i++)
+            add(options.options[i]);
     }
 
     /**
@@ -118,14 +203,30 @@ public class OptionsField implements Iterable<DhcpOption> {
      * @param tag
      */
     public void remove(byte tag) {
-        options.remove(tag);
+        if (size == 0)
+            return;
+        int position = index[tag & 0xFF] & 0xFF;
+        if (position != 0)
+            removeAt(position - 1);
+    }
+
+    private void removeAt(@Nonnegative int position) {
+        index[options[position].getTag() & 0xFF] = 0;
+        size--;
+        for (int i = position; i < size; i++) {
+            DhcpOption option = options[i + 1];
+            options[i] = option;
+            index[option.getTag() & 0xFF] = (byte) (i + 1);
+        }
+        options[size] = null;
     }
 
-    /**
-     * @see Map#clear()
-     */
     public void clear() {
-        options.clear();
+        for (int i = 0; i < size; i++) {
+            index[options[i].getTag() & 0xFF] = 0;
+            options[i] = null;
+        }
+        size = 0;
     }
 
     @CheckForNull
@@ -245,6 +346,6 @@ public class OptionsField implements Iterable<DhcpOption> {
 
     @Override
     public String toString() {
-        return getClass().getSimpleName() + "(" + options.values() + ")";
+        return getClass().getSimpleName() + "(" + Arrays.asList(options).subList(0, size) + ")";
     }
 }
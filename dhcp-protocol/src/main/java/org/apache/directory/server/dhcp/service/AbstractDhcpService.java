@@ -27,6 +27,7 @@ import javax.annotation.CheckForNull;
 import javax.annotation.Nonnull;
 import org.anarres.dhcp.common.address.AddressUtils;
 import org.anarres.dhcp.common.address.InterfaceAddress;
+import org.anarres.dhcp.common.metrics.DhcpMetrics;
 import org.apache.directory.server.dhcp.DhcpException;
 import org.apache.directory.server.dhcp.io.DhcpRequestContext;
 import org.apache.directory.server.dhcp.messages.DhcpMessage;
@@ -55,28 +56,49 @@ public abstract class AbstractDhcpService extends AbstractDhcpReplyFactory imple
 
     private static final Logger LOG = LoggerFactory.getLogger(AbstractDhcpService.class);
 
+    private volatile DhcpMetrics metrics = DhcpMetrics.NOOP;
+
+    @Nonnull
+    public DhcpMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Sets the metrics which record the type, outcome and latency of each request.
+     *
+     * The latency of the dispatch to each handler is recorded as {@link DhcpMetrics.Stage#LEASE}.
+     */
+    public void setMetrics(@Nonnull DhcpMetrics metrics) {
+        this.metrics = Preconditions.checkNotNull(metrics, "DhcpMetrics was null.");
+    }
+
     @Override
     public DhcpMessage getReplyFor(
             DhcpRequestContext context,
             DhcpMessage request)
             throws DhcpException {
         Preconditions.checkNotNull(context, "DhcpRequestContext was null.");
+        DhcpMetrics metrics = getMetrics();
 
         // ignore messages with an op != REQUEST/REPLY
         if ((request.getOp() != DhcpMessage.OP_BOOTREQUEST)
                 && (request.getOp() != DhcpMessage.OP_BOOTREPLY)) {
             LOG.warn("Request operator is not BOOTREQUEST or BOOTREPLY: " + request);
+            metrics.recordDrop(DhcpMetrics.Drop.INVALID);
             return null;
         }
 
         // message type option MUST be set - we don't support plain BOOTP.
         if (request.getMessageType() == null) {
             LOG.warn("Request is missing message type - plain BOOTP not supported: " + request);
+            metrics.recordDrop(DhcpMetrics.Drop.INVALID);
             return null;
         }
+        metrics.recordRequest(request.getMessageType());
 
         if (request.getHardwareAddress() == null) {
             LOG.warn("Request is missing hardware address: " + request);
+            metrics.recordDrop(DhcpMetrics.Drop.INVALID);
             return null;
         }
 
@@ -89,10 +111,34 @@ public abstract class AbstractDhcpService extends AbstractDhcpReplyFactory imple
                     if (Objects.equal(localAddress.getAddress(), serverAddress))
                         break FIND;
                 LOG.debug("Request directed to " + serverAddress + ", not to this server: " + request);
+                metrics.recordDrop(DhcpMetrics.Drop.NOT_FOR_US);
                 return null;
             }
         }
 
+        long start = System.nanoTime();
+        DhcpMessage reply;
+        try {
+            reply = dispatch(context, request);
+        } catch (DhcpException e) {
+            metrics.recordDrop(DhcpMetrics.Drop.ERROR);
+            throw e;
+        } catch (RuntimeException e) {
+            metrics.recordDrop(DhcpMetrics.Drop.ERROR);
+            throw e;
+        }
+        metrics.recordLatency(DhcpMetrics.Stage.LEASE, request.getMessageType(), System.nanoTime() - start);
+
+        if (reply == null)
+            metrics.recordDrop(DhcpMetrics.Drop.NO_REPLY);
+        else if (reply.getMessageType() != null)
+            metrics.recordReply(reply.getMessageType());
+        return reply;
+    }
+
+    /** Dispatches the request to the handler for its message type. */
+    @CheckForNull
+    private DhcpMessage dispatch(@Nonnull DhcpRequestContext context, @Nonnull DhcpMessage request) throws DhcpException {
         DhcpMessage reply;
         // dispatch based on the message type
         switch (request.getMessageType()) {
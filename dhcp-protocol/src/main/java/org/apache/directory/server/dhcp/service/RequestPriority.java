@@ -0,0 +1,81 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.apache.directory.server.dhcp.service;
+
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Nonnull;
+import org.anarres.dhcp.common.address.AddressUtils;
+import org.apache.directory.server.dhcp.messages.DhcpMessage;
+import org.apache.directory.server.dhcp.messages.MessageType;
+import org.apache.directory.server.dhcp.options.dhcp.RequestedIpAddress;
+import org.apache.directory.server.dhcp.options.dhcp.ServerIdentifier;
+
+/**
+ * The order in which queued requests are served when the server is overloaded.
+ *
+ * Clients which already hold a lease are served first, so that existing
+ * clients keep their addresses through a storm of new ones, such as
+ * after a mass reboot. A new client's DHCPREQUEST, selecting an offer,
+ * competes with DISCOVERs, as does every DHCPDECLINE and DHCPRELEASE.
+ *
+ * @see org.anarres.dhcp.common.concurrent.PriorityExecutor
+ * @author shevek
+ */
+public enum RequestPriority {
+
+    /** A DHCPREQUEST with ciaddr set: a client renewing or rebinding its lease. */
+    RENEW,
+    /** A DHCPREQUEST with a requested address but no server identifier: a rebooted client verifying its lease. */
+    REQUEST,
+    /** A DHCPDISCOVER, any other DHCPREQUEST, DHCPDECLINE and DHCPRELEASE. */
+    DISCOVER,
+    /** DHCPINFORM, BOOTP, and anything else. */
+    INFORM;
+
+    /** The least time for which a request is worth answering. */
+    public static final long MIN_DEADLINE_SECONDS = 4;
+    /** The greatest time for which a request is worth answering. */
+    public static final long MAX_DEADLINE_SECONDS = 64;
+
+    @Nonnull
+    public static RequestPriority forRequest(@Nonnull DhcpMessage request) {
+        MessageType type = request.getMessageType();
+        if (type == null)
+            return INFORM;
+        switch (type) {
+            case DHCPREQUEST:
+                if (!AddressUtils.isZeroAddress(request.getCurrentClientAddress()))
+                    return RENEW;
+                // INIT-REBOOT, RFC 2131 section 4.3.2.
+                if (request.getOptions().get(ServerIdentifier.class) == null
+                        && request.getOptions().get(RequestedIpAddress.class) != null)
+                    return REQUEST;
+                return DISCOVER;
+            case DHCPDECLINE:
+            case DHCPRELEASE:
+            case DHCPDISCOVER:
+                return DISCOVER;
+            default:
+                return INFORM;
+        }
+    }
+
+    /**
+     * Returns the time, in nanoseconds after receipt, after which the given
+     * request is no longer worth answering.
+     *
+     * A client retransmits with exponential backoff, starting at 4 seconds
+     * and doubling to 64 (RFC 2131 section 4.1), so the interval before
+     * its next retransmission is roughly the time it has already spent
+     * trying, which it reports in the secs field. Once that has passed,
+     * the client has retransmitted, and the retransmission will be answered
+     * instead.
+     */
+    public static long getDeadlineNanos(@Nonnull DhcpMessage request) {
+        long seconds = Math.max(MIN_DEADLINE_SECONDS, Math.min(MAX_DEADLINE_SECONDS, request.getSeconds()));
+        return TimeUnit.SECONDS.toNanos(seconds);
+    }
+}
@@ -5,19 +5,18 @@
 package org.apache.directory.server.dhcp.service.manager;
 
 import com.google.common.base.Throwables;
-import com.google.common.cache.Cache;
-import com.google.common.cache.CacheBuilder;
 import java.net.InetAddress;
-import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import javax.annotation.CheckForNull;
 import javax.annotation.Nonnegative;
 import javax.annotation.Nonnull;
+import org.anarres.dhcp.common.address.AddressBitmapAllocator;
 import org.anarres.dhcp.common.address.InterfaceAddress;
 import org.anarres.dhcp.common.address.NetworkAddress;
 import org.anarres.dhcp.common.address.Subnet;
-import org.anarres.jallocator.ResourceAllocator;
 import org.apache.directory.server.dhcp.DhcpException;
 import org.apache.directory.server.dhcp.io.DhcpRequestContext;
 import org.apache.directory.server.dhcp.messages.DhcpMessage;
@@ -29,16 +28,78 @@ import org.slf4j.LoggerFactory;
 /**
  * A base class for lease managers which allocate addresses from a pool.
  *
+ * Each pool keeps an {@link AddressBitmapAllocator} of the addresses which
+ * are known to be in use, so that a new address is chosen without probing
+ * {@link #leaseIp(InetAddress, HardwareAddress, long)} for each address
+ * in turn. The bitmap is kept in sync as addresses are leased. A subclass
+ * must call {@link #releaseAddress(InetAddress)} when a lease is released
+ * or expires. When a pool appears exhausted, {@link #expireLeases()} is
+ * called to release any leases which have expired since the subclass last
+ * looked; if the pool is still exhausted, it is rescanned, at most once
+ * every {@link #TTL_EXPIRE} seconds, to recover addresses which the
+ * subclass failed to release. Between rescans, an exhausted pool is
+ * probed address by address, as if there were no bitmap, so a subclass
+ * which never releases is slower, but never short of addresses.
+ *
+ * Pools are never discarded. Each pool records the range of the
+ * {@link Subnet} from which it was built; when {@link #getSubnetFor}
+ * returns a different range for the same network, the pool is rebuilt,
+ * keeping every allocation which falls within the new range.
+ *
  * @author shevek
  */
 public abstract class AbstractDynamicLeaseManager extends AbstractLeaseManager {
 
     private static final Logger LOG = LoggerFactory.getLogger(AbstractDynamicLeaseManager.class);
     public static final int TTL_EXPIRE = 600;
-    private final Cache<NetworkAddress, ResourceAllocator<InetAddress>> allocators = CacheBuilder.newBuilder()
-            .expireAfterAccess(TTL_LEASE.maxLeaseTime * 4, TimeUnit.SECONDS)
-            .recordStats()
-            .build();
+    private static class Pool {
+
+        /** The range from which this pool was built. */
+        private final InetAddress rangeStart;
+        private final InetAddress rangeEnd;
+        private final AddressBitmapAllocator allocator;
+        /** The time at which the pool was last rescanned, in milliseconds; a new pool may be rescanned at once. */
+        private final AtomicLong rescanned = new AtomicLong(0);
+
+        public Pool(@Nonnull Subnet subnet) {
+            this.rangeStart = subnet.getRangeStart();
+            this.rangeEnd = subnet.getRangeEnd();
+            this.allocator = new AddressBitmapAllocator(subnet);
+        }
+
+        /** Returns true if this pool was built from the current range of the given subnet. */
+        public boolean isCurrent(@Nonnull Subnet subnet) {
+            return rangeStart.equals(subnet.getRangeStart())
+                    && rangeEnd.equals(subnet.getRangeEnd());
+        }
+
+        /** Returns true if the caller should rescan the pool now. */
+        public boolean startRescan() {
+            long now = System.currentTimeMillis();
+            long prev = rescanned.get();
+            if (now - prev < TimeUnit.SECONDS.toMillis(TTL_EXPIRE))
+                return false;
+            return rescanned.compareAndSet(prev, now);
+        }
+    }
+    private final ConcurrentMap<NetworkAddress, Pool> pools = new ConcurrentHashMap<NetworkAddress, Pool>();
+    @CheckForNull
+    private volatile LeaseCommitPipeline commitPipeline;
+
+    @CheckForNull
+    public LeaseCommitPipeline getCommitPipeline() {
+        return commitPipeline;
+    }
+
+    /**
+     * Sets the pipeline which makes leases durable before a DHCPACK is sent.
+     *
+     * If null, which is the default, leases are acknowledged as soon as
+     * {@link #leaseIp(InetAddress, HardwareAddress, long)} returns.
+     */
+    public void setCommitPipeline(@CheckForNull LeaseCommitPipeline commitPipeline) {
+        this.commitPipeline = commitPipeline;
+    }
 
     @CheckForNull
     protected abstract InetAddress getFixedAddressFor(@Nonnull HardwareAddress hardwareAddress) throws DhcpException;
@@ -47,34 +108,125 @@ public abstract class AbstractDynamicLeaseManager extends AbstractLeaseManager {
     protected abstract Subnet getSubnetFor(@Nonnull NetworkAddress networkAddress) throws DhcpException;
 
     @CheckForNull
-    private ResourceAllocator<InetAddress> getAllocatorFor(@Nonnull NetworkAddress networkAddress) throws DhcpException {
+    private Pool getPoolFor(@Nonnull NetworkAddress networkAddress) throws DhcpException {
         final Subnet subnet = getSubnetFor(networkAddress);
         if (subnet == null)
             return null;
         NetworkAddress network = subnet.getNetworkAddress();
-        ResourceAllocator<InetAddress> allocator = allocators.getIfPresent(network);
-        // TODO: Update the resource allocator if it's out of date.
-        if (allocator != null)
-            return allocator;
-        try {
-            return allocators.get(network, new Callable<ResourceAllocator<InetAddress>>() {
-                @Override
-                public ResourceAllocator<InetAddress> call() throws Exception {
-                    DhcpAddressResourceProvider resourceProvider = new DhcpAddressResourceProvider(subnet);
-                    return new ResourceAllocator<InetAddress>(resourceProvider);
-                }
-            });
-        } catch (ExecutionException e) {
-            throw new DhcpException("Failed to load ResourceAllocator for " + subnet, e);
+        for (;;) {
+            Pool pool = pools.get(network);
+            if (pool != null && pool.isCurrent(subnet))
+                return pool;
+
+            Pool next;
+            try {
+                next = new Pool(subnet);
+            } catch (IllegalArgumentException e) {
+                throw new DhcpException("Failed to create address pool for " + subnet, e);
+            }
+            if (pool == null) {
+                if (pools.putIfAbsent(network, next) == null)
+                    return next;
+                continue;
+            }
+
+            // The range has changed: carry the existing allocations over.
+            next.allocator.copyFrom(pool.allocator);
+            if (pools.replace(network, pool, next)) {
+                // Catch allocations made in the old pool while we copied.
+                next.allocator.copyFrom(pool.allocator);
+                LOG.info("Rebuilt address pool {} as {}", pool.allocator, next.allocator);
+                return next;
+            }
         }
     }
 
+    /** Marks the given address as in use in the pool which contains it, if any. */
+    private void reserveAddress(@Nonnull InetAddress address) {
+        for (Pool pool : pools.values())
+            if (pool.allocator.allocate(address))
+                return;
+    }
+
+    /**
+     * Returns the given address to the pool which contains it, if any,
+     * so that it may be allocated to another client.
+     *
+     * Subclasses must call this when a lease is released or expires.
+     */
+    protected void releaseAddress(@Nonnull InetAddress address) {
+        for (Pool pool : pools.values())
+            if (pool.allocator.release(address))
+                return;
+    }
+
+    /**
+     * Releases, by {@link #releaseAddress(InetAddress)}, the leases which
+     * have expired but have not yet been released.
+     *
+     * This is called when a pool appears exhausted. The default
+     * implementation does nothing.
+     */
+    protected void expireLeases() throws Exception {
+    }
+
+    /**
+     * Allocates a new address from the pool, and leases it.
+     *
+     * An address which the store refuses is left marked as in use.
+     */
+    @CheckForNull
+    private InetAddress leasePool(@Nonnull Pool pool, @Nonnull HardwareAddress hardwareAddress, @Nonnegative long ttl, boolean offer) throws Exception {
+        AddressBitmapAllocator allocator = pool.allocator;
+        for (;;) {
+            InetAddress allocatedAddress = allocator.allocate();
+            if (allocatedAddress == null) {
+                expireLeases();
+                allocatedAddress = allocator.allocate();
+            }
+            if (allocatedAddress == null) {
+                // Recover addresses whose release a subclass did not report.
+                if (!pool.startRescan())
+                    return probePool(pool, hardwareAddress, ttl, offer);
+                LOG.info("Rescanning exhausted pool {}", allocator);
+                allocator.clear();
+                allocatedAddress = allocator.allocate();
+                if (allocatedAddress == null)
+                    return null;
+            }
+            if (leaseIp(allocatedAddress, hardwareAddress, ttl, offer))
+                return allocatedAddress;
+        }
+    }
+
+    /**
+     * Leases the first address of the pool which the store accepts,
+     * probing each in turn, and marks it as in use.
+     */
+    @CheckForNull
+    private InetAddress probePool(@Nonnull Pool pool, @Nonnull HardwareAddress hardwareAddress, @Nonnegative long ttl, boolean offer) throws Exception {
+        AddressBitmapAllocator allocator = pool.allocator;
+        if (LOG.isDebugEnabled())
+            LOG.debug("Probing exhausted pool {}", allocator);
+        for (int i = 0; i < allocator.getSize(); i++) {
+            InetAddress address = allocator.addressOf(i);
+            if (leaseIp(address, hardwareAddress, ttl, offer)) {
+                allocator.allocate(address);
+                return address;
+            }
+        }
+        return null;
+    }
+
     /**
      * Leases an InetAddress for the given HardwareAddress.
      *
      * Lock, retrieve current mapping from store.
      * If the InetAddress is unallocated OR allocated to the given HardwareAddress, return it.
      * Else return null.
+     *
+     * A persistent implementation need only record the change here; it is
+     * made durable by the {@link LeaseCommitPipeline} before any DHCPACK.
      */
     @CheckForNull
     protected abstract boolean leaseIp(
@@ -82,6 +234,28 @@ public abstract class AbstractDynamicLeaseManager extends AbstractLeaseManager {
             @Nonnull HardwareAddress hardwareAddress,
             @Nonnegative long ttl) throws Exception;
 
+    /**
+     * Reserves an InetAddress for the given HardwareAddress, to be offered
+     * in a DHCPOFFER, with the same result as
+     * {@link #leaseIp(InetAddress, HardwareAddress, long)}.
+     *
+     * The reservation need only last until the client requests the address,
+     * and need not be persisted. The default implementation leases the address.
+     */
+    protected boolean offerIp(
+            @Nonnull InetAddress address,
+            @Nonnull HardwareAddress hardwareAddress,
+            @Nonnegative long ttl) throws Exception {
+        return leaseIp(address, hardwareAddress, ttl);
+    }
+
+    private boolean leaseIp(@Nonnull InetAddress address, @Nonnull HardwareAddress hardwareAddress, @Nonnegative long ttl, boolean offer) throws Exception {
+        if (offer)
+            return offerIp(address, hardwareAddress, ttl);
+        return leaseIp(address, hardwareAddress, ttl);
+    }
+
+    /** Leases as for a DHCPREQUEST. */
     @CheckForNull
     protected InetAddress leaseMac(
             @Nonnull DhcpRequestContext context,
@@ -89,6 +263,22 @@ public abstract class AbstractDynamicLeaseManager extends AbstractLeaseManager {
             @CheckForNull InetAddress currentAddress, @CheckForNull InetAddress requestedAddress,
             @Nonnegative long ttl)
             throws Exception {
+        return leaseMac(context, hardwareAddress, currentAddress, requestedAddress, ttl, false);
+    }
+
+    /**
+     * Chooses and leases an InetAddress for the given HardwareAddress.
+     *
+     * @param offer true if the address is for a DHCPOFFER, in which case
+     * it is reserved by {@link #offerIp} rather than leased.
+     */
+    @CheckForNull
+    protected InetAddress leaseMac(
+            @Nonnull DhcpRequestContext context,
+            @Nonnull HardwareAddress hardwareAddress,
+            @CheckForNull InetAddress currentAddress, @CheckForNull InetAddress requestedAddress,
+            @Nonnegative long ttl, boolean offer)
+            throws Exception {
 
         // Is it a singular system?
         // If it's singular, perhaps it deliberately gets no DHCP.
@@ -102,10 +292,11 @@ public abstract class AbstractDynamicLeaseManager extends AbstractLeaseManager {
             LOG.debug("Looking for fixed address.");
             InetAddress fixedAddress = getFixedAddressFor(hardwareAddress);
             if (fixedAddress != null) {
-                if (!leaseIp(fixedAddress, hardwareAddress, ttl * 2))
+                if (!leaseIp(fixedAddress, hardwareAddress, ttl * 2, offer))
                     LOG.error("Client configured with fixed-address " + fixedAddress + " but lease failed.");
                 else if (LOG.isDebugEnabled())
                     LOG.debug("Using fixed address " + fixedAddress);
+                reserveAddress(fixedAddress);
                 return fixedAddress;
             }
         }
@@ -115,9 +306,10 @@ public abstract class AbstractDynamicLeaseManager extends AbstractLeaseManager {
         {
             LOG.debug("Looking for pre-existing address.");
             if (currentAddress != null) {
-                if (leaseIp(currentAddress, hardwareAddress, ttl * 2)) {
+                if (leaseIp(currentAddress, hardwareAddress, ttl * 2, offer)) {
                     if (LOG.isDebugEnabled())
                         LOG.debug("Using pre-existing address " + currentAddress);
+                    reserveAddress(currentAddress);
                     return currentAddress;
                 }
             }
@@ -128,9 +320,10 @@ public abstract class AbstractDynamicLeaseManager extends AbstractLeaseManager {
             LOG.debug("Looking for client-requested address.");
             // Requested address, if available.
             if (requestedAddress != null) {
-                if (leaseIp(requestedAddress, hardwareAddress, ttl * 2)) {
+                if (leaseIp(requestedAddress, hardwareAddress, ttl * 2, offer)) {
                     if (LOG.isDebugEnabled())
                         LOG.debug("Using client-requested address {}", requestedAddress);
+                    reserveAddress(requestedAddress);
                     return requestedAddress;
                 }
             }
@@ -139,18 +332,17 @@ public abstract class AbstractDynamicLeaseManager extends AbstractLeaseManager {
         CREATED:
         for (InterfaceAddress interfaceAddress : context.getInterfaceAddresses()) {
             // New address from the server's pool
-            ResourceAllocator<InetAddress> allocator = getAllocatorFor(interfaceAddress.toNetworkAddress());
-            if (allocator == null) {
+            Pool pool = getPoolFor(interfaceAddress.toNetworkAddress());
+            if (pool == null) {
                 if (LOG.isDebugEnabled())
-                    LOG.debug("No address allocator for {}", interfaceAddress);
+                    LOG.debug("No address pool for {}", interfaceAddress);
                 continue CREATED;
             }
-            for (InetAddress allocatedAddress : allocator) {
-                if (leaseIp(allocatedAddress, hardwareAddress, ttl * 2)) {
-                    if (LOG.isDebugEnabled())
-                        LOG.debug("Using server-generated address {}", allocatedAddress);
-                    return allocatedAddress;
-                }
+            InetAddress allocatedAddress = leasePool(pool, hardwareAddress, ttl * 2, offer);
+            if (allocatedAddress != null) {
+                if (LOG.isDebugEnabled())
+                    LOG.debug("Using server-generated address {}", allocatedAddress);
+                return allocatedAddress;
             }
         }
         LOG.warn("Failed to generate a lease for {}", hardwareAddress);
@@ -207,6 +399,9 @@ public abstract class AbstractDynamicLeaseManager extends AbstractLeaseManager {
             InetAddress clientAddress = leaseMac(context, request, clientRequestedAddress, leaseTimeSecs);
             if (clientAddress == null)
                 return null;
+            LeaseCommitPipeline pipeline = commitPipeline;
+            if (pipeline != null)
+                pipeline.commit();
             return newReplyAck(request, MessageType.DHCPACK, clientAddress, leaseTimeSecs);
         } catch (Exception e) {
             Throwables.propagateIfPossible(e, DhcpException.class);
@@ -6,9 +6,12 @@
 package org.apache.directory.server.dhcp.service.manager;
 
 import java.net.InetAddress;
+import javax.annotation.CheckForNull;
 import javax.annotation.Nonnull;
 import org.apache.directory.server.dhcp.DhcpException;
 import org.apache.directory.server.dhcp.io.DhcpRequestContext;
+import org.apache.directory.server.dhcp.io.ReplyTemplate;
+import org.apache.directory.server.dhcp.io.ReplyTemplateCache;
 import org.apache.directory.server.dhcp.messages.DhcpMessage;
 import org.apache.directory.server.dhcp.messages.MessageType;
 import org.apache.directory.server.dhcp.service.AbstractDhcpReplyFactory;
@@ -21,6 +24,26 @@ import org.apache.directory.server.dhcp.service.store.Lease;
  */
 public abstract class AbstractLeaseManager extends AbstractDhcpReplyFactory implements LeaseManager {
 
+    @CheckForNull
+    private volatile ReplyTemplateCache replyTemplateCache;
+
+    @CheckForNull
+    public ReplyTemplateCache getReplyTemplateCache() {
+        return replyTemplateCache;
+    }
+
+    /**
+     * Sets the cache of pre-encoded reply options.
+     *
+     * If null, which is the default, the options of each lease are copied
+     * into each reply.
+     *
+     * @see #newReply(DhcpMessage, MessageType, Lease, Object)
+     */
+    public void setReplyTemplateCache(@CheckForNull ReplyTemplateCache replyTemplateCache) {
+        this.replyTemplateCache = replyTemplateCache;
+    }
+
     /** Ignores DECLINE messages by default. */
     @Override
     public boolean leaseDecline(
@@ -39,6 +62,17 @@ public abstract class AbstractLeaseManager extends AbstractDhcpReplyFactory impl
         return false;
     }
 
+    /**
+     * Returns the profile of the given lease, if its options are shared
+     * with other leases, or null.
+     *
+     * @see #newReply(DhcpMessage, MessageType, Lease, Object)
+     */
+    @CheckForNull
+    protected Object getProfile(@Nonnull Lease lease) {
+        return null;
+    }
+
     /** A factory method for a new reply message. */
     @Nonnull
     public static DhcpMessage newReply(
@@ -51,4 +85,29 @@ public abstract class AbstractLeaseManager extends AbstractDhcpReplyFactory impl
         reply.getOptions().addAll(lease.getOptions());
         return reply;
     }
+
+    /**
+     * A factory method for a new reply message, whose lease options are
+     * shared by every lease with an equal profile.
+     *
+     * If a {@link ReplyTemplateCache} is set and the profile is not null,
+     * the lease options are sent as a cached template for the profile and
+     * the request's parameter request list; otherwise, as
+     * {@link #newReply(DhcpMessage, MessageType, Lease)}.
+     */
+    @Nonnull
+    protected DhcpMessage newReply(
+            @Nonnull DhcpMessage request,
+            @Nonnull MessageType type,
+            @Nonnull Lease lease,
+            @CheckForNull Object profile) {
+        ReplyTemplateCache cache = getReplyTemplateCache();
+        if (cache == null || profile == null)
+            return newReply(request, type, lease);
+        long leaseTimeSecs = lease.getExpires() - System.currentTimeMillis() / 1000;
+        DhcpMessage reply = newReplyAck(request, type, lease.getClientAddress(), leaseTimeSecs);
+        setBootParameters(reply, lease.getNextServerAddress(), null);
+        ReplyTemplate.setTemplate(reply, cache.get(profile, lease.getOptions(), request));
+        return reply;
+    }
 }
@@ -0,0 +1,231 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.apache.directory.server.dhcp.service.manager;
+
+import com.google.common.base.Preconditions;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Syncs the log in batches, from a background thread.
+ *
+ * The first commit to arrive opens a batch, which is synced when the
+ * maximum delay has passed, or earlier if enough commits are waiting.
+ * Every commit in the batch returns when that sync completes. This bounds
+ * the added latency of a DHCPACK by the delay, typically 1 to 5 ms, while
+ * the sync rate no longer bounds the request rate.
+ *
+ * @author shevek
+ */
+@ThreadSafe
+public class BatchingLeaseCommitPipeline implements LeaseCommitPipeline, Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(BatchingLeaseCommitPipeline.class);
+    public static final long DEFAULT_MAX_DELAY_MICROS = 2000;
+    public static final int DEFAULT_MAX_BATCH_SIZE = 256;
+
+    private final LeaseCommitLog log;
+    private final long maxDelayNanos;
+    private final int maxBatchSize;
+    private final Thread thread;
+    private final ReentrantLock lock = new ReentrantLock();
+    /** Signalled when a commit arrives, for the sync thread. */
+    private final Condition pending = lock.newCondition();
+    /** Signalled when a sync completes, for waiting commits. */
+    private final Condition done = lock.newCondition();
+    /** The highest sequence number for which a commit is waiting. */
+    @GuardedBy("lock")
+    private long requested = 0;
+    /** The highest sequence number known to be durable. */
+    @GuardedBy("lock")
+    private long committed = 0;
+    /** The number of syncs attempted. */
+    @GuardedBy("lock")
+    private long attempts = 0;
+    /** The attempt and highest sequence number of the last failed sync, and its failure. */
+    @GuardedBy("lock")
+    private long failedAttempt = 0;
+    @GuardedBy("lock")
+    private long failed = 0;
+    @GuardedBy("lock")
+    @CheckForNull
+    private IOException failure;
+    @GuardedBy("lock")
+    private int waiting = 0;
+    @GuardedBy("lock")
+    private boolean closed = false;
+    @GuardedBy("lock")
+    private boolean stopped = false;
+    @GuardedBy("lock")
+    private long syncCount = 0;
+
+    /**
+     * Constructs a new BatchingLeaseCommitPipeline, and starts its thread.
+     *
+     * @param log The log to sync.
+     * @param maxDelay The maximum time a commit waits before its batch is synced.
+     * @param unit The unit of maxDelay.
+     * @param maxBatchSize The number of waiting commits at which the batch is synced without further delay.
+     */
+    public BatchingLeaseCommitPipeline(@Nonnull LeaseCommitLog log, @Nonnegative long maxDelay, @Nonnull TimeUnit unit, @Nonnegative int maxBatchSize) {
+        this.log = Preconditions.checkNotNull(log, "LeaseCommitLog was null.");
+        Preconditions.checkArgument(maxDelay >= 0, "Maximum delay was negative.");
+        Preconditions.checkArgument(maxBatchSize > 0, "Maximum batch size must be positive.");
+        this.maxDelayNanos = unit.toNanos(maxDelay);
+        this.maxBatchSize = maxBatchSize;
+        this.thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                BatchingLeaseCommitPipeline.this.run();
+            }
+        }, "lease-commit");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public BatchingLeaseCommitPipeline(@Nonnull LeaseCommitLog log, @Nonnegative long maxDelay, @Nonnull TimeUnit unit) {
+        this(log, maxDelay, unit, DEFAULT_MAX_BATCH_SIZE);
+    }
+
+    public BatchingLeaseCommitPipeline(@Nonnull LeaseCommitLog log) {
+        this(log, DEFAULT_MAX_DELAY_MICROS, TimeUnit.MICROSECONDS);
+    }
+
+    @Override
+    public void commit() throws IOException {
+        long sequence = log.getSequence();
+        lock.lock();
+        try {
+            if (committed >= sequence)
+                return;
+            if (closed)
+                throw new IOException("Commit pipeline closed.");
+            requested = Math.max(requested, sequence);
+            // A failure only fails this commit if the sync was attempted after it arrived.
+            long attempt = attempts;
+            waiting++;
+            try {
+                // Wake the thread to open a batch, or to close a full one.
+                pending.signal();
+                while (committed < sequence) {
+                    if (failedAttempt > attempt && failed >= sequence)
+                        throw new IOException("Failed to commit lease changes: " + failure, failure);
+                    if (stopped)
+                        throw new IOException("Commit pipeline closed.");
+                    done.await();
+                }
+            } finally {
+                waiting--;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted awaiting lease commit.");
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void run() {
+        try {
+            for (;;) {
+                lock.lock();
+                try {
+                    while (waiting == 0 || requested <= committed) {
+                        if (closed)
+                            return;
+                        pending.await();
+                    }
+                    long remaining = maxDelayNanos;
+                    while (!closed && waiting < maxBatchSize && remaining > 0)
+                        remaining = pending.awaitNanos(remaining);
+                    attempts++;
+                } finally {
+                    lock.unlock();
+                }
+
+                // Everything appended by now joins this batch, including changes whose commit has not yet arrived.
+                long target = log.getSequence();
+                try {
+                    log.sync(target);
+                    lock.lock();
+                    try {
+                        committed = Math.max(committed, target);
+                        syncCount++;
+                        done.signalAll();
+                    } finally {
+                        lock.unlock();
+                    }
+                } catch (IOException e) {
+                    LOG.error("Failed to sync " + log, e);
+                    lock.lock();
+                    try {
+                        failedAttempt = attempts;
+                        failed = Math.max(failed, target);
+                        failure = e;
+                        done.signalAll();
+                    } finally {
+                        lock.unlock();
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            LOG.warn("Interrupted; pending commits will fail.", e);
+        } finally {
+            lock.lock();
+            try {
+                closed = true;
+                stopped = true;
+                done.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /** Returns the number of syncs performed, for monitoring the batch size. */
+    public long getSyncCount() {
+        lock.lock();
+        try {
+            return syncCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Syncs any outstanding batch, and stops the thread. */
+    @Override
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            closed = true;
+            pending.signal();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted awaiting commit thread.");
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "BatchingLeaseCommitPipeline(" + log + ", " + TimeUnit.NANOSECONDS.toMicros(maxDelayNanos) + " us, " + maxBatchSize + " commits)";
+    }
+}
@@ -0,0 +1,37 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.apache.directory.server.dhcp.service.manager;
+
+import com.google.common.base.Preconditions;
+import java.io.IOException;
+import javax.annotation.Nonnull;
+
+/**
+ * Syncs the log on every commit.
+ *
+ * Commits which arrive while a sync is running may still share the next
+ * sync if the log supports it, but no commit is ever delayed.
+ *
+ * @author shevek
+ */
+public class ImmediateLeaseCommitPipeline implements LeaseCommitPipeline {
+
+    private final LeaseCommitLog log;
+
+    public ImmediateLeaseCommitPipeline(@Nonnull LeaseCommitLog log) {
+        this.log = Preconditions.checkNotNull(log, "LeaseCommitLog was null.");
+    }
+
+    @Override
+    public void commit() throws IOException {
+        log.sync(log.getSequence());
+    }
+
+    @Override
+    public String toString() {
+        return "ImmediateLeaseCommitPipeline(" + log + ")";
+    }
+}
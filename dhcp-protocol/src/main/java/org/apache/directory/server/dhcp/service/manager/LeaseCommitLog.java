@@ -0,0 +1,24 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.apache.directory.server.dhcp.service.manager;
+
+import java.io.IOException;
+import javax.annotation.Nonnegative;
+
+/**
+ * A log of lease changes, which become durable when synced.
+ *
+ * @author shevek
+ */
+public interface LeaseCommitLog {
+
+    /** Returns the sequence number of the last change appended to this log. */
+    @Nonnegative
+    public long getSequence();
+
+    /** Ensures that all changes up to the given sequence number are durable. */
+    public void sync(long sequence) throws IOException;
+}
@@ -0,0 +1,29 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.apache.directory.server.dhcp.service.manager;
+
+import java.io.IOException;
+
+/**
+ * Decides when a lease change made by
+ * {@link AbstractDynamicLeaseManager#leaseIp} is durable.
+ *
+ * {@link AbstractDynamicLeaseManager} commits before sending a DHCPACK,
+ * so a client is never granted a lease which a restart would forget.
+ *
+ * @see ImmediateLeaseCommitPipeline
+ * @see BatchingLeaseCommitPipeline
+ * @author shevek
+ */
+public interface LeaseCommitPipeline {
+
+    /**
+     * Blocks until every lease change made before this call is durable.
+     *
+     * @throws IOException if the changes could not be made durable.
+     */
+    public void commit() throws IOException;
+}
@@ -0,0 +1,132 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.apache.directory.server.dhcp.service.store;
+
+import com.google.common.base.Preconditions;
+import java.io.File;
+import java.io.IOException;
+import java.net.Inet4Address;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import org.anarres.dhcp.common.address.InterfaceAddress;
+import org.anarres.dhcp.common.address.NetworkAddress;
+import org.apache.directory.server.dhcp.messages.HardwareAddress;
+
+/**
+ * A {@link FixedStoreLeaseManager} for very large numbers of reservations.
+ *
+ * Reservations of IPv4 addresses for Ethernet clients are held in a
+ * {@link FixedAddressTable}, and a {@link Lease} is built for each request.
+ * Other reservations, and any added as a {@link Lease}, are held by the
+ * superclass, and are consulted only if the table has no entry. Adding a
+ * reservation to either removes any for the same client from the other.
+ *
+ * Leases from the table share options with their network, so if a
+ * {@link org.apache.directory.server.dhcp.io.ReplyTemplateCache} is set,
+ * those options are encoded once per network and parameter request list.
+ *
+ * @author shevek
+ */
+public class CompactFixedStoreLeaseManager extends FixedStoreLeaseManager {
+
+    /** A lease built from the table, whose options depend only on its network. */
+    private static class TableLease extends Lease {
+
+        private final NetworkAddress networkAddress;
+
+        public TableLease(@Nonnull HardwareAddress hardwareAddress, @Nonnull InterfaceAddress interfaceAddress) {
+            super(hardwareAddress, interfaceAddress.getAddress());
+            this.networkAddress = interfaceAddress.toNetworkAddress();
+        }
+    }
+
+    private volatile FixedAddressTable table;
+
+    public CompactFixedStoreLeaseManager(@Nonnull FixedAddressTable table) {
+        this.table = Preconditions.checkNotNull(table, "FixedAddressTable was null.");
+    }
+
+    public CompactFixedStoreLeaseManager() {
+        this(new FixedAddressTable());
+    }
+
+    @Nonnull
+    public FixedAddressTable getTable() {
+        return table;
+    }
+
+    /**
+     * Replaces the table of reservations, for example with one built
+     * off to the side by {@link FixedAddressImporter}.
+     *
+     * @return the previous table.
+     */
+    @Nonnull
+    public FixedAddressTable setTable(@Nonnull FixedAddressTable table) {
+        Preconditions.checkNotNull(table, "FixedAddressTable was null.");
+        FixedAddressTable prev = this.table;
+        this.table = table;
+        return prev;
+    }
+
+    /**
+     * Loads reservations in bulk.
+     *
+     * @see FixedAddressTable#load(File)
+     */
+    public int load(@Nonnull File file) throws IOException {
+        return table.load(file);
+    }
+
+    @Override
+    @CheckForNull
+    public Lease getLease(HardwareAddress hardwareAddress) {
+        Preconditions.checkNotNull(hardwareAddress, "HardwareAddress was null.");
+        InterfaceAddress interfaceAddress = table.get(hardwareAddress);
+        if (interfaceAddress != null)
+            return setOptions(new TableLease(hardwareAddress, interfaceAddress), interfaceAddress);
+        return super.getLease(hardwareAddress);
+    }
+
+    /** Leases from the table share their options with the rest of their network. */
+    @Override
+    protected Object getProfile(Lease lease) {
+        if (lease instanceof TableLease)
+            return ((TableLease) lease).networkAddress;
+        return super.getProfile(lease);
+    }
+
+    /** Adds the given lease to the superclass, in place of any reservation in the table. */
+    @Override
+    public Lease addLease(Lease lease) {
+        table.remove(lease.getHardwareAddress());
+        return super.addLease(lease);
+    }
+
+    /**
+     * Adds a reservation to the table, if it is of an IPv4 address for an
+     * Ethernet client, or else to the superclass.
+     *
+     * The table holds only the address, so the lease returned for a
+     * reservation in the table is built afresh, as by {@link #getLease(HardwareAddress)},
+     * and changes to it are not kept. Use {@link #addLease(Lease)} to
+     * reserve a lease with options of its own.
+     */
+    @Override
+    public Lease addLease(HardwareAddress hardwareAddress, InterfaceAddress interfaceAddress) {
+        if (FixedAddressTable.toKey(hardwareAddress) < 0 || !(interfaceAddress.getAddress() instanceof Inet4Address))
+            return super.addLease(hardwareAddress, interfaceAddress);
+        table.put(hardwareAddress, interfaceAddress);
+        getLeases().remove(hardwareAddress);
+        return setOptions(new TableLease(hardwareAddress, interfaceAddress), interfaceAddress);
+    }
+
+    /** Removes any reservation for the given hardware address. */
+    public boolean removeLease(@Nonnull HardwareAddress hardwareAddress) {
+        boolean removed = table.remove(hardwareAddress);
+        return getLeases().remove(hardwareAddress) != null || removed;
+    }
+}
@@ -0,0 +1,532 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.apache.directory.server.dhcp.service.store;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.net.InetAddresses;
+import com.google.common.primitives.Ints;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import javax.annotation.CheckForNull;
+import javax.annotation.CheckForSigned;
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Imports fixed addresses into a {@link FixedAddressTable} from host files.
+ *
+ * Two formats are understood:
+ * <ul>
+ * <li>{@link Format#CSV}: One host per line, as
+ * <code>mac,address[/netmask][,name]</code>; lines starting with '#' are comments.
+ * <li>{@link Format#ISC}: The <code>host</code> blocks of an ISC dhcpd.conf,
+ * using their <code>hardware ethernet</code>, <code>fixed-address</code>
+ * and <code>option subnet-mask</code> statements. Everything else is ignored,
+ * as are hosts without an Ethernet address or an IPv4 fixed-address.
+ * </ul>
+ *
+ * The file is mapped, split into chunks at line (or host) boundaries, and
+ * the chunks are parsed in parallel on the given executor into packed
+ * arrays. Where a MAC appears more than once, the last entry wins, and
+ * the earlier ones are logged and discarded before the table is touched.
+ *
+ * {@link #load(File, Format, boolean)} builds a new table, which the caller
+ * may publish with {@link CompactFixedStoreLeaseManager#setTable(FixedAddressTable)}
+ * while requests continue to be served from the old one.
+ * {@link #reload(File, Format, FixedAddressTable)} instead applies only the
+ * differences to a live table, so a reload costs the packed arrays, not a
+ * second table.
+ *
+ * @author shevek
+ */
+public class FixedAddressImporter {
+
+    private static final Logger LOG = LoggerFactory.getLogger(FixedAddressImporter.class);
+    public static final int DEFAULT_CHUNK_SIZE = 4 << 20;
+
+    public static enum Format {
+
+        CSV, ISC;
+    }
+
+    /** The differences applied by a reload. */
+    public static class Changes {
+
+        private final int added;
+        private final int changed;
+        private final int removed;
+
+        public Changes(@Nonnegative int added, @Nonnegative int changed, @Nonnegative int removed) {
+            this.added = added;
+            this.changed = changed;
+            this.removed = removed;
+        }
+
+        @Nonnegative
+        public int getAdded() {
+            return added;
+        }
+
+        @Nonnegative
+        public int getChanged() {
+            return changed;
+        }
+
+        @Nonnegative
+        public int getRemoved() {
+            return removed;
+        }
+
+        @Override
+        public String toString() {
+            return "Changes(added=" + added + ", changed=" + changed + ", removed=" + removed + ")";
+        }
+    }
+
+    /** Packed MACs and interface addresses, in file order. */
+    private static class Entries {
+
+        private long[] keys = new long[1024];
+        private long[] values = new long[1024];
+        private int size;
+
+        private void add(long key, long value) {
+            if (size == keys.length) {
+                keys = Arrays.copyOf(keys, size * 2);
+                values = Arrays.copyOf(values, size * 2);
+            }
+            keys[size] = key;
+            values[size] = value;
+            size++;
+        }
+
+        private void addAll(@Nonnull Entries entries) {
+            if (size + entries.size > keys.length) {
+                keys = Arrays.copyOf(keys, size + entries.size);
+                values = Arrays.copyOf(values, size + entries.size);
+            }
+            System.arraycopy(entries.keys, 0, keys, size, entries.size);
+            System.arraycopy(entries.values, 0, values, size, entries.size);
+            size += entries.size;
+        }
+    }
+
+    /** A tokenizer for ISC configuration: words, quoted strings, and the punctuation <code>{};,</code>. */
+    private static class Tokenizer {
+
+        private final String text;
+        private int offset;
+
+        private Tokenizer(@Nonnull String text) {
+            this.text = text;
+        }
+
+        private static boolean isPunctuation(char c) {
+            return c == '{' || c == '}' || c == ';' || c == ',';
+        }
+
+        @CheckForNull
+        private String next() {
+            int length = text.length();
+            for (;;) {
+                while (offset < length && Character.isWhitespace(text.charAt(offset)))
+                    offset++;
+                if (offset == length)
+                    return null;
+                if (text.charAt(offset) != '#')
+                    break;
+                while (offset < length && text.charAt(offset) != '\n')
+                    offset++;
+            }
+            int start = offset;
+            char c = text.charAt(offset++);
+            if (isPunctuation(c))
+                return String.valueOf(c);
+            if (c == '"') {
+                while (offset < length && text.charAt(offset) != '"')
+                    offset++;
+                offset = Math.min(offset + 1, length);
+                return text.substring(start, offset);
+            }
+            while (offset < length) {
+                c = text.charAt(offset);
+                if (Character.isWhitespace(c) || isPunctuation(c) || c == '#' || c == '"')
+                    break;
+                offset++;
+            }
+            return text.substring(start, offset);
+        }
+    }
+
+    /**
+     * Returns the MAC packed into a long, or -1 if it is malformed.
+     *
+     * Accepts six octets of one or two hex digits separated by ':' or '-',
+     * three groups of four separated by '.', or twelve bare hex digits.
+     */
+    @CheckForSigned
+    /* pp */ static long parseMac(@Nonnull String text) {
+        int length = text.length();
+        if (length == 12) {
+            long key = 0;
+            for (int i = 0; i < length && key >= 0; i++) {
+                int digit = Character.digit(text.charAt(i), 16);
+                key = digit < 0 ? -1 : (key << 4) | digit;
+            }
+            if (key >= 0)
+                return key;
+        }
+        long key = 0;
+        int bits = 0;
+        int width = -1;
+        for (int start = 0;;) {
+            int end = start;
+            while (end < length && end - start < 4 && Character.digit(text.charAt(end), 16) >= 0)
+                end++;
+            int digits = end - start;
+            if (digits == 0 || digits == 3)
+                return -1;
+            int groupWidth = digits <= 2 ? 8 : 16;
+            if (width != -1 && width != groupWidth)
+                return -1;
+            width = groupWidth;
+            key = (key << width) | Integer.parseInt(text.substring(start, end), 16);
+            bits += width;
+            if (bits == 48)
+                return end == length ? key : -1;
+            if (end == length)
+                return -1;
+            char c = text.charAt(end);
+            if (c != ':' && c != '-' && c != '.')
+                return -1;
+            start = end + 1;
+        }
+    }
+
+    private final ExecutorService executor;
+    private final int chunkSize;
+    private final int defaultNetmask;
+
+    /**
+     * @param executor The executor on which to parse chunks.
+     * @param chunkSize The approximate size in bytes of each chunk.
+     * @param defaultNetmask The netmask of hosts which do not specify one.
+     */
+    public FixedAddressImporter(@Nonnull ExecutorService executor, @Nonnegative int chunkSize, @Nonnegative int defaultNetmask) {
+        Preconditions.checkArgument(chunkSize > 0, "Chunk size must be positive.");
+        Preconditions.checkArgument(defaultNetmask >= 0 && defaultNetmask <= 32, "Illegal netmask %s", defaultNetmask);
+        this.executor = Preconditions.checkNotNull(executor, "ExecutorService was null.");
+        this.chunkSize = chunkSize;
+        this.defaultNetmask = defaultNetmask;
+    }
+
+    public FixedAddressImporter(@Nonnull ExecutorService executor) {
+        this(executor, DEFAULT_CHUNK_SIZE, 32);
+    }
+
+    private static boolean isHostLine(@Nonnull ByteBuffer buf, @Nonnegative int offset) {
+        int limit = buf.limit();
+        while (offset < limit && (buf.get(offset) == ' ' || buf.get(offset) == '\t'))
+            offset++;
+        if (limit - offset < 5)
+            return false;
+        for (int i = 0; i < 4; i++)
+            if (buf.get(offset + i) != "host".charAt(i))
+                return false;
+        byte c = buf.get(offset + 4);
+        return c == ' ' || c == '\t';
+    }
+
+    /** Returns the first chunk boundary after the given offset. */
+    @Nonnegative
+    private static int nextBoundary(@Nonnull ByteBuffer buf, @Nonnegative int offset, @Nonnull Format format) {
+        int limit = buf.limit();
+        while (offset < limit) {
+            while (offset < limit && buf.get(offset++) != '\n')
+                continue;
+            if (format == Format.CSV || isHostLine(buf, offset))
+                return offset;
+        }
+        return limit;
+    }
+
+    private int parseAddress(@Nonnull String text, @Nonnull File file, @Nonnegative long offset) throws IOException {
+        try {
+            InetAddress address = InetAddresses.forString(text);
+            if (address instanceof Inet4Address)
+                return Ints.fromByteArray(address.getAddress());
+        } catch (IllegalArgumentException e) {
+            // Fall through.
+        }
+        throw new IOException("Not an IPv4 address: '" + text + "' at byte " + offset + " of " + file);
+    }
+
+    private void parseCsv(@Nonnull Entries out, @Nonnull String text, @Nonnull File file, @Nonnegative long base) throws IOException {
+        int length = text.length();
+        for (int start = 0; start < length;) {
+            int end = text.indexOf('\n', start);
+            if (end == -1)
+                end = length;
+            String line = text.substring(start, end).trim();
+            long offset = base + start;
+            start = end + 1;
+            if (line.isEmpty() || line.charAt(0) == '#')
+                continue;
+            int comma = line.indexOf(',');
+            if (comma == -1)
+                throw new IOException("Malformed host '" + line + "' at byte " + offset + " of " + file);
+            long key = parseMac(line.substring(0, comma).trim());
+            if (key < 0)
+                throw new IOException("Not an Ethernet address: '" + line + "' at byte " + offset + " of " + file);
+            int next = line.indexOf(',', comma + 1);
+            String address = line.substring(comma + 1, next == -1 ? line.length() : next).trim();
+            int netmask = defaultNetmask;
+            int slash = address.indexOf('/');
+            if (slash != -1) {
+                try {
+                    netmask = Integer.parseInt(address.substring(slash + 1));
+                } catch (NumberFormatException e) {
+                    throw new IOException("Malformed netmask '" + line + "' at byte " + offset + " of " + file, e);
+                }
+                if (netmask < 0 || netmask > 32)
+                    throw new IOException("Illegal netmask '" + line + "' at byte " + offset + " of " + file);
+                address = address.substring(0, slash);
+            }
+            out.add(key, FixedAddressTable.toValue(parseAddress(address, file, offset), netmask));
+        }
+    }
+
+    private void parseIsc(@Nonnull Entries out, @Nonnull String text, @Nonnull File file, @Nonnegative long base) throws IOException {
+        Tokenizer tokenizer = new Tokenizer(text);
+        List<String> statement = new ArrayList<String>();
+        for (String token; (token = tokenizer.next()) != null;) {
+            if (!"host".equals(token))
+                continue;
+            long offset = base + tokenizer.offset;
+            String name = tokenizer.next();
+            if (name == null || !"{".equals(tokenizer.next()))
+                throw new IOException("Malformed host " + name + " at byte " + offset + " of " + file);
+            long key = -1;
+            int address = 0;
+            boolean fixed = false;
+            int netmask = defaultNetmask;
+            HOST:
+            for (;;) {
+                statement.clear();
+                for (;;) {
+                    token = tokenizer.next();
+                    if (token == null)
+                        throw new IOException("Unterminated host " + name + " at byte " + offset + " of " + file);
+                    if (";".equals(token))
+                        break;
+                    if ("}".equals(token)) {
+                        if (statement.isEmpty())
+                            break HOST;
+                        throw new IOException("Missing ';' in host " + name + " at byte " + offset + " of " + file);
+                    }
+                    statement.add(token);
+                }
+                if (statement.size() < 2)
+                    continue;
+                String keyword = statement.get(0);
+                if ("hardware".equals(keyword)) {
+                    if (statement.size() == 3 && "ethernet".equals(statement.get(1)))
+                        key = parseMac(statement.get(2));
+                } else if ("fixed-address".equals(keyword)) {
+                    // Only the first of a list of addresses is used.
+                    String value = statement.get(1);
+                    if (InetAddresses.isInetAddress(value)) {
+                        InetAddress inetAddress = InetAddresses.forString(value);
+                        if (inetAddress instanceof Inet4Address) {
+                            address = Ints.fromByteArray(inetAddress.getAddress());
+                            fixed = true;
+                        }
+                    }
+                } else if ("option".equals(keyword) && statement.size() == 3 && "subnet-mask".equals(statement.get(1))) {
+                    int mask = parseAddress(statement.get(2), file, offset);
+                    netmask = Integer.bitCount(mask);
+                    if (mask != (int) (0xFFFFFFFFL << (32 - netmask)))
+                        throw new IOException("Non-contiguous subnet-mask in host " + name + " at byte " + offset + " of " + file);
+                }
+            }
+            if (key < 0 || !fixed) {
+                LOG.debug("Ignoring host {} without an Ethernet address and IPv4 fixed-address.", name);
+                continue;
+            }
+            out.add(key, FixedAddressTable.toValue(address, netmask));
+        }
+    }
+
+    /**
+     * Removes all but the last entry for each MAC, preserving the order of the rest.
+     *
+     * @return the number of entries removed.
+     */
+    @Nonnegative
+    private static int dedupe(@Nonnull Entries entries, @Nonnull File file) {
+        long[] sorted = Arrays.copyOf(entries.keys, entries.size);
+        Arrays.sort(sorted);
+        // Gather each duplicated key once into the front of the array, which the scan never overtakes.
+        int duplicates = 0;
+        for (int i = 1; i < sorted.length; i++)
+            if (sorted[i] == sorted[i - 1] && (duplicates == 0 || sorted[duplicates - 1] != sorted[i]))
+                sorted[duplicates++] = sorted[i];
+        if (duplicates == 0)
+            return 0;
+
+        // Walk backwards, so the first entry seen for each duplicated key is the last in the file.
+        boolean[] seen = new boolean[duplicates];
+        long[] keys = entries.keys;
+        long[] values = entries.values;
+        int out = entries.size;
+        for (int i = entries.size - 1; i >= 0; i--) {
+            int index = Arrays.binarySearch(sorted, 0, duplicates, keys[i]);
+            if (index >= 0) {
+                if (seen[index]) {
+                    if (LOG.isDebugEnabled())
+                        LOG.debug("Ignoring earlier entry for duplicate MAC {} in {}", String.format("%012x", keys[i]), file);
+                    continue;
+                }
+                seen[index] = true;
+            }
+            out--;
+            keys[out] = keys[i];
+            values[out] = values[i];
+        }
+        int size = entries.size - out;
+        System.arraycopy(keys, out, keys, 0, size);
+        System.arraycopy(values, out, values, 0, size);
+        entries.size = size;
+        return out;
+    }
+
+    @Nonnull
+    private Entries parse(@Nonnull final File file, @Nonnull final Format format) throws IOException {
+        final ByteBuffer buf;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            FileChannel channel = raf.getChannel();
+            long length = channel.size();
+            if (length > Integer.MAX_VALUE)
+                throw new IOException("Host file too large: " + file + ": " + length + " bytes.");
+            buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+        }
+
+        List<Future<Entries>> futures = new ArrayList<Future<Entries>>();
+        try {
+            for (int start = 0; start < buf.limit();) {
+                final int chunkStart = start;
+                final int chunkEnd = buf.limit() - start <= chunkSize ? buf.limit() : nextBoundary(buf, start + chunkSize - 1, format);
+                start = chunkEnd;
+                futures.add(executor.submit(new Callable<Entries>() {
+                    @Override
+                    public Entries call() throws Exception {
+                        ByteBuffer chunk = buf.duplicate();
+                        chunk.position(chunkStart);
+                        byte[] data = new byte[chunkEnd - chunkStart];
+                        chunk.get(data);
+                        String text = new String(data, StandardCharsets.ISO_8859_1);
+                        Entries out = new Entries();
+                        switch (format) {
+                            case CSV:
+                                parseCsv(out, text, file, chunkStart);
+                                break;
+                            case ISC:
+                                parseIsc(out, text, file, chunkStart);
+                                break;
+                            default:
+                                throw new IllegalArgumentException("Unknown format " + format);
+                        }
+                        return out;
+                    }
+                }));
+            }
+
+            Entries out = new Entries();
+            for (Future<Entries> future : futures)
+                out.addAll(future.get());
+            LOG.info("Parsed {} fixed addresses from {} in {} chunks.", out.size, file, futures.size());
+            int removed = dedupe(out, file);
+            if (removed > 0)
+                LOG.warn("Ignored {} entries in {} which were superseded by a later entry for the same MAC.", removed, file);
+            return out;
+        } catch (InterruptedException e) {
+            throw (InterruptedIOException) new InterruptedIOException("Interrupted while parsing " + file).initCause(e);
+        } catch (ExecutionException e) {
+            Throwables.propagateIfInstanceOf(e.getCause(), IOException.class);
+            throw Throwables.propagate(e.getCause());
+        } finally {
+            for (Future<Entries> future : futures)
+                future.cancel(true);
+        }
+    }
+
+    /**
+     * Parses the given file into a new table.
+     */
+    @Nonnull
+    public FixedAddressTable load(@Nonnull File file, @Nonnull Format format, boolean offHeap) throws IOException {
+        Entries entries = parse(file, format);
+        FixedAddressTable table = new FixedAddressTable(entries.size, offHeap);
+        for (int i = 0; i < entries.size; i++)
+            table.putValue(entries.keys[i], entries.values[i]);
+        return table;
+    }
+
+    /**
+     * Updates the given table to match the given file.
+     *
+     * Only entries which were added, changed or removed are written,
+     * each under the lock of its own shard, so lookups proceed throughout.
+     */
+    @Nonnull
+    public Changes reload(@Nonnull File file, @Nonnull Format format, @Nonnull FixedAddressTable table) throws IOException {
+        Entries entries = parse(file, format);
+        int added = 0;
+        int changed = 0;
+        for (int i = 0; i < entries.size; i++) {
+            long key = entries.keys[i];
+            long value = entries.values[i];
+            long prev = table.getValue(key);
+            if (prev == value)
+                continue;
+            table.putValue(key, value);
+            if (prev == -1)
+                added++;
+            else
+                changed++;
+        }
+
+        long[] keys = Arrays.copyOf(entries.keys, entries.size);
+        entries = null;   // Release the values before copying the table's keys.
+        Arrays.sort(keys);
+        int removed = 0;
+        for (long key : table.getKeys())
+            if (Arrays.binarySearch(keys, key) < 0)
+                if (table.remove(key))
+                    removed++;
+
+        Changes changes = new Changes(added, changed, removed);
+        LOG.info("Reloaded {} from {}: {}", table, file, changes);
+        return changes;
+    }
+}
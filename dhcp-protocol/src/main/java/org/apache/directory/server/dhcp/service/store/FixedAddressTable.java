@@ -0,0 +1,549 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.apache.directory.server.dhcp.service.store;
+
+import com.google.common.base.Preconditions;
+import com.google.common.net.InetAddresses;
+import com.google.common.primitives.Ints;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import javax.annotation.CheckForNull;
+import javax.annotation.CheckForSigned;
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+import org.anarres.dhcp.common.address.InterfaceAddress;
+import org.apache.directory.server.dhcp.messages.HardwareAddress;
+import org.apache.directory.server.dhcp.messages.HardwareAddressType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A compact table of fixed IPv4 interface addresses, keyed by Ethernet MAC.
+ *
+ * Each MAC is packed into the low 48 bits of a long, and each interface
+ * address into another long, so an entry costs two longs in an
+ * open-addressed, linearly probed hash table, and a lookup allocates
+ * nothing until the result is returned. The table is split into shards,
+ * each with its own lock and its own storage, so writers contend only
+ * within a shard, and a shard grows without copying the others.
+ *
+ * The storage may be allocated off-heap, in which case a table of
+ * millions of reservations adds almost nothing to the garbage collector's
+ * work.
+ *
+ * Tables are saved and loaded in bulk as a file of fixed-size records.
+ *
+ * @author shevek
+ */
+@ThreadSafe
+public class FixedAddressTable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(FixedAddressTable.class);
+    public static final int DEFAULT_SHARDS = 16;
+
+    private static final int MAGIC = 0x44484658;    // DHFX
+    private static final int VERSION = 1;
+    /* pp */ static final int HEADER_SIZE = 16;
+    /* pp */ static final int RECORD_SIZE = 12;
+    private static final int MAC_SIZE = 6;
+    private static final int MIN_CAPACITY = 16;
+    private static final int MAX_CAPACITY = 1 << 26;
+
+    /** Set in every stored key, so an all-zero slot is empty. */
+    private static final long PRESENT = 1L << 48;
+    private static final long MAC_MASK = PRESENT - 1;
+
+    /**
+     * Returns the given hardware address packed into a long,
+     * or -1 if it is not a 6-byte Ethernet address.
+     */
+    @CheckForSigned
+    public static long toKey(@Nonnull HardwareAddress hardwareAddress) {
+        if (hardwareAddress.getType() != HardwareAddressType.Ethernet.getCode())
+            return -1;
+        if (hardwareAddress.getLength() != MAC_SIZE)
+            return -1;
+        byte[] data = hardwareAddress.getAddress();
+        if (data.length < MAC_SIZE)
+            return -1;
+        long key = 0;
+        for (int i = 0; i < MAC_SIZE; i++)
+            key = (key << Byte.SIZE) | (data[i] & 0xFF);
+        return key;
+    }
+
+    @Nonnull
+    public static HardwareAddress toHardwareAddress(@Nonnegative long key) {
+        byte[] data = new byte[MAC_SIZE];
+        for (int i = MAC_SIZE - 1; i >= 0; i--) {
+            data[i] = (byte) key;
+            key >>>= Byte.SIZE;
+        }
+        return new HardwareAddress(HardwareAddressType.Ethernet, data);
+    }
+
+    private static long toValue(@Nonnull InterfaceAddress interfaceAddress) {
+        InetAddress address = interfaceAddress.getAddress();
+        Preconditions.checkArgument(address instanceof Inet4Address, "Not an IPv4 address: %s", address);
+        return toValue(Ints.fromByteArray(address.getAddress()), interfaceAddress.getNetmask());
+    }
+
+    /* pp */ static long toValue(int address, @Nonnegative int netmask) {
+        Preconditions.checkArgument(netmask >= 0 && netmask <= 32, "Illegal netmask %s", netmask);
+        return (address & 0xFFFFFFFFL) | ((long) netmask << Integer.SIZE);
+    }
+
+    @Nonnull
+    private static InterfaceAddress toInterfaceAddress(long value) {
+        return new InterfaceAddress(InetAddresses.fromInteger((int) value), (int) (value >>> Integer.SIZE));
+    }
+
+    /** The finalizer of MurmurHash3; MACs from one vendor differ only in their low bits. */
+    private static long hash(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return key;
+    }
+
+    private static int capacityFor(@Nonnegative int size) {
+        // Keep the load factor below 3/4.
+        long capacity = Math.max(MIN_CAPACITY, Long.highestOneBit(Math.max(1, size) * 4L / 3) * 2);
+        if (capacity > MAX_CAPACITY)
+            throw new IllegalArgumentException("Shard too large: " + size + " entries.");
+        return (int) capacity;
+    }
+
+    private final class Shard {
+
+        private final ReadWriteLock lock = new ReentrantReadWriteLock();
+        /** Slot i holds its key at 2i and its value at 2i+1. */
+        @GuardedBy("lock")
+        private LongBuffer slots;
+        @GuardedBy("lock")
+        private int mask;
+        @GuardedBy("lock")
+        private int size;
+
+        private Shard(@Nonnegative int capacity) {
+            allocate(capacity);
+        }
+
+        @GuardedBy("lock")
+        private void allocate(@Nonnegative int capacity) {
+            slots = newSlots(capacity);
+            mask = capacity - 1;
+            size = 0;
+        }
+
+        @GuardedBy("lock")
+        private int indexOf(long stored, long hash) {
+            for (int slot = (int) hash & mask;; slot = (slot + 1) & mask) {
+                long k = slots.get(slot * 2);
+                if (k == stored || k == 0)
+                    return slot;
+            }
+        }
+
+        @CheckForSigned
+        private long get(long stored, long hash) {
+            Lock l = lock.readLock();
+            l.lock();
+            try {
+                int slot = indexOf(stored, hash);
+                if (slots.get(slot * 2) == 0)
+                    return -1;
+                return slots.get(slot * 2 + 1);
+            } finally {
+                l.unlock();
+            }
+        }
+
+        @GuardedBy("lock")
+        private boolean putLocked(long stored, long hash, long value) {
+            int slot = indexOf(stored, hash);
+            boolean added = slots.get(slot * 2) == 0;
+            slots.put(slot * 2, stored);
+            slots.put(slot * 2 + 1, value);
+            if (added)
+                size++;
+            return added;
+        }
+
+        @GuardedBy("lock")
+        private void ensureCapacity(@Nonnegative int expectedSize) {
+            int capacity = mask + 1;
+            if (expectedSize * 4L < capacity * 3L)
+                return;
+            LongBuffer prev = slots;
+            allocate(capacityFor(expectedSize));
+            for (int slot = 0; slot < capacity; slot++) {
+                long k = prev.get(slot * 2);
+                if (k != 0)
+                    putLocked(k, hash(k & MAC_MASK), prev.get(slot * 2 + 1));
+            }
+        }
+
+        private boolean put(long stored, long hash, long value) {
+            Lock l = lock.writeLock();
+            l.lock();
+            try {
+                ensureCapacity(size + 1);
+                return putLocked(stored, hash, value);
+            } finally {
+                l.unlock();
+            }
+        }
+
+        private boolean remove(long stored, long hash) {
+            Lock l = lock.writeLock();
+            l.lock();
+            try {
+                int slot = indexOf(stored, hash);
+                if (slots.get(slot * 2) == 0)
+                    return false;
+                // Shift back any later entry in the run which the hole would orphan.
+                for (int next = (slot + 1) & mask;; next = (next + 1) & mask) {
+                    long k = slots.get(next * 2);
+                    if (k == 0)
+                        break;
+                    int home = (int) hash(k & MAC_MASK) & mask;
+                    // Move the entry unless its home lies cyclically within (slot, next].
+                    if (((next - home) & mask) >= ((next - slot) & mask)) {
+                        slots.put(slot * 2, k);
+                        slots.put(slot * 2 + 1, slots.get(next * 2 + 1));
+                        slot = next;
+                    }
+                }
+                slots.put(slot * 2, 0);
+                slots.put(slot * 2 + 1, 0);
+                size--;
+                return true;
+            } finally {
+                l.unlock();
+            }
+        }
+
+        private void clear() {
+            Lock l = lock.writeLock();
+            l.lock();
+            try {
+                allocate(MIN_CAPACITY);
+            } finally {
+                l.unlock();
+            }
+        }
+    }
+
+    private final boolean offHeap;
+    private final Shard[] shards;
+    private final int shardShift;
+
+    /**
+     * @param expectedSize The number of entries to allocate space for.
+     * @param shardCount The number of shards, rounded up to a power of two.
+     * @param offHeap Whether to allocate storage outside the Java heap.
+     */
+    public FixedAddressTable(@Nonnegative int expectedSize, @Nonnegative int shardCount, boolean offHeap) {
+        Preconditions.checkArgument(expectedSize >= 0, "Expected size was negative.");
+        Preconditions.checkArgument(shardCount > 0 && shardCount <= 1 << 16, "Illegal shard count %s", shardCount);
+        this.offHeap = offHeap;
+        int count = Integer.highestOneBit(shardCount);
+        if (count < shardCount)
+            count <<= 1;
+        this.shards = new Shard[count];
+        this.shardShift = Long.SIZE - Integer.numberOfTrailingZeros(count);
+        int capacity = capacityFor(expectedSize / count);
+        for (int i = 0; i < count; i++)
+            shards[i] = new Shard(capacity);
+    }
+
+    public FixedAddressTable(@Nonnegative int expectedSize, boolean offHeap) {
+        this(expectedSize, DEFAULT_SHARDS, offHeap);
+    }
+
+    public FixedAddressTable() {
+        this(0, false);
+    }
+
+    @Nonnull
+    private LongBuffer newSlots(@Nonnegative int capacity) {
+        if (offHeap)
+            return ByteBuffer.allocateDirect(capacity * 2 * (Long.SIZE / Byte.SIZE)).asLongBuffer();
+        return LongBuffer.allocate(capacity * 2);
+    }
+
+    @Nonnull
+    private Shard shard(long hash) {
+        // The shard takes the high bits of the hash; the slot, the low bits.
+        if (shards.length == 1)
+            return shards[0];
+        return shards[(int) (hash >>> shardShift)];
+    }
+
+    public boolean isOffHeap() {
+        return offHeap;
+    }
+
+    /**
+     * Maps the given MAC to the given IPv4 address and netmask.
+     *
+     * @return true if the MAC was not previously mapped.
+     */
+    public boolean put(@Nonnegative long key, int address, @Nonnegative int netmask) {
+        Preconditions.checkArgument((key & ~MAC_MASK) == 0, "Illegal key %s", key);
+        long value = toValue(address, netmask);
+        long hash = hash(key);
+        return shard(hash).put(key | PRESENT, hash, value);
+    }
+
+    /**
+     * Maps the given Ethernet address to the given IPv4 interface address.
+     *
+     * @throws IllegalArgumentException if the hardware address is not Ethernet, or the interface address is not IPv4.
+     * @return true if the hardware address was not previously mapped.
+     */
+    public boolean put(@Nonnull HardwareAddress hardwareAddress, @Nonnull InterfaceAddress interfaceAddress) {
+        long key = toKey(hardwareAddress);
+        Preconditions.checkArgument(key >= 0, "Not an Ethernet address: %s", hardwareAddress);
+        long value = toValue(interfaceAddress);
+        long hash = hash(key);
+        return shard(hash).put(key | PRESENT, hash, value);
+    }
+
+    /* pp */ boolean putValue(@Nonnegative long key, long value) {
+        long hash = hash(key);
+        return shard(hash).put(key | PRESENT, hash, value);
+    }
+
+    /** Returns the packed interface address for the given MAC, or -1. */
+    @CheckForSigned
+    /* pp */ long getValue(@Nonnegative long key) {
+        if ((key & ~MAC_MASK) != 0)
+            return -1;
+        long hash = hash(key);
+        return shard(hash).get(key | PRESENT, hash);
+    }
+
+    @CheckForNull
+    public InterfaceAddress get(@Nonnegative long key) {
+        long value = getValue(key);
+        if (value == -1)
+            return null;
+        return toInterfaceAddress(value);
+    }
+
+    @CheckForNull
+    public InterfaceAddress get(@Nonnull HardwareAddress hardwareAddress) {
+        long key = toKey(hardwareAddress);
+        if (key < 0)
+            return null;
+        return get(key);
+    }
+
+    public boolean remove(@Nonnegative long key) {
+        if ((key & ~MAC_MASK) != 0)
+            return false;
+        long hash = hash(key);
+        return shard(hash).remove(key | PRESENT, hash);
+    }
+
+    public boolean remove(@Nonnull HardwareAddress hardwareAddress) {
+        long key = toKey(hardwareAddress);
+        if (key < 0)
+            return false;
+        return remove(key);
+    }
+
+    public void clear() {
+        for (Shard shard : shards)
+            shard.clear();
+    }
+
+    @Nonnegative
+    public int size() {
+        int size = 0;
+        for (Shard shard : shards) {
+            Lock l = shard.lock.readLock();
+            l.lock();
+            try {
+                size += shard.size;
+            } finally {
+                l.unlock();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Returns the MACs in this table, in no particular order.
+     *
+     * Each shard is copied under its read lock.
+     */
+    @Nonnull
+    public long[] getKeys() {
+        long[] out = new long[size()];
+        int count = 0;
+        for (Shard shard : shards) {
+            Lock l = shard.lock.readLock();
+            l.lock();
+            try {
+                if (out.length - count < shard.size)
+                    out = Arrays.copyOf(out, count + shard.size);
+                for (int slot = 0; slot <= shard.mask; slot++) {
+                    long k = shard.slots.get(slot * 2);
+                    if (k != 0)
+                        out[count++] = k & MAC_MASK;
+                }
+            } finally {
+                l.unlock();
+            }
+        }
+        return count == out.length ? out : Arrays.copyOf(out, count);
+    }
+
+    /** Returns the number of bytes of storage allocated, on or off the heap. */
+    @Nonnegative
+    public long getStorageSize() {
+        long bytes = 0;
+        for (Shard shard : shards) {
+            Lock l = shard.lock.readLock();
+            l.lock();
+            try {
+                bytes += (shard.mask + 1L) * 2 * (Long.SIZE / Byte.SIZE);
+            } finally {
+                l.unlock();
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Adds all the records in the given file to this table,
+     * replacing any existing mappings for the same MACs.
+     *
+     * The file is mapped and read sequentially, and each shard is grown
+     * once, to its expected share of the records, before loading.
+     *
+     * @return the number of records read.
+     */
+    @Nonnegative
+    public int load(@Nonnull File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            FileChannel channel = raf.getChannel();
+            long length = channel.size();
+            if (length < HEADER_SIZE)
+                throw new IOException("Truncated address table " + file + ": " + length + " bytes.");
+            ByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+            if (buf.getInt() != MAGIC)
+                throw new IOException("Not an address table: " + file);
+            int version = buf.getInt();
+            if (version != VERSION)
+                throw new IOException("Unsupported address table version " + version + " in " + file);
+            int count = buf.getInt();
+            buf.getInt();   // Reserved.
+            if (count < 0 || length < HEADER_SIZE + (long) count * RECORD_SIZE)
+                throw new IOException("Truncated address table " + file + ": " + count + " records in " + length + " bytes.");
+
+            for (Shard shard : shards) {
+                Lock l = shard.lock.writeLock();
+                l.lock();
+                try {
+                    shard.ensureCapacity(shard.size + count / shards.length);
+                } finally {
+                    l.unlock();
+                }
+            }
+
+            for (int i = 0; i < count; i++) {
+                long key = ((buf.getShort() & 0xFFFFL) << Integer.SIZE) | (buf.getInt() & 0xFFFFFFFFL);
+                int address = buf.getInt();
+                int netmask = buf.get() & 0xFF;
+                buf.get();  // Reserved.
+                if (netmask > 32)
+                    throw new IOException("Illegal netmask " + netmask + " in record " + i + " of " + file);
+                put(key, address, netmask);
+            }
+            LOG.info("Loaded {} fixed addresses from {}", count, file);
+            return count;
+        }
+    }
+
+    /**
+     * Writes the contents of this table to the given file.
+     *
+     * Each shard is written under its read lock, so the file is a
+     * consistent copy of each shard, but not of the table as a whole.
+     *
+     * @return the number of records written.
+     */
+    @Nonnegative
+    public int save(@Nonnull File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(0);
+            FileChannel channel = raf.getChannel();
+            ByteBuffer buf = ByteBuffer.allocate(RECORD_SIZE * 4096);
+            channel.position(HEADER_SIZE);
+            int count = 0;
+            for (Shard shard : shards) {
+                Lock l = shard.lock.readLock();
+                l.lock();
+                try {
+                    for (int slot = 0; slot <= shard.mask; slot++) {
+                        long k = shard.slots.get(slot * 2);
+                        if (k == 0)
+                            continue;
+                        long value = shard.slots.get(slot * 2 + 1);
+                        if (buf.remaining() < RECORD_SIZE)
+                            write(channel, buf);
+                        buf.putShort((short) (k >>> Integer.SIZE));
+                        buf.putInt((int) k);
+                        buf.putInt((int) value);
+                        buf.put((byte) (value >>> Integer.SIZE));
+                        buf.put((byte) 0);
+                        count++;
+                    }
+                } finally {
+                    l.unlock();
+                }
+            }
+            write(channel, buf);
+
+            buf.putInt(MAGIC).putInt(VERSION).putInt(count).putInt(0);
+            buf.flip();
+            while (buf.hasRemaining())
+                channel.write(buf, HEADER_SIZE - buf.remaining());
+            channel.force(true);
+            return count;
+        }
+    }
+
+    private static void write(@Nonnull FileChannel channel, @Nonnull ByteBuffer buf) throws IOException {
+        buf.flip();
+        while (buf.hasRemaining())
+            channel.write(buf);
+        buf.clear();
+    }
+
+    @Override
+    public String toString() {
+        return "FixedAddressTable(" + size() + " entries in " + shards.length + " shards" + (offHeap ? ", off-heap" : "") + ")";
+    }
+}
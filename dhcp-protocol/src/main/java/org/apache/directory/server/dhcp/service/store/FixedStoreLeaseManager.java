@@ -54,7 +54,17 @@ public class FixedStoreLeaseManager extends AbstractLeaseManager {
 
     @Nonnull
     public Lease addLease(@Nonnull HardwareAddress hardwareAddress, @Nonnull InterfaceAddress interfaceAddress) {
-        Lease lease = addLease(hardwareAddress, interfaceAddress.getAddress());
+        return addLease(newLease(hardwareAddress, interfaceAddress));
+    }
+
+    @Nonnull
+    protected static Lease newLease(@Nonnull HardwareAddress hardwareAddress, @Nonnull InterfaceAddress interfaceAddress) {
+        return setOptions(new Lease(hardwareAddress, interfaceAddress.getAddress()), interfaceAddress);
+    }
+
+    /** Sets the options of the given lease for the given interface address. */
+    @Nonnull
+    protected static <T extends Lease> T setOptions(@Nonnull T lease, @Nonnull InterfaceAddress interfaceAddress) {
         OptionsField options = lease.getOptions();
         options.setAddressOption(SubnetMask.class, interfaceAddress.getNetmaskAddress());
         options.setAddressOption(BroadcastAddress.class, interfaceAddress.getBroadcastAddress());
@@ -71,7 +81,7 @@ public class FixedStoreLeaseManager extends AbstractLeaseManager {
             return null;
         lease.setState(Lease.LeaseState.OFFERED);
         lease.setExpires(System.currentTimeMillis() / 1000 + 3600);
-        return newReply(request, MessageType.DHCPOFFER, lease);
+        return newReply(request, MessageType.DHCPOFFER, lease, getProfile(lease));
     }
 
     @Override
@@ -84,7 +94,7 @@ public class FixedStoreLeaseManager extends AbstractLeaseManager {
             return null;
         lease.setState(Lease.LeaseState.ACTIVE);
         lease.setExpires(System.currentTimeMillis() / 1000 + 3600);
-        return newReply(request, MessageType.DHCPACK, lease);
+        return newReply(request, MessageType.DHCPACK, lease, getProfile(lease));
     }
 
 }
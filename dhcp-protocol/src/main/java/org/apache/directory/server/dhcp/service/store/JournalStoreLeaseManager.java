@@ -0,0 +1,296 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.apache.directory.server.dhcp.service.store;
+
+import com.google.common.base.Preconditions;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.GuardedBy;
+import org.anarres.dhcp.common.address.NetworkAddress;
+import org.anarres.dhcp.common.address.Subnet;
+import org.anarres.dhcp.common.address.SubnetIndex;
+import org.apache.directory.server.dhcp.DhcpException;
+import org.apache.directory.server.dhcp.io.DhcpRequestContext;
+import org.apache.directory.server.dhcp.messages.DhcpMessage;
+import org.apache.directory.server.dhcp.messages.HardwareAddress;
+import org.apache.directory.server.dhcp.messages.MessageType;
+import org.apache.directory.server.dhcp.service.manager.AbstractDynamicLeaseManager;
+import org.apache.directory.server.dhcp.service.manager.BatchingLeaseCommitPipeline;
+import org.apache.directory.server.dhcp.service.manager.ImmediateLeaseCommitPipeline;
+import org.apache.directory.server.dhcp.service.manager.LeaseCommitPipeline;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A dynamic lease manager which persists its leases in a {@link LeaseJournal}.
+ *
+ * Leases are held in memory, and every change is appended to the journal.
+ * An ACK is not sent until the journal has been synced, so a lease which a
+ * client has been granted survives a restart; concurrent requests share
+ * the sync. Offers are held in memory, in the OFFERED state, for the
+ * offer's lease time, but are not journalled, and do not survive a restart.
+ *
+ * By default, each ACK syncs immediately. For higher throughput, pass a
+ * {@link BatchingLeaseCommitPipeline} over {@link #getJournal()} to
+ * {@link #setCommitPipeline}; it delays each ACK by at most a few
+ * milliseconds.
+ *
+ * Expired leases are discarded when a pool is exhausted, and when the
+ * journal is compacted. The journal is compacted when it fills. It may
+ * also be compacted periodically by calling {@link #compact()}.
+ *
+ * @author shevek
+ */
+public class JournalStoreLeaseManager extends AbstractDynamicLeaseManager implements Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(JournalStoreLeaseManager.class);
+
+    /** A source of the wall-clock time, against which leases expire. */
+    public interface Clock {
+
+        /** Returns the current time in seconds since the epoch. */
+        long currentTimeSeconds();
+    }
+
+    public static final Clock SYSTEM_CLOCK = new Clock() {
+        @Override
+        public long currentTimeSeconds() {
+            return System.currentTimeMillis() / 1000;
+        }
+
+        @Override
+        public String toString() {
+            return "SystemClock";
+        }
+    };
+
+    private final SubnetIndex<Subnet> subnets = new SubnetIndex<Subnet>();
+    private final LeaseJournal journal;
+    private final Clock clock;
+    @GuardedBy("this")
+    private final Map<InetAddress, Lease> leasesByAddress = new HashMap<InetAddress, Lease>();
+    @GuardedBy("this")
+    private final Map<HardwareAddress, Lease> leasesByHardwareAddress = new HashMap<HardwareAddress, Lease>();
+
+    /**
+     * Constructs a new JournalStoreLeaseManager, recovering any leases
+     * recorded in the given directory.
+     */
+    public JournalStoreLeaseManager(@Nonnull File directory, @Nonnegative int capacity, @Nonnull Iterable<? extends Subnet> subnets, @Nonnull Clock clock) throws IOException {
+        this.clock = Preconditions.checkNotNull(clock, "Clock was null.");
+        for (Subnet subnet : subnets)
+            this.subnets.add(subnet.getNetworkAddress(), subnet);
+        this.journal = new LeaseJournal(directory, capacity);
+        setCommitPipeline(new ImmediateLeaseCommitPipeline(journal));
+        try {
+            recover();
+        } catch (IOException e) {
+            journal.close();
+            throw e;
+        } catch (RuntimeException e) {
+            journal.close();
+            throw e;
+        }
+    }
+
+    public JournalStoreLeaseManager(@Nonnull File directory, @Nonnegative int capacity, @Nonnull Iterable<? extends Subnet> subnets) throws IOException {
+        this(directory, capacity, subnets, SYSTEM_CLOCK);
+    }
+
+    public JournalStoreLeaseManager(@Nonnull File directory, @Nonnull Iterable<? extends Subnet> subnets) throws IOException {
+        this(directory, LeaseJournal.DEFAULT_CAPACITY, subnets);
+    }
+
+    @Nonnull
+    public LeaseJournal getJournal() {
+        return journal;
+    }
+
+    /** Returns the current time in seconds. */
+    private long now() {
+        return clock.currentTimeSeconds();
+    }
+
+    private synchronized void recover() throws IOException {
+        long now = now();
+        for (Lease lease : journal.recover()) {
+            if (lease.getState() == Lease.LeaseState.ACTIVE)
+                put(lease);
+            else
+                remove(lease.getHardwareAddress(), lease.getClientAddress());
+        }
+        expire(now);
+        LOG.info("Recovered {} leases from {}", leasesByAddress.size(), journal);
+    }
+
+    /** Records the given lease, superseding any other lease for its address or hardware address. */
+    @GuardedBy("this")
+    private void put(@Nonnull Lease lease) {
+        Lease prev = leasesByAddress.put(lease.getClientAddress(), lease);
+        if (prev != null && leasesByHardwareAddress.get(prev.getHardwareAddress()) == prev)
+            leasesByHardwareAddress.remove(prev.getHardwareAddress());
+        prev = leasesByHardwareAddress.put(lease.getHardwareAddress(), lease);
+        if (prev != null && leasesByAddress.get(prev.getClientAddress()) == prev) {
+            leasesByAddress.remove(prev.getClientAddress());
+            releaseAddress(prev.getClientAddress());
+        }
+    }
+
+    @GuardedBy("this")
+    @CheckForNull
+    private Lease remove(@Nonnull HardwareAddress hardwareAddress, @Nonnull InetAddress clientAddress) {
+        Lease lease = leasesByAddress.get(clientAddress);
+        if (lease == null || !lease.getHardwareAddress().equals(hardwareAddress))
+            return null;
+        leasesByAddress.remove(clientAddress);
+        leasesByHardwareAddress.remove(hardwareAddress);
+        return lease;
+    }
+
+    /** Discards leases which expired before the given time. */
+    @GuardedBy("this")
+    private void expire(long now) {
+        for (Iterator<Lease> it = leasesByAddress.values().iterator(); it.hasNext(); /**/) {
+            Lease lease = it.next();
+            if (lease.getExpires() < now) {
+                it.remove();
+                if (leasesByHardwareAddress.get(lease.getHardwareAddress()) == lease)
+                    leasesByHardwareAddress.remove(lease.getHardwareAddress());
+                releaseAddress(lease.getClientAddress());
+            }
+        }
+    }
+
+    @Override
+    protected synchronized void expireLeases() {
+        expire(now());
+    }
+
+    @GuardedBy("this")
+    private void append(@Nonnull Lease lease) throws IOException {
+        if (journal.getRemaining() == 0)
+            compact();
+        journal.append(lease);
+    }
+
+    /**
+     * Discards expired leases, and compacts the live leases into a snapshot.
+     */
+    public synchronized void compact() throws IOException {
+        expire(now());
+        List<Lease> leases = new ArrayList<Lease>(leasesByAddress.size());
+        for (Lease lease : leasesByAddress.values())
+            if (lease.getState() == Lease.LeaseState.ACTIVE)
+                leases.add(lease);
+        journal.compact(leases);
+    }
+
+    @Override
+    protected InetAddress getFixedAddressFor(HardwareAddress hardwareAddress) throws DhcpException {
+        return null;
+    }
+
+    @Override
+    protected Subnet getSubnetFor(NetworkAddress networkAddress) throws DhcpException {
+        return subnets.get(networkAddress);
+    }
+
+    @Override
+    protected synchronized boolean leaseIp(InetAddress address, HardwareAddress hardwareAddress, long ttl) throws Exception {
+        long now = now();
+        Lease prev = leasesByAddress.get(address);
+        if (prev != null && !prev.getHardwareAddress().equals(hardwareAddress) && prev.getExpires() >= now)
+            return false;
+        Lease lease = new Lease(hardwareAddress, address);
+        lease.setState(Lease.LeaseState.ACTIVE);
+        lease.setAcquired(now);
+        lease.setExpires(now + ttl);
+        append(lease);
+        put(lease);
+        return true;
+    }
+
+    @Override
+    protected synchronized boolean offerIp(InetAddress address, HardwareAddress hardwareAddress, long ttl) throws Exception {
+        long now = now();
+        Lease prev = leasesByAddress.get(address);
+        if (prev != null && prev.getExpires() >= now) {
+            if (!prev.getHardwareAddress().equals(hardwareAddress))
+                return false;
+            // Don't shorten the client's existing lease.
+            if (prev.getState() == Lease.LeaseState.ACTIVE)
+                return true;
+        }
+        Lease lease = new Lease(hardwareAddress, address);
+        lease.setState(Lease.LeaseState.OFFERED);
+        lease.setAcquired(now);
+        lease.setExpires(now + ttl);
+        put(lease);
+        return true;
+    }
+
+    @Override
+    protected InetAddress leaseMac(DhcpRequestContext context, DhcpMessage request, InetAddress clientRequestedAddress, long ttl) throws Exception {
+        HardwareAddress hardwareAddress = request.getHardwareAddress();
+        InetAddress currentAddress;
+        synchronized (this) {
+            Lease lease = leasesByHardwareAddress.get(hardwareAddress);
+            currentAddress = lease == null ? null : lease.getClientAddress();
+        }
+        boolean offer = request.getMessageType() == MessageType.DHCPDISCOVER;
+        return leaseMac(context, hardwareAddress, currentAddress, clientRequestedAddress, ttl, offer);
+    }
+
+    @Override
+    public boolean leaseRelease(DhcpRequestContext context, DhcpMessage request, InetAddress clientAddress) throws DhcpException {
+        HardwareAddress hardwareAddress = request.getHardwareAddress();
+        synchronized (this) {
+            Lease lease = remove(hardwareAddress, clientAddress);
+            if (lease == null)
+                return false;
+            releaseAddress(clientAddress);
+            Lease released = new Lease(hardwareAddress, clientAddress);
+            released.setState(Lease.LeaseState.RELEASED);
+            try {
+                append(released);
+            } catch (IOException e) {
+                throw new DhcpException("Failed to release lease for MAC " + hardwareAddress + ": " + e, e);
+            }
+            return true;
+        }
+    }
+
+    /** Returns the live lease for the given address, if any. */
+    @CheckForNull
+    public synchronized Lease getLease(@Nonnull InetAddress address) {
+        Lease lease = leasesByAddress.get(address);
+        if (lease == null || lease.getExpires() < now())
+            return null;
+        return lease;
+    }
+
+    /** Closes the commit pipeline, if it is {@link Closeable}, and then the journal. */
+    @Override
+    public void close() throws IOException {
+        try {
+            LeaseCommitPipeline pipeline = getCommitPipeline();
+            if (pipeline instanceof Closeable)
+                ((Closeable) pipeline).close();
+        } finally {
+            journal.close();
+        }
+    }
+}
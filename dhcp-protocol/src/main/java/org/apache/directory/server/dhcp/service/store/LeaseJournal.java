@@ -0,0 +1,459 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.apache.directory.server.dhcp.service.store;
+
+import com.google.common.base.Preconditions;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+import org.anarres.dhcp.common.address.AddressUtils;
+import org.apache.directory.server.dhcp.messages.HardwareAddress;
+import org.apache.directory.server.dhcp.service.manager.LeaseCommitLog;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An append-only, memory-mapped journal of leases.
+ *
+ * The journal is a file of fixed-size records, each describing the state
+ * of one lease, which is mapped into memory in its entirety, so an append
+ * is a copy into the page cache. Durability is requested separately with
+ * {@link #sync(long)}: concurrent callers share a single msync, so the
+ * cost of a sync is amortized over every record appended since the last.
+ *
+ * When the journal fills, the owner passes the live leases to
+ * {@link #compact(Iterable)}, which writes them to a snapshot and empties
+ * the journal. Recovery reads the snapshot and then replays the journal,
+ * both sequentially. The journal and snapshot carry a generation number,
+ * so a crash between replacing the snapshot and emptying the journal
+ * does not replay stale records. The directory is synced after the
+ * snapshot is replaced, so the journal is never emptied while the new
+ * snapshot could still be lost.
+ *
+ * A torn or unsynced tail is detected by a checksum on each record.
+ *
+ * @author shevek
+ */
+@ThreadSafe
+public class LeaseJournal implements LeaseCommitLog, Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(LeaseJournal.class);
+    public static final String JOURNAL_FILE = "leases.journal";
+    public static final String SNAPSHOT_FILE = "leases.snapshot";
+    public static final int DEFAULT_CAPACITY = 65536;
+
+    private static final int JOURNAL_MAGIC = 0x44484a4c;    // DHJL
+    private static final int SNAPSHOT_MAGIC = 0x44485350;   // DHSP
+    private static final int VERSION = 1;
+    /* pp */ static final int HEADER_SIZE = 16;
+    /* pp */ static final int RECORD_SIZE = 64;
+    private static final int ADDRESS_SIZE = 16;
+    // Record layout.
+    private static final int OFFSET_STATE = 0;
+    private static final int OFFSET_HARDWARE_LENGTH = 1;
+    private static final int OFFSET_HARDWARE_TYPE = 2;
+    private static final int OFFSET_HARDWARE_ADDRESS = 4;
+    private static final int OFFSET_CLIENT_LENGTH = OFFSET_HARDWARE_ADDRESS + ADDRESS_SIZE;
+    private static final int OFFSET_CLIENT_ADDRESS = OFFSET_CLIENT_LENGTH + 1;
+    private static final int OFFSET_EXPIRES = 40;
+    private static final int OFFSET_CHECKSUM = RECORD_SIZE - 4;
+
+    private final File journalFile;
+    private final File snapshotFile;
+    private final RandomAccessFile journalRaf;
+    private final MappedByteBuffer journal;
+    private final int capacity;
+    @GuardedBy("this")
+    private final ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+    @GuardedBy("this")
+    private final CRC32 crc = new CRC32();
+    @GuardedBy("this")
+    private long generation;
+    @GuardedBy("this")
+    private boolean recovered = false;
+    /** The number of records in the journal. */
+    @GuardedBy("this")
+    private int count = 0;
+    /** The number of records ever appended, which is the sequence number passed to sync. */
+    @GuardedBy("this")
+    private long appended = 0;
+
+    private final Object syncLock = new Object();
+    @GuardedBy("syncLock")
+    private long synced = 0;
+    @GuardedBy("syncLock")
+    private boolean syncing = false;
+
+    /**
+     * Opens or creates a journal in the given directory.
+     *
+     * An existing journal larger than the given capacity keeps its size.
+     *
+     * @param directory The directory holding the journal and snapshot.
+     * @param capacity The number of records the journal holds before it must be compacted.
+     */
+    public LeaseJournal(@Nonnull File directory, @Nonnegative int capacity) throws IOException {
+        Preconditions.checkNotNull(directory, "Directory was null.");
+        Preconditions.checkArgument(capacity > 0, "Capacity must be positive.");
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new IOException("Failed to create directory " + directory);
+        this.journalFile = new File(directory, JOURNAL_FILE);
+        this.snapshotFile = new File(directory, SNAPSHOT_FILE);
+
+        boolean exists = journalFile.length() > 0;
+        long length = Math.max(journalFile.length(), HEADER_SIZE + (long) capacity * RECORD_SIZE);
+        if ((length - HEADER_SIZE) % RECORD_SIZE != 0 || length > Integer.MAX_VALUE)
+            throw new IOException("Journal " + journalFile + " has bad length " + length);
+        this.capacity = (int) ((length - HEADER_SIZE) / RECORD_SIZE);
+        this.journalRaf = new RandomAccessFile(journalFile, "rw");
+        try {
+            journalRaf.setLength(length);
+            this.journal = journalRaf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+            if (exists) {
+                if (journal.getInt(0) != JOURNAL_MAGIC || journal.getInt(4) != VERSION)
+                    throw new IOException("Journal " + journalFile + " has bad header.");
+                this.generation = journal.getLong(8);
+            } else {
+                writeHeader(0);
+            }
+        } catch (IOException e) {
+            journalRaf.close();
+            throw e;
+        }
+    }
+
+    public LeaseJournal(@Nonnull File directory) throws IOException {
+        this(directory, DEFAULT_CAPACITY);
+    }
+
+    @GuardedBy("this")
+    private void writeHeader(long generation) {
+        journal.putInt(0, JOURNAL_MAGIC);
+        journal.putInt(4, VERSION);
+        journal.putLong(8, generation);
+        this.generation = generation;
+    }
+
+    @Nonnegative
+    private static int offset(@Nonnegative int index) {
+        return HEADER_SIZE + index * RECORD_SIZE;
+    }
+
+    /** Encodes the lease into {@link #record}, and returns it ready to be written. */
+    @GuardedBy("this")
+    @Nonnull
+    private ByteBuffer encode(@Nonnull Lease lease) {
+        HardwareAddress hardwareAddress = lease.getHardwareAddress();
+        byte[] hardwareBytes = hardwareAddress.getAddress();
+        byte[] clientBytes = lease.getClientAddress().getAddress();
+        Preconditions.checkArgument(hardwareBytes.length <= ADDRESS_SIZE, "Hardware address too long: %s", hardwareAddress);
+
+        byte[] data = record.array();
+        Arrays.fill(data, (byte) 0);
+        record.clear();
+        record.put(OFFSET_STATE, (byte) (lease.getState().ordinal() + 1));
+        record.put(OFFSET_HARDWARE_LENGTH, (byte) hardwareBytes.length);
+        record.putShort(OFFSET_HARDWARE_TYPE, hardwareAddress.getType());
+        System.arraycopy(hardwareBytes, 0, data, OFFSET_HARDWARE_ADDRESS, hardwareBytes.length);
+        record.put(OFFSET_CLIENT_LENGTH, (byte) clientBytes.length);
+        System.arraycopy(clientBytes, 0, data, OFFSET_CLIENT_ADDRESS, clientBytes.length);
+        record.putLong(OFFSET_EXPIRES, lease.getExpires());
+        crc.reset();
+        crc.update(data, 0, OFFSET_CHECKSUM);
+        record.putInt(OFFSET_CHECKSUM, (int) crc.getValue());
+        return record;
+    }
+
+    /**
+     * Decodes the record at the buffer's position, and advances the position.
+     *
+     * @return the lease, or null if the record is empty or corrupt.
+     */
+    @GuardedBy("this")
+    private Lease decode(@Nonnull ByteBuffer in) {
+        byte[] data = new byte[RECORD_SIZE];
+        in.get(data);
+        ByteBuffer buf = ByteBuffer.wrap(data);
+        int state = buf.get(OFFSET_STATE) & 0xFF;
+        if (state == 0 || state > Lease.LeaseState.values().length)
+            return null;
+        crc.reset();
+        crc.update(data, 0, OFFSET_CHECKSUM);
+        if (buf.getInt(OFFSET_CHECKSUM) != (int) crc.getValue())
+            return null;
+        int hardwareLength = buf.get(OFFSET_HARDWARE_LENGTH) & 0xFF;
+        int clientLength = buf.get(OFFSET_CLIENT_LENGTH) & 0xFF;
+        if (hardwareLength > ADDRESS_SIZE || (clientLength != 4 && clientLength != 16))
+            return null;
+        byte[] hardwareBytes = new byte[hardwareLength];
+        System.arraycopy(data, OFFSET_HARDWARE_ADDRESS, hardwareBytes, 0, hardwareLength);
+        byte[] clientBytes = new byte[clientLength];
+        System.arraycopy(data, OFFSET_CLIENT_ADDRESS, clientBytes, 0, clientLength);
+        HardwareAddress hardwareAddress = new HardwareAddress(buf.getShort(OFFSET_HARDWARE_TYPE), (short) hardwareLength, hardwareBytes);
+        Lease lease = new Lease(hardwareAddress, AddressUtils.toInetAddress(clientBytes));
+        lease.setState(Lease.LeaseState.values()[state - 1]);
+        lease.setExpires(buf.getLong(OFFSET_EXPIRES));
+        return lease;
+    }
+
+    /**
+     * Reads the snapshot and replays the journal.
+     *
+     * This must be called once, before any other operation.
+     * Records after the first empty or corrupt record in the journal
+     * were never synced, and are discarded.
+     *
+     * @return The recorded leases, in the order in which they were written.
+     * A lease supersedes any earlier lease for the same address.
+     */
+    @Nonnull
+    public synchronized List<Lease> recover() throws IOException {
+        Preconditions.checkState(!recovered, "Journal already recovered.");
+        List<Lease> out = new ArrayList<Lease>();
+
+        long snapshotGeneration = -1;
+        if (snapshotFile.exists()) {
+            byte[] data = Files.readAllBytes(snapshotFile.toPath());
+            ByteBuffer in = ByteBuffer.wrap(data);
+            if (data.length < HEADER_SIZE || (data.length - HEADER_SIZE) % RECORD_SIZE != 0
+                    || in.getInt(0) != SNAPSHOT_MAGIC || in.getInt(4) != VERSION)
+                throw new IOException("Snapshot " + snapshotFile + " has bad header or length.");
+            snapshotGeneration = in.getLong(8);
+            in.position(HEADER_SIZE);
+            while (in.hasRemaining()) {
+                Lease lease = decode(in);
+                if (lease == null)
+                    throw new IOException("Snapshot " + snapshotFile + " is corrupt at offset " + (in.position() - RECORD_SIZE));
+                out.add(lease);
+            }
+        }
+
+        int snapshotCount = out.size();
+        if (snapshotGeneration > generation) {
+            // We crashed after replacing the snapshot, but before emptying the journal.
+            LOG.info("Discarding journal generation {} superseded by snapshot generation {}.", generation, snapshotGeneration);
+            clear(snapshotGeneration);
+        } else {
+            ByteBuffer in = journal.duplicate();
+            in.position(HEADER_SIZE);
+            while (count < capacity) {
+                Lease lease = decode(in);
+                if (lease == null)
+                    break;
+                out.add(lease);
+                count++;
+            }
+            // Anything after a torn record must never be replayed after we overwrite the torn record.
+            zero(count);
+            journal.force();
+        }
+        appended = count;
+        recovered = true;
+        LOG.info("Recovered {} leases from snapshot and {} from journal {}.", snapshotCount, count, journalFile);
+        return out;
+    }
+
+    @GuardedBy("this")
+    private void zero(@Nonnegative int fromIndex) {
+        byte[] zeroes = new byte[RECORD_SIZE * 64];
+        ByteBuffer out = journal.duplicate();
+        out.position(offset(fromIndex));
+        while (out.hasRemaining())
+            out.put(zeroes, 0, Math.min(zeroes.length, out.remaining()));
+    }
+
+    /**
+     * Empties the journal, and then advances its generation.
+     *
+     * A single force may persist the pages in any order, so the records
+     * are made durably empty before the new generation is written. Were
+     * the header to land first, a crash would replay old records over the
+     * newer snapshot.
+     */
+    @GuardedBy("this")
+    private void clear(long generation) {
+        zero(0);
+        journal.force();
+        writeHeader(generation);
+        journal.force();
+        count = 0;
+    }
+
+    /** Returns the number of records which may be appended before the journal must be compacted. */
+    @Nonnegative
+    public synchronized int getRemaining() {
+        return capacity - count;
+    }
+
+    /**
+     * Appends a lease to the journal.
+     *
+     * The record is not durable until {@link #sync(long)} has been called
+     * with the returned sequence number, or any later one.
+     *
+     * @return The sequence number of the appended record.
+     * @throws IOException if the journal is full.
+     */
+    public synchronized long append(@Nonnull Lease lease) throws IOException {
+        Preconditions.checkState(recovered, "Journal not recovered.");
+        if (count >= capacity)
+            throw new IOException("Journal " + journalFile + " is full; compaction required.");
+        ByteBuffer data = encode(lease);
+        ByteBuffer out = journal.duplicate();
+        out.position(offset(count));
+        out.put(data);
+        count++;
+        return ++appended;
+    }
+
+    @Override
+    public synchronized long getSequence() {
+        return appended;
+    }
+
+    /**
+     * Ensures that all records up to the given sequence number are durable.
+     *
+     * If another thread is already syncing, this waits for it, and then
+     * syncs only if that sync did not cover the given sequence number.
+     * One msync therefore commits every record appended before it started.
+     */
+    @Override
+    public void sync(long sequence) throws IOException {
+        for (;;) {
+            synchronized (syncLock) {
+                for (;;) {
+                    if (synced >= sequence)
+                        return;
+                    if (!syncing)
+                        break;
+                    try {
+                        syncLock.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Interrupted awaiting journal sync.");
+                    }
+                }
+                syncing = true;
+            }
+
+            // Everything appended before the force is covered by it.
+            long target = getSequence();
+            boolean success = false;
+            try {
+                journal.force();
+                success = true;
+            } finally {
+                synchronized (syncLock) {
+                    syncing = false;
+                    if (success)
+                        synced = Math.max(synced, target);
+                    syncLock.notifyAll();
+                }
+            }
+        }
+    }
+
+    /** Ensures that all records appended so far are durable. */
+    public void sync() throws IOException {
+        sync(getSequence());
+    }
+
+    /**
+     * Writes the given leases to a new snapshot, and empties the journal.
+     *
+     * The caller must ensure that the given leases reflect every record
+     * appended so far, typically by holding the lock which guards its
+     * calls to {@link #append(Lease)}. All appended records are durable
+     * once this returns.
+     */
+    public void compact(@Nonnull Iterable<? extends Lease> leases) throws IOException {
+        long target;
+        synchronized (this) {
+            Preconditions.checkState(recovered, "Journal not recovered.");
+            long nextGeneration = generation + 1;
+            File tmpFile = new File(snapshotFile.getPath() + ".tmp");
+            int written = 0;
+            try (FileChannel channel = new RandomAccessFile(tmpFile, "rw").getChannel()) {
+                channel.truncate(0);
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                header.putInt(SNAPSHOT_MAGIC).putInt(VERSION).putLong(nextGeneration).flip();
+                while (header.hasRemaining())
+                    channel.write(header);
+                for (Lease lease : leases) {
+                    ByteBuffer data = encode(lease);
+                    while (data.hasRemaining())
+                        channel.write(data);
+                    written++;
+                }
+                channel.force(true);
+            }
+            Files.move(tmpFile.toPath(), snapshotFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            // The rename must be durable before the journal is emptied, or a crash could lose both.
+            syncDirectory(snapshotFile.getAbsoluteFile().getParentFile());
+            clear(nextGeneration);
+            target = appended;
+            LOG.info("Compacted journal {} into {} leases at generation {}.", journalFile, written, nextGeneration);
+        }
+        synchronized (syncLock) {
+            synced = Math.max(synced, target);
+            syncLock.notifyAll();
+        }
+    }
+
+    /**
+     * Makes the entries of the given directory durable.
+     *
+     * Some platforms, notably Windows, cannot open a directory; there,
+     * the rename is assumed to be durable once it returns.
+     */
+    private static void syncDirectory(@Nonnull File directory) throws IOException {
+        FileChannel channel;
+        try {
+            channel = FileChannel.open(directory.toPath(), StandardOpenOption.READ);
+        } catch (IOException e) {
+            LOG.debug("Cannot open directory {} to sync it: {}", directory, e);
+            return;
+        }
+        try {
+            channel.force(true);
+        } finally {
+            channel.close();
+        }
+    }
+
+    /** Syncs and closes the journal. */
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (recovered)
+                journal.force();
+        }
+        // A MappedByteBuffer cannot be unmapped explicitly; it is released when collected.
+        journalRaf.close();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "LeaseJournal(" + journalFile + ", " + count + "/" + capacity + " records, generation " + generation + ")";
+    }
+}
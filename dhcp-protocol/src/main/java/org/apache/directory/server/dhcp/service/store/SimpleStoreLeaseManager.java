@@ -24,13 +24,13 @@ import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.net.InetAddresses;
 import java.net.InetAddress;
-import java.util.ArrayList;
-import java.util.List;
 import java.util.concurrent.TimeUnit;
 import javax.annotation.CheckForNull;
 import javax.annotation.Nonnull;
+import org.anarres.dhcp.common.address.AddressUtils;
 import org.anarres.dhcp.common.address.InterfaceAddress;
 import org.anarres.dhcp.common.address.NetworkAddress;
+import org.anarres.dhcp.common.address.SubnetIndex;
 import org.apache.directory.server.dhcp.DhcpException;
 import org.apache.directory.server.dhcp.io.DhcpRequestContext;
 import org.apache.directory.server.dhcp.messages.DhcpMessage;
@@ -48,8 +48,19 @@ public class SimpleStoreLeaseManager extends AbstractLeaseManager {
     // private static final String DEFAULT_INITIAL_CONTEXT_FACTORY =
     // "org.apache.directory.server.core.jndi.CoreContextFactory";
 
+    /** A lease whose options are those of its subnet. */
+    private static class SubnetLease extends Lease {
+
+        private final NetworkAddress network;
+
+        public SubnetLease(@Nonnull HardwareAddress hardwareAddress, @Nonnull InetAddress clientAddress, @Nonnull NetworkAddress network) {
+            super(hardwareAddress, clientAddress);
+            this.network = network;
+        }
+    }
+
     // a map of current leases
-    private final List<DhcpConfigSubnet> subnets = new ArrayList<DhcpConfigSubnet>();
+    private final SubnetIndex<DhcpConfigSubnet> subnets = new SubnetIndex<DhcpConfigSubnet>();
     private final Cache<HardwareAddress, Lease> leases = CacheBuilder.newBuilder()
             .expireAfterAccess(TTL_LEASE.maxLeaseTime * 2, TimeUnit.SECONDS)
             .recordStats()
@@ -58,25 +69,56 @@ public class SimpleStoreLeaseManager extends AbstractLeaseManager {
     //This will suppress PMD.AvoidUsingHardCodedIP warnings in this class
     @SuppressWarnings("PMD.AvoidUsingHardCodedIP")
     public SimpleStoreLeaseManager() {
-        subnets.add(new DhcpConfigSubnet(
+        addSubnet(new DhcpConfigSubnet(
                 NetworkAddress.forString("192.168.168.0/24"),
                 InetAddresses.forString("192.168.168.159"), InetAddresses.forString("192.168.168.179")));
     }
 
+    /**
+     * Adds a subnet.
+     *
+     * @return false if a subnet with the same network was already present.
+     */
+    public boolean addSubnet(@Nonnull DhcpConfigSubnet subnet) {
+        return subnets.add(subnet.getNetwork(), subnet);
+    }
+
     /**
      * Finds the subnet for the given client address.
      */
     @CheckForNull
     protected DhcpConfigSubnet findSubnet(@Nonnull DhcpRequestContext context) {
         for (InterfaceAddress localAddress : context.getInterfaceAddresses()) {
-            for (DhcpConfigSubnet subnet : subnets) {
-                if (subnet.contains(localAddress.getAddress()))
-                    return subnet;
-            }
+            DhcpConfigSubnet subnet = subnets.find(localAddress.getAddress());
+            if (subnet != null)
+                return subnet;
         }
         return null;
     }
 
+    /**
+     * Finds the subnet for the given request, by its relay agent address
+     * if it was relayed, or else by the interface on which it arrived.
+     *
+     * A relayed request for which no subnet is configured has no subnet:
+     * the client is not on the network of the receiving interface.
+     */
+    @CheckForNull
+    protected DhcpConfigSubnet findSubnet(@Nonnull DhcpRequestContext context, @Nonnull DhcpMessage request) {
+        InetAddress relayAgentAddress = request.getRelayAgentAddress();
+        if (!AddressUtils.isZeroAddress(relayAgentAddress))
+            return subnets.find(relayAgentAddress);
+        return findSubnet(context);
+    }
+
+    /** Leases share their options with the rest of their subnet. */
+    @Override
+    protected Object getProfile(Lease lease) {
+        if (lease instanceof SubnetLease)
+            return ((SubnetLease) lease).network;
+        return super.getProfile(lease);
+    }
+
     @Override
     public DhcpMessage leaseOffer(
             DhcpRequestContext context,
@@ -87,23 +129,23 @@ public class SimpleStoreLeaseManager extends AbstractLeaseManager {
         Lease lease = leases.getIfPresent(hardwareAddress);
         if (lease != null) {
             lease.setState(Lease.LeaseState.OFFERED);
-            return newReply(request, MessageType.DHCPOFFER, lease);
+            return newReply(request, MessageType.DHCPOFFER, lease, getProfile(lease));
         }
 
-        DhcpConfigSubnet subnet = findSubnet(context);
+        DhcpConfigSubnet subnet = findSubnet(context, request);
         if (subnet == null)
             return null;
 
         long leaseTimeSecs = getLeaseTime(TTL_OFFER, clientRequestedExpirySecs);
 
         // TODO: Allocate a new address.
-        lease = new Lease(hardwareAddress, clientRequestedAddress);
+        lease = new SubnetLease(hardwareAddress, clientRequestedAddress, subnet.getNetwork());
         lease.setState(Lease.LeaseState.OFFERED);
         lease.setExpires(System.currentTimeMillis() / 1000 + leaseTimeSecs);
         lease.getOptions().setAddressOption(SubnetMask.class, subnet.getNetwork().getNetmaskAddress());
         leases.put(hardwareAddress, lease);
 
-        return newReply(request, MessageType.DHCPOFFER, lease);
+        return newReply(request, MessageType.DHCPOFFER, lease, getProfile(lease));
     }
 
     @Override
@@ -122,7 +164,7 @@ public class SimpleStoreLeaseManager extends AbstractLeaseManager {
         long leaseTimeSecs = getLeaseTime(TTL_LEASE, clientRequestedExpirySecs);
         lease.setExpires(System.currentTimeMillis() / 1000 + leaseTimeSecs);
 
-        return newReply(request, MessageType.DHCPACK, lease);
+        return newReply(request, MessageType.DHCPACK, lease, getProfile(lease));
     }
 
     @Override
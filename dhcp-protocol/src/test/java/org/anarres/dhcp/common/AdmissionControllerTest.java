@@ -0,0 +1,184 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.anarres.dhcp.common;
+
+import com.google.common.base.Ticker;
+import com.google.common.net.InetAddresses;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import org.apache.directory.server.dhcp.io.DhcpMessageEncoder;
+import org.apache.directory.server.dhcp.messages.DhcpMessage;
+import org.apache.directory.server.dhcp.messages.HardwareAddress;
+import org.apache.directory.server.dhcp.messages.HardwareAddressType;
+import org.apache.directory.server.dhcp.messages.MessageType;
+import org.apache.directory.server.dhcp.options.dhcp.RelayAgentInformation;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author shevek
+ */
+public class AdmissionControllerTest {
+
+    private static final Logger LOG = LoggerFactory.getLogger(AdmissionControllerTest.class);
+
+    private static class ManualTicker extends Ticker {
+
+        private long nanos = 1000;
+
+        public void advance(long time, @Nonnull TimeUnit unit) {
+            nanos += unit.toNanos(time);
+        }
+
+        @Override
+        public long read() {
+            return nanos;
+        }
+    }
+
+    @Nonnull
+    private static ByteBuffer newRequest(int client, @CheckForNull String relay, @CheckForNull String circuit) throws Exception {
+        DhcpMessage request = new DhcpMessage();
+        request.setOp(DhcpMessage.OP_BOOTREQUEST);
+        request.setMessageType(MessageType.DHCPDISCOVER);
+        request.setHardwareAddress(new HardwareAddress(HardwareAddressType.Ethernet, new byte[]{0, 0x16, 0x3e, 0, (byte) (client >> 8), (byte) client}));
+        if (relay != null)
+            request.setRelayAgentAddress(InetAddresses.forString(relay));
+        if (circuit != null) {
+            byte[] id = circuit.getBytes("US-ASCII");
+            // A remote-id sub-option, then the circuit-id.
+            byte[] data = new byte[4 + 2 + id.length];
+            data[0] = 2;
+            data[1] = 2;
+            data[4] = 1;
+            data[5] = (byte) id.length;
+            System.arraycopy(id, 0, data, 6, id.length);
+            request.getOptions().setOption(RelayAgentInformation.class, data);
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(1024);
+        new DhcpMessageEncoder().encode(buffer, request);
+        buffer.flip();
+        return buffer;
+    }
+
+    private static int admit(@Nonnull AdmissionController controller, @Nonnull ByteBuffer request, int count) {
+        int admitted = 0;
+        for (int i = 0; i < count; i++)
+            if (controller.admit(request))
+                admitted++;
+        return admitted;
+    }
+
+    @Test
+    public void testClient() throws Exception {
+        ManualTicker ticker = new ManualTicker();
+        AdmissionController controller = new AdmissionController(ticker, 1024);
+        controller.setLimit(AdmissionController.Level.CLIENT, new AdmissionController.Limit(1, 3));
+
+        ByteBuffer request = newRequest(1, null, null);
+        int position = request.position();
+        assertEquals(3, admit(controller, request, 10));
+        assertEquals(position, request.position());
+        // Another client has its own bucket.
+        assertEquals(3, admit(controller, newRequest(2, null, null), 10));
+        assertEquals(14, controller.getDroppedCount(AdmissionController.Level.CLIENT));
+
+        // Refill is lazy and proportional.
+        ticker.advance(500, TimeUnit.MILLISECONDS);
+        assertEquals(0, admit(controller, request, 1));
+        ticker.advance(500, TimeUnit.MILLISECONDS);
+        assertEquals(1, admit(controller, request, 10));
+        // But never beyond the burst.
+        ticker.advance(1, TimeUnit.HOURS);
+        assertEquals(3, admit(controller, request, 10));
+        assertEquals(10, controller.getAdmittedCount());
+        LOG.info("Controller is " + controller);
+    }
+
+    @Test
+    public void testSlowRefill() throws Exception {
+        ManualTicker ticker = new ManualTicker();
+        AdmissionController controller = new AdmissionController(ticker, 1024);
+        controller.setLimit(AdmissionController.Level.CLIENT, new AdmissionController.Limit(0.5, 1));
+        ByteBuffer request = newRequest(1, null, null);
+        assertEquals(1, admit(controller, request, 1));
+        // Frequent attempts must not prevent the bucket from refilling.
+        int admitted = 0;
+        for (int i = 0; i < 2000; i++) {
+            ticker.advance(1, TimeUnit.MILLISECONDS);
+            admitted += admit(controller, request, 1);
+        }
+        assertEquals(1, admitted);
+    }
+
+    @Test
+    public void testLongRunRate() throws Exception {
+        ByteBuffer request = newRequest(1, null, null);
+        // Retrying every millisecond must neither lose nor gain fractions of a token.
+        // A burst of two lets a token which accrues between retries wait for the next one.
+        for (double rate : new double[]{3.5, 7, 300}) {
+            ManualTicker ticker = new ManualTicker();
+            AdmissionController controller = new AdmissionController(ticker, 1024);
+            controller.setLimit(AdmissionController.Level.CLIENT, new AdmissionController.Limit(rate, 2));
+            int admitted = 0;
+            for (int i = 0; i < 100000; i++) {
+                ticker.advance(1, TimeUnit.MILLISECONDS);
+                admitted += admit(controller, request, 1);
+            }
+            LOG.info("Admitted " + admitted + " in 100s at " + rate + "/s");
+            // The initial burst, then the rate.
+            assertEquals(1 + rate * 100, admitted, 1);
+        }
+    }
+
+    @Test
+    public void testHierarchy() throws Exception {
+        ManualTicker ticker = new ManualTicker();
+        AdmissionController controller = new AdmissionController(ticker, 1024);
+        controller.setLimit(AdmissionController.Level.CLIENT, new AdmissionController.Limit(1, 2));
+        controller.setLimit(AdmissionController.Level.CIRCUIT, new AdmissionController.Limit(1, 3));
+        controller.setLimit(AdmissionController.Level.RELAY, new AdmissionController.Limit(1, 5));
+        controller.setLimit(AdmissionController.Level.GLOBAL, new AdmissionController.Limit(1, 8));
+
+        // A flooding client is refused at its own level, and does not drain the relay.
+        assertEquals(2, admit(controller, newRequest(1, "10.1.0.1", "port1"), 100));
+        assertEquals(98, controller.getDroppedCount(AdmissionController.Level.CLIENT));
+        // A flooding circuit is limited, and circuit-ids are scoped by relay.
+        // A client refused by its circuit is refunded, so it is refused there again.
+        assertEquals(1, admit(controller, newRequest(2, "10.1.0.1", "port1"), 5));
+        assertEquals(98, controller.getDroppedCount(AdmissionController.Level.CLIENT));
+        assertEquals(2, admit(controller, newRequest(3, "10.1.0.1", "port2"), 5));
+        assertEquals(4, controller.getDroppedCount(AdmissionController.Level.CIRCUIT));
+        // The relay has used all 5 tokens.
+        assertEquals(0, admit(controller, newRequest(4, "10.1.0.1", "port3"), 1));
+        assertEquals(1, controller.getDroppedCount(AdmissionController.Level.RELAY));
+        // Another relay is unaffected, until the global limit.
+        assertEquals(2, admit(controller, newRequest(5, "10.2.0.1", "port1"), 2));
+        assertEquals(1, admit(controller, newRequest(6, "10.2.0.1", "port2"), 2));
+        assertEquals(1, controller.getDroppedCount(AdmissionController.Level.GLOBAL));
+        // Unrelayed requests are only subject to the client and global limits.
+        assertEquals(0, admit(controller, newRequest(7, null, null), 1));
+        assertEquals(8, controller.getAdmittedCount());
+
+        // The client was refunded the token which the global limit refused.
+        controller.setLimit(AdmissionController.Level.GLOBAL, null);
+        assertEquals(2, admit(controller, newRequest(7, null, null), 3));
+    }
+
+    @Test
+    public void testMalformed() {
+        AdmissionController controller = new AdmissionController(16);
+        controller.setLimit(AdmissionController.Level.GLOBAL, new AdmissionController.Limit(1, 1));
+        // Left for the decoder to reject.
+        assertTrue(controller.admit(ByteBuffer.allocate(16)));
+        assertTrue(controller.admit(ByteBuffer.allocate(16)));
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.anarres.dhcp.common;
+
+import com.google.common.net.InetAddresses;
+import java.net.InetSocketAddress;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.annotation.Nonnull;
+import org.apache.directory.server.dhcp.messages.DhcpMessage;
+import org.apache.directory.server.dhcp.messages.HardwareAddress;
+import org.apache.directory.server.dhcp.messages.HardwareAddressType;
+import org.apache.directory.server.dhcp.messages.MessageType;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author shevek
+ */
+@SuppressWarnings("PMD.AvoidUsingHardCodedIP")
+public class ReplyCacheTest {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ReplyCacheTest.class);
+
+    @Nonnull
+    private static DhcpMessage newRequest(int transactionId, @Nonnull MessageType type, int client) {
+        DhcpMessage request = new DhcpMessage();
+        request.setOp(DhcpMessage.OP_BOOTREQUEST);
+        request.setMessageType(type);
+        request.setTransactionId(transactionId);
+        request.setHardwareAddress(new HardwareAddress(HardwareAddressType.Ethernet, new byte[]{0, 0x16, 0x3e, 0, 0, (byte) client}));
+        return request;
+    }
+
+    private static class Loader implements Callable<ReplyCache.Reply> {
+
+        private final AtomicInteger count = new AtomicInteger();
+        private final ReplyCache.Reply reply;
+
+        public Loader(@Nonnull ReplyCache.Reply reply) {
+            this.reply = reply;
+        }
+
+        @Override
+        public ReplyCache.Reply call() throws Exception {
+            count.incrementAndGet();
+            return reply;
+        }
+    }
+
+    @Test
+    public void testKey() {
+        ReplyCache.Key key = ReplyCache.newKey(newRequest(42, MessageType.DHCPDISCOVER, 1));
+        assertEquals(key, ReplyCache.newKey(newRequest(42, MessageType.DHCPDISCOVER, 1)));
+        assertEquals(key.hashCode(), ReplyCache.newKey(newRequest(42, MessageType.DHCPDISCOVER, 1)).hashCode());
+        assertNotEquals(key, ReplyCache.newKey(newRequest(43, MessageType.DHCPDISCOVER, 1)));
+        assertNotEquals(key, ReplyCache.newKey(newRequest(42, MessageType.DHCPREQUEST, 1)));
+        assertNotEquals(key, ReplyCache.newKey(newRequest(42, MessageType.DHCPDISCOVER, 2)));
+
+        // The same request, heard through a relay, has a different reply.
+        DhcpMessage relayed = newRequest(42, MessageType.DHCPDISCOVER, 1);
+        relayed.setRelayAgentAddress(InetAddresses.forString("10.1.0.1"));
+        assertNotEquals(key, ReplyCache.newKey(relayed));
+        relayed.setRelayAgentAddress(InetAddresses.forString("0.0.0.0"));
+        assertEquals(key, ReplyCache.newKey(relayed));
+
+        DhcpMessage untyped = newRequest(42, MessageType.DHCPDISCOVER, 1);
+        untyped.setMessageType(null);
+        assertNull(ReplyCache.newKey(untyped));
+    }
+
+    @Test
+    public void testCache() throws Exception {
+        ReplyCache cache = new ReplyCache();
+        ReplyCache.Reply reply = new ReplyCache.Reply(new byte[]{1, 2, 3}, new InetSocketAddress("10.0.0.1", 68));
+        Loader loader = new Loader(reply);
+        ReplyCache.Key key = ReplyCache.newKey(newRequest(42, MessageType.DHCPDISCOVER, 1));
+        for (int i = 0; i < 5; i++)
+            assertSame(reply, cache.get(ReplyCache.newKey(newRequest(42, MessageType.DHCPDISCOVER, 1)), loader));
+        assertEquals(1, loader.count.get());
+        assertEquals(1, cache.getMissCount());
+        assertEquals(4, cache.getHitCount());
+        assertSame(reply, cache.getIfPresent(key));
+
+        // A decision not to reply is not cached.
+        Loader none = new Loader(ReplyCache.Reply.NONE);
+        ReplyCache.Key other = ReplyCache.newKey(newRequest(42, MessageType.DHCPREQUEST, 1));
+        assertNull(cache.get(other, none).getData());
+        assertNull(cache.get(other, none).getData());
+        assertEquals(2, none.count.get());
+        assertNull(cache.getIfPresent(other));
+        assertEquals(1, cache.size());
+        LOG.info("Cache is " + cache);
+
+        cache.invalidateAll();
+        assertNull(cache.getIfPresent(key));
+    }
+
+    @Test
+    public void testFailure() throws Exception {
+        ReplyCache cache = new ReplyCache();
+        ReplyCache.Key key = ReplyCache.newKey(newRequest(42, MessageType.DHCPDISCOVER, 1));
+        try {
+            cache.get(key, new Callable<ReplyCache.Reply>() {
+                @Override
+                public ReplyCache.Reply call() throws Exception {
+                    throw new IllegalStateException("Failed.");
+                }
+            });
+            fail("Loader did not throw.");
+        } catch (IllegalStateException e) {
+            LOG.info("Expected: " + e);
+        }
+        assertNull(cache.getIfPresent(key));
+    }
+
+    @Test
+    public void testExpiry() throws Exception {
+        ReplyCache cache = new ReplyCache(16, 50, TimeUnit.MILLISECONDS);
+        Loader loader = new Loader(new ReplyCache.Reply(new byte[]{1, 2, 3}, new InetSocketAddress("10.0.0.1", 68)));
+        ReplyCache.Key key = ReplyCache.newKey(newRequest(42, MessageType.DHCPDISCOVER, 1));
+        cache.get(key, loader);
+        cache.get(key, loader);
+        assertEquals(1, loader.count.get());
+        Thread.sleep(100);
+        cache.get(key, loader);
+        assertEquals(2, loader.count.get());
+    }
+}
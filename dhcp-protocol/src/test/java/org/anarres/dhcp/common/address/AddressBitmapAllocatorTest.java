@@ -0,0 +1,110 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.anarres.dhcp.common.address;
+
+import com.google.common.net.InetAddresses;
+import java.net.InetAddress;
+import java.util.HashSet;
+import java.util.Set;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author shevek
+ */
+public class AddressBitmapAllocatorTest {
+
+    private static final Logger LOG = LoggerFactory.getLogger(AddressBitmapAllocatorTest.class);
+
+    private static InetAddress a(String s) {
+        return InetAddresses.forString(s);
+    }
+
+    @Test
+    public void testAllocate() {
+        Subnet subnet = new Subnet(NetworkAddress.forString("10.0.0.0/24"), a("10.0.0.10"), a("10.0.0.13"));
+        AddressBitmapAllocator allocator = new AddressBitmapAllocator(subnet);
+        assertEquals(4, allocator.getSize());
+        assertEquals(a("10.0.0.10"), allocator.allocate());
+        assertTrue(allocator.allocate(a("10.0.0.12")));
+        assertFalse(allocator.allocate(a("10.0.0.12")));
+        assertFalse(allocator.allocate(a("10.0.0.14")));
+        assertFalse(allocator.allocate(a("10.0.0.9")));
+        assertFalse(allocator.allocate(a("::1")));
+        assertEquals(a("10.0.0.11"), allocator.allocate());
+        assertEquals(a("10.0.0.13"), allocator.allocate());
+        LOG.info("Allocator is " + allocator);
+        assertNull(allocator.allocate());
+        assertTrue(allocator.isExhausted());
+
+        assertTrue(allocator.release(a("10.0.0.11")));
+        assertFalse(allocator.release(a("10.0.0.11")));
+        assertTrue(allocator.isFree(a("10.0.0.11")));
+        assertEquals(a("10.0.0.11"), allocator.allocate());
+
+        allocator.clear();
+        assertEquals(0, allocator.getAllocatedCount());
+    }
+
+    @Test
+    public void testRotate() {
+        // Spans several words, with a partial last word.
+        Subnet subnet = new Subnet(NetworkAddress.forString("10.0.0.0/16"), a("10.0.0.1"), a("10.0.0.200"));
+        AddressBitmapAllocator allocator = new AddressBitmapAllocator(subnet);
+        Set<InetAddress> seen = new HashSet<InetAddress>();
+        for (int i = 0; i < 200; i++)
+            assertTrue(seen.add(allocator.allocate()));
+        assertNull(allocator.allocate());
+
+        // A released address is reused only after the cursor wraps.
+        allocator.release(a("10.0.0.5"));
+        allocator.release(a("10.0.0.150"));
+        assertEquals(a("10.0.0.5"), allocator.allocate());
+        assertEquals(a("10.0.0.150"), allocator.allocate());
+        allocator.release(a("10.0.0.70"));
+        allocator.release(a("10.0.0.160"));
+        assertEquals(a("10.0.0.160"), allocator.allocate());
+        assertEquals(a("10.0.0.70"), allocator.allocate());
+    }
+
+    @Test
+    public void testCopy() {
+        NetworkAddress network = NetworkAddress.forString("10.0.0.0/24");
+        AddressBitmapAllocator allocator = new AddressBitmapAllocator(new Subnet(network, a("10.0.0.10"), a("10.0.0.100")));
+        allocator.allocate(a("10.0.0.10"));
+        allocator.allocate(a("10.0.0.50"));
+        allocator.allocate(a("10.0.0.74"));
+        allocator.allocate(a("10.0.0.100"));
+        assertEquals(40, allocator.nextAllocatedIndex(1));
+        assertEquals(64, allocator.nextAllocatedIndex(41));
+        assertEquals(-1, allocator.nextAllocatedIndex(91));
+
+        // The range shrinks at the start and grows at the end.
+        AddressBitmapAllocator rebuilt = new AddressBitmapAllocator(new Subnet(network, a("10.0.0.40"), a("10.0.0.200")));
+        assertEquals(3, rebuilt.copyFrom(allocator));
+        LOG.info("Rebuilt " + allocator + " as " + rebuilt);
+        assertFalse(rebuilt.isFree(a("10.0.0.50")));
+        assertFalse(rebuilt.isFree(a("10.0.0.74")));
+        assertFalse(rebuilt.isFree(a("10.0.0.100")));
+        assertTrue(rebuilt.isFree(a("10.0.0.101")));
+        assertEquals(0, rebuilt.copyFrom(allocator));
+    }
+
+    @Test
+    public void testIndex() {
+        Subnet subnet = new Subnet(NetworkAddress.forString("2001:db8::/64"), a("2001:db8::100"), a("2001:db8::1ff"));
+        AddressBitmapAllocator allocator = new AddressBitmapAllocator(subnet);
+        assertEquals(256, allocator.getSize());
+        assertEquals(0, allocator.indexOf(a("2001:db8::100")));
+        assertEquals(255, allocator.indexOf(a("2001:db8::1ff")));
+        assertEquals(-1, allocator.indexOf(a("2001:db8::200")));
+        assertEquals(-1, allocator.indexOf(a("2001:db9::100")));
+        assertEquals(a("2001:db8::17f"), allocator.addressOf(0x7f));
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.anarres.dhcp.common.address;
+
+import com.google.common.net.InetAddresses;
+import java.net.InetAddress;
+import java.util.Arrays;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author shevek
+ */
+public class AddressRangeAllocatorTest {
+
+    private static final Logger LOG = LoggerFactory.getLogger(AddressRangeAllocatorTest.class);
+
+    private static InetAddress a(String s) {
+        return InetAddresses.forString(s);
+    }
+
+    @Test
+    public void testAllocate() {
+        AddressRangeAllocator allocator = new AddressRangeAllocator(a("10.0.0.1"), a("10.0.0.4"));
+        assertEquals(a("10.0.0.1"), allocator.allocate());
+        assertTrue(allocator.allocate(a("10.0.0.3")));
+        assertFalse(allocator.allocate(a("10.0.0.3")));
+        assertFalse(allocator.allocate(a("10.0.0.5")));
+        assertFalse(allocator.allocate(a("::1")));
+        LOG.info("Allocator is " + allocator);
+        assertEquals(2, allocator.toAddressRangeList().size());
+        assertEquals(a("10.0.0.2"), allocator.allocate());
+        assertEquals(a("10.0.0.4"), allocator.allocate());
+        assertNull(allocator.allocate());
+        assertTrue(allocator.isExhausted());
+    }
+
+    @Test
+    public void testRelease() {
+        AddressRangeAllocator allocator = new AddressRangeAllocator(a("10.0.0.1"), a("10.0.0.4"));
+        for (int i = 0; i < 4; i++)
+            assertNotNull(allocator.allocate());
+        assertTrue(allocator.release(a("10.0.0.2")));
+        assertTrue(allocator.release(a("10.0.0.4")));
+        assertFalse(allocator.release(a("10.0.0.4")));
+        assertFalse(allocator.release(a("10.0.0.9")));
+        assertEquals(2, allocator.toAddressRangeList().size());
+        // Coalesces both neighbours.
+        assertTrue(allocator.release(a("10.0.0.3")));
+        assertEquals(1, allocator.toAddressRangeList().size());
+        assertTrue(allocator.release(a("10.0.0.1")));
+        LOG.info("Allocator is " + allocator);
+        assertEquals(a("10.0.0.1"), allocator.toAddressRangeList().get(0).getStart());
+        assertEquals(a("10.0.0.4"), allocator.toAddressRangeList().get(0).getEnd());
+        assertTrue(allocator.isFree(a("10.0.0.3")));
+    }
+
+    @Test
+    public void testSingleAddress() {
+        // Both ends are inclusive, so this is a pool of one address.
+        AddressRangeAllocator allocator = new AddressRangeAllocator(a("10.0.0.7"), a("10.0.0.7"));
+        assertFalse(allocator.isExhausted());
+        assertTrue(allocator.isFree(a("10.0.0.7")));
+        assertFalse(allocator.isFree(a("10.0.0.8")));
+        assertEquals(a("10.0.0.7"), allocator.allocate());
+        assertNull(allocator.allocate());
+        assertTrue(allocator.isExhausted());
+        assertTrue(allocator.release(a("10.0.0.7")));
+        assertEquals(1, allocator.toAddressRangeList().size());
+        assertTrue(allocator.allocate(a("10.0.0.7")));
+        assertTrue(allocator.isExhausted());
+    }
+
+    @Test
+    public void testLargePool() {
+        // A /64 would never finish if enumerated.
+        AddressRangeAllocator allocator = new AddressRangeAllocator(a("2001:db8::"), a("2001:db8::ffff:ffff:ffff:ffff"));
+        InetAddress hint = a("2001:db8::1234:5678");
+        assertEquals(hint, allocator.allocate(Arrays.asList(hint)));
+        assertEquals(a("2001:db8::"), allocator.allocate(Arrays.asList(hint)));
+        assertFalse(allocator.isFree(hint));
+        assertTrue(allocator.isFree(a("2001:db8::ffff:ffff:ffff:ffff")));
+        assertTrue(allocator.release(hint));
+        assertEquals(1, allocator.toAddressRangeList().size());
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.anarres.dhcp.common.address;
+
+import com.google.common.net.InetAddresses;
+import java.net.InetAddress;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author shevek
+ */
+public class AddressTrieTest {
+
+    private static final Logger LOG = LoggerFactory.getLogger(AddressTrieTest.class);
+
+    private static InetAddress a(String s) {
+        return InetAddresses.forString(s);
+    }
+
+    @Test
+    public void testLongestPrefix() {
+        AddressTrie<String> trie = AddressTrie.empty();
+        trie = trie.with(a("10.0.0.0"), 8, "ten");
+        trie = trie.with(a("10.1.2.3"), 16, "ten-one");
+        trie = trie.with(a("10.1.2.0"), 24, "ten-one-two");
+        trie = trie.with(a("2001:db8::"), 32, "doc");
+        LOG.info("Trie is " + trie);
+        assertEquals(4, trie.size());
+
+        assertEquals("ten", trie.get(a("10.200.0.1")));
+        assertEquals("ten-one", trie.get(a("10.1.200.1")));
+        assertEquals("ten-one-two", trie.get(a("10.1.2.200")));
+        assertNull(trie.get(a("11.0.0.1")));
+        assertEquals("doc", trie.get(a("2001:db8::1")));
+        assertNull(trie.get(a("2001:db9::1")));
+        // Families do not mix.
+        assertNull(trie.get(a("::a01:203")));
+
+        assertEquals("ten-one", trie.getExact(a("10.1.0.0"), 16));
+        assertNull(trie.getExact(a("10.1.0.0"), 15));
+    }
+
+    @Test
+    public void testPersistent() {
+        AddressTrie<String> before = AddressTrie.<String>empty().with(a("10.0.0.0"), 8, "ten");
+        AddressTrie<String> after = before.with(a("10.0.0.0"), 8, "TEN").with(a("0.0.0.0"), 0, "default");
+        assertEquals("ten", before.get(a("10.0.0.1")));
+        assertNull(before.get(a("192.168.0.1")));
+        assertEquals(1, before.size());
+        assertEquals("TEN", after.get(a("10.0.0.1")));
+        assertEquals("default", after.get(a("192.168.0.1")));
+        assertEquals(2, after.size());
+        assertEquals("default", after.get(a("255.255.255.255")));
+    }
+
+    @Test
+    public void testHostRoute() {
+        AddressTrie<String> trie = AddressTrie.<String>empty()
+                .with(a("10.0.0.0"), 24, "net")
+                .with(a("10.0.0.7"), 32, "host");
+        assertEquals("host", trie.get(a("10.0.0.7")));
+        assertEquals("net", trie.get(a("10.0.0.8")));
+    }
+}
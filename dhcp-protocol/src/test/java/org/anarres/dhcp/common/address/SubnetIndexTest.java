@@ -0,0 +1,49 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.anarres.dhcp.common.address;
+
+import com.google.common.net.InetAddresses;
+import java.net.InetAddress;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author shevek
+ */
+public class SubnetIndexTest {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SubnetIndexTest.class);
+
+    @Test
+    public void testIndex() {
+        SubnetIndex<Subnet> index = new SubnetIndex<Subnet>();
+        // 4096 relay subnets, 10.x.y.0/24
+        for (int i = 0; i < 4096; i++) {
+            NetworkAddress network = NetworkAddress.forString("10." + (i >> 8) + "." + (i & 0xFF) + ".0/24");
+            assertTrue(index.add(network, new Subnet(network, null, null)));
+        }
+        NetworkAddress wide = NetworkAddress.forString("10.0.0.0/8");
+        assertTrue(index.add(wide, new Subnet(wide, null, null)));
+        assertFalse(index.add(wide, new Subnet(wide, null, null)));
+        assertEquals(4097, index.size());
+        assertEquals(4097, index.getValues().size());
+
+        InetAddress giaddr = InetAddresses.forString("10.15.255.1");
+        assertEquals(NetworkAddress.forString("10.15.255.0/24"), index.find(giaddr).getNetworkAddress());
+        assertEquals(wide, index.find(InetAddresses.forString("10.200.0.1")).getNetworkAddress());
+        assertNull(index.find(InetAddresses.forString("192.168.0.1")));
+        assertSame(index.getValues().get(4096), index.get(wide));
+
+        long start = System.nanoTime();
+        int count = 100000;
+        for (int i = 0; i < count; i++)
+            assertNotNull(index.find(giaddr));
+        LOG.info("Lookup took " + (System.nanoTime() - start) / count + " ns.");
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.anarres.dhcp.common.concurrent;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author shevek
+ */
+public class BoundedDropOldestExecutorTest {
+
+    private static final Logger LOG = LoggerFactory.getLogger(BoundedDropOldestExecutorTest.class);
+
+    private static class Task implements Runnable {
+
+        private final List<Integer> log;
+        private final int id;
+
+        public Task(List<Integer> log, int id) {
+            this.log = log;
+            this.id = id;
+        }
+
+        @Override
+        public void run() {
+            synchronized (log) {
+                log.add(id);
+            }
+        }
+    }
+
+    @Test
+    public void testDropOldest() throws Exception {
+        final List<Integer> discarded = new ArrayList<Integer>();
+        BoundedDropOldestExecutor executor = new BoundedDropOldestExecutor(1, 4, Executors.defaultThreadFactory()) {
+            @Override
+            protected void discarded(Runnable task) {
+                discarded.add(((Task) task).id);
+            }
+        };
+        try {
+            final CountDownLatch started = new CountDownLatch(1);
+            final CountDownLatch latch = new CountDownLatch(1);
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    started.countDown();
+                    try {
+                        latch.await();
+                    } catch (InterruptedException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            });
+            started.await();
+
+            List<Integer> log = new ArrayList<Integer>();
+            for (int i = 0; i < 10; i++)
+                executor.execute(new Task(log, i));
+            assertEquals(4, executor.getQueueDepth());
+            assertEquals(6, executor.getDroppedCount());
+            assertEquals(6, discarded.size());
+            LOG.info("Executor is " + executor);
+
+            latch.countDown();
+            while (executor.getExecutedCount() < 5)
+                Thread.sleep(10);
+            synchronized (log) {
+                assertEquals(Arrays.asList(6, 7, 8, 9), log);
+            }
+        } finally {
+            executor.shutdown();
+            assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testExpiry() throws Exception {
+        BoundedDropOldestExecutor executor = new BoundedDropOldestExecutor(1, 4, Executors.defaultThreadFactory());
+        try {
+            final List<Integer> log = new ArrayList<Integer>();
+            final long deadline = System.nanoTime() - 1;
+            // A task whose deadline has already passed.
+            executor.execute(new PriorityExecutor.Prioritized() {
+                @Override
+                public int getPriority() {
+                    return 0;
+                }
+
+                @Override
+                public long getDeadline() {
+                    return deadline;
+                }
+
+                @Override
+                public void run() {
+                    synchronized (log) {
+                        log.add(-1);
+                    }
+                }
+            });
+            executor.execute(new Task(log, 1));
+            while (executor.getExecutedCount() < 1)
+                Thread.sleep(10);
+            assertEquals(1, executor.getExpiredCount());
+            synchronized (log) {
+                assertEquals(Arrays.asList(1), log);
+            }
+        } finally {
+            executor.shutdown();
+            assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testSlowTask() throws Exception {
+        BoundedDropOldestExecutor executor = new BoundedDropOldestExecutor(2, 16, Executors.defaultThreadFactory());
+        try {
+            final CountDownLatch started = new CountDownLatch(1);
+            final CountDownLatch latch = new CountDownLatch(1);
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    started.countDown();
+                    try {
+                        latch.await();
+                    } catch (InterruptedException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            });
+            started.await();
+
+            // The other worker runs everything queued behind the slow task.
+            List<Integer> log = new ArrayList<Integer>();
+            for (int i = 0; i < 8; i++)
+                executor.execute(new Task(log, i));
+            while (executor.getExecutedCount() < 8)
+                Thread.sleep(10);
+            synchronized (log) {
+                assertEquals(Arrays.asList(0, 1, 2, 3, 4, 5, 6, 7), log);
+            }
+            latch.countDown();
+        } finally {
+            executor.shutdown();
+            assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testError() throws Exception {
+        BoundedDropOldestExecutor executor = new BoundedDropOldestExecutor(2, 16, Executors.defaultThreadFactory());
+        try {
+            List<Integer> log = new ArrayList<Integer>();
+            // The workers survive the Errors, and run the tasks.
+            for (int i = 0; i < 4; i++) {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        throw new AssertionError("Expected failure.");
+                    }
+                });
+            }
+            for (int i = 0; i < 2; i++)
+                executor.execute(new Task(log, i));
+            while (executor.getExecutedCount() < 6)
+                Thread.sleep(10);
+            synchronized (log) {
+                assertEquals(2, log.size());
+            }
+        } finally {
+            executor.shutdown();
+            assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+        }
+    }
+}
@@ -0,0 +1,233 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.anarres.dhcp.common.concurrent;
+
+import com.google.common.net.InetAddresses;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Nonnull;
+import org.apache.directory.server.dhcp.messages.DhcpMessage;
+import org.apache.directory.server.dhcp.messages.MessageType;
+import org.apache.directory.server.dhcp.service.RequestPriority;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author shevek
+ */
+public class PriorityExecutorTest {
+
+    private static final Logger LOG = LoggerFactory.getLogger(PriorityExecutorTest.class);
+
+    private static class Task implements PriorityExecutor.Prioritized, Discardable {
+
+        private final List<Integer> log;
+        private final int id;
+        private final int priority;
+        private final long deadline;
+        /** Why the executor discarded this task, if it did. */
+        private volatile String discard;
+
+        public Task(List<Integer> log, int id, int priority, long deadline) {
+            this.log = log;
+            this.id = id;
+            this.priority = priority;
+            this.deadline = deadline;
+        }
+
+        public Task(List<Integer> log, int id, int priority) {
+            this(log, id, priority, System.nanoTime() + TimeUnit.HOURS.toNanos(1));
+        }
+
+        @Override
+        public int getPriority() {
+            return priority;
+        }
+
+        @Override
+        public long getDeadline() {
+            return deadline;
+        }
+
+        @Override
+        public void run() {
+            synchronized (log) {
+                log.add(id);
+            }
+        }
+
+        @Override
+        public void overflowed() {
+            discard = "overflowed";
+        }
+
+        @Override
+        public void expired() {
+            discard = "expired";
+        }
+
+        @Override
+        public String toString() {
+            return "Task(" + id + ")";
+        }
+    }
+
+    /** Occupies the single worker until the returned latch is released. */
+    @Nonnull
+    private static CountDownLatch block(@Nonnull PriorityExecutor executor) throws InterruptedException {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch latch = new CountDownLatch(1);
+        executor.execute(new Task(new ArrayList<Integer>(), -1, 0) {
+            @Override
+            public void run() {
+                started.countDown();
+                try {
+                    latch.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+        started.await();
+        return latch;
+    }
+
+    private static void await(@Nonnull PriorityExecutor executor, long count) throws InterruptedException {
+        for (;;) {
+            long done = 0;
+            for (int i = 0; i < executor.getLevelCount(); i++)
+                done += executor.getExecutedCount(i) + executor.getDroppedCount(i) + executor.getExpiredCount(i);
+            if (done >= count)
+                return;
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    public void testPriority() throws Exception {
+        final List<Integer> discarded = new ArrayList<Integer>();
+        PriorityExecutor executor = new PriorityExecutor(1, 3, 4, Executors.defaultThreadFactory()) {
+            @Override
+            protected void discarded(Runnable task) {
+                synchronized (discarded) {
+                    discarded.add(((Task) task).id);
+                }
+            }
+        };
+        try {
+            CountDownLatch latch = block(executor);
+            List<Integer> log = new ArrayList<Integer>();
+            executor.execute(new Task(log, 20, 2));
+            executor.execute(new Task(log, 10, 1));
+            executor.execute(new Task(log, 21, 2));
+            executor.execute(new Task(log, 0, 0));
+            // Full: the oldest lowest-priority task makes room.
+            executor.execute(new Task(log, 1, 0));
+            executor.execute(new Task(log, 11, 1));
+            // Full of more important work, so the new task is refused.
+            Task refused = new Task(log, 22, 2);
+            executor.execute(refused);
+            assertEquals(Arrays.asList(20, 21, 22), discarded);
+            assertEquals("overflowed", refused.discard);
+            assertEquals(2, executor.getQueueDepth(0));
+            assertEquals(3, executor.getDroppedCount(2));
+            LOG.info("Executor is " + executor);
+
+            latch.countDown();
+            await(executor, 8);
+            synchronized (log) {
+                assertEquals(Arrays.asList(0, 1, 10, 11), log);
+            }
+        } finally {
+            executor.shutdown();
+            assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test
+    public void testDeadline() throws Exception {
+        PriorityExecutor executor = new PriorityExecutor(1, 2, 16, Executors.defaultThreadFactory());
+        try {
+            CountDownLatch latch = block(executor);
+            final List<Integer> log = new ArrayList<Integer>();
+            // Not Prioritized: lowest priority, no deadline.
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (log) {
+                        log.add(2);
+                    }
+                }
+            });
+            Task expired = new Task(log, 0, 0, System.nanoTime() - 1);
+            executor.execute(expired);
+            executor.execute(new Task(log, 1, 0));
+            latch.countDown();
+            await(executor, 4);
+            assertEquals(1, executor.getExpiredCount(0));
+            assertEquals("expired", expired.discard);
+            assertEquals(1, executor.getExecutedCount(1));
+            synchronized (log) {
+                assertEquals(Arrays.asList(1, 2), log);
+            }
+        } finally {
+            executor.shutdown();
+            assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testError() throws Exception {
+        PriorityExecutor executor = new PriorityExecutor(1, 1, 16, Executors.defaultThreadFactory());
+        try {
+            final List<Integer> log = new ArrayList<Integer>();
+            for (int i = 0; i < 3; i++) {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        throw new AssertionError("Expected failure.");
+                    }
+                });
+                executor.execute(new Task(log, i, 0));
+            }
+            await(executor, 6);
+            // The single worker survived every Error.
+            assertEquals(6, executor.getExecutedCount(0));
+            synchronized (log) {
+                assertEquals(Arrays.asList(0, 1, 2), log);
+            }
+        } finally {
+            executor.shutdown();
+            assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test
+    public void testRequestPriority() {
+        DhcpMessage request = new DhcpMessage();
+        request.setMessageType(MessageType.DHCPREQUEST);
+        assertEquals(RequestPriority.DISCOVER, RequestPriority.forRequest(request));
+        request.setCurrentClientAddress(InetAddresses.forString("10.0.0.5"));
+        assertEquals(RequestPriority.RENEW, RequestPriority.forRequest(request));
+        request.setMessageType(MessageType.DHCPDISCOVER);
+        assertEquals(RequestPriority.DISCOVER, RequestPriority.forRequest(request));
+        request.setMessageType(MessageType.DHCPINFORM);
+        assertEquals(RequestPriority.INFORM, RequestPriority.forRequest(request));
+
+        assertEquals(TimeUnit.SECONDS.toNanos(4), RequestPriority.getDeadlineNanos(request));
+        request.setSeconds(10);
+        assertEquals(TimeUnit.SECONDS.toNanos(10), RequestPriority.getDeadlineNanos(request));
+        request.setSeconds(1000);
+        assertEquals(TimeUnit.SECONDS.toNanos(64), RequestPriority.getDeadlineNanos(request));
+    }
+}
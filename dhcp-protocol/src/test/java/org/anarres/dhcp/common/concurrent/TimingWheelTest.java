@@ -0,0 +1,84 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.anarres.dhcp.common.concurrent;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author shevek
+ */
+public class TimingWheelTest {
+
+    private static final Logger LOG = LoggerFactory.getLogger(TimingWheelTest.class);
+
+    @Test
+    public void testExpiry() {
+        TimingWheel<String> wheel = new TimingWheel<String>(1, TimeUnit.SECONDS, 0);
+        wheel.schedule("a", 1500);
+        wheel.schedule("b", 3000);
+        TimingWheel.Timeout<String> c = wheel.schedule("c", 2000);
+        assertEquals(3, wheel.size());
+        assertTrue(wheel.advance(1999).isEmpty());
+        assertTrue(wheel.cancel(c));
+        assertFalse(wheel.cancel(c));
+        assertEquals(Collections.singletonList("a"), wheel.advance(2000));
+        assertEquals(Collections.singletonList("b"), wheel.advance(10000));
+        assertEquals(0, wheel.size());
+        LOG.info("Wheel is " + wheel);
+    }
+
+    @Test(timeout = 10000)
+    public void testIdle() {
+        TimingWheel<String> wheel = new TimingWheel<String>(1, TimeUnit.MILLISECONDS, 0);
+        wheel.schedule("a", 100);
+        wheel.schedule("b", 1L << 40);
+        wheel.schedule("c", (1L << 40) + 1);
+        // Catching up over empty slots must not visit each tick in turn.
+        assertEquals(Collections.singletonList("a"), wheel.advance((1L << 40) - 1));
+        assertEquals(Collections.singletonList("b"), wheel.advance(1L << 40));
+        assertEquals(Collections.singletonList("c"), wheel.advance(1L << 41));
+        assertEquals(0, wheel.size());
+        assertTrue(wheel.advance(1L << 42).isEmpty());
+    }
+
+    @Test
+    public void testCascade() {
+        Random r = new Random(1234);
+        TimingWheel<Long> wheel = new TimingWheel<Long>(1, TimeUnit.MILLISECONDS, 0);
+        List<Long> deadlines = new ArrayList<Long>();
+        for (int i = 0; i < 2000; i++) {
+            // Spans every level, and the overflow.
+            long deadline = 1 + (r.nextLong() & Long.MAX_VALUE) % (1L << (4 * 6 + 2));
+            deadlines.add(deadline);
+            wheel.schedule(deadline, deadline);
+        }
+        Collections.sort(deadlines);
+        int expired = 0;
+        long now = 0;
+        while (expired < deadlines.size()) {
+            now += 1 + r.nextInt(1 << 16);
+            for (Long deadline : wheel.advance(now)) {
+                assertTrue("Expired " + deadline + " early at " + now, deadline <= now);
+                expired++;
+            }
+            // Everything due has expired.
+            assertEquals(deadlines.size() - expired, wheel.size());
+            for (int i = 0; i < expired; i++)
+                assertTrue(deadlines.get(i) <= now);
+            if (expired < deadlines.size())
+                assertTrue("Late: " + deadlines.get(expired) + " at " + now, deadlines.get(expired) > now);
+        }
+    }
+}
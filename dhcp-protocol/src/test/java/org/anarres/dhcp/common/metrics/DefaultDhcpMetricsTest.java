@@ -0,0 +1,92 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.anarres.dhcp.common.metrics;
+
+import com.google.common.net.InetAddresses;
+import java.net.InetSocketAddress;
+import org.anarres.dhcp.common.address.InterfaceAddress;
+import org.anarres.dhcp.v6.messages.Dhcp6MessageType;
+import org.apache.directory.server.dhcp.DhcpException;
+import org.apache.directory.server.dhcp.io.DhcpRequestContext;
+import org.apache.directory.server.dhcp.messages.DhcpMessage;
+import org.apache.directory.server.dhcp.messages.HardwareAddress;
+import org.apache.directory.server.dhcp.messages.MessageType;
+import org.apache.directory.server.dhcp.service.AbstractDhcpService;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author shevek
+ */
+public class DefaultDhcpMetricsTest {
+
+    private static final Logger LOG = LoggerFactory.getLogger(DefaultDhcpMetricsTest.class);
+
+    @Test
+    public void testCounters() {
+        DefaultDhcpMetrics metrics = new DefaultDhcpMetrics();
+        metrics.recordRequest(MessageType.DHCPDISCOVER);
+        metrics.recordRequest(MessageType.DHCPDISCOVER);
+        metrics.recordRequest(Dhcp6MessageType.DHCP_SOLICIT);
+        metrics.recordReply(MessageType.DHCPOFFER);
+        metrics.recordDrop(DhcpMetrics.Drop.EXPIRED);
+        metrics.recordLatency(DhcpMetrics.Stage.DECODE, (MessageType) null, 1000);
+        metrics.recordLatency(DhcpMetrics.Stage.DECODE, MessageType.DHCPDISCOVER, 2000);
+        LOG.info("Metrics are " + metrics);
+
+        assertEquals(2, metrics.getRequestCount(MessageType.DHCPDISCOVER));
+        assertEquals(0, metrics.getRequestCount(MessageType.DHCPREQUEST));
+        assertEquals(1, metrics.getRequestCount(Dhcp6MessageType.DHCP_SOLICIT));
+        assertEquals(1, metrics.getReplyCount(MessageType.DHCPOFFER));
+        assertEquals(1, metrics.getDropCount(DhcpMetrics.Drop.EXPIRED));
+        assertEquals(1000, metrics.getLatency(DhcpMetrics.Stage.DECODE, (MessageType) null).getMax());
+        assertEquals(2000, metrics.getLatency(DhcpMetrics.Stage.DECODE, MessageType.DHCPDISCOVER).getMax());
+        assertEquals(0, metrics.getLatency(DhcpMetrics.Stage.DECODE, (Dhcp6MessageType) null).getCount());
+    }
+
+    @Test
+    public void testService() throws Exception {
+        AbstractDhcpService service = new AbstractDhcpService() {
+            @Override
+            protected DhcpMessage handleDISCOVER(DhcpRequestContext context, DhcpMessage request) throws DhcpException {
+                DhcpMessage reply = new DhcpMessage();
+                reply.setOp(DhcpMessage.OP_BOOTREPLY);
+                reply.setMessageType(MessageType.DHCPOFFER);
+                return reply;
+            }
+        };
+        DefaultDhcpMetrics metrics = new DefaultDhcpMetrics();
+        service.setMetrics(metrics);
+
+        DhcpRequestContext context = new DhcpRequestContext(
+                new InterfaceAddress(InetAddresses.forString("10.0.0.1"), 24),
+                new InetSocketAddress(InetAddresses.forString("10.0.0.5"), 68),
+                new InetSocketAddress(InetAddresses.forString("10.0.0.1"), 67));
+        DhcpMessage request = new DhcpMessage();
+        request.setOp(DhcpMessage.OP_BOOTREQUEST);
+        request.setMessageType(MessageType.DHCPDISCOVER);
+        request.setHardwareAddress(HardwareAddress.fromString("00:11:22:33:44:55"));
+        assertNotNull(service.getReplyFor(context, request));
+
+        request.setMessageType(MessageType.DHCPINFORM);
+        assertNull(service.getReplyFor(context, request));
+
+        request.setMessageType(null);
+        assertNull(service.getReplyFor(context, request));
+
+        LOG.info("Metrics are " + metrics);
+        assertEquals(1, metrics.getRequestCount(MessageType.DHCPDISCOVER));
+        assertEquals(1, metrics.getRequestCount(MessageType.DHCPINFORM));
+        assertEquals(1, metrics.getReplyCount(MessageType.DHCPOFFER));
+        assertEquals(1, metrics.getDropCount(DhcpMetrics.Drop.NO_REPLY));
+        assertEquals(1, metrics.getDropCount(DhcpMetrics.Drop.INVALID));
+        assertEquals(1, metrics.getLatency(DhcpMetrics.Stage.LEASE, MessageType.DHCPDISCOVER).getCount());
+        assertEquals(1, metrics.getLatency(DhcpMetrics.Stage.LEASE, MessageType.DHCPINFORM).getCount());
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.anarres.dhcp.common.metrics;
+
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author shevek
+ */
+public class LatencyHistogramTest {
+
+    private static final Logger LOG = LoggerFactory.getLogger(LatencyHistogramTest.class);
+
+    @Test
+    public void testBuckets() {
+        for (int bucket = 0; bucket < LatencyHistogram.BUCKET_COUNT - 1; bucket++) {
+            long lower = LatencyHistogram.getLowerBound(bucket);
+            long upper = LatencyHistogram.getUpperBound(bucket);
+            assertEquals(bucket, LatencyHistogram.getBucket(lower));
+            assertEquals(bucket, LatencyHistogram.getBucket(upper));
+            assertEquals(upper + 1, LatencyHistogram.getLowerBound(bucket + 1));
+            // Relative error is bounded by the sub-bucket resolution.
+            if (lower > 0)
+                assertTrue("Bucket " + bucket + " too wide", (upper - lower) * 32 <= lower);
+        }
+        assertEquals(0, LatencyHistogram.getBucket(-1));
+        assertEquals(LatencyHistogram.BUCKET_COUNT - 1, LatencyHistogram.getBucket(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void testQuantiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getValueAtQuantile(0.5));
+        for (int i = 1; i <= 1000; i++)
+            histogram.record(TimeUnit.MICROSECONDS.toNanos(i));
+        LOG.info("Histogram is " + histogram);
+        assertEquals(1000, histogram.getCount());
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(1), histogram.getMax());
+        assertEquals(TimeUnit.MICROSECONDS.toNanos(500500), histogram.getTotal());
+
+        long p50 = histogram.getValueAtQuantile(0.5);
+        assertTrue("p50 was " + p50, p50 >= TimeUnit.MICROSECONDS.toNanos(500));
+        assertTrue("p50 was " + p50, p50 <= TimeUnit.MICROSECONDS.toNanos(520));
+        long p99 = histogram.getValueAtQuantile(0.99);
+        assertTrue("p99 was " + p99, p99 >= TimeUnit.MICROSECONDS.toNanos(990));
+        assertTrue("p99 was " + p99, p99 <= TimeUnit.MICROSECONDS.toNanos(1000));
+        assertEquals(histogram.getMax(), histogram.getValueAtQuantile(1));
+
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMax());
+    }
+}
@@ -6,7 +6,12 @@ import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
+import com.google.common.net.InetAddresses;
 import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.anarres.dhcp.v6.options.DuidOption;
 import org.junit.Before;
 import org.junit.Test;
@@ -40,4 +45,77 @@ public class ClientBindingRegistryTest {
 
         assertEquals(clientBinding, registry.remove(duid, iaid));
     }
-}
\ No newline at end of file
+
+    @Test public void testRemoveUnknownIa() throws Exception {
+        registry.add(duid, iaid, localHost);
+        assertNull(registry.remove(duid, iaid + 1));
+        assertTrue(registry.containsIp(localHost));
+    }
+
+    @Test public void testConflict() throws Exception {
+        final DuidOption.Duid other = new DuidOption.Duid(new byte[] { 5, 6, 7, 8 });
+        final InetAddress otherIp = InetAddresses.forString("2001:db8::2");
+        assertTrue(registry.add(duid, iaid, localHost));
+        assertTrue(registry.add(duid, iaid, localHost));
+        assertFalse(registry.add(other, iaid, localHost));
+        assertFalse(registry.add(duid, iaid + 1, localHost));
+        assertNull(registry.get(other, iaid));
+
+        // Rebinding an IA releases its previous address.
+        assertTrue(registry.add(duid, iaid, otherIp));
+        assertFalse(registry.containsIp(localHost));
+        assertTrue(registry.add(other, iaid, localHost));
+        assertEquals(2, registry.size());
+    }
+
+    @Test public void testRemoveSameIaid() throws Exception {
+        // Bindings of different clients with the same IAID are equal, but must not unmap each other.
+        final DuidOption.Duid other = new DuidOption.Duid(new byte[] { 5, 6, 7, 8 });
+        final InetAddress otherIp = InetAddresses.forString("2001:db8::2");
+        assertTrue(registry.add(duid, iaid, localHost));
+        final ClientBindingRegistry.ClientBinding binding = registry.get(duid, iaid);
+        assertTrue(registry.add(duid, iaid, otherIp));
+        assertTrue(registry.add(other, iaid, localHost));
+        assertEquals(binding, registry.get(other, iaid));
+
+        assertFalse(registry.remove(duid, binding));
+        assertNotNull(registry.remove(duid, iaid));
+        assertTrue(registry.containsIp(localHost));
+        assertFalse(registry.containsIp(otherIp));
+        assertTrue(registry.remove(other, registry.get(other, iaid)));
+        assertFalse(registry.containsIp(localHost));
+    }
+
+    @Test public void testConcurrent() throws Exception {
+        final int threads = 8;
+        final int addresses = 256;
+        final AtomicInteger bound = new AtomicInteger();
+        final CountDownLatch latch = new CountDownLatch(1);
+        final List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            final DuidOption.Duid client = new DuidOption.Duid(new byte[] { 9, (byte) t });
+            final Thread thread = new Thread() {
+                @Override public void run() {
+                    try {
+                        latch.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    InetAddress ip = InetAddresses.forString("2001:db8::");
+                    for (int i = 0; i < addresses; i++) {
+                        ip = InetAddresses.increment(ip);
+                        if (registry.add(client, i, ip))
+                            bound.incrementAndGet();
+                    }
+                }
+            };
+            thread.start();
+            workers.add(thread);
+        }
+        latch.countDown();
+        for (Thread thread : workers)
+            thread.join();
+        assertEquals(addresses, bound.get());
+        assertEquals(addresses, registry.size());
+    }
+}
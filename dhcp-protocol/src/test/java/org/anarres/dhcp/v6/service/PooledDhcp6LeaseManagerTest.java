@@ -1,16 +1,24 @@
 package org.anarres.dhcp.v6.service;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 import com.google.common.base.Optional;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
 import org.anarres.dhcp.v6.Dhcp6Exception;
+import org.anarres.dhcp.v6.io.Dhcp6RequestContext;
 import org.anarres.dhcp.v6.messages.Dhcp6Message;
 import org.anarres.dhcp.v6.messages.Dhcp6MessageType;
 import org.anarres.dhcp.v6.options.Dhcp6Options;
+import org.anarres.dhcp.v6.options.DuidOption;
 import org.anarres.dhcp.v6.options.IaAddressOption;
 import org.anarres.dhcp.v6.options.IaNaOption;
+import org.anarres.dhcp.v6.options.IaOption;
 import org.anarres.dhcp.v6.options.StatusCodeOption;
 import org.anarres.dhcp.v6.service.AbstractDhcp6LeaseManager.Lifetimes;
 import org.junit.Test;
@@ -57,4 +65,158 @@ public class PooledDhcp6LeaseManagerTest extends AbstractDhcp6LeaseManagerTest {
         assertEquals(1, numberOfAddressesLeased);
     }
 
+    @Test
+    public void testRequestEmptyPool() throws Dhcp6Exception, UnknownHostException {
+        final Dhcp6LeaseManager leaseManager = getLeaseManagerInstance("FF02::1", "FF02::1"); // the end is exclusive, so no addresses
+        IaNaOption iaNa1 = IaNaOption.create(1, 2, 3, Optional.of(new Dhcp6Options()));
+        Dhcp6Message request = createDhcp6Message(Dhcp6MessageType.DHCP_REQUEST, clientId, iaNa1);
+
+        Dhcp6Message reply = leaseManager.lease(requestContext, request, new Dhcp6Message());
+        final Dhcp6Options responseOptions = reply.getOptions();
+
+        assertAppearedNTimes(responseOptions, IaNaOption.class, 1);
+        final Dhcp6Options options = responseOptions.get(IaNaOption.class).getOptions();
+        assertFalse(options.contains(IaAddressOption.class));
+        assertStatusEquals(options, StatusCodeOption.NO_ADDRS_AVAIL);
+    }
+
+    @Test
+    public void testRequestOneAddressPool() throws Dhcp6Exception, UnknownHostException {
+        final PooledDhcp6LeaseManager leaseManager = (PooledDhcp6LeaseManager) getLeaseManagerInstance("FF02::1", "FF02::2");
+        IaNaOption iaNa1 = IaNaOption.create(1, 2, 3, Optional.of(new Dhcp6Options()));
+        leaseManager.lease(requestContext, createDhcp6Message(Dhcp6MessageType.DHCP_REQUEST, clientId, iaNa1), new Dhcp6Message());
+        assertEquals(InetAddress.getByName("FF02::1"), leaseManager.getIaNaRegistry().get(clientId.getDuid(), 1).getIp());
+
+        // The only address is taken, then returned to the pool on release.
+        IaNaOption iaNa2 = IaNaOption.create(2, 2, 3, Optional.of(new Dhcp6Options()));
+        assertNull(leaseManager.newIp(requestContext, clientId.getDuid(), iaNa2));
+        leaseManager.releaseIp(clientId.getDuid(), 1, InetAddress.getByName("FF02::1"));
+        assertEquals(InetAddress.getByName("FF02::1"), leaseManager.newIp(requestContext, clientId.getDuid(), iaNa2));
+    }
+
+    @Test
+    public void testExpiry() throws Dhcp6Exception, UnknownHostException {
+        final PooledDhcp6LeaseManager leaseManager = (PooledDhcp6LeaseManager) getLeaseManagerInstance("FF02::1", "FF02::2");
+        final List<ClientBindingRegistry.ClientBinding> expired = new ArrayList<>();
+        leaseManager.addExpiryListener(new AbstractDhcp6LeaseManager.ExpiryListener() {
+            @Override
+            public void bindingExpired(ClientBindingRegistry registry, DuidOption.Duid clientId, ClientBindingRegistry.ClientBinding binding) {
+                expired.add(binding);
+            }
+        });
+        IaNaOption iaNa1 = IaNaOption.create(1, 2, 3, Optional.of(new Dhcp6Options()));
+        Dhcp6Message request = createDhcp6Message(Dhcp6MessageType.DHCP_REQUEST, clientId, iaNa1);
+        leaseManager.lease(requestContext, request, new Dhcp6Message());
+        assertEquals(1, leaseManager.getIaNaRegistry().size());
+
+        // Valid lifetime is 4 seconds.
+        final long now = AbstractDhcp6LeaseManager.now();
+        leaseManager.expireBindings(now + 2000);
+        assertEquals(1, leaseManager.getIaNaRegistry().size());
+        leaseManager.expireBindings(now + 6000);
+        assertEquals(0, leaseManager.getIaNaRegistry().size());
+        assertEquals(1, expired.size());
+        assertEquals(InetAddress.getByName("FF02::1"), expired.get(0).getIp());
+
+        // The address was returned to the pool.
+        IaNaOption iaNa2 = IaNaOption.create(2, 2, 3, Optional.of(new Dhcp6Options()));
+        request = createDhcp6Message(Dhcp6MessageType.DHCP_REQUEST, clientId, iaNa2);
+        leaseManager.lease(requestContext, request, new Dhcp6Message());
+        assertEquals(InetAddress.getByName("FF02::1"), leaseManager.getIaNaRegistry().get(clientId.getDuid(), 2).getIp());
+    }
+
+    @Test
+    public void testReplacedBindingReleased() throws Dhcp6Exception, UnknownHostException {
+        final PooledDhcp6LeaseManager leaseManager = (PooledDhcp6LeaseManager) getLeaseManagerInstance("FF02::1", "FF02::3");
+        final ClientBindingRegistry registry = leaseManager.getIaNaRegistry();
+        IaNaOption iaNa1 = IaNaOption.create(1, 2, 3, Optional.of(new Dhcp6Options()));
+        Dhcp6Message request = createDhcp6Message(Dhcp6MessageType.DHCP_REQUEST, clientId, iaNa1);
+        leaseManager.lease(requestContext, request, new Dhcp6Message());
+        assertEquals(InetAddress.getByName("FF02::1"), registry.get(clientId.getDuid(), 1).getIp());
+
+        // As if a concurrent request for the same IA allocated and bound another address.
+        final InetAddress other = leaseManager.newIp(requestContext, clientId.getDuid(), iaNa1);
+        assertEquals(InetAddress.getByName("FF02::2"), other);
+        assertTrue(registry.add(clientId.getDuid(), 1, other));
+        assertEquals(1, registry.size());
+
+        // The first address was returned to the pool.
+        IaNaOption iaNa2 = IaNaOption.create(2, 2, 3, Optional.of(new Dhcp6Options()));
+        request = createDhcp6Message(Dhcp6MessageType.DHCP_REQUEST, clientId, iaNa2);
+        leaseManager.lease(requestContext, request, new Dhcp6Message());
+        assertEquals(InetAddress.getByName("FF02::1"), registry.get(clientId.getDuid(), 2).getIp());
+    }
+
+    @Test
+    public void testLostRaceReleased() throws Dhcp6Exception, UnknownHostException {
+        final InetAddress address = InetAddress.getByName("FF02::1");
+        final DuidOption.Duid otherId = new DuidOption.Duid(new byte[] { 5, 6, 7, 8 });
+        final ClientBindingRegistry iaNa = ClientBindingRegistry.createForIaNa();
+        final List<InetAddress> released = new ArrayList<InetAddress>();
+        // Always chooses an address which another client has already bound.
+        final AbstractDhcp6LeaseManager leaseManager = new AbstractDhcp6LeaseManager(new Lifetimes(1, 2, 3, 4), iaNa, ClientBindingRegistry.createForIaTa()) {
+            @Override
+            protected boolean isAppropriate(Dhcp6RequestContext requestContext, DuidOption.Duid clientId, int iaid, InetAddress ip) {
+                return true;
+            }
+
+            @Override
+            protected InetAddress newIp(Dhcp6RequestContext requestContext, DuidOption.Duid clientId, IaOption iaOption) {
+                return address;
+            }
+
+            @Override
+            protected void releaseIp(DuidOption.Duid clientId, int iaid, InetAddress ip) {
+                released.add(ip);
+            }
+        };
+        assertTrue(iaNa.add(otherId, 1, address));
+
+        IaNaOption iaNa1 = IaNaOption.create(1, 2, 3, Optional.of(new Dhcp6Options()));
+        Dhcp6Message request = createDhcp6Message(Dhcp6MessageType.DHCP_REQUEST, clientId, iaNa1);
+        Dhcp6Message reply = leaseManager.lease(requestContext, request, new Dhcp6Message());
+        assertStatusEquals(reply.getOptions().get(IaNaOption.class).getOptions(), StatusCodeOption.NO_ADDRS_AVAIL);
+        // Every address chosen and not bound was released, including the last.
+        assertFalse(released.isEmpty());
+        for (InetAddress ip : released)
+            assertEquals(address, ip);
+        assertNull(iaNa.get(clientId.getDuid(), 1));
+        assertEquals(address, iaNa.get(otherId, 1).getIp());
+    }
+
+    @Test
+    public void testRenewConcurrentExpiry() throws Dhcp6Exception, UnknownHostException {
+        final InetAddress address = InetAddress.getByName("FF02::1");
+        // Simulates a binding which expires on another thread just after it is first read.
+        final ClientBindingRegistry iaNa = new ClientBindingRegistry("IaNa") {
+            private boolean read = false;
+
+            @Override
+            public ClientBindingRegistry.ClientBinding get(DuidOption.Duid clientId, int iaid) {
+                if (read)
+                    return null;
+                ClientBindingRegistry.ClientBinding binding = super.get(clientId, iaid);
+                read = binding != null;
+                return binding;
+            }
+        };
+        iaNa.add(clientId.getDuid(), 1, address);
+        final AbstractDhcp6LeaseManager leaseManager = new AbstractDhcp6LeaseManager(new Lifetimes(1, 2, 3, 4), iaNa, ClientBindingRegistry.createForIaTa()) {
+            @Override
+            protected boolean isAppropriate(Dhcp6RequestContext requestContext, DuidOption.Duid clientId, int iaid, InetAddress ip) {
+                return true;
+            }
+
+            @Override
+            protected InetAddress newIp(Dhcp6RequestContext requestContext, DuidOption.Duid clientId, IaOption iaOption) {
+                return null;
+            }
+        };
+
+        IaNaOption iaNa1 = IaNaOption.create(1, 2, 3, Optional.of(new Dhcp6Options()));
+        Dhcp6Message request = createDhcp6Message(Dhcp6MessageType.DHCP_RENEW, clientId, iaNa1);
+        Dhcp6Message reply = leaseManager.renew(requestContext, request, new Dhcp6Message());
+        IaNaOption option = reply.getOptions().get(IaNaOption.class);
+        assertEquals(address, option.getOptions().get(IaAddressOption.class).getIp());
+    }
 }
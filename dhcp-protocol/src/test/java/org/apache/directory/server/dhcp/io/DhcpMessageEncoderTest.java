@@ -6,17 +6,24 @@ package org.apache.directory.server.dhcp.io;
 
 import java.net.InetAddress;
 import java.nio.ByteBuffer;
+import java.util.Arrays;
+import javax.annotation.Nonnull;
 import org.apache.directory.server.dhcp.messages.DhcpMessage;
 import org.apache.directory.server.dhcp.messages.HardwareAddress;
 import org.apache.directory.server.dhcp.messages.HardwareAddressType;
 import org.apache.directory.server.dhcp.messages.MessageType;
 import org.apache.directory.server.dhcp.options.dhcp.BootfileName;
 import org.apache.directory.server.dhcp.options.dhcp.IpAddressLeaseTime;
+import org.apache.directory.server.dhcp.options.dhcp.MaximumDhcpMessageSize;
 import org.apache.directory.server.dhcp.options.dhcp.ServerIdentifier;
 import org.apache.directory.server.dhcp.options.dhcp.TftpServerName;
 import org.apache.directory.server.dhcp.options.perinterface.BroadcastAddress;
 import org.apache.directory.server.dhcp.options.vendor.SubnetMask;
+import org.apache.directory.server.dhcp.options.dhcp.UnrecognizedOption;
 import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import static org.junit.Assert.*;
 
 /**
  *
@@ -24,6 +31,8 @@ import org.junit.Test;
  */
 public class DhcpMessageEncoderTest {
 
+    private static final Logger LOG = LoggerFactory.getLogger(DhcpMessageEncoderTest.class);
+
     @Test
     public void testEncoder() throws Exception {
 
@@ -47,4 +56,108 @@ public class DhcpMessageEncoderTest {
         ByteBuffer buf = ByteBuffer.allocate(1024);
         encoder.encode(buf, message);
     }
-}
\ No newline at end of file
+
+    @Nonnull
+    private static DhcpMessage newMessage(int optionCount, int optionLength) throws Exception {
+        DhcpMessage message = new DhcpMessage();
+        message.setMessageType(MessageType.DHCPOFFER);
+        message.setOp(DhcpMessage.OP_BOOTREPLY);
+        message.setHardwareAddress(new HardwareAddress(HardwareAddressType.Ethernet, new byte[]{1, 2, 3, 4, 5, 6}));
+        message.getOptions().setIntOption(IpAddressLeaseTime.class, 600);
+        for (int i = 0; i < optionCount; i++) {
+            UnrecognizedOption option = new UnrecognizedOption((byte) (200 + i));
+            byte[] data = new byte[optionLength];
+            Arrays.fill(data, (byte) i);
+            option.setData(data);
+            message.getOptions().add(option);
+        }
+        return message;
+    }
+
+    @Nonnull
+    private static DhcpMessageView encode(@Nonnull DhcpMessage message, int maxLength) throws Exception {
+        DhcpMessageEncoder encoder = new DhcpMessageEncoder();
+        int length = encoder.getLength(message, maxLength);
+        LOG.info("Length is " + length + " (max " + maxLength + ")");
+        assertTrue(length <= maxLength);
+        ByteBuffer buf = ByteBuffer.allocate(length);
+        encoder.encode(buf, message, maxLength);
+        assertEquals("Length was not exact.", 0, buf.remaining());
+        buf.flip();
+        return new DhcpMessageView().wrap(buf);
+    }
+
+    @Test
+    public void testLength() throws Exception {
+        DhcpMessage message = newMessage(4, 20);
+        DhcpMessageView view = encode(message, DhcpMessageEncoder.MINIMUM_MAXIMUM_MESSAGE_SIZE);
+        assertEquals(MessageType.DHCPOFFER, view.getMessageType());
+        assertEquals(51, view.getOptionTag(0) & 0xFF);
+        assertEquals(53, view.getOptionTag(1) & 0xFF);
+        assertFalse(view.hasOption((byte) 52));
+        for (int i = 0; i < 4; i++)
+            assertEquals(20, view.getOptionLength((byte) (200 + i)));
+    }
+
+    @Test
+    public void testOverload() throws Exception {
+        // 336 bytes of options field; these will not fit without overload.
+        DhcpMessage message = newMessage(5, 70);
+        DhcpMessageView view = encode(message, DhcpMessageEncoder.MINIMUM_MAXIMUM_MESSAGE_SIZE);
+        assertTrue(view.getLength() <= DhcpMessageEncoder.MINIMUM_MAXIMUM_MESSAGE_SIZE);
+        assertTrue(view.hasOption((byte) 52));
+        assertNull(view.getBootFileName());
+        for (int i = 0; i < 5; i++)
+            assertArrayEquals(message.getOptions().get((byte) (200 + i)).getData(), view.getOption((byte) (200 + i)));
+
+        // Now it fits.
+        view = encode(message, 1024);
+        assertFalse(view.hasOption((byte) 52));
+    }
+
+    @Test
+    public void testDrop() throws Exception {
+        DhcpMessage message = newMessage(8, 100);
+        message.setBootFileName("pxelinux.0");
+        message.setServerHostname("server");
+        DhcpMessageView view = encode(message, DhcpMessageEncoder.MINIMUM_MAXIMUM_MESSAGE_SIZE);
+        assertFalse(view.hasOption((byte) 52));
+        assertEquals("pxelinux.0", view.getBootFileName());
+        assertEquals(MessageType.DHCPOFFER, view.getMessageType());
+        assertTrue(view.hasOption((byte) 200));
+        assertTrue(view.hasOption((byte) 201));
+        assertFalse(view.hasOption((byte) 202));
+    }
+
+    @Test
+    public void testMaximumMessageSize() throws Exception {
+        DhcpMessage request = new DhcpMessage();
+        assertEquals(1024, DhcpMessageEncoder.getMaximumMessageSize(request));
+        // The option counts the IP and UDP headers.
+        request.getOptions().setShortOption(MaximumDhcpMessageSize.class, 1500);
+        assertEquals(1472, DhcpMessageEncoder.getMaximumMessageSize(request));
+        request.getOptions().setShortOption(MaximumDhcpMessageSize.class, 576);
+        assertEquals(548, DhcpMessageEncoder.getMaximumMessageSize(request));
+        request.getOptions().setShortOption(MaximumDhcpMessageSize.class, 300);
+        assertEquals(548, DhcpMessageEncoder.getMaximumMessageSize(request));
+    }
+
+    @Test
+    public void testMaximumMessageSizeDatagram() throws Exception {
+        DhcpMessage request = new DhcpMessage();
+        request.getOptions().setShortOption(MaximumDhcpMessageSize.class, 576);
+        // 350 bytes of options; these fit in 576 bytes, but not in 548 without overload.
+        DhcpMessage message = newMessage(5, 68);
+        DhcpMessageView view = encode(message, DhcpMessageEncoder.getMaximumMessageSize(request));
+        // The whole IP datagram fits within what the client asked for.
+        assertTrue(view.getLength() + 20 + 8 <= 576);
+        assertTrue(view.hasOption((byte) 52));
+        for (int i = 0; i < 5; i++)
+            assertArrayEquals(message.getOptions().get((byte) (200 + i)).getData(), view.getOption((byte) (200 + i)));
+
+        // A client which sends no option gets the usual budget, with no overload.
+        view = encode(message, DhcpMessageEncoder.getMaximumMessageSize(new DhcpMessage()));
+        assertTrue(view.getLength() > 576);
+        assertFalse(view.hasOption((byte) 52));
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.apache.directory.server.dhcp.io;
+
+import com.google.common.net.InetAddresses;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import org.apache.directory.server.dhcp.AbstractDhcpTestCase;
+import org.apache.directory.server.dhcp.DhcpException;
+import org.apache.directory.server.dhcp.messages.DhcpMessage;
+import org.apache.directory.server.dhcp.messages.MessageType;
+import org.apache.directory.server.dhcp.options.DhcpOption;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author shevek
+ */
+public class DhcpMessageViewTest extends AbstractDhcpTestCase {
+
+    private static final Logger LOG = LoggerFactory.getLogger(DhcpMessageViewTest.class);
+
+    private static int toInt(InetAddress address) {
+        return InetAddresses.coerceToInteger(address);
+    }
+
+    private void assertViewMatches(String file) throws Exception {
+        ByteBuffer buffer = getByteBufferFromFile(file);
+        DhcpMessage message = new DhcpMessageDecoder().decode(buffer.duplicate());
+        DhcpMessageView view = new DhcpMessageView().wrap(buffer);
+        LOG.info(file + ": " + view);
+
+        assertEquals(0, buffer.position());
+        assertEquals(message.getOp(), view.getOp());
+        assertEquals(message.getMessageType(), view.getMessageType());
+        assertEquals(message.getTransactionId(), view.getTransactionId());
+        assertEquals(message.getSeconds(), view.getSeconds());
+        assertEquals(message.getFlags(), view.getFlags());
+        assertEquals(message.getHopCount(), view.getHopCount());
+        assertEquals(toInt(message.getCurrentClientAddress()), view.getCurrentClientAddressAsInt());
+        assertEquals(toInt(message.getAssignedClientAddress()), view.getAssignedClientAddressAsInt());
+        assertEquals(toInt(message.getNextServerAddress()), view.getNextServerAddressAsInt());
+        assertEquals(toInt(message.getRelayAgentAddress()), view.getRelayAgentAddressAsInt());
+        assertEquals(message.getHardwareAddress(), view.getHardwareAddress());
+        assertEquals(message.getServerHostname(), view.getServerHostname());
+        assertEquals(message.getBootFileName(), view.getBootFileName());
+
+        int count = 0;
+        for (DhcpOption option : message.getOptions()) {
+            assertTrue(view.hasOption(option.getTag()));
+            assertArrayEquals(option.getData(), view.getOption(option.getTag()));
+            count++;
+        }
+        assertEquals(count, view.getOptionCount());
+
+        // The view must be reusable.
+        view.wrap(getByteBufferFromFile(file));
+        assertEquals(count, view.getOptionCount());
+    }
+
+    @Test
+    public void testDiscover() throws Exception {
+        assertViewMatches("DHCPDISCOVER.pdu");
+    }
+
+    @Test
+    public void testOffer() throws Exception {
+        assertViewMatches("DHCPOFFER.pdu");
+    }
+
+    private static ByteBuffer newMessage(byte[] options) {
+        ByteBuffer buffer = ByteBuffer.allocate(240 + options.length);
+        buffer.put(0, DhcpMessage.OP_BOOTREQUEST);
+        buffer.put(1, (byte) 1);
+        buffer.put(2, (byte) 6);
+        buffer.putInt(4, 0x12345678);
+        buffer.put(28, (byte) 0x00);
+        buffer.put(29, (byte) 0x1b);
+        buffer.put(33, (byte) 0x7e);
+        buffer.putInt(236, 0x63825363);
+        buffer.position(240);
+        buffer.put(options);
+        buffer.flip();
+        return buffer;
+    }
+
+    @Test
+    public void testConcatenation() throws Exception {
+        // RFC 3396: option 43 split into two fragments around option 53.
+        ByteBuffer buffer = newMessage(new byte[]{43, 2, 1, 2, 53, 1, 3, 43, 3, 3, 4, 5, (byte) 0xFF});
+        DhcpMessageView view = new DhcpMessageView().wrap(buffer);
+        assertEquals(2, view.getOptionCount());
+        assertEquals(5, view.getOptionLength((byte) 43));
+        assertArrayEquals(new byte[]{1, 2, 3, 4, 5}, view.getOption((byte) 43));
+        assertEquals(3, view.getOptionByte((byte) 53, -1));
+        assertEquals(0x001b0000007eL, view.getHardwareAddressAsLong());
+        assertEquals(-1, view.getOptionLength((byte) 54));
+        assertEquals(-1L, view.getOptionInt((byte) 51, -1L));
+
+        DhcpMessage message = new DhcpMessageDecoder().decode(view.getBuffer());
+        assertArrayEquals(view.getOption((byte) 43), message.getOptions().get((byte) 43).getData());
+    }
+
+    @Test
+    public void testOverload() throws Exception {
+        // Option 52 = 1: the file field carries options.
+        ByteBuffer buffer = newMessage(new byte[]{52, 1, 1, (byte) 0xFF});
+        buffer.put(108, (byte) 53);
+        buffer.put(109, (byte) 1);
+        buffer.put(110, (byte) 1);
+        buffer.put(111, (byte) 0xFF);
+        DhcpMessageView view = new DhcpMessageView().wrap(buffer);
+        assertNull(view.getBootFileName());
+        assertEquals("", view.getServerHostname());
+        assertEquals(MessageType.DHCPDISCOVER, view.getMessageType());
+    }
+
+    @Test(expected = DhcpException.class)
+    public void testBadCookie() throws Exception {
+        ByteBuffer buffer = newMessage(new byte[]{(byte) 0xFF});
+        buffer.putInt(236, 0);
+        new DhcpMessageView().wrap(buffer);
+    }
+
+    @Test(expected = DhcpException.class)
+    public void testOverrun() throws Exception {
+        new DhcpMessageView().wrap(newMessage(new byte[]{53, 4, 1}));
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.apache.directory.server.dhcp.io;
+
+import com.google.common.net.InetAddresses;
+import java.net.Inet4Address;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import javax.annotation.Nonnull;
+import org.apache.directory.server.dhcp.messages.DhcpMessage;
+import org.apache.directory.server.dhcp.messages.HardwareAddress;
+import org.apache.directory.server.dhcp.messages.HardwareAddressType;
+import org.apache.directory.server.dhcp.messages.MessageType;
+import org.apache.directory.server.dhcp.options.DhcpOption;
+import org.apache.directory.server.dhcp.options.OptionsField;
+import org.apache.directory.server.dhcp.options.dhcp.ClientIdentifier;
+import org.apache.directory.server.dhcp.options.dhcp.IpAddressLeaseTime;
+import org.apache.directory.server.dhcp.options.dhcp.ParameterRequestList;
+import org.apache.directory.server.dhcp.options.dhcp.ServerIdentifier;
+import org.apache.directory.server.dhcp.options.dhcp.UnrecognizedOption;
+import org.apache.directory.server.dhcp.options.perinterface.BroadcastAddress;
+import org.apache.directory.server.dhcp.options.vendor.DomainNameServers;
+import org.apache.directory.server.dhcp.options.vendor.Routers;
+import org.apache.directory.server.dhcp.options.vendor.SubnetMask;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author shevek
+ */
+public class ReplyTemplateTest {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ReplyTemplateTest.class);
+
+    @Nonnull
+    private static OptionsField newProfile() {
+        OptionsField options = new OptionsField();
+        options.setAddressOption(SubnetMask.class, "255.255.255.0");
+        options.setAddressOption(BroadcastAddress.class, "10.0.0.255");
+        options.setAddressListOption(Routers.class, (Inet4Address) InetAddresses.forString("10.0.0.1"));
+        options.setAddressListOption(DomainNameServers.class, (Inet4Address) InetAddresses.forString("10.0.0.2"));
+        options.setOption(ClientIdentifier.class, new byte[]{1, 2, 3});
+        return options;
+    }
+
+    @Nonnull
+    private static DhcpMessage newRequest(byte... prl) {
+        DhcpMessage request = new DhcpMessage();
+        request.setMessageType(MessageType.DHCPDISCOVER);
+        request.setOp(DhcpMessage.OP_BOOTREQUEST);
+        request.setHardwareAddress(new HardwareAddress(HardwareAddressType.Ethernet, new byte[]{1, 2, 3, 4, 5, 6}));
+        if (prl.length > 0)
+            request.getOptions().setOption(ParameterRequestList.class, prl);
+        return request;
+    }
+
+    @Nonnull
+    private static DhcpMessage newReply() {
+        DhcpMessage reply = new DhcpMessage();
+        reply.setMessageType(MessageType.DHCPOFFER);
+        reply.setOp(DhcpMessage.OP_BOOTREPLY);
+        reply.setHardwareAddress(new HardwareAddress(HardwareAddressType.Ethernet, new byte[]{1, 2, 3, 4, 5, 6}));
+        reply.setAssignedClientAddress(InetAddresses.forString("10.0.0.7"));
+        reply.getOptions().setIntOption(IpAddressLeaseTime.class, 600);
+        reply.getOptions().add(new ServerIdentifier(InetAddresses.forString("10.0.0.1")));
+        return reply;
+    }
+
+    @Nonnull
+    private static byte[] encode(@Nonnull DhcpMessage message, int maxLength) throws Exception {
+        DhcpMessageEncoder encoder = new DhcpMessageEncoder();
+        int length = encoder.getLength(message, maxLength);
+        ByteBuffer buf = ByteBuffer.allocate(length);
+        encoder.encode(buf, message, maxLength);
+        assertEquals("Length was not exact.", 0, buf.remaining());
+        return buf.array();
+    }
+
+    @Test
+    public void testFilter() {
+        ReplyTemplateCache cache = new ReplyTemplateCache();
+        // SubnetMask, Routers.
+        ReplyTemplate template = cache.get("profile", newProfile(), newRequest((byte) 1, (byte) 3));
+        LOG.info("Template is " + template);
+        assertEquals(2, template.getOptions().size());
+        assertTrue(template.contains((byte) 1));
+        assertTrue(template.contains((byte) 3));
+        assertFalse(template.contains((byte) 6));
+        assertFalse(template.contains((byte) 61));
+
+        // Without a PRL, all but the forbidden options are sent.
+        assertEquals(4, cache.get("profile", newProfile(), newRequest()).getOptions().size());
+    }
+
+    @Test
+    public void testCache() {
+        ReplyTemplateCache cache = new ReplyTemplateCache();
+        OptionsField profile = newProfile();
+        ReplyTemplate template = cache.get("profile", profile, newRequest((byte) 1, (byte) 3, (byte) 6));
+        // The order of the PRL does not matter.
+        assertSame(template, cache.get("profile", profile, newRequest((byte) 6, (byte) 3, (byte) 1)));
+        assertNotSame(template, cache.get("profile", profile, newRequest((byte) 1, (byte) 3)));
+        assertNotSame(template, cache.get("other", profile, newRequest((byte) 1, (byte) 3, (byte) 6)));
+        assertEquals(3, cache.size());
+        cache.invalidateAll();
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testEncode() throws Exception {
+        DhcpMessage request = newRequest((byte) 1, (byte) 3, (byte) 6, (byte) 28);
+        ReplyTemplate template = new ReplyTemplateCache().get("profile", newProfile(), request);
+
+        DhcpMessage reply = newReply();
+        ReplyTemplate.setTemplate(reply, template);
+        byte[] templated = encode(reply, 576);
+
+        DhcpMessage expected = newReply();
+        for (DhcpOption option : template.getOptions())
+            expected.getOptions().add(option);
+        assertArrayEquals(encode(expected, 576), templated);
+
+        DhcpMessageView view = new DhcpMessageView().wrap(ByteBuffer.wrap(templated));
+        assertEquals(MessageType.DHCPOFFER, view.getMessageType());
+        assertEquals(4, view.getOptionLength((byte) 3));
+        assertEquals(600, view.getOptionInt((byte) 51, -1));
+    }
+
+    @Test
+    public void testOverride() throws Exception {
+        ReplyTemplate template = new ReplyTemplateCache().get("profile", newProfile(), newRequest());
+        DhcpMessage reply = newReply();
+        ReplyTemplate.setTemplate(reply, template);
+        reply.getOptions().setAddressOption(SubnetMask.class, "255.255.0.0");
+        DhcpMessageView view = new DhcpMessageView().wrap(ByteBuffer.wrap(encode(reply, 576)));
+        int offset = view.getOptionOffset((byte) 1);
+        byte[] data = Arrays.copyOfRange(view.getBuffer().array(), offset, offset + 4);
+        assertArrayEquals(new byte[]{(byte) 255, (byte) 255, 0, 0}, data);
+        assertEquals(7, view.getOptionCount());
+    }
+
+    @Test
+    public void testOverload() throws Exception {
+        OptionsField profile = newProfile();
+        for (int i = 0; i < 5; i++) {
+            UnrecognizedOption option = new UnrecognizedOption((byte) (200 + i));
+            byte[] data = new byte[70];
+            Arrays.fill(data, (byte) i);
+            option.setData(data);
+            profile.add(option);
+        }
+        DhcpMessage reply = newReply();
+        ReplyTemplate.setTemplate(reply, new ReplyTemplateCache().get("profile", profile, newRequest()));
+        // The template does not fit whole, so its options are laid out individually.
+        DhcpMessageView view = new DhcpMessageView().wrap(ByteBuffer.wrap(encode(reply, 576)));
+        assertTrue(view.hasOption((byte) 52));
+        for (int i = 0; i < 5; i++)
+            assertEquals(70, view.getOptionLength((byte) (200 + i)));
+    }
+}
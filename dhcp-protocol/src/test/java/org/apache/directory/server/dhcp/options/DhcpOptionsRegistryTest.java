@@ -5,9 +5,11 @@
  */
 package org.apache.directory.server.dhcp.options;
 
+import org.apache.directory.server.dhcp.options.dhcp.UnrecognizedOption;
 import org.junit.Test;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import static org.junit.Assert.*;
 
 /**
  *
@@ -27,4 +29,29 @@ public class DhcpOptionsRegistryTest {
         }
     }
 
+    @Test
+    public void testFactories() {
+        DhcpOptionsRegistry registry = DhcpOptionsRegistry.getInstance();
+        for (int i = 0; i <= 0xFF; i++) {
+            byte tag = (byte) i;
+            Class<? extends DhcpOption> type = registry.getOptionType(tag);
+            DhcpOption option = registry.newOption(tag);
+            if (type == null) {
+                assertSame(UnrecognizedOption.class, option.getClass());
+                assertEquals(tag, option.getTag());
+                continue;
+            }
+            // Every built-in type must be instantiated by the switch, not by reflection.
+            assertTrue("Reflective factory for " + type, registry.isBuiltin(tag));
+            assertSame(type, option.getClass());
+            assertEquals(tag, option.getTag());
+            assertEquals(tag, registry.getOptionTag(type));
+            assertSame(type, DhcpOptionsRegistry.newInstance(type).getClass());
+        }
+        // Tag 13 is registered as vendor.BootFileSize; the duplicate dhcp.BootFileSize
+        // is not registered, so its tag is resolved by instantiation, once.
+        assertSame(org.apache.directory.server.dhcp.options.vendor.BootFileSize.class, registry.getOptionType((byte) 13));
+        assertEquals(13, registry.getOptionTag(org.apache.directory.server.dhcp.options.dhcp.BootFileSize.class));
+    }
+
 }
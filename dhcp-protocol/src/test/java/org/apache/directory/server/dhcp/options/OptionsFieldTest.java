@@ -0,0 +1,111 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.apache.directory.server.dhcp.options;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import javax.annotation.Nonnull;
+import org.apache.directory.server.dhcp.options.dhcp.IpAddressLeaseTime;
+import org.apache.directory.server.dhcp.options.dhcp.MaximumDhcpMessageSize;
+import org.apache.directory.server.dhcp.options.dhcp.ServerIdentifier;
+import org.apache.directory.server.dhcp.options.dhcp.UnrecognizedOption;
+import org.apache.directory.server.dhcp.options.vendor.HostName;
+import org.apache.directory.server.dhcp.options.vendor.SubnetMask;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author shevek
+ */
+public class OptionsFieldTest {
+
+    private static final Logger LOG = LoggerFactory.getLogger(OptionsFieldTest.class);
+
+    @Nonnull
+    private static List<Byte> tags(@Nonnull OptionsField options) {
+        List<Byte> out = new ArrayList<Byte>();
+        for (DhcpOption option : options)
+            out.add(option.getTag());
+        return out;
+    }
+
+    @Nonnull
+    private static OptionsField newOptions() {
+        OptionsField options = new OptionsField();
+        options.setIntOption(IpAddressLeaseTime.class, 600);
+        options.setAddressOption(ServerIdentifier.class, "10.0.0.1");
+        options.setAddressOption(SubnetMask.class, "255.255.0.0");
+        UnrecognizedOption unrecognized = new UnrecognizedOption((byte) 250);
+        unrecognized.setData(new byte[]{1, 2, 3});
+        options.add(unrecognized);
+        options.setStringOption(HostName.class, "foo");
+        return options;
+    }
+
+    @Test
+    public void testOrder() throws Exception {
+        OptionsField options = newOptions();
+        LOG.info("Options are " + options);
+        assertEquals(5, options.size());
+        assertEquals(tags(options).toString(), "[51, 54, 1, -6, 12]");
+
+        // Replacement retains position.
+        options.setIntOption(IpAddressLeaseTime.class, 3600);
+        assertEquals(5, options.size());
+        assertEquals(tags(options).toString(), "[51, 54, 1, -6, 12]");
+        assertEquals(3600, options.getIntOption(IpAddressLeaseTime.class));
+
+        options.remove(ServerIdentifier.class);
+        assertNull(options.get(ServerIdentifier.class));
+        assertEquals(tags(options).toString(), "[51, 1, -6, 12]");
+        assertEquals("foo", options.getStringOption(HostName.class));
+        assertNotNull(options.get((byte) 250));
+
+        options.remove((byte) 99);
+        assertEquals(4, options.size());
+    }
+
+    @Test
+    public void testIteratorRemove() throws Exception {
+        OptionsField options = newOptions();
+        for (Iterator<DhcpOption> it = options.iterator(); it.hasNext();) {
+            DhcpOption option = it.next();
+            if (!(option instanceof ServerIdentifier) && !(option instanceof HostName))
+                it.remove();
+        }
+        assertEquals(tags(options).toString(), "[54, 12]");
+        assertEquals("foo", options.getStringOption(HostName.class));
+        assertNull(options.get(SubnetMask.class));
+
+        options.clear();
+        assertTrue(options.isEmpty());
+        assertNull(options.get(HostName.class));
+        options.setShortOption(MaximumDhcpMessageSize.class, 1500);
+        assertEquals(1500, options.getShortOption(MaximumDhcpMessageSize.class));
+    }
+
+    @Test
+    public void testCopy() throws Exception {
+        OptionsField options = newOptions();
+        OptionsField copy = new OptionsField(options);
+        copy.remove(SubnetMask.class);
+        copy.setStringOption(HostName.class, "bar");
+        assertEquals("foo", options.getStringOption(HostName.class));
+        assertNotNull(options.get(SubnetMask.class));
+        assertEquals(5, options.size());
+        assertEquals(4, copy.size());
+
+        OptionsField merged = new OptionsField();
+        merged.addAll(options);
+        merged.addAll(copy);
+        assertEquals(tags(options), tags(merged));
+        assertEquals("bar", merged.getStringOption(HostName.class));
+    }
+}
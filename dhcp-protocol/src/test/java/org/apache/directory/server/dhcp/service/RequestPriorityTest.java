@@ -0,0 +1,87 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.apache.directory.server.dhcp.service;
+
+import com.google.common.net.InetAddresses;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import org.apache.directory.server.dhcp.messages.DhcpMessage;
+import org.apache.directory.server.dhcp.messages.MessageType;
+import org.apache.directory.server.dhcp.options.dhcp.RequestedIpAddress;
+import org.apache.directory.server.dhcp.options.dhcp.ServerIdentifier;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author shevek
+ */
+@SuppressWarnings("PMD.AvoidUsingHardCodedIP")
+public class RequestPriorityTest {
+
+    private static final Logger LOG = LoggerFactory.getLogger(RequestPriorityTest.class);
+
+    private static DhcpMessage newRequest(MessageType type, String ciaddr) {
+        DhcpMessage request = new DhcpMessage();
+        request.setMessageType(type);
+        if (ciaddr != null)
+            request.setCurrentClientAddress(InetAddresses.forString(ciaddr));
+        return request;
+    }
+
+    private static RequestPriority forRequest(MessageType type, String ciaddr) {
+        return RequestPriority.forRequest(newRequest(type, ciaddr));
+    }
+
+    @Test
+    public void testClassification() {
+        assertEquals(RequestPriority.RENEW, forRequest(MessageType.DHCPREQUEST, "10.0.0.5"));
+        assertEquals(RequestPriority.DISCOVER, forRequest(MessageType.DHCPREQUEST, null));
+        assertEquals(RequestPriority.DISCOVER, forRequest(MessageType.DHCPREQUEST, "0.0.0.0"));
+        assertEquals(RequestPriority.DISCOVER, forRequest(MessageType.DHCPDECLINE, null));
+        assertEquals(RequestPriority.DISCOVER, forRequest(MessageType.DHCPRELEASE, "10.0.0.5"));
+
+        // INIT-REBOOT verifies an existing lease; SELECTING completes a new one.
+        DhcpMessage request = newRequest(MessageType.DHCPREQUEST, null);
+        request.getOptions().setAddressOption(RequestedIpAddress.class, InetAddresses.forString("10.0.0.5"));
+        assertEquals(RequestPriority.REQUEST, RequestPriority.forRequest(request));
+        request.getOptions().setAddressOption(ServerIdentifier.class, InetAddresses.forString("10.0.0.1"));
+        assertEquals(RequestPriority.DISCOVER, RequestPriority.forRequest(request));
+
+        assertEquals(RequestPriority.DISCOVER, forRequest(MessageType.DHCPDISCOVER, null));
+        // ciaddr only distinguishes DHCPREQUESTs.
+        assertEquals(RequestPriority.DISCOVER, forRequest(MessageType.DHCPDISCOVER, "10.0.0.5"));
+        assertEquals(RequestPriority.INFORM, forRequest(MessageType.DHCPINFORM, "10.0.0.5"));
+        assertEquals(RequestPriority.INFORM, forRequest(MessageType.DHCPOFFER, null));
+        // Plain BOOTP.
+        assertEquals(RequestPriority.INFORM, forRequest(null, null));
+    }
+
+    @Test
+    public void testOrder() {
+        // The executor serves lower ordinals first.
+        RequestPriority[] values = RequestPriority.values();
+        LOG.info("Priorities are " + Arrays.toString(values));
+        assertEquals(RequestPriority.RENEW, values[0]);
+        assertTrue(RequestPriority.REQUEST.ordinal() < RequestPriority.DISCOVER.ordinal());
+        assertTrue(RequestPriority.DISCOVER.ordinal() < RequestPriority.INFORM.ordinal());
+    }
+
+    @Test
+    public void testDeadline() {
+        DhcpMessage request = new DhcpMessage();
+        request.setMessageType(MessageType.DHCPDISCOVER);
+        assertEquals(TimeUnit.SECONDS.toNanos(RequestPriority.MIN_DEADLINE_SECONDS), RequestPriority.getDeadlineNanos(request));
+        request.setSeconds(3);
+        assertEquals(TimeUnit.SECONDS.toNanos(4), RequestPriority.getDeadlineNanos(request));
+        request.setSeconds(32);
+        assertEquals(TimeUnit.SECONDS.toNanos(32), RequestPriority.getDeadlineNanos(request));
+        request.setSeconds(65);
+        assertEquals(TimeUnit.SECONDS.toNanos(RequestPriority.MAX_DEADLINE_SECONDS), RequestPriority.getDeadlineNanos(request));
+    }
+}
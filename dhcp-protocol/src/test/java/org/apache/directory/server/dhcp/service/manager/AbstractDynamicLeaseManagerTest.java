@@ -0,0 +1,137 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.apache.directory.server.dhcp.service.manager;
+
+import com.google.common.net.InetAddresses;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.Map;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import org.anarres.dhcp.common.address.InterfaceAddress;
+import org.anarres.dhcp.common.address.NetworkAddress;
+import org.anarres.dhcp.common.address.Subnet;
+import org.apache.directory.server.dhcp.io.DhcpRequestContext;
+import org.apache.directory.server.dhcp.messages.DhcpMessage;
+import org.apache.directory.server.dhcp.messages.HardwareAddress;
+import org.apache.directory.server.dhcp.messages.MessageType;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author shevek
+ */
+@SuppressWarnings("PMD.AvoidUsingHardCodedIP")
+public class AbstractDynamicLeaseManagerTest {
+
+    private static final Logger LOG = LoggerFactory.getLogger(AbstractDynamicLeaseManagerTest.class);
+
+    /** Never reports a release, so the pool must rescan or probe to recover an address. */
+    private static class TestLeaseManager extends AbstractDynamicLeaseManager {
+
+        private final Subnet subnet;
+        private final Map<InetAddress, HardwareAddress> leases = new HashMap<InetAddress, HardwareAddress>();
+        private final Map<HardwareAddress, InetAddress> addresses = new HashMap<HardwareAddress, InetAddress>();
+        private int refused = 0;
+
+        public TestLeaseManager(@Nonnull Subnet subnet) {
+            this.subnet = subnet;
+        }
+
+        /** Forgets a lease without releasing its address. */
+        public synchronized void forget(@Nonnull InetAddress address) {
+            addresses.remove(leases.remove(address));
+        }
+
+        @Override
+        protected InetAddress getFixedAddressFor(HardwareAddress hardwareAddress) {
+            return null;
+        }
+
+        @Override
+        protected Subnet getSubnetFor(NetworkAddress networkAddress) {
+            return subnet;
+        }
+
+        @Override
+        protected synchronized boolean leaseIp(InetAddress address, HardwareAddress hardwareAddress, long ttl) {
+            HardwareAddress prev = leases.get(address);
+            if (prev != null && !prev.equals(hardwareAddress)) {
+                refused++;
+                return false;
+            }
+            leases.put(address, hardwareAddress);
+            addresses.put(hardwareAddress, address);
+            return true;
+        }
+
+        @Override
+        protected synchronized InetAddress leaseMac(DhcpRequestContext context, DhcpMessage request, InetAddress clientRequestedAddress, long ttl) throws Exception {
+            return leaseMac(context, request.getHardwareAddress(), addresses.get(request.getHardwareAddress()), clientRequestedAddress, ttl);
+        }
+    }
+
+    private static final DhcpRequestContext CONTEXT = new DhcpRequestContext(
+            new InterfaceAddress(InetAddresses.forString("10.0.0.1"), 24),
+            new InetSocketAddress(InetAddresses.forString("10.0.0.100"), 68),
+            new InetSocketAddress(InetAddresses.forString("10.0.0.1"), 67));
+
+    @CheckForNull
+    private static InetAddress offer(@Nonnull TestLeaseManager manager, int mac) throws Exception {
+        DhcpMessage request = new DhcpMessage();
+        request.setOp(DhcpMessage.OP_BOOTREQUEST);
+        request.setMessageType(MessageType.DHCPDISCOVER);
+        request.setHardwareAddress(HardwareAddress.fromString(String.format("00:01:02:03:04:%02x", mac)));
+        DhcpMessage reply = manager.leaseOffer(CONTEXT, request, null, -1);
+        return reply == null ? null : reply.getAssignedClientAddress();
+    }
+
+    @Test
+    public void testRescan() throws Exception {
+        Subnet subnet = new Subnet(new NetworkAddress(InetAddresses.forString("10.0.0.0"), 24),
+                InetAddresses.forString("10.0.0.10"), InetAddresses.forString("10.0.0.11"));
+        TestLeaseManager manager = new TestLeaseManager(subnet);
+        assertEquals(InetAddresses.forString("10.0.0.10"), offer(manager, 1));
+        assertEquals(InetAddresses.forString("10.0.0.11"), offer(manager, 2));
+
+        // The first rescan of a new pool is not throttled.
+        manager.forget(InetAddresses.forString("10.0.0.10"));
+        assertEquals(InetAddresses.forString("10.0.0.10"), offer(manager, 3));
+
+        // Later rescans are, so the pool is probed instead. Renewing marks the address in use again.
+        assertEquals(InetAddresses.forString("10.0.0.11"), offer(manager, 2));
+        manager.forget(InetAddresses.forString("10.0.0.11"));
+        assertEquals(InetAddresses.forString("10.0.0.11"), offer(manager, 4));
+
+        // Only when every address is leased is the pool exhausted.
+        int refused = manager.refused;
+        assertNull(offer(manager, 5));
+        assertEquals(refused + 2, manager.refused);
+    }
+
+    @Test
+    public void testRebuild() throws Exception {
+        Subnet subnet = new Subnet(new NetworkAddress(InetAddresses.forString("10.0.0.0"), 24),
+                InetAddresses.forString("10.0.0.10"), InetAddresses.forString("10.0.0.11"));
+        TestLeaseManager manager = new TestLeaseManager(subnet);
+        assertEquals(InetAddresses.forString("10.0.0.10"), offer(manager, 1));
+
+        // Grow the range: the existing allocation is carried over, so is never probed.
+        subnet.setRangeEnd(InetAddresses.forString("10.0.0.12"));
+        assertEquals(InetAddresses.forString("10.0.0.11"), offer(manager, 2));
+        assertEquals(InetAddresses.forString("10.0.0.12"), offer(manager, 3));
+        assertEquals(0, manager.refused);
+
+        // Shrink the range: the remaining addresses are all in use.
+        subnet.setRangeStart(InetAddresses.forString("10.0.0.11"));
+        assertNull(offer(manager, 4));
+        LOG.info("Refused " + manager.refused + " probes after shrinking.");
+    }
+}
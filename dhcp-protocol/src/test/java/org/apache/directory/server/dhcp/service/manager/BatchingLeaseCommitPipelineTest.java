@@ -0,0 +1,134 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.apache.directory.server.dhcp.service.manager;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author shevek
+ */
+public class BatchingLeaseCommitPipelineTest {
+
+    private static final Logger LOG = LoggerFactory.getLogger(BatchingLeaseCommitPipelineTest.class);
+
+    private static class TestLog implements LeaseCommitLog {
+
+        private final AtomicLong sequence = new AtomicLong();
+        private final AtomicLong synced = new AtomicLong();
+        private final AtomicInteger syncs = new AtomicInteger();
+        private final AtomicBoolean fail = new AtomicBoolean();
+
+        public long append() {
+            return sequence.incrementAndGet();
+        }
+
+        @Override
+        public long getSequence() {
+            return sequence.get();
+        }
+
+        @Override
+        public void sync(long sequence) throws IOException {
+            syncs.incrementAndGet();
+            if (fail.get())
+                throw new IOException("Test failure.");
+            for (;;) {
+                long prev = synced.get();
+                if (prev >= sequence || synced.compareAndSet(prev, sequence))
+                    break;
+            }
+        }
+    }
+
+    @Test
+    public void testBatching() throws Exception {
+        final int threads = 16;
+        final int count = 32;
+        final TestLog log = new TestLog();
+        try (final BatchingLeaseCommitPipeline pipeline = new BatchingLeaseCommitPipeline(log, 5, TimeUnit.MILLISECONDS, threads)) {
+            final CountDownLatch latch = new CountDownLatch(1);
+            final List<Throwable> failures = Collections.synchronizedList(new ArrayList<Throwable>());
+            List<Thread> workers = new ArrayList<Thread>();
+            for (int t = 0; t < threads; t++) {
+                Thread thread = new Thread() {
+                    @Override
+                    public void run() {
+                        try {
+                            latch.await();
+                            for (int i = 0; i < count; i++) {
+                                long sequence = log.append();
+                                pipeline.commit();
+                                assertTrue("Committed before synced.", log.synced.get() >= sequence);
+                            }
+                        } catch (Throwable e) {
+                            failures.add(e);
+                        }
+                    }
+                };
+                thread.start();
+                workers.add(thread);
+            }
+            latch.countDown();
+            for (Thread thread : workers)
+                thread.join();
+            assertEquals(Collections.emptyList(), failures);
+            LOG.info(pipeline + " performed " + pipeline.getSyncCount() + " syncs for " + (threads * count) + " commits.");
+            assertTrue(pipeline.getSyncCount() < threads * count);
+            assertEquals(pipeline.getSyncCount(), log.syncs.get());
+        }
+    }
+
+    @Test
+    public void testFailure() throws Exception {
+        TestLog log = new TestLog();
+        try (BatchingLeaseCommitPipeline pipeline = new BatchingLeaseCommitPipeline(log, 1, TimeUnit.MILLISECONDS)) {
+            // Nothing to commit.
+            pipeline.commit();
+            assertEquals(0, log.syncs.get());
+
+            log.append();
+            log.fail.set(true);
+            try {
+                pipeline.commit();
+                fail("Commit succeeded although sync failed.");
+            } catch (IOException e) {
+                LOG.info("Failed: " + e);
+            }
+
+            // A later commit retries.
+            log.fail.set(false);
+            pipeline.commit();
+            assertEquals(1, log.synced.get());
+        }
+    }
+
+    @Test
+    public void testClose() throws Exception {
+        TestLog log = new TestLog();
+        BatchingLeaseCommitPipeline pipeline = new BatchingLeaseCommitPipeline(log);
+        pipeline.close();
+        log.append();
+        try {
+            pipeline.commit();
+            fail("Committed to a closed pipeline.");
+        } catch (IOException e) {
+            LOG.info("Closed: " + e);
+        }
+    }
+}
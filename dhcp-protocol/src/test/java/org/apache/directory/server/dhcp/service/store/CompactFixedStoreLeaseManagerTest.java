@@ -0,0 +1,80 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.apache.directory.server.dhcp.service.store;
+
+import com.google.common.net.InetAddresses;
+import org.anarres.dhcp.common.address.InterfaceAddress;
+import org.apache.directory.server.dhcp.messages.HardwareAddress;
+import org.apache.directory.server.dhcp.messages.HardwareAddressType;
+import org.apache.directory.server.dhcp.options.vendor.SubnetMask;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author shevek
+ */
+@SuppressWarnings("PMD.AvoidUsingHardCodedIP")
+public class CompactFixedStoreLeaseManagerTest {
+
+    private static final Logger LOG = LoggerFactory.getLogger(CompactFixedStoreLeaseManagerTest.class);
+
+    private static HardwareAddress mac(int i) {
+        return new HardwareAddress(HardwareAddressType.Ethernet, new byte[]{0x00, 0x16, 0x3e, 0, 0, (byte) i});
+    }
+
+    @Test
+    public void testTableLease() throws Exception {
+        CompactFixedStoreLeaseManager manager = new CompactFixedStoreLeaseManager();
+        InterfaceAddress address = InterfaceAddress.forString("10.0.0.5/24");
+        Lease lease = manager.addLease(mac(1), address);
+        LOG.info("Lease is " + lease);
+        assertEquals(address, manager.getTable().get(mac(1)));
+        assertTrue(manager.getLeases().isEmpty());
+
+        // The returned lease is the one served.
+        Lease stored = manager.getLease(mac(1));
+        assertNotNull(stored);
+        assertEquals(lease.getClientAddress(), stored.getClientAddress());
+        assertEquals(InetAddresses.forString("10.0.0.5"), stored.getClientAddress());
+        assertEquals(lease.getOptions().getAddressOption(SubnetMask.class), stored.getOptions().getAddressOption(SubnetMask.class));
+        assertEquals(InetAddresses.forString("255.255.255.0"), stored.getOptions().getAddressOption(SubnetMask.class));
+
+        assertTrue(manager.removeLease(mac(1)));
+        assertNull(manager.getLease(mac(1)));
+        assertFalse(manager.removeLease(mac(1)));
+    }
+
+    @Test
+    public void testOtherLease() throws Exception {
+        CompactFixedStoreLeaseManager manager = new CompactFixedStoreLeaseManager();
+        // Not an Ethernet address, so not in the table.
+        HardwareAddress other = new HardwareAddress(HardwareAddressType.Proteon, new byte[]{1, 2, 3, 4});
+        Lease lease = manager.addLease(other, InterfaceAddress.forString("10.0.0.6/24"));
+        assertSame(lease, manager.getLease(other));
+        assertEquals(0, manager.getTable().size());
+        assertTrue(manager.removeLease(other));
+        assertNull(manager.getLease(other));
+    }
+
+    @Test
+    public void testReplace() throws Exception {
+        CompactFixedStoreLeaseManager manager = new CompactFixedStoreLeaseManager();
+
+        // A lease added as such replaces a reservation in the table.
+        manager.addLease(mac(1), InterfaceAddress.forString("10.0.0.5/24"));
+        Lease lease = manager.addLease(new Lease(mac(1), InetAddresses.forString("10.0.0.7")));
+        assertSame(lease, manager.getLease(mac(1)));
+        assertNull(manager.getTable().get(mac(1)));
+
+        // And vice versa.
+        manager.addLease(mac(1), InterfaceAddress.forString("10.0.0.8/24"));
+        assertEquals(InetAddresses.forString("10.0.0.8"), manager.getLease(mac(1)).getClientAddress());
+        assertTrue(manager.getLeases().isEmpty());
+    }
+}
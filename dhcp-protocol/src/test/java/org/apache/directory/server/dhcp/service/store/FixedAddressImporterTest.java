@@ -0,0 +1,182 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.apache.directory.server.dhcp.service.store;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.anarres.dhcp.common.address.InterfaceAddress;
+import org.apache.directory.server.dhcp.messages.HardwareAddress;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author shevek
+ */
+public class FixedAddressImporterTest {
+
+    private static final Logger LOG = LoggerFactory.getLogger(FixedAddressImporterTest.class);
+    private ExecutorService executor;
+    private File dir;
+
+    @Before
+    public void setUp() throws Exception {
+        executor = Executors.newFixedThreadPool(4);
+        dir = java.nio.file.Files.createTempDirectory("dhcp-import").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+        for (File file : dir.listFiles())
+            file.delete();
+        dir.delete();
+    }
+
+    private static String mac(int i) {
+        return String.format("00:16:3e:%02x:%02x:%02x", (i >> 16) & 0xFF, (i >> 8) & 0xFF, i & 0xFF);
+    }
+
+    private static String address(int i) {
+        return "10." + ((i >> 16) & 0xFF) + "." + ((i >> 8) & 0xFF) + "." + (i & 0xFF);
+    }
+
+    private File write(String name, CharSequence text) throws IOException {
+        File file = new File(dir, name);
+        Files.write(text, file, Charsets.ISO_8859_1);
+        return file;
+    }
+
+    @Test
+    public void testParseMac() {
+        assertEquals(0x00163e010203L, FixedAddressImporter.parseMac("00:16:3e:01:02:03"));
+        assertEquals(0x00163e010203L, FixedAddressImporter.parseMac("0:16:3E:1:2:3"));
+        assertEquals(0x00163e010203L, FixedAddressImporter.parseMac("00-16-3e-01-02-03"));
+        assertEquals(0x00163e010203L, FixedAddressImporter.parseMac("0016.3e01.0203"));
+        assertEquals(0x00163e010203L, FixedAddressImporter.parseMac("00163e010203"));
+        assertEquals(-1, FixedAddressImporter.parseMac("00:16:3e:01:02"));
+        assertEquals(-1, FixedAddressImporter.parseMac("00:16:3e:01:02:03:04"));
+        assertEquals(-1, FixedAddressImporter.parseMac("00:16:3e:01:02:"));
+        assertEquals(-1, FixedAddressImporter.parseMac("00:163e:01:02:03"));
+        assertEquals(-1, FixedAddressImporter.parseMac("00:16:3e:01:02:0g"));
+    }
+
+    @Test
+    public void testCsv() throws Exception {
+        StringBuilder buf = new StringBuilder("# mac,address,name\n");
+        for (int i = 0; i < 1000; i++)
+            buf.append(mac(i)).append(',').append(address(i)).append(i % 2 == 0 ? "/16" : "").append(",host").append(i).append('\n');
+        File file = write("hosts.csv", buf);
+
+        // Small chunks, to split the file many times.
+        FixedAddressImporter importer = new FixedAddressImporter(executor, 256, 24);
+        FixedAddressTable table = importer.load(file, FixedAddressImporter.Format.CSV, false);
+        assertEquals(1000, table.size());
+        for (int i = 0; i < 1000; i++)
+            assertEquals(InterfaceAddress.forString(address(i) + (i % 2 == 0 ? "/16" : "/24")), table.get(HardwareAddress.fromString(mac(i))));
+
+        try {
+            importer.load(write("bad.csv", "00:16:3e:00:00:01,10.0.0.1\nfoo,10.0.0.2\n"), FixedAddressImporter.Format.CSV, false);
+            fail("Loaded a malformed MAC.");
+        } catch (IOException e) {
+            LOG.info("Expected: " + e);
+        }
+    }
+
+    @Test
+    public void testIsc() throws Exception {
+        StringBuilder buf = new StringBuilder();
+        buf.append("# dhcpd.conf\n");
+        buf.append("subnet 10.0.0.0 netmask 255.0.0.0 {\n");
+        buf.append("  range 10.200.0.1 10.200.0.100;\n");
+        for (int i = 0; i < 500; i++) {
+            buf.append("  host h").append(i).append(" {\n");
+            buf.append("    hardware ethernet ").append(mac(i)).append(";\n");
+            buf.append("    fixed-address ").append(address(i)).append(", 10.250.0.1;  # } comment\n");
+            if (i % 2 == 0)
+                buf.append("    option subnet-mask 255.255.0.0;\n");
+            buf.append("    option host-name \"host ").append(i).append("\";\n");
+            buf.append("  }\n");
+        }
+        buf.append("  host nofixed { hardware ethernet 00:16:3e:ff:ff:ff; }\n");
+        buf.append("  host token { hardware token-ring 00:16:3e:ff:ff:fe; fixed-address 10.250.0.2; }\n");
+        buf.append("}\n");
+        File file = write("dhcpd.conf", buf);
+
+        FixedAddressImporter importer = new FixedAddressImporter(executor, 512, 8);
+        FixedAddressTable table = importer.load(file, FixedAddressImporter.Format.ISC, true);
+        assertEquals(500, table.size());
+        for (int i = 0; i < 500; i++)
+            assertEquals(InterfaceAddress.forString(address(i) + (i % 2 == 0 ? "/16" : "/8")), table.get(HardwareAddress.fromString(mac(i))));
+    }
+
+    @Test
+    public void testReload() throws Exception {
+        StringBuilder buf = new StringBuilder();
+        for (int i = 0; i < 1000; i++)
+            buf.append(mac(i)).append(',').append(address(i)).append('\n');
+        FixedAddressImporter importer = new FixedAddressImporter(executor, 1024, 24);
+        FixedAddressTable table = importer.load(write("hosts.csv", buf), FixedAddressImporter.Format.CSV, false);
+        CompactFixedStoreLeaseManager manager = new CompactFixedStoreLeaseManager();
+        manager.setTable(table);
+        assertNotNull(manager.getLease(HardwareAddress.fromString(mac(10))));
+
+        // Drop 0..99, renumber 100..199, add 1000..1049.
+        buf.setLength(0);
+        for (int i = 100; i < 1050; i++)
+            buf.append(mac(i)).append(',').append(address(i < 200 ? i + 5000 : i)).append('\n');
+        FixedAddressImporter.Changes changes = importer.reload(write("hosts.csv", buf), FixedAddressImporter.Format.CSV, table);
+        LOG.info("Changes are " + changes);
+        assertEquals(50, changes.getAdded());
+        assertEquals(100, changes.getChanged());
+        assertEquals(100, changes.getRemoved());
+        assertEquals(950, table.size());
+        assertNull(manager.getLease(HardwareAddress.fromString(mac(10))));
+        assertEquals(InterfaceAddress.forString(address(5150) + "/24"), table.get(HardwareAddress.fromString(mac(150))));
+        assertEquals(InterfaceAddress.forString(address(1049) + "/24"), table.get(HardwareAddress.fromString(mac(1049))));
+
+        changes = importer.reload(write("hosts.csv", buf), FixedAddressImporter.Format.CSV, table);
+        assertEquals(0, changes.getAdded() + changes.getChanged() + changes.getRemoved());
+    }
+
+    @Test
+    public void testDuplicates() throws Exception {
+        StringBuilder buf = new StringBuilder();
+        for (int i = 0; i < 10; i++)
+            buf.append(mac(i)).append(',').append(address(i)).append('\n');
+        FixedAddressImporter importer = new FixedAddressImporter(executor, 64, 24);
+        FixedAddressTable table = importer.load(write("hosts.csv", buf), FixedAddressImporter.Format.CSV, false);
+        assertEquals(10, table.size());
+
+        // Renumber 3 by a later entry, and add 20 twice; the last entry wins.
+        buf.append(mac(20)).append(',').append(address(5020)).append('\n');
+        buf.append(mac(3)).append(',').append(address(5003)).append('\n');
+        buf.append(mac(20)).append(',').append(address(6020)).append('\n');
+        File file = write("hosts.csv", buf);
+        FixedAddressImporter.Changes changes = importer.reload(file, FixedAddressImporter.Format.CSV, table);
+        LOG.info("Changes are " + changes);
+        assertEquals(1, changes.getAdded());
+        assertEquals(1, changes.getChanged());
+        assertEquals(0, changes.getRemoved());
+        assertEquals(11, table.size());
+        assertEquals(InterfaceAddress.forString(address(5003) + "/24"), table.get(HardwareAddress.fromString(mac(3))));
+        assertEquals(InterfaceAddress.forString(address(6020) + "/24"), table.get(HardwareAddress.fromString(mac(20))));
+
+        table = importer.load(file, FixedAddressImporter.Format.CSV, false);
+        assertEquals(11, table.size());
+        assertEquals(InterfaceAddress.forString(address(5003) + "/24"), table.get(HardwareAddress.fromString(mac(3))));
+        assertEquals(InterfaceAddress.forString(address(6020) + "/24"), table.get(HardwareAddress.fromString(mac(20))));
+        assertEquals(InterfaceAddress.forString(address(9) + "/24"), table.get(HardwareAddress.fromString(mac(9))));
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.apache.directory.server.dhcp.service.store;
+
+import java.io.File;
+import java.nio.file.Files;
+import org.anarres.dhcp.common.address.InterfaceAddress;
+import org.apache.directory.server.dhcp.messages.HardwareAddress;
+import org.apache.directory.server.dhcp.messages.HardwareAddressType;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author shevek
+ */
+public class FixedAddressTableTest {
+
+    private static final Logger LOG = LoggerFactory.getLogger(FixedAddressTableTest.class);
+
+    private static HardwareAddress mac(int i) {
+        return new HardwareAddress(HardwareAddressType.Ethernet, new byte[]{0x00, 0x16, 0x3e, (byte) (i >> 16), (byte) (i >> 8), (byte) i});
+    }
+
+    private static InterfaceAddress address(int i) {
+        return InterfaceAddress.forString("10." + ((i >> 16) & 0xFF) + "." + ((i >> 8) & 0xFF) + "." + (i & 0xFF) + "/8");
+    }
+
+    private void testTable(FixedAddressTable table) {
+        int count = 50000;
+        for (int i = 0; i < count; i++)
+            assertTrue(table.put(mac(i), address(i)));
+        assertFalse(table.put(mac(7), address(7)));
+        assertEquals(count, table.size());
+        LOG.info("Table is " + table + " in " + table.getStorageSize() + " bytes.");
+        for (int i = 0; i < count; i++)
+            assertEquals(address(i), table.get(mac(i)));
+        assertNull(table.get(mac(count)));
+
+        // Remove every third entry, which shifts back the rest of each probe run.
+        for (int i = 0; i < count; i += 3)
+            assertTrue(table.remove(mac(i)));
+        assertFalse(table.remove(mac(0)));
+        for (int i = 0; i < count; i++) {
+            if (i % 3 == 0)
+                assertNull(table.get(mac(i)));
+            else
+                assertEquals(address(i), table.get(mac(i)));
+        }
+
+        table.clear();
+        assertEquals(0, table.size());
+        assertNull(table.get(mac(1)));
+    }
+
+    @Test
+    public void testHeap() {
+        testTable(new FixedAddressTable());
+    }
+
+    @Test
+    public void testOffHeap() {
+        testTable(new FixedAddressTable(1000, 4, true));
+    }
+
+    @Test
+    public void testKey() {
+        HardwareAddress hardwareAddress = new HardwareAddress(HardwareAddressType.Ethernet, new byte[]{(byte) 0xfe, 0x01, 0x02, 0x03, 0x04, (byte) 0xff});
+        long key = FixedAddressTable.toKey(hardwareAddress);
+        assertEquals(0xfe01020304ffL, key);
+        assertEquals(hardwareAddress, FixedAddressTable.toHardwareAddress(key));
+        assertEquals(-1, FixedAddressTable.toKey(new HardwareAddress(HardwareAddressType.IEEE802, new byte[6])));
+        assertEquals(-1, FixedAddressTable.toKey(new HardwareAddress(HardwareAddressType.Ethernet, new byte[8])));
+    }
+
+    @Test
+    public void testLoad() throws Exception {
+        File dir = Files.createTempDirectory("dhcp-fixed").toFile();
+        File file = new File(dir, "fixed.table");
+        try {
+            FixedAddressTable table = new FixedAddressTable();
+            for (int i = 0; i < 10000; i++)
+                table.put(mac(i), address(i));
+            assertEquals(10000, table.save(file));
+            assertEquals(FixedAddressTable.HEADER_SIZE + 10000 * FixedAddressTable.RECORD_SIZE, file.length());
+
+            FixedAddressTable loaded = new FixedAddressTable(0, 8, true);
+            long start = System.nanoTime();
+            assertEquals(10000, loaded.load(file));
+            LOG.info("Load took " + (System.nanoTime() - start) / 1000 + " us.");
+            assertEquals(10000, loaded.size());
+            for (int i = 0; i < 10000; i++)
+                assertEquals(address(i), loaded.get(mac(i)));
+        } finally {
+            file.delete();
+            dir.delete();
+        }
+    }
+
+    @Test
+    public void testLeaseManager() {
+        CompactFixedStoreLeaseManager manager = new CompactFixedStoreLeaseManager();
+        manager.addLease(mac(1), InterfaceAddress.forString("10.0.0.1/24"));
+        HardwareAddress other = new HardwareAddress(HardwareAddressType.IEEE802, new byte[]{1, 2, 3, 4, 5, 6, 7, 8});
+        manager.addLease(other, InterfaceAddress.forString("10.0.0.2/24"));
+        assertEquals(1, manager.getTable().size());
+        assertEquals(1, manager.getLeases().size());
+
+        Lease lease = manager.getLease(mac(1));
+        assertNotNull(lease);
+        assertEquals(InterfaceAddress.forString("10.0.0.1/24").getAddress(), lease.getClientAddress());
+        assertEquals(mac(1), lease.getHardwareAddress());
+        assertNotNull(manager.getLease(other));
+        assertNull(manager.getLease(mac(2)));
+
+        assertTrue(manager.removeLease(mac(1)));
+        assertNull(manager.getLease(mac(1)));
+    }
+}
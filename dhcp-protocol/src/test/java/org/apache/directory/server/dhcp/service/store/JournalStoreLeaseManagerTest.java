@@ -0,0 +1,168 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.apache.directory.server.dhcp.service.store;
+
+import com.google.common.net.InetAddresses;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.util.Collections;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import org.anarres.dhcp.common.address.InterfaceAddress;
+import org.anarres.dhcp.common.address.NetworkAddress;
+import org.anarres.dhcp.common.address.Subnet;
+import org.apache.directory.server.dhcp.io.DhcpRequestContext;
+import org.apache.directory.server.dhcp.messages.DhcpMessage;
+import org.apache.directory.server.dhcp.messages.HardwareAddress;
+import org.apache.directory.server.dhcp.messages.MessageType;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author shevek
+ */
+@SuppressWarnings("PMD.AvoidUsingHardCodedIP")
+public class JournalStoreLeaseManagerTest {
+
+    private static final Logger LOG = LoggerFactory.getLogger(JournalStoreLeaseManagerTest.class);
+
+    private static class TestClock implements JournalStoreLeaseManager.Clock {
+
+        private long time = System.currentTimeMillis() / 1000;
+
+        @Override
+        public long currentTimeSeconds() {
+            return time;
+        }
+    }
+
+    private static final DhcpRequestContext CONTEXT = new DhcpRequestContext(
+            new InterfaceAddress(InetAddresses.forString("10.0.0.1"), 24),
+            new InetSocketAddress(InetAddresses.forString("10.0.0.100"), 68),
+            new InetSocketAddress(InetAddresses.forString("10.0.0.1"), 67));
+    private final Subnet subnet = new Subnet(new NetworkAddress(InetAddresses.forString("10.0.0.0"), 24),
+            InetAddresses.forString("10.0.0.10"), InetAddresses.forString("10.0.0.11"));
+    private final TestClock clock = new TestClock();
+    private File directory;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("lease-manager").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = directory.listFiles();
+        if (files != null)
+            for (File file : files)
+                file.delete();
+        directory.delete();
+    }
+
+    @Nonnull
+    private JournalStoreLeaseManager newLeaseManager() throws IOException {
+        return new JournalStoreLeaseManager(directory, 16, Collections.singleton(subnet), clock);
+    }
+
+    @Nonnull
+    private static DhcpMessage newRequest(@Nonnull MessageType type, int mac) {
+        DhcpMessage request = new DhcpMessage();
+        request.setOp(DhcpMessage.OP_BOOTREQUEST);
+        request.setMessageType(type);
+        request.setHardwareAddress(HardwareAddress.fromString(String.format("00:01:02:03:04:%02x", mac)));
+        return request;
+    }
+
+    @CheckForNull
+    private static InetAddress offer(@Nonnull JournalStoreLeaseManager manager, int mac) throws Exception {
+        DhcpMessage reply = manager.leaseOffer(CONTEXT, newRequest(MessageType.DHCPDISCOVER, mac), null, -1);
+        return reply == null ? null : reply.getAssignedClientAddress();
+    }
+
+    @CheckForNull
+    private static InetAddress request(@Nonnull JournalStoreLeaseManager manager, int mac, @Nonnull InetAddress address) throws Exception {
+        DhcpMessage reply = manager.leaseRequest(CONTEXT, newRequest(MessageType.DHCPREQUEST, mac), address, -1);
+        return reply == null ? null : reply.getAssignedClientAddress();
+    }
+
+    @Test
+    public void testExhaustion() throws Exception {
+        try (JournalStoreLeaseManager manager = newLeaseManager()) {
+            assertEquals(InetAddresses.forString("10.0.0.10"), offer(manager, 1));
+            assertEquals(InetAddresses.forString("10.0.0.11"), offer(manager, 2));
+            // Exhausted; this also uses up the first rescan of the pool.
+            assertNull(offer(manager, 3));
+
+            // Once the offers expire, the next allocation reclaims them without waiting for a rescan.
+            clock.time += 3600;
+            assertNull(manager.getLease(InetAddresses.forString("10.0.0.10")));
+            assertEquals(InetAddresses.forString("10.0.0.10"), offer(manager, 3));
+            assertEquals(InetAddresses.forString("10.0.0.11"), offer(manager, 4));
+            assertNull(offer(manager, 5));
+        }
+    }
+
+    @Test
+    public void testOffer() throws Exception {
+        InetAddress address = InetAddresses.forString("10.0.0.10");
+        try (JournalStoreLeaseManager manager = newLeaseManager()) {
+            int remaining = manager.getJournal().getRemaining();
+            assertEquals(address, offer(manager, 1));
+            Lease lease = manager.getLease(address);
+            assertNotNull(lease);
+            assertEquals(Lease.LeaseState.OFFERED, lease.getState());
+            // An offer is held for the offer's lease time, not that of a lease.
+            assertTrue(lease.getExpires() - clock.time <= 2 * manager.TTL_OFFER.maxLeaseTime);
+            assertEquals(remaining, manager.getJournal().getRemaining());
+
+            assertEquals(address, request(manager, 1, address));
+            lease = manager.getLease(address);
+            assertEquals(Lease.LeaseState.ACTIVE, lease.getState());
+            assertEquals(remaining - 1, manager.getJournal().getRemaining());
+
+            // Another offer to the same client leaves its lease alone.
+            assertEquals(address, offer(manager, 1));
+            assertSame(lease, manager.getLease(address));
+
+            // Compaction keeps only the leases.
+            assertEquals(InetAddresses.forString("10.0.0.11"), offer(manager, 2));
+            manager.compact();
+        }
+
+        try (JournalStoreLeaseManager manager = newLeaseManager()) {
+            assertEquals(Lease.LeaseState.ACTIVE, manager.getLease(address).getState());
+            assertNull(manager.getLease(InetAddresses.forString("10.0.0.11")));
+        }
+    }
+
+    @Test
+    public void testRecover() throws Exception {
+        try (JournalStoreLeaseManager manager = newLeaseManager()) {
+            assertEquals(InetAddresses.forString("10.0.0.10"), request(manager, 1, InetAddresses.forString("10.0.0.10")));
+            assertEquals(InetAddresses.forString("10.0.0.11"), request(manager, 2, InetAddresses.forString("10.0.0.11")));
+            // Offers are not recovered.
+            assertNull(offer(manager, 3));
+        }
+
+        try (JournalStoreLeaseManager manager = newLeaseManager()) {
+            Lease lease = manager.getLease(InetAddresses.forString("10.0.0.11"));
+            LOG.info("Recovered " + lease);
+            assertNotNull(lease);
+            assertEquals(HardwareAddress.fromString("00:01:02:03:04:02"), lease.getHardwareAddress());
+            // The recovered leases are honoured when the new pool rescans.
+            assertNull(offer(manager, 3));
+            assertEquals(InetAddresses.forString("10.0.0.10"), offer(manager, 1));
+        }
+    }
+}
@@ -0,0 +1,243 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.apache.directory.server.dhcp.service.store;
+
+import com.google.common.net.InetAddresses;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.apache.directory.server.dhcp.messages.HardwareAddress;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author shevek
+ */
+public class LeaseJournalTest {
+
+    private static final Logger LOG = LoggerFactory.getLogger(LeaseJournalTest.class);
+    private File directory;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("lease-journal").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = directory.listFiles();
+        if (files != null)
+            for (File file : files)
+                file.delete();
+        directory.delete();
+    }
+
+    @SuppressWarnings("PMD.AvoidUsingHardCodedIP")
+    private static Lease lease(int i, Lease.LeaseState state) {
+        HardwareAddress hardwareAddress = HardwareAddress.fromString(String.format("00:01:02:03:04:%02x", i));
+        InetAddress clientAddress = InetAddresses.forString("10.0.0." + i);
+        Lease lease = new Lease(hardwareAddress, clientAddress);
+        lease.setState(state);
+        lease.setExpires(1000 + i);
+        return lease;
+    }
+
+    private static void assertLease(Lease expected, Lease actual) {
+        assertEquals(expected.getHardwareAddress(), actual.getHardwareAddress());
+        assertEquals(expected.getClientAddress(), actual.getClientAddress());
+        assertEquals(expected.getState(), actual.getState());
+        assertEquals(expected.getExpires(), actual.getExpires());
+    }
+
+    @Test
+    public void testRecover() throws Exception {
+        try (LeaseJournal journal = new LeaseJournal(directory, 16)) {
+            assertTrue(journal.recover().isEmpty());
+            journal.append(lease(1, Lease.LeaseState.ACTIVE));
+            long sequence = journal.append(lease(2, Lease.LeaseState.ACTIVE));
+            journal.sync(sequence);
+            journal.append(lease(1, Lease.LeaseState.RELEASED));
+            assertEquals(13, journal.getRemaining());
+        }
+
+        try (LeaseJournal journal = new LeaseJournal(directory, 16)) {
+            List<Lease> leases = journal.recover();
+            LOG.info("Recovered " + leases + " from " + journal);
+            assertEquals(3, leases.size());
+            assertLease(lease(1, Lease.LeaseState.ACTIVE), leases.get(0));
+            assertLease(lease(2, Lease.LeaseState.ACTIVE), leases.get(1));
+            assertLease(lease(1, Lease.LeaseState.RELEASED), leases.get(2));
+            assertEquals(13, journal.getRemaining());
+        }
+    }
+
+    @Test
+    public void testCompact() throws Exception {
+        try (LeaseJournal journal = new LeaseJournal(directory, 4)) {
+            journal.recover();
+            for (int i = 1; i <= 4; i++)
+                journal.append(lease(i, Lease.LeaseState.ACTIVE));
+            assertEquals(0, journal.getRemaining());
+            try {
+                journal.append(lease(5, Lease.LeaseState.ACTIVE));
+                fail("Appended to a full journal.");
+            } catch (IOException e) {
+                LOG.info("Full: " + e);
+            }
+            journal.compact(Collections.singletonList(lease(3, Lease.LeaseState.ACTIVE)));
+            assertEquals(4, journal.getRemaining());
+            journal.append(lease(5, Lease.LeaseState.ACTIVE));
+        }
+
+        try (LeaseJournal journal = new LeaseJournal(directory, 4)) {
+            List<Lease> leases = journal.recover();
+            assertEquals(2, leases.size());
+            assertLease(lease(3, Lease.LeaseState.ACTIVE), leases.get(0));
+            assertLease(lease(5, Lease.LeaseState.ACTIVE), leases.get(1));
+        }
+    }
+
+    @Test
+    public void testCrashDuringCompact() throws Exception {
+        File journalFile = new File(directory, LeaseJournal.JOURNAL_FILE);
+        File tmpFile = new File(directory, LeaseJournal.SNAPSHOT_FILE + ".tmp");
+        byte[] before;
+        try (LeaseJournal journal = new LeaseJournal(directory, 4)) {
+            journal.recover();
+            for (int i = 1; i <= 3; i++)
+                journal.append(lease(i, Lease.LeaseState.ACTIVE));
+            journal.sync();
+            before = Files.readAllBytes(journalFile.toPath());
+            journal.compact(Collections.singletonList(lease(2, Lease.LeaseState.ACTIVE)));
+        }
+
+        // A crash after the snapshot was replaced, but before the journal was emptied.
+        Files.write(journalFile.toPath(), before);
+        // A crash while writing a later snapshot, which leaves the temporary file behind.
+        Files.write(tmpFile.toPath(), new byte[]{1, 2, 3});
+
+        try (LeaseJournal journal = new LeaseJournal(directory, 4)) {
+            List<Lease> leases = journal.recover();
+            LOG.info("Recovered " + leases + " from " + journal);
+            assertEquals(1, leases.size());
+            assertLease(lease(2, Lease.LeaseState.ACTIVE), leases.get(0));
+            assertEquals(4, journal.getRemaining());
+            journal.append(lease(4, Lease.LeaseState.ACTIVE));
+            journal.sync();
+            // The stale temporary file is overwritten by the next compaction.
+            journal.compact(Arrays.asList(lease(2, Lease.LeaseState.ACTIVE), lease(4, Lease.LeaseState.ACTIVE)));
+        }
+
+        try (LeaseJournal journal = new LeaseJournal(directory, 4)) {
+            List<Lease> leases = journal.recover();
+            assertEquals(2, leases.size());
+            assertLease(lease(2, Lease.LeaseState.ACTIVE), leases.get(0));
+            assertLease(lease(4, Lease.LeaseState.ACTIVE), leases.get(1));
+        }
+    }
+
+    @Test
+    public void testCrashDuringClear() throws Exception {
+        File journalFile = new File(directory, LeaseJournal.JOURNAL_FILE);
+        byte[] before;
+        try (LeaseJournal journal = new LeaseJournal(directory, 4)) {
+            journal.recover();
+            for (int i = 1; i <= 3; i++)
+                journal.append(lease(i, Lease.LeaseState.ACTIVE));
+            journal.sync();
+            before = Files.readAllBytes(journalFile.toPath());
+            journal.compact(Collections.singletonList(lease(2, Lease.LeaseState.ACTIVE)));
+        }
+
+        // A crash after the records were emptied, but before the new generation was written.
+        byte[] after = Files.readAllBytes(journalFile.toPath());
+        System.arraycopy(before, 0, after, 0, LeaseJournal.HEADER_SIZE);
+        Files.write(journalFile.toPath(), after);
+
+        try (LeaseJournal journal = new LeaseJournal(directory, 4)) {
+            List<Lease> leases = journal.recover();
+            assertEquals(1, leases.size());
+            assertLease(lease(2, Lease.LeaseState.ACTIVE), leases.get(0));
+            assertEquals(4, journal.getRemaining());
+        }
+    }
+
+    @Test
+    public void testTornRecord() throws Exception {
+        try (LeaseJournal journal = new LeaseJournal(directory, 8)) {
+            journal.recover();
+            for (int i = 1; i <= 4; i++)
+                journal.append(lease(i, Lease.LeaseState.ACTIVE));
+        }
+
+        // Corrupt the third record.
+        try (RandomAccessFile raf = new RandomAccessFile(new File(directory, LeaseJournal.JOURNAL_FILE), "rw")) {
+            long offset = LeaseJournal.HEADER_SIZE + 2 * LeaseJournal.RECORD_SIZE + 8;
+            raf.seek(offset);
+            int b = raf.read();
+            raf.seek(offset);
+            raf.write(b ^ 0xFF);
+        }
+
+        try (LeaseJournal journal = new LeaseJournal(directory, 8)) {
+            assertEquals(2, journal.recover().size());
+            assertEquals(6, journal.getRemaining());
+            journal.append(lease(6, Lease.LeaseState.ACTIVE));
+        }
+
+        // The record after the torn one was discarded, and is not replayed.
+        try (LeaseJournal journal = new LeaseJournal(directory, 8)) {
+            List<Lease> leases = journal.recover();
+            assertEquals(3, leases.size());
+            assertLease(lease(6, Lease.LeaseState.ACTIVE), leases.get(2));
+        }
+    }
+
+    @Test
+    public void testConcurrentSync() throws Exception {
+        final int threads = 8;
+        final int count = 64;
+        try (final LeaseJournal journal = new LeaseJournal(directory, threads * count)) {
+            journal.recover();
+            final List<Throwable> failures = Collections.synchronizedList(new ArrayList<Throwable>());
+            List<Thread> workers = new ArrayList<Thread>();
+            for (int t = 0; t < threads; t++) {
+                final int base = t * count;
+                Thread thread = new Thread() {
+                    @Override
+                    public void run() {
+                        try {
+                            for (int i = 0; i < count; i++)
+                                journal.sync(journal.append(lease((base + i) & 0xFF, Lease.LeaseState.ACTIVE)));
+                        } catch (Throwable e) {
+                            failures.add(e);
+                        }
+                    }
+                };
+                thread.start();
+                workers.add(thread);
+            }
+            for (Thread thread : workers)
+                thread.join();
+            assertEquals(Collections.emptyList(), failures);
+            assertEquals(0, journal.getRemaining());
+        }
+        try (LeaseJournal journal = new LeaseJournal(directory, threads * count)) {
+            assertEquals(threads * count, journal.recover().size());
+        }
+    }
+}
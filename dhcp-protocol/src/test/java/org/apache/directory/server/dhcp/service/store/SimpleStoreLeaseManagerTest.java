@@ -0,0 +1,90 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.apache.directory.server.dhcp.service.store;
+
+import com.google.common.net.InetAddresses;
+import java.net.InetSocketAddress;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import org.anarres.dhcp.common.address.InterfaceAddress;
+import org.anarres.dhcp.common.address.NetworkAddress;
+import org.apache.directory.server.dhcp.io.DhcpRequestContext;
+import org.apache.directory.server.dhcp.io.ReplyTemplate;
+import org.apache.directory.server.dhcp.io.ReplyTemplateCache;
+import org.apache.directory.server.dhcp.messages.DhcpMessage;
+import org.apache.directory.server.dhcp.messages.HardwareAddress;
+import org.apache.directory.server.dhcp.messages.HardwareAddressType;
+import org.apache.directory.server.dhcp.messages.MessageType;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author shevek
+ */
+@SuppressWarnings("PMD.AvoidUsingHardCodedIP")
+public class SimpleStoreLeaseManagerTest {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SimpleStoreLeaseManagerTest.class);
+
+    @Nonnull
+    private static DhcpMessage newRequest(@CheckForNull String relayAgentAddress) {
+        DhcpMessage request = new DhcpMessage();
+        request.setOp(DhcpMessage.OP_BOOTREQUEST);
+        request.setMessageType(MessageType.DHCPDISCOVER);
+        request.setHardwareAddress(new HardwareAddress(HardwareAddressType.Ethernet, new byte[]{0, 0x16, 0x3e, 0, 0, 1}));
+        if (relayAgentAddress != null)
+            request.setRelayAgentAddress(InetAddresses.forString(relayAgentAddress));
+        return request;
+    }
+
+    @Test
+    public void testFindSubnet() throws Exception {
+        SimpleStoreLeaseManager manager = new SimpleStoreLeaseManager();
+        DhcpConfigSubnet relayed = new DhcpConfigSubnet(
+                NetworkAddress.forString("10.1.0.0/16"),
+                InetAddresses.forString("10.1.0.10"), InetAddresses.forString("10.1.0.20"));
+        assertTrue(manager.addSubnet(relayed));
+        DhcpRequestContext context = new DhcpRequestContext(
+                new InterfaceAddress(InetAddresses.forString("192.168.168.1"), 24),
+                new InetSocketAddress(InetAddresses.forString("192.168.168.5"), 68),
+                new InetSocketAddress(InetAddresses.forString("192.168.168.1"), 67));
+
+        DhcpConfigSubnet local = manager.findSubnet(context, newRequest(null));
+        LOG.info("Local subnet is " + local);
+        assertEquals(NetworkAddress.forString("192.168.168.0/24"), local.getNetwork());
+        assertSame(relayed, manager.findSubnet(context, newRequest("10.1.2.3")));
+
+        // A relayed request for an unknown network is not served from the local subnet.
+        assertNull(manager.findSubnet(context, newRequest("10.2.0.1")));
+        assertNull(manager.leaseOffer(context, newRequest("10.2.0.1"), null, -1));
+    }
+
+    @Test
+    public void testTemplate() throws Exception {
+        SimpleStoreLeaseManager manager = new SimpleStoreLeaseManager();
+        manager.setReplyTemplateCache(new ReplyTemplateCache());
+        DhcpRequestContext context = new DhcpRequestContext(
+                new InterfaceAddress(InetAddresses.forString("192.168.168.1"), 24),
+                new InetSocketAddress(InetAddresses.forString("192.168.168.5"), 68),
+                new InetSocketAddress(InetAddresses.forString("192.168.168.1"), 67));
+
+        DhcpMessage request = newRequest(null);
+        DhcpMessage other = newRequest(null);
+        other.setHardwareAddress(new HardwareAddress(HardwareAddressType.Ethernet, new byte[]{0, 0x16, 0x3e, 0, 0, 2}));
+        DhcpMessage reply = manager.leaseOffer(context, request, InetAddresses.forString("192.168.168.160"), -1);
+        DhcpMessage otherReply = manager.leaseOffer(context, other, InetAddresses.forString("192.168.168.161"), -1);
+
+        // Clients on the same subnet share the template of its options.
+        ReplyTemplate template = ReplyTemplate.getTemplate(reply);
+        LOG.info("Template is " + template);
+        assertNotNull(template);
+        assertSame(template, ReplyTemplate.getTemplate(otherReply));
+        assertTrue(template.contains((byte) 1));    // SubnetMask
+    }
+}
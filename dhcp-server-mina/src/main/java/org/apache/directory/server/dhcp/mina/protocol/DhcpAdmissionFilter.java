@@ -0,0 +1,50 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.apache.directory.server.dhcp.mina.protocol;
+
+import com.google.common.base.Preconditions;
+import javax.annotation.Nonnull;
+import org.anarres.dhcp.common.AdmissionController;
+import org.anarres.dhcp.common.metrics.DhcpMetrics;
+import org.apache.mina.core.buffer.IoBuffer;
+import org.apache.mina.core.filterchain.IoFilterAdapter;
+import org.apache.mina.core.session.IoSession;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Drops requests refused by an {@link AdmissionController} before they are decoded.
+ *
+ * This must precede the codec in the filter chain.
+ *
+ * @author shevek
+ */
+public class DhcpAdmissionFilter extends IoFilterAdapter {
+
+    private static final Logger LOG = LoggerFactory.getLogger(DhcpAdmissionFilter.class);
+    private final AdmissionController admissionController;
+    private final DhcpMetrics metrics;
+
+    public DhcpAdmissionFilter(@Nonnull AdmissionController admissionController, @Nonnull DhcpMetrics metrics) {
+        this.admissionController = Preconditions.checkNotNull(admissionController, "AdmissionController was null.");
+        this.metrics = Preconditions.checkNotNull(metrics, "DhcpMetrics was null.");
+    }
+
+    public DhcpAdmissionFilter(@Nonnull AdmissionController admissionController) {
+        this(admissionController, DhcpMetrics.NOOP);
+    }
+
+    @Override
+    public void messageReceived(NextFilter nextFilter, IoSession session, Object message) throws Exception {
+        if (message instanceof IoBuffer && !admissionController.admit(((IoBuffer) message).buf())) {
+            if (LOG.isDebugEnabled())
+                LOG.debug("{} -> {} DROP", session.getRemoteAddress(), session.getLocalAddress());
+            metrics.recordDrop(DhcpMetrics.Drop.ADMISSION);
+            return;
+        }
+        nextFilter.messageReceived(session, message);
+    }
+}
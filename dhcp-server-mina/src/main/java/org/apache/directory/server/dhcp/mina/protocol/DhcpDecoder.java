@@ -19,9 +19,13 @@
  */
 package org.apache.directory.server.dhcp.mina.protocol;
 
+import com.google.common.base.Preconditions;
 import java.io.IOException;
+import javax.annotation.Nonnull;
+import org.anarres.dhcp.common.metrics.DhcpMetrics;
 import org.apache.directory.server.dhcp.DhcpException;
 import org.apache.directory.server.dhcp.io.DhcpMessageDecoder;
+import org.apache.directory.server.dhcp.messages.DhcpMessage;
 import org.apache.mina.core.buffer.IoBuffer;
 import org.apache.mina.core.session.IoSession;
 import org.apache.mina.filter.codec.ProtocolDecoderAdapter;
@@ -33,10 +37,28 @@ import org.apache.mina.filter.codec.ProtocolDecoderOutput;
 public class DhcpDecoder extends ProtocolDecoderAdapter {
 
     private final DhcpMessageDecoder decoder = new DhcpMessageDecoder();
+    private final DhcpMetrics metrics;
+
+    public DhcpDecoder(@Nonnull DhcpMetrics metrics) {
+        this.metrics = Preconditions.checkNotNull(metrics, "DhcpMetrics was null.");
+    }
+
+    public DhcpDecoder() {
+        this(DhcpMetrics.NOOP);
+    }
 
     @Override
     public void decode(IoSession session, IoBuffer in, ProtocolDecoderOutput out) throws DhcpException, IOException {
-        out.write(decoder.decode(in.buf()));
+        long start = System.nanoTime();
+        DhcpMessage request;
+        try {
+            request = decoder.decode(in.buf());
+        } catch (DhcpException | IOException e) {
+            metrics.recordDrop(DhcpMetrics.Drop.MALFORMED);
+            throw e;
+        }
+        metrics.recordLatency(DhcpMetrics.Stage.DECODE, request.getMessageType(), System.nanoTime() - start);
+        out.write(request);
         in.position(in.limit());    // Consume the remaining bytes, as they will be handed back to us.
     }
 }
\ No newline at end of file
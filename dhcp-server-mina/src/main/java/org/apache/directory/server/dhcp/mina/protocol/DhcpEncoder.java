@@ -19,9 +19,13 @@
  */
 package org.apache.directory.server.dhcp.mina.protocol;
 
+import com.google.common.base.Preconditions;
 import java.io.IOException;
+import javax.annotation.Nonnull;
+import org.anarres.dhcp.common.metrics.DhcpMetrics;
 import org.apache.directory.server.dhcp.io.DhcpMessageEncoder;
 import org.apache.directory.server.dhcp.messages.DhcpMessage;
+import org.apache.directory.server.dhcp.messages.MessageType;
 import org.apache.mina.core.buffer.IoBuffer;
 import org.apache.mina.core.session.IoSession;
 import org.apache.mina.filter.codec.ProtocolEncoderAdapter;
@@ -34,13 +38,25 @@ public class DhcpEncoder extends ProtocolEncoderAdapter {
 
     // FIXME: what's the point of splitting this class from the actual encoder?
     private final DhcpMessageEncoder encoder = new DhcpMessageEncoder();
+    private final DhcpMetrics metrics;
+
+    public DhcpEncoder(@Nonnull DhcpMetrics metrics) {
+        this.metrics = Preconditions.checkNotNull(metrics, "DhcpMetrics was null.");
+    }
+
+    public DhcpEncoder() {
+        this(DhcpMetrics.NOOP);
+    }
 
     @Override
     public void encode(IoSession session, Object message, ProtocolEncoderOutput out)
             throws IOException {
+        long start = System.nanoTime();
         IoBuffer buf = IoBuffer.allocate(1024);
         encoder.encode(buf.buf(), (DhcpMessage) message);
         buf.flip();
+        // The encoder sees only the reply, so the type of the request is not known.
+        metrics.recordLatency(DhcpMetrics.Stage.ENCODE, (MessageType) null, System.nanoTime() - start);
         out.write(buf);
     }
 }
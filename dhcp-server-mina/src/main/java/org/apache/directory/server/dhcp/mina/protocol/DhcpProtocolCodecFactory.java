@@ -20,6 +20,7 @@
 package org.apache.directory.server.dhcp.mina.protocol;
 
 import javax.annotation.Nonnull;
+import org.anarres.dhcp.common.metrics.DhcpMetrics;
 import org.apache.mina.core.session.IoSession;
 import org.apache.mina.filter.codec.ProtocolCodecFactory;
 import org.apache.mina.filter.codec.ProtocolDecoder;
@@ -32,11 +33,12 @@ public class DhcpProtocolCodecFactory implements ProtocolCodecFactory {
 
     private static class Inner {
 
-        private static final DhcpProtocolCodecFactory INSTANCE = new DhcpProtocolCodecFactory();
+        private static final DhcpProtocolCodecFactory INSTANCE = new DhcpProtocolCodecFactory(DhcpMetrics.NOOP);
     }
 
     /**
-     * Returns the singleton instance of {@link DhcpProtocolCodecFactory}.
+     * Returns the singleton instance of {@link DhcpProtocolCodecFactory},
+     * which records no metrics.
      *
      * @return The singleton instance of {@link DhcpProtocolCodecFactory}.
      */
@@ -44,13 +46,24 @@ public class DhcpProtocolCodecFactory implements ProtocolCodecFactory {
     public static DhcpProtocolCodecFactory getInstance() {
         return Inner.INSTANCE;
     }
-    private final DhcpEncoder encoder = new DhcpEncoder();
+    private final DhcpEncoder encoder;
+    private final DhcpDecoder decoder;
+
+    /**
+     * Constructs a new DhcpProtocolCodecFactory.
+     *
+     * @param metrics The metrics which record the decode and encode
+     * latencies, and the requests which could not be decoded.
+     */
+    public DhcpProtocolCodecFactory(@Nonnull DhcpMetrics metrics) {
+        this.encoder = new DhcpEncoder(metrics);
+        this.decoder = new DhcpDecoder(metrics);
+    }
 
     @Override
     public ProtocolEncoder getEncoder(IoSession session) {
         return encoder;
     }
-    private final DhcpDecoder decoder = new DhcpDecoder();
 
     @Override
     public ProtocolDecoder getDecoder(IoSession session) {
@@ -19,16 +19,28 @@
  */
 package org.apache.directory.server.dhcp.mina.protocol;
 
+import com.google.common.base.Preconditions;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
+import java.util.concurrent.Executor;
+import javax.annotation.CheckForNull;
 import javax.annotation.Nonnull;
+import org.anarres.dhcp.common.AdmissionController;
 import org.anarres.dhcp.common.MDCUtils;
 import org.anarres.dhcp.common.address.InterfaceAddress;
+import org.anarres.dhcp.common.concurrent.AbstractDiscardingExecutor;
+import org.anarres.dhcp.common.concurrent.Discardable;
+import org.anarres.dhcp.common.concurrent.PriorityExecutor;
+import org.anarres.dhcp.common.metrics.DhcpMetrics;
 import org.apache.directory.server.dhcp.io.DhcpInterfaceManager;
 import org.apache.directory.server.dhcp.io.DhcpInterfaceUtils;
 import org.apache.directory.server.dhcp.io.DhcpRequestContext;
 import org.apache.directory.server.dhcp.messages.DhcpMessage;
+import org.apache.directory.server.dhcp.messages.MessageType;
 import org.apache.directory.server.dhcp.service.DhcpService;
+import org.apache.directory.server.dhcp.service.RequestPriority;
+import org.apache.mina.core.future.IoFutureListener;
+import org.apache.mina.core.future.WriteFuture;
 import org.apache.mina.core.service.IoHandlerAdapter;
 import org.apache.mina.core.session.IdleStatus;
 import org.apache.mina.core.session.IoSession;
@@ -52,17 +64,53 @@ public class DhcpProtocolHandler extends IoHandlerAdapter {
      */
     private final DhcpService dhcpService;
     private final DhcpInterfaceManager interfaceManager;
+    private final DhcpAdmissionFilter admissionFilter;
+    private final DhcpProtocolCodecFactory codecFactory;
+    private final Executor executor;
+    private final DhcpMetrics metrics;
 
-    public DhcpProtocolHandler(@Nonnull DhcpService dhcpService, @Nonnull DhcpInterfaceManager interfaceManager) {
+    /**
+     * @param admissionController The controller which decides whether a
+     * request is decoded at all, or null to decode every request.
+     * @param executor The executor on which to call the {@link DhcpService},
+     * or null to call it on the I/O thread. A {@link PriorityExecutor}
+     * serves renewals before new clients when overloaded, and, like any
+     * {@link AbstractDiscardingExecutor}, drops requests past their deadline.
+     * @param metrics The metrics which record the decode, encode and send
+     * latencies, and the requests dropped by this handler.
+     */
+    public DhcpProtocolHandler(@Nonnull DhcpService dhcpService, @Nonnull DhcpInterfaceManager interfaceManager,
+            @CheckForNull AdmissionController admissionController, @CheckForNull Executor executor,
+            @Nonnull DhcpMetrics metrics) {
         this.dhcpService = dhcpService;
         this.interfaceManager = interfaceManager;
+        this.metrics = Preconditions.checkNotNull(metrics, "DhcpMetrics was null.");
+        this.admissionFilter = admissionController == null ? null : new DhcpAdmissionFilter(admissionController, metrics);
+        this.codecFactory = new DhcpProtocolCodecFactory(metrics);
+        this.executor = executor;
+    }
+
+    public DhcpProtocolHandler(@Nonnull DhcpService dhcpService, @Nonnull DhcpInterfaceManager interfaceManager,
+            @CheckForNull AdmissionController admissionController, @CheckForNull Executor executor) {
+        this(dhcpService, interfaceManager, admissionController, executor, DhcpMetrics.NOOP);
+    }
+
+    public DhcpProtocolHandler(@Nonnull DhcpService dhcpService, @Nonnull DhcpInterfaceManager interfaceManager,
+            @CheckForNull AdmissionController admissionController) {
+        this(dhcpService, interfaceManager, admissionController, null);
+    }
+
+    public DhcpProtocolHandler(@Nonnull DhcpService dhcpService, @Nonnull DhcpInterfaceManager interfaceManager) {
+        this(dhcpService, interfaceManager, null);
     }
 
     @Override
     public void sessionCreated(IoSession session) throws Exception {
         LOG.debug("{} CREATED", session.getLocalAddress());
         session.getFilterChain().addFirst("codec",
-                new ProtocolCodecFilter(DhcpProtocolCodecFactory.getInstance()));
+                new ProtocolCodecFilter(codecFactory));
+        if (admissionFilter != null)
+            session.getFilterChain().addFirst("admission", admissionFilter);
     }
 
     @Override
@@ -85,12 +133,71 @@ public class DhcpProtocolHandler extends IoHandlerAdapter {
             LOG.debug("{} {} -> {} {}", event, src, dst, msg);
     }
 
+    /** A request awaiting processing on the executor. */
+    private class Task implements PriorityExecutor.Prioritized, Discardable {
+
+        private final IoSession session;
+        private final DhcpMessage request;
+        private final RequestPriority priority;
+        private final long deadline;
+
+        public Task(@Nonnull IoSession session, @Nonnull DhcpMessage request) {
+            this.session = session;
+            this.request = request;
+            this.priority = RequestPriority.forRequest(request);
+            this.deadline = System.nanoTime() + RequestPriority.getDeadlineNanos(request);
+        }
+
+        @Override
+        public int getPriority() {
+            return priority.ordinal();
+        }
+
+        @Override
+        public long getDeadline() {
+            return deadline;
+        }
+
+        @Override
+        public void run() {
+            try {
+                process(session, request);
+            } catch (Exception e) {
+                exceptionCaught(session, e);
+            }
+        }
+
+        @Override
+        public void overflowed() {
+            debug("OVERFLOW", session.getRemoteAddress(), session.getLocalAddress(), request);
+            metrics.recordDrop(DhcpMetrics.Drop.OVERFLOW);
+        }
+
+        @Override
+        public void expired() {
+            debug("EXPIRED", session.getRemoteAddress(), session.getLocalAddress(), request);
+            metrics.recordDrop(DhcpMetrics.Drop.EXPIRED);
+        }
+
+        @Override
+        public String toString() {
+            return "Task(" + priority + " " + session.getRemoteAddress() + " " + request + ")";
+        }
+    }
+
     @Override
     public void messageReceived(IoSession session, Object message)
             throws Exception {
         if (LOG.isDebugEnabled())
             LOG.debug("{} -> {} RCVD: {}", session.getRemoteAddress(), session.getLocalAddress(), message);
         DhcpMessage request = (DhcpMessage) message;
+        if (executor == null)
+            process(session, request);
+        else
+            executor.execute(new Task(session, request));
+    }
+
+    private void process(@Nonnull IoSession session, @Nonnull DhcpMessage request) throws Exception {
         InetSocketAddress remoteAddress = (InetSocketAddress) session.getRemoteAddress();
 
         // This doesn't work in practice. Pass the InterfaceAddress to the constructor.
@@ -103,6 +210,7 @@ public class DhcpProtocolHandler extends IoHandlerAdapter {
                 request);
         if (context == null) {
             debug("IGNQUERY", session.getRemoteAddress(), session.getLocalAddress(), request);
+            metrics.recordDrop(DhcpMetrics.Drop.NO_INTERFACE);
             return;
         }
 
@@ -122,18 +230,36 @@ public class DhcpProtocolHandler extends IoHandlerAdapter {
             );
             if (localAddress == null) {
                 debug("NOIFACE", session.getRemoteAddress(), session.getLocalAddress(), reply);
+                metrics.recordDrop(DhcpMetrics.Drop.NO_INTERFACE);
                 return;
             }
 
             InetSocketAddress isa = DhcpInterfaceUtils.determineMessageDestination(
                     request, reply,
                     localAddress, remoteAddress.getPort());
-            session.write(reply, isa);
+            write(session, reply, isa, request);
         } finally {
             MDCUtils.fini();
         }
     }
 
+    /** Writes the reply, and records its latency once the transport has sent it. */
+    private void write(@Nonnull IoSession session, @Nonnull DhcpMessage reply, @Nonnull final InetSocketAddress isa, @Nonnull DhcpMessage request) {
+        final long start = System.nanoTime();
+        final MessageType type = request.getMessageType();
+        session.write(reply, isa).addListener(new IoFutureListener<WriteFuture>() {
+            @Override
+            public void operationComplete(WriteFuture future) {
+                if (future.isWritten()) {
+                    metrics.recordLatency(DhcpMetrics.Stage.SEND, type, System.nanoTime() - start);
+                } else {
+                    LOG.warn("Failed to send reply to {}", isa, future.getException());
+                    metrics.recordDrop(DhcpMetrics.Drop.ERROR);
+                }
+            }
+        });
+    }
+
     @Override
     public void messageSent(IoSession session, Object message) {
         if (LOG.isDebugEnabled()) {
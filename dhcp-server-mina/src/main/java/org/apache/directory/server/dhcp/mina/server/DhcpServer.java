@@ -5,13 +5,19 @@
  */
 package org.apache.directory.server.dhcp.mina.server;
 
+import com.google.common.base.Preconditions;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.SocketException;
+import java.util.concurrent.Executor;
+import javax.annotation.CheckForNull;
 import javax.annotation.Nonnegative;
 import javax.annotation.Nonnull;
 import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
+import org.anarres.dhcp.common.AdmissionController;
+import org.anarres.dhcp.common.concurrent.PriorityExecutor;
+import org.anarres.dhcp.common.metrics.DhcpMetrics;
 import org.apache.directory.server.dhcp.io.DhcpInterfaceManager;
 import org.apache.directory.server.dhcp.mina.protocol.DhcpProtocolCodecFactory;
 import org.apache.directory.server.dhcp.mina.protocol.DhcpProtocolHandler;
@@ -29,10 +35,12 @@ import org.apache.mina.transport.socket.nio.NioDatagramAcceptor;
 public class DhcpServer extends DhcpInterfaceManager {
 
     private final LoggingFilter logger_wire = new LoggingFilter("dhcp-wire");
-    private final ProtocolCodecFilter codec = new ProtocolCodecFilter(DhcpProtocolCodecFactory.getInstance());
     private final LoggingFilter logger_packet = new LoggingFilter("dhcp-packet");
     private final DhcpService service;
     private final int port;
+    private AdmissionController admissionController;
+    private Executor executor;
+    private DhcpMetrics metrics = DhcpMetrics.NOOP;
     private NioDatagramAcceptor acceptor;
 
     public DhcpServer(@Nonnull DhcpService service, @Nonnegative int port) {
@@ -48,6 +56,56 @@ public class DhcpServer extends DhcpInterfaceManager {
         this(new LeaseManagerDhcpService(leaseManager));
     }
 
+    @CheckForNull
+    public Executor getExecutor() {
+        return executor;
+    }
+
+    /**
+     * Sets the executor on which to call the {@link DhcpService}.
+     *
+     * By default, the service is called on the I/O thread.
+     * This must be called before {@link #start()}.
+     *
+     * @see PriorityExecutor
+     */
+    public void setExecutor(@CheckForNull Executor executor) {
+        this.executor = executor;
+    }
+
+    @CheckForNull
+    public AdmissionController getAdmissionController() {
+        return admissionController;
+    }
+
+    /**
+     * Sets the controller which decides whether a request is decoded at all.
+     *
+     * By default, every request is decoded and passed to the {@link DhcpService}.
+     * This must be called before {@link #start()}.
+     */
+    public void setAdmissionController(@CheckForNull AdmissionController admissionController) {
+        this.admissionController = admissionController;
+    }
+
+    @Nonnull
+    public DhcpMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Sets the metrics which record the decode, encode and send latencies,
+     * and the requests dropped before they reach the {@link DhcpService}.
+     *
+     * To record the latency of the service itself, set the metrics on the
+     * service as well. This must be called before {@link #start()}.
+     *
+     * @see LeaseManagerDhcpService#setMetrics(DhcpMetrics)
+     */
+    public void setMetrics(@Nonnull DhcpMetrics metrics) {
+        this.metrics = Preconditions.checkNotNull(metrics, "DhcpMetrics was null.");
+    }
+
     @PostConstruct
     @Override
     public void start() throws IOException, InterruptedException {
@@ -56,9 +114,9 @@ public class DhcpServer extends DhcpInterfaceManager {
         NioDatagramAcceptor a = new NioDatagramAcceptor();
         a.bind(new InetSocketAddress(port));
         a.getFilterChain().addLast("dhcp-wire", logger_wire);
-        a.getFilterChain().addLast("dhcp-codec", codec);
+        a.getFilterChain().addLast("dhcp-codec", new ProtocolCodecFilter(new DhcpProtocolCodecFactory(metrics)));
         a.getFilterChain().addLast("dhcp-packet", logger_packet);
-        a.setHandler(new DhcpProtocolHandler(service, this));
+        a.setHandler(new DhcpProtocolHandler(service, this, admissionController, executor, metrics));
         this.acceptor = a;
     }
 
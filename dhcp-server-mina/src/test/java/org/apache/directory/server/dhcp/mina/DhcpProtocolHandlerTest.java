@@ -9,25 +9,34 @@ import java.net.InetSocketAddress;
 import java.net.SocketAddress;
 import javax.annotation.Nonnull;
 import org.anarres.dhcp.common.address.InterfaceAddress;
+import org.anarres.dhcp.common.metrics.DefaultDhcpMetrics;
+import org.anarres.dhcp.common.metrics.DhcpMetrics;
 import org.apache.directory.server.dhcp.io.DhcpInterfaceManager;
 import org.apache.directory.server.dhcp.messages.DhcpMessage;
 import org.apache.directory.server.dhcp.messages.HardwareAddress;
 import org.apache.directory.server.dhcp.messages.HardwareAddressType;
 import org.apache.directory.server.dhcp.messages.MessageType;
+import org.apache.directory.server.dhcp.mina.protocol.DhcpProtocolCodecFactory;
 import org.apache.directory.server.dhcp.mina.protocol.DhcpProtocolHandler;
 import org.apache.directory.server.dhcp.options.dhcp.RequestedIpAddress;
 import org.apache.directory.server.dhcp.service.DhcpService;
 import org.apache.directory.server.dhcp.service.manager.LeaseManager;
 import org.apache.directory.server.dhcp.service.manager.LeaseManagerDhcpService;
 import org.apache.directory.server.dhcp.service.store.SimpleStoreLeaseManager;
+import org.apache.mina.core.buffer.IoBuffer;
+import org.apache.mina.core.filterchain.IoFilter;
 import org.apache.mina.core.future.DefaultWriteFuture;
 import org.apache.mina.core.future.WriteFuture;
 import org.apache.mina.core.session.DummySession;
+import org.apache.mina.core.session.IoSession;
 import org.apache.mina.core.write.DefaultWriteRequest;
 import org.apache.mina.core.write.WriteRequest;
+import org.apache.mina.filter.codec.AbstractProtocolDecoderOutput;
+import org.apache.mina.filter.codec.ProtocolDecoder;
 import org.junit.Test;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import static org.junit.Assert.*;
 
 /**
  *
@@ -78,4 +87,34 @@ public class DhcpProtocolHandlerTest {
         // Right now, this isn't configured, so it doesn't respond.
         // assertEquals(1, session.getWrittenMessages());
     }
+
+    @Test
+    public void testMetrics() throws Exception {
+        DefaultDhcpMetrics metrics = new DefaultDhcpMetrics();
+        DummySession session = new DummySession() {
+            {
+                setLocalAddress(new InetSocketAddress("0.0.0.0", DhcpService.SERVER_PORT));
+                setRemoteAddress(new InetSocketAddress("10.1.2.3", DhcpService.CLIENT_PORT));
+            }
+        };
+        DhcpService service = new LeaseManagerDhcpService(new SimpleStoreLeaseManager());
+        DhcpProtocolHandler protocolHandler = new DhcpProtocolHandler(service, new DhcpInterfaceManager(), null, null, metrics);
+
+        // No interface is configured for the client, so the request is dropped.
+        protocolHandler.messageReceived(session, newRequest(MessageType.DHCPDISCOVER));
+        assertEquals(1, metrics.getDropCount(DhcpMetrics.Drop.NO_INTERFACE));
+
+        ProtocolDecoder decoder = new DhcpProtocolCodecFactory(metrics).getDecoder(session);
+        try {
+            decoder.decode(session, IoBuffer.wrap(new byte[]{1, 2, 3}), new AbstractProtocolDecoderOutput() {
+                @Override
+                public void flush(IoFilter.NextFilter nextFilter, IoSession session) {
+                }
+            });
+            fail("Decoded a truncated request.");
+        } catch (Exception e) {
+            LOG.info("Expected: " + e);
+        }
+        assertEquals(1, metrics.getDropCount(DhcpMetrics.Drop.MALFORMED));
+    }
 }
@@ -13,8 +13,12 @@ import io.netty.channel.ChannelHandler;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.SimpleChannelInboundHandler;
 import io.netty.channel.socket.DatagramPacket;
+import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
+import java.util.concurrent.Callable;
+import javax.annotation.CheckForNull;
 import javax.annotation.Nonnull;
+import org.anarres.dhcp.common.ReplyCache;
 import org.anarres.dhcp.v6.Dhcp6Exception;
 import org.anarres.dhcp.v6.io.Dhcp6MessageDecoder;
 import org.anarres.dhcp.v6.io.Dhcp6MessageEncoder;
@@ -37,15 +41,25 @@ public class Dhcp6Handler extends SimpleChannelInboundHandler<DatagramPacket> {
 
     private final Dhcp6MessageDecoder dhcp6MessageDecoder;
     private final Dhcp6MessageEncoder dhcp6MessageEncoder;
+    private final ReplyCache replyCache;
 
-    public Dhcp6Handler(@Nonnull Dhcp6Service dhcpService, @Nonnull final byte[] serverDuid) {
+    /**
+     * @param replyCache The cache with which to answer retransmitted
+     * requests, or null to pass every request to the service.
+     */
+    public Dhcp6Handler(@Nonnull Dhcp6Service dhcpService, @Nonnull final byte[] serverDuid, @CheckForNull ReplyCache replyCache) {
         this.dhcpService = dhcpService;
         Preconditions.checkArgument(serverDuid.length == 2); // https://tools.ietf.org/html/rfc3315#section-9.1
+        this.replyCache = replyCache;
 
         dhcp6MessageDecoder = Dhcp6MessageDecoder.getInstance();
         dhcp6MessageEncoder = Dhcp6MessageEncoder.getInstance();
     }
 
+    public Dhcp6Handler(@Nonnull Dhcp6Service dhcpService, @Nonnull final byte[] serverDuid) {
+        this(dhcpService, serverDuid, null);
+    }
+
     @Override
     protected void channelRead0(ChannelHandlerContext ctx, DatagramPacket msg) throws Exception {
         if (LOG.isDebugEnabled()) {
@@ -60,22 +74,64 @@ public class Dhcp6Handler extends SimpleChannelInboundHandler<DatagramPacket> {
             return;
         }
 
+        ReplyCache.Key key = replyCache == null ? null : ReplyCache.newKey(incommingMsg);
+        if (key == null) {
+            DatagramPacket packet = newReply(ctx, msg.sender(), incommingMsg);
+            if (packet != null)
+                ctx.write(packet);
+            return;
+        }
+
+        // The packet built by this thread, if it computed the reply.
+        final DatagramPacket[] built = new DatagramPacket[1];
+        final ChannelHandlerContext c = ctx;
+        final InetSocketAddress sender = msg.sender();
+        ReplyCache.Reply reply = replyCache.get(key, new Callable<ReplyCache.Reply>() {
+            @Override
+            public ReplyCache.Reply call() throws Exception {
+                DatagramPacket packet = newReply(c, sender, incommingMsg);
+                if (packet == null)
+                    return ReplyCache.Reply.NONE;
+                built[0] = packet;
+                return new ReplyCache.Reply(ByteBufUtil.getBytes(packet.content()), packet.recipient());
+            }
+        });
+        if (built[0] != null) {
+            ctx.write(built[0]);
+            return;
+        }
+        byte[] data = reply.getData();
+        if (data == null)
+            return;
+        LOG.debug("Responding to retransmission with cached reply: {}", reply);
+        ByteBuf buf = ctx.alloc().directBuffer(data.length, data.length).writeBytes(data);
+        ctx.write(new DatagramPacket(buf, reply.getRecipient()));
+    }
+
+    /** Asks the service for a reply to the given request, and encodes it, or returns null. */
+    @CheckForNull
+    private DatagramPacket newReply(@Nonnull ChannelHandlerContext ctx, @Nonnull InetSocketAddress sender, @Nonnull Dhcp6Message incommingMsg) throws Exception {
         final Optional<Dhcp6Message> reply = dhcpService
-                .getReplyFor(new Dhcp6RequestContext(msg.sender().getAddress()), incommingMsg);
+                .getReplyFor(new Dhcp6RequestContext(sender.getAddress()), incommingMsg);
 
         if (reply.isPresent()) {
             LOG.debug("Responding with message: {}", reply.get());
 
-            // TODO what size to allocate the buffer to ?
-            ByteBuf buf = ctx.alloc().buffer(1024);
-            ByteBuffer buffer = buf.nioBuffer(buf.writerIndex(), buf.writableBytes());
-            dhcp6MessageEncoder.encode(buffer, reply.get());
-            buffer.flip();
-            buf.writerIndex(buf.writerIndex() + buffer.remaining());
-            DatagramPacket packet = new DatagramPacket(buf, msg.sender());
-            ctx.write(packet);
+            int length = reply.get().getLength();
+            ByteBuf buf = ctx.alloc().directBuffer(length, length);
+            try {
+                ByteBuffer buffer = buf.nioBuffer(buf.writerIndex(), length);
+                dhcp6MessageEncoder.encode(buffer, reply.get());
+                buffer.flip();
+                buf.writerIndex(buf.writerIndex() + buffer.remaining());
+            } catch (Exception e) {
+                buf.release();
+                throw e;
+            }
+            return new DatagramPacket(buf, sender);
         } else {
             LOG.warn("No response from DHCP service received for: {}. Ignoring.", incommingMsg);
+            return null;
         }
     }
 
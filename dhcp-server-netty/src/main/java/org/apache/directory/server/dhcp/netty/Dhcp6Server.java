@@ -8,8 +8,7 @@ package org.apache.directory.server.dhcp.netty;
 import io.netty.bootstrap.Bootstrap;
 import io.netty.channel.EventLoop;
 import io.netty.channel.EventLoopGroup;
-import io.netty.channel.nio.NioEventLoopGroup;
-import io.netty.channel.socket.nio.NioDatagramChannel;
+import io.netty.channel.socket.DatagramChannel;
 import io.netty.util.concurrent.DefaultThreadFactory;
 import java.io.IOException;
 import java.net.InetAddress;
@@ -17,10 +16,12 @@ import java.net.InetSocketAddress;
 import java.net.NetworkInterface;
 import java.util.Enumeration;
 import java.util.concurrent.ThreadFactory;
+import javax.annotation.CheckForNull;
 import javax.annotation.Nonnegative;
 import javax.annotation.Nonnull;
 import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
+import org.anarres.dhcp.common.ReplyCache;
 import org.anarres.dhcp.v6.options.DuidOption;
 import org.anarres.dhcp.v6.service.Dhcp6LeaseManager;
 import org.anarres.dhcp.v6.service.Dhcp6Service;
@@ -38,7 +39,9 @@ public class Dhcp6Server {
 
     private final Dhcp6Service service;
     private final int port;
-    private NioDatagramChannel channel;
+    private boolean nativeTransport = false;
+    private ReplyCache replyCache;
+    private DatagramChannel channel;
     private static final byte[] SERVER_ID = new byte[] { 0, 1 }; // TODO invalid type code
     // see https://tools.ietf.org/html/rfc3315#section-9.2
 
@@ -59,16 +62,47 @@ public class Dhcp6Server {
         this(new LeaseManagerDhcp6Service(manager, serverId));
     }
 
+    public boolean isNativeTransport() {
+        return nativeTransport;
+    }
+
+    /**
+     * Requests the native epoll transport, if available.
+     *
+     * This must be called before {@link #start()}.
+     *
+     * @see TransportUtils
+     */
+    public void setNativeTransport(boolean nativeTransport) {
+        this.nativeTransport = nativeTransport;
+    }
+
+    @CheckForNull
+    public ReplyCache getReplyCache() {
+        return replyCache;
+    }
+
+    /**
+     * Sets the cache with which to answer retransmitted requests.
+     *
+     * By default, every request is passed to the {@link Dhcp6Service}.
+     * This must be called before {@link #start()}.
+     */
+    public void setReplyCache(@CheckForNull ReplyCache replyCache) {
+        this.replyCache = replyCache;
+    }
+
     @PostConstruct
     public void start() throws IOException, InterruptedException {
+        boolean isNative = TransportUtils.isNative(nativeTransport);
         ThreadFactory factory = new DefaultThreadFactory("dhcp-server");
-        EventLoopGroup group = new NioEventLoopGroup(0, factory);
+        EventLoopGroup group = TransportUtils.newEventLoopGroup(isNative, 0, factory);
 
         Bootstrap b = new Bootstrap();
         b.group(group);
-        b.channel(NioDatagramChannel.class);
-        b.handler(new Dhcp6Handler(service, SERVER_ID));
-        channel = (NioDatagramChannel) b.bind(port).sync().channel();
+        TransportUtils.configure(b, isNative, false);
+        b.handler(new Dhcp6Handler(service, SERVER_ID, replyCache));
+        channel = (DatagramChannel) b.bind(port).sync().channel();
 
         LOG.info("DHCPv6 server started on : {}, with id: {}", channel.localAddress(), SERVER_ID);
 
@@ -5,24 +5,48 @@
  */
 package org.apache.directory.server.dhcp.netty;
 
+import com.google.common.base.Preconditions;
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandler;
 import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
 import io.netty.channel.SimpleChannelInboundHandler;
 import io.netty.channel.socket.DatagramPacket;
+import io.netty.util.Attribute;
+import io.netty.util.AttributeKey;
+import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import javax.annotation.CheckForNull;
 import javax.annotation.Nonnull;
+import org.anarres.dhcp.common.AdmissionController;
 import org.anarres.dhcp.common.MDCUtils;
+import org.anarres.dhcp.common.ReplyCache;
 import org.anarres.dhcp.common.address.InterfaceAddress;
+import org.anarres.dhcp.common.concurrent.BoundedDropOldestExecutor;
+import org.anarres.dhcp.common.concurrent.Discardable;
+import org.anarres.dhcp.common.concurrent.PriorityExecutor;
+import org.anarres.dhcp.common.metrics.DhcpMetrics;
+import org.apache.directory.server.dhcp.DhcpException;
 import org.apache.directory.server.dhcp.io.DhcpInterfaceManager;
 import org.apache.directory.server.dhcp.io.DhcpInterfaceUtils;
 import org.apache.directory.server.dhcp.io.DhcpMessageDecoder;
 import org.apache.directory.server.dhcp.io.DhcpMessageEncoder;
 import org.apache.directory.server.dhcp.io.DhcpRequestContext;
 import org.apache.directory.server.dhcp.messages.DhcpMessage;
+import org.apache.directory.server.dhcp.messages.MessageType;
 import org.apache.directory.server.dhcp.service.DhcpService;
+import org.apache.directory.server.dhcp.service.RequestPriority;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.slf4j.MDC;
@@ -35,14 +59,66 @@ import org.slf4j.MDC;
 public class DhcpHandler extends SimpleChannelInboundHandler<DatagramPacket> {
 
     private static final Logger LOG = LoggerFactory.getLogger(DhcpHandler.class);
+    /**
+     * The maximum number of requests processed as one batch.
+     *
+     * Requests received in one read are decoded and queued, and
+     * processed together when the read completes, or when the batch is full.
+     */
+    public static final int MAX_BATCH_SIZE = 64;
+    private static final AttributeKey<List<Request>> BATCH = AttributeKey.valueOf(DhcpHandler.class.getName() + ".batch");
+    private static final AttributeKey<Flusher> FLUSHER = AttributeKey.valueOf(DhcpHandler.class.getName() + ".flusher");
     private final DhcpService dhcpService;
     private final DhcpInterfaceManager interfaceManager;
     private final DhcpMessageDecoder decoder = new DhcpMessageDecoder();
     private final DhcpMessageEncoder encoder = new DhcpMessageEncoder();
+    private final Executor executor;
+    private final ReplyCache replyCache;
+    private final AdmissionController admissionController;
+    private final DhcpMetrics metrics;
 
-    public DhcpHandler(@Nonnull DhcpService dhcpService, @Nonnull DhcpInterfaceManager interfaceManager) {
+    /**
+     * Constructs a new DhcpHandler.
+     *
+     * @param executor The executor on which to call the {@link DhcpService},
+     * or null to call it on the event loop. A {@link PriorityExecutor}
+     * serves renewals before new clients when overloaded.
+     * @param replyCache The cache with which to answer retransmitted
+     * requests, or null to pass every request to the service.
+     * @param admissionController The controller which decides whether a
+     * request is decoded at all, or null to decode every request.
+     * @param metrics The metrics which record the decode, encode and send
+     * latencies, and the requests dropped by this handler.
+     * @see BoundedDropOldestExecutor
+     */
+    public DhcpHandler(@Nonnull DhcpService dhcpService, @Nonnull DhcpInterfaceManager interfaceManager,
+            @CheckForNull Executor executor, @CheckForNull ReplyCache replyCache,
+            @CheckForNull AdmissionController admissionController, @Nonnull DhcpMetrics metrics) {
         this.dhcpService = dhcpService;
         this.interfaceManager = interfaceManager;
+        this.executor = executor;
+        this.replyCache = replyCache;
+        this.admissionController = admissionController;
+        this.metrics = Preconditions.checkNotNull(metrics, "DhcpMetrics was null.");
+    }
+
+    public DhcpHandler(@Nonnull DhcpService dhcpService, @Nonnull DhcpInterfaceManager interfaceManager,
+            @CheckForNull Executor executor, @CheckForNull ReplyCache replyCache,
+            @CheckForNull AdmissionController admissionController) {
+        this(dhcpService, interfaceManager, executor, replyCache, admissionController, DhcpMetrics.NOOP);
+    }
+
+    public DhcpHandler(@Nonnull DhcpService dhcpService, @Nonnull DhcpInterfaceManager interfaceManager,
+            @CheckForNull Executor executor, @CheckForNull ReplyCache replyCache) {
+        this(dhcpService, interfaceManager, executor, replyCache, null);
+    }
+
+    public DhcpHandler(@Nonnull DhcpService dhcpService, @Nonnull DhcpInterfaceManager interfaceManager, @CheckForNull Executor executor) {
+        this(dhcpService, interfaceManager, executor, null);
+    }
+
+    public DhcpHandler(@Nonnull DhcpService dhcpService, @Nonnull DhcpInterfaceManager interfaceManager) {
+        this(dhcpService, interfaceManager, null);
     }
 
     private static void debug(@Nonnull String event, @Nonnull SocketAddress src, @Nonnull SocketAddress dst, @Nonnull DhcpMessage msg) {
@@ -52,7 +128,23 @@ public class DhcpHandler extends SimpleChannelInboundHandler<DatagramPacket> {
 
     @Override
     protected void channelRead0(ChannelHandlerContext ctx, DatagramPacket msg) throws Exception {
-        DhcpMessage request = decoder.decode(msg.content().nioBuffer());
+        long received = System.nanoTime();
+        ByteBuffer buffer = msg.content().nioBuffer();
+        if (admissionController != null && !admissionController.admit(buffer)) {
+            if (LOG.isDebugEnabled())
+                LOG.debug("DROP {} -> {}", msg.sender(), msg.recipient());
+            metrics.recordDrop(DhcpMetrics.Drop.ADMISSION);
+            return;
+        }
+        long start = System.nanoTime();
+        DhcpMessage request;
+        try {
+            request = decoder.decode(buffer);
+        } catch (DhcpException | IOException e) {
+            metrics.recordDrop(DhcpMetrics.Drop.MALFORMED);
+            throw e;
+        }
+        metrics.recordLatency(DhcpMetrics.Stage.DECODE, request.getMessageType(), System.nanoTime() - start);
 
         DhcpRequestContext context = interfaceManager.newRequestContext(
                 (InetSocketAddress) ctx.channel().localAddress(),
@@ -62,51 +154,309 @@ public class DhcpHandler extends SimpleChannelInboundHandler<DatagramPacket> {
         );
         if (context == null) {
             debug("IGNQUERY", msg.sender(), msg.recipient(), request);
+            metrics.recordDrop(DhcpMetrics.Drop.NO_INTERFACE);
             return;
         }
         // debug("READ", msg.sender(), msg.recipient(), request);
 
-        MDCUtils.init(context, request);
-        try {
-            DhcpMessage reply = dhcpService.getReplyFor(context, request);
-            if (reply == null) {
-                debug("NOREPLY", msg.sender(), msg.recipient(), request);
-                return;
+        // The request is fully decoded, so the packet may be released before the batch is processed.
+        Attribute<List<Request>> attr = ctx.channel().attr(BATCH);
+        List<Request> batch = attr.get();
+        if (batch == null) {
+            batch = new ArrayList<Request>(MAX_BATCH_SIZE);
+            attr.set(batch);
+        }
+        batch.add(new Request(msg.sender(), msg.recipient(), context, request, received));
+        if (batch.size() >= MAX_BATCH_SIZE)
+            dispatch(ctx, attr, batch);
+    }
+
+    @Override
+    public void channelReadComplete(ChannelHandlerContext ctx) throws Exception {
+        Attribute<List<Request>> attr = ctx.channel().attr(BATCH);
+        List<Request> batch = attr.get();
+        if (batch != null && !batch.isEmpty())
+            dispatch(ctx, attr, batch);
+        ctx.flush();
+    }
+
+    /**
+     * Processes the batch inline, or hands it to the executor.
+     *
+     * The batch is ordered by {@link RequestPriority}. If it is handed to
+     * the executor, each request is submitted as its own {@link Task}, so
+     * that the capacity, discards and counters of the executor are all
+     * per request. The replies of the workers are flushed by a {@link Flusher}.
+     */
+    private void dispatch(@Nonnull ChannelHandlerContext ctx, @Nonnull Attribute<List<Request>> attr, @Nonnull List<Request> batch) {
+        Collections.sort(batch, Request.BY_PRIORITY);
+        if (executor == null) {
+            process(ctx, batch);
+        } else {
+            Flusher flusher = getFlusher(ctx);
+            for (int i = 0; i < batch.size(); i++)
+                executor.execute(new Task(ctx, flusher, batch.get(i)));
+        }
+        batch.clear();
+    }
+
+    @Nonnull
+    private static Flusher getFlusher(@Nonnull ChannelHandlerContext ctx) {
+        Attribute<Flusher> attr = ctx.channel().attr(FLUSHER);
+        Flusher flusher = attr.get();
+        if (flusher == null) {
+            flusher = new Flusher(ctx);
+            Flusher prev = attr.setIfAbsent(flusher);
+            if (prev != null)
+                flusher = prev;
+        }
+        return flusher;
+    }
+
+    /**
+     * Flushes the replies written by worker threads, at most once per
+     * turn of the event loop.
+     *
+     * Each worker submits this after its write, so it runs on the event
+     * loop after the write has reached the outbound buffer. The flush
+     * itself is queued behind any other writes already submitted, which
+     * it then covers.
+     */
+    private static class Flusher implements Runnable {
+
+        private final ChannelHandlerContext ctx;
+        /** Whether a flush is queued. Accessed only on the event loop. */
+        private boolean pending;
+        private final Runnable flush = new Runnable() {
+            @Override
+            public void run() {
+                pending = false;
+                ctx.flush();
             }
+        };
 
-            InterfaceAddress localAddress = interfaceManager.getResponseInterface(
-                    request.getRelayAgentAddress(),
-                    request.getCurrentClientAddress(),
-                    msg.sender().getAddress(),
-                    reply
-            );
-            if (localAddress == null) {
-                debug("NOIFACE", msg.recipient(), msg.sender(), reply);
+        public Flusher(@Nonnull ChannelHandlerContext ctx) {
+            this.ctx = ctx;
+        }
+
+        @Override
+        public void run() {
+            if (pending)
                 return;
+            pending = true;
+            ctx.executor().execute(flush);
+        }
+    }
+
+    /** A decoded request awaiting processing. */
+    private static class Request {
+
+        private static final Comparator<Request> BY_PRIORITY = new Comparator<Request>() {
+            @Override
+            public int compare(Request o1, Request o2) {
+                return o1.priority.compareTo(o2.priority);
             }
+        };
+        private final InetSocketAddress sender;
+        private final InetSocketAddress recipient;
+        private final DhcpRequestContext context;
+        private final DhcpMessage request;
+        private final RequestPriority priority;
+        /** The time, on the {@link System#nanoTime()} clock, after which the request is not worth answering. */
+        private final long deadline;
+
+        public Request(InetSocketAddress sender, InetSocketAddress recipient, DhcpRequestContext context, DhcpMessage request, long received) {
+            this.sender = sender;
+            this.recipient = recipient;
+            this.context = context;
+            this.request = request;
+            this.priority = RequestPriority.forRequest(request);
+            this.deadline = received + RequestPriority.getDeadlineNanos(request);
+        }
+
+        @Override
+        public String toString() {
+            return sender + " " + request;
+        }
+    }
 
-            debug("READ", msg.sender(), msg.recipient(), request);
+    /** Processes one request on a worker thread, or records why the executor discarded it. */
+    private class Task implements PriorityExecutor.Prioritized, Discardable {
 
-            InetSocketAddress isa = DhcpInterfaceUtils.determineMessageDestination(
-                    request, reply,
-                    localAddress, msg.sender().getPort());
+        private final ChannelHandlerContext ctx;
+        private final Flusher flusher;
+        private final Request request;
 
-            ByteBuf buf = ctx.alloc().buffer(1024);
-            ByteBuffer buffer = buf.nioBuffer(buf.writerIndex(), buf.writableBytes());
-            encoder.encode(buffer, reply);
-            buffer.flip();
-            buf.writerIndex(buf.writerIndex() + buffer.remaining());
-            DatagramPacket packet = new DatagramPacket(buf, isa);
-            debug("WRITE", packet.sender(), packet.recipient(), reply);
-            ctx.write(packet, ctx.voidPromise());
+        public Task(ChannelHandlerContext ctx, Flusher flusher, Request request) {
+            this.ctx = ctx;
+            this.flusher = flusher;
+            this.request = request;
+        }
+
+        @Override
+        public int getPriority() {
+            return request.priority.ordinal();
+        }
+
+        @Override
+        public long getDeadline() {
+            return request.deadline;
+        }
+
+        @Override
+        public void run() {
+            process(ctx, Collections.singletonList(request));
+            ctx.executor().execute(flusher);
+        }
+
+        @Override
+        public void overflowed() {
+            debug("OVERFLOW", request.sender, request.recipient, request.request);
+            metrics.recordDrop(DhcpMetrics.Drop.OVERFLOW);
+        }
+
+        @Override
+        public void expired() {
+            debug("EXPIRED", request.sender, request.recipient, request.request);
+            metrics.recordDrop(DhcpMetrics.Drop.EXPIRED);
+        }
+
+        @Override
+        public String toString() {
+            return "Task(" + request + ")";
+        }
+    }
+
+    /**
+     * Processes a batch of requests, writing but not flushing the replies.
+     *
+     * Requests whose deadline has passed are skipped.
+     * The MDC is overwritten for each request, and cleared once at the end.
+     */
+    private void process(@Nonnull ChannelHandlerContext ctx, @Nonnull List<Request> batch) {
+        try {
+            long now = System.nanoTime();
+            for (int i = 0; i < batch.size(); i++) {
+                Request request = batch.get(i);
+                if (now - request.deadline > 0) {
+                    debug("EXPIRED", request.sender, request.recipient, request.request);
+                    metrics.recordDrop(DhcpMetrics.Drop.EXPIRED);
+                    continue;
+                }
+                try {
+                    process(ctx, request.sender, request.recipient, request.context, request.request);
+                } catch (Exception e) {
+                    LOG.error("Failed to process " + request, e);
+                }
+            }
         } finally {
             MDCUtils.fini();
         }
     }
 
-    @Override
-    public void channelReadComplete(ChannelHandlerContext ctx) throws Exception {
-        ctx.flush();
+    private void process(@Nonnull final ChannelHandlerContext ctx,
+            @Nonnull final InetSocketAddress sender, @Nonnull final InetSocketAddress recipient,
+            @Nonnull final DhcpRequestContext context, @Nonnull final DhcpMessage request) throws Exception {
+        MDCUtils.init(context, request);
+        ReplyCache.Key key = replyCache == null ? null : ReplyCache.newKey(request);
+        if (key == null) {
+            DatagramPacket packet = newReply(ctx, sender, recipient, context, request);
+            if (packet != null)
+                write(ctx, packet, request);
+            return;
+        }
+
+        // The packet built by this thread, if it computed the reply.
+        final DatagramPacket[] built = new DatagramPacket[1];
+        ReplyCache.Reply reply = replyCache.get(key, new Callable<ReplyCache.Reply>() {
+            @Override
+            public ReplyCache.Reply call() throws Exception {
+                DatagramPacket packet = newReply(ctx, sender, recipient, context, request);
+                if (packet == null)
+                    return ReplyCache.Reply.NONE;
+                built[0] = packet;
+                return new ReplyCache.Reply(ByteBufUtil.getBytes(packet.content()), packet.recipient());
+            }
+        });
+        if (built[0] != null) {
+            write(ctx, built[0], request);
+            return;
+        }
+        byte[] data = reply.getData();
+        if (data == null) {
+            debug("NOREPLY(duplicate)", sender, recipient, request);
+            return;
+        }
+        debug("WRITE(cached)", sender, reply.getRecipient(), request);
+        ByteBuf buf = ctx.alloc().directBuffer(data.length, data.length).writeBytes(data);
+        write(ctx, new DatagramPacket(buf, reply.getRecipient()), request);
+    }
+
+    /** Writes the reply, and records its latency once the flush has written it to the socket. */
+    private void write(@Nonnull ChannelHandlerContext ctx, @Nonnull final DatagramPacket packet, @Nonnull DhcpMessage request) {
+        final long start = System.nanoTime();
+        final MessageType type = request.getMessageType();
+        ChannelPromise promise = ctx.newPromise();
+        promise.addListener(new ChannelFutureListener() {
+            @Override
+            public void operationComplete(ChannelFuture future) throws Exception {
+                if (future.isSuccess()) {
+                    metrics.recordLatency(DhcpMetrics.Stage.SEND, type, System.nanoTime() - start);
+                } else {
+                    LOG.warn("Failed to send reply to {}", packet.recipient(), future.cause());
+                    metrics.recordDrop(DhcpMetrics.Drop.ERROR);
+                }
+            }
+        });
+        ctx.write(packet, promise);
+    }
+
+    /** Asks the service for a reply to the given request, and encodes it, or returns null. */
+    @CheckForNull
+    private DatagramPacket newReply(@Nonnull ChannelHandlerContext ctx,
+            @Nonnull InetSocketAddress sender, @Nonnull InetSocketAddress recipient,
+            @Nonnull DhcpRequestContext context, @Nonnull DhcpMessage request) throws Exception {
+        DhcpMessage reply = dhcpService.getReplyFor(context, request);
+        if (reply == null) {
+            debug("NOREPLY", sender, recipient, request);
+            return null;
+        }
+
+        InterfaceAddress localAddress = interfaceManager.getResponseInterface(
+                request.getRelayAgentAddress(),
+                request.getCurrentClientAddress(),
+                sender.getAddress(),
+                reply
+        );
+        if (localAddress == null) {
+            debug("NOIFACE", recipient, sender, reply);
+            metrics.recordDrop(DhcpMetrics.Drop.NO_INTERFACE);
+            return null;
+        }
+
+        debug("READ", sender, recipient, request);
+
+        InetSocketAddress isa = DhcpInterfaceUtils.determineMessageDestination(
+                request, reply,
+                localAddress, sender.getPort());
+
+        // Size the buffer exactly, so the pooled allocator can serve it from a small subpage.
+        long start = System.nanoTime();
+        int maxLength = DhcpMessageEncoder.getMaximumMessageSize(request);
+        int length = encoder.getLength(reply, maxLength);
+        ByteBuf buf = ctx.alloc().directBuffer(length, length);
+        try {
+            ByteBuffer buffer = buf.nioBuffer(buf.writerIndex(), length);
+            encoder.encode(buffer, reply, maxLength);
+            buf.writerIndex(buf.writerIndex() + length);
+        } catch (Exception e) {
+            buf.release();
+            throw e;
+        }
+        metrics.recordLatency(DhcpMetrics.Stage.ENCODE, request.getMessageType(), System.nanoTime() - start);
+        DatagramPacket packet = new DatagramPacket(buf, isa);
+        debug("WRITE", packet.sender(), packet.recipient(), reply);
+        return packet;
     }
 
     @Override
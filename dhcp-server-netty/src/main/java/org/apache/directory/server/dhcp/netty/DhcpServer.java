@@ -5,20 +5,27 @@
  */
 package org.apache.directory.server.dhcp.netty;
 
+import com.google.common.base.Preconditions;
 import io.netty.bootstrap.Bootstrap;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelOption;
-import io.netty.channel.EventLoop;
 import io.netty.channel.EventLoopGroup;
-import io.netty.channel.nio.NioEventLoopGroup;
-import io.netty.channel.socket.nio.NioDatagramChannel;
 import io.netty.util.concurrent.DefaultThreadFactory;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ThreadFactory;
+import javax.annotation.CheckForNull;
 import javax.annotation.Nonnegative;
 import javax.annotation.Nonnull;
 import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
+import org.anarres.dhcp.common.AdmissionController;
+import org.anarres.dhcp.common.ReplyCache;
+import org.anarres.dhcp.common.concurrent.BoundedDropOldestExecutor;
+import org.anarres.dhcp.common.concurrent.PriorityExecutor;
+import org.anarres.dhcp.common.metrics.DhcpMetrics;
 import org.apache.directory.server.dhcp.io.DhcpInterfaceManager;
 import org.apache.directory.server.dhcp.service.DhcpService;
 import org.apache.directory.server.dhcp.service.manager.LeaseManager;
@@ -27,6 +34,21 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
+ * A DHCPv4 server using Netty.
+ *
+ * By default, the server binds a single channel, and all requests are
+ * processed on a single event loop thread. If {@link #setChannelCount(int)}
+ * is greater than one, and the native epoll transport is available, the
+ * server binds that many channels to the same port with SO_REUSEPORT,
+ * each on its own event loop, and the kernel distributes incoming
+ * datagrams between them. The {@link DhcpService} must then be thread-safe.
+ *
+ * The kernel chooses a channel by a hash of the source and destination
+ * address and port. All broadcasts from unconfigured clients
+ * (0.0.0.0:68 to 255.255.255.255:67) therefore arrive on the same channel,
+ * as do all requests forwarded by any one relay agent. The fan-out helps
+ * most when requests arrive from many relay agents, or are unicast
+ * renewals from many clients.
  *
  * @author shevek
  */
@@ -36,7 +58,14 @@ public class DhcpServer extends DhcpInterfaceManager {
 
     private final DhcpService service;
     private final int port;
-    private Channel channel;
+    private boolean nativeTransport = false;
+    private int channelCount = 1;
+    private Executor executor;
+    private ReplyCache replyCache;
+    private AdmissionController admissionController;
+    private DhcpMetrics metrics = DhcpMetrics.NOOP;
+    private EventLoopGroup group;
+    private final List<Channel> channels = new ArrayList<Channel>();
 
     public DhcpServer(@Nonnull DhcpService service, @Nonnegative int port) {
         this.service = service;
@@ -55,27 +84,137 @@ public class DhcpServer extends DhcpInterfaceManager {
         this(new LeaseManagerDhcpService(manager));
     }
 
+    @Nonnegative
+    public int getChannelCount() {
+        return channelCount;
+    }
+
+    /**
+     * Sets the number of channels to bind with SO_REUSEPORT.
+     *
+     * This must be called before {@link #start()}, and has no effect
+     * unless the native epoll transport is available.
+     */
+    public void setChannelCount(@Nonnegative int channelCount) {
+        Preconditions.checkArgument(channelCount > 0, "Channel count must be positive.");
+        this.channelCount = channelCount;
+    }
+
+    public boolean isNativeTransport() {
+        return nativeTransport;
+    }
+
+    /**
+     * Requests the native epoll transport, if available.
+     *
+     * The native transport is always requested if the channel count is
+     * greater than one. This must be called before {@link #start()}.
+     *
+     * @see TransportUtils
+     */
+    public void setNativeTransport(boolean nativeTransport) {
+        this.nativeTransport = nativeTransport;
+    }
+
+    @CheckForNull
+    public Executor getExecutor() {
+        return executor;
+    }
+
+    /**
+     * Sets the executor on which to call the {@link DhcpService}.
+     *
+     * By default, the service is called on the event loop, which is
+     * adequate only if the service never blocks. This must be called
+     * before {@link #start()}.
+     *
+     * @see BoundedDropOldestExecutor
+     * @see PriorityExecutor
+     */
+    public void setExecutor(@CheckForNull Executor executor) {
+        this.executor = executor;
+    }
+
+    @CheckForNull
+    public ReplyCache getReplyCache() {
+        return replyCache;
+    }
+
+    /**
+     * Sets the cache with which to answer retransmitted requests.
+     *
+     * By default, every request is passed to the {@link DhcpService}.
+     * This must be called before {@link #start()}.
+     */
+    public void setReplyCache(@CheckForNull ReplyCache replyCache) {
+        this.replyCache = replyCache;
+    }
+
+    @CheckForNull
+    public AdmissionController getAdmissionController() {
+        return admissionController;
+    }
+
+    /**
+     * Sets the controller which decides whether a request is decoded at all.
+     *
+     * By default, every request is decoded and passed to the {@link DhcpService}.
+     * This must be called before {@link #start()}.
+     */
+    public void setAdmissionController(@CheckForNull AdmissionController admissionController) {
+        this.admissionController = admissionController;
+    }
+
+    @Nonnull
+    public DhcpMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Sets the metrics which record the decode, encode and send latencies,
+     * and the requests dropped before they reach the {@link DhcpService}.
+     *
+     * To record the latency of the service itself, set the metrics on the
+     * service as well. This must be called before {@link #start()}.
+     *
+     * @see LeaseManagerDhcpService#setMetrics(DhcpMetrics)
+     */
+    public void setMetrics(@Nonnull DhcpMetrics metrics) {
+        this.metrics = Preconditions.checkNotNull(metrics, "DhcpMetrics was null.");
+    }
+
     @PostConstruct
     public void start() throws IOException, InterruptedException {
         super.start();
 
+        int count = channelCount;
+        boolean isNative = TransportUtils.isNative(nativeTransport || count > 1);
+        if (count > 1 && !isNative) {
+            LOG.warn("SO_REUSEPORT requires the native transport; binding a single channel instead of {}.", count);
+            count = 1;
+        }
+
         ThreadFactory factory = new DefaultThreadFactory("dhcp-server");
-        EventLoopGroup group = new NioEventLoopGroup(0, factory);
+        group = TransportUtils.newEventLoopGroup(isNative, isNative ? count : 0, factory);
 
         Bootstrap b = new Bootstrap();
         b.group(group);
-        b.channel(NioDatagramChannel.class);
+        TransportUtils.configure(b, isNative, count > 1);
         b.option(ChannelOption.SO_BROADCAST, true);
-        b.handler(new DhcpHandler(service, this));
-        channel = b.bind(port).sync().channel();
+        b.handler(new DhcpHandler(service, this, executor, replyCache, admissionController, metrics));
+        // Each bind registers the new channel with the next event loop in the group.
+        for (int i = 0; i < count; i++)
+            channels.add(b.bind(port).sync().channel());
+        LOG.info("DHCP server bound {} channel(s) on port {}.", count, port);
     }
 
     @PreDestroy
     public void stop() throws IOException, InterruptedException {
-        EventLoop loop = channel.eventLoop();
-        channel.close().sync();
-        channel = null;
-        loop.shutdownGracefully();
+        for (Channel channel : channels)
+            channel.close().sync();
+        channels.clear();
+        group.shutdownGracefully();
+        group = null;
 
         super.stop();
     }
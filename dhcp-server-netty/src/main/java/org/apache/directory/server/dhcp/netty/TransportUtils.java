@@ -0,0 +1,89 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.apache.directory.server.dhcp.netty;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.FixedRecvByteBufAllocator;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.epoll.EpollDatagramChannel;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioDatagramChannel;
+import java.util.concurrent.ThreadFactory;
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Selects between the NIO and native epoll datagram transports.
+ *
+ * The native transport is used only if requested and available. It
+ * receives up to {@link #RECV_BATCH_SIZE} datagrams per system call
+ * using recvmmsg, reports the true destination address of each datagram
+ * (so broadcasts can be told from unicasts), and supports SO_REUSEPORT.
+ *
+ * Netty does not expose IP_PKTINFO, so the receiving interface must
+ * still be inferred from the addresses by {@link org.apache.directory.server.dhcp.io.DhcpInterfaceManager}.
+ *
+ * @author shevek
+ */
+public class TransportUtils {
+
+    private static final Logger LOG = LoggerFactory.getLogger(TransportUtils.class);
+    /** The largest datagram we expect to receive. */
+    public static final int MAX_DATAGRAM_SIZE = 2048;
+    /** The maximum number of datagrams received by one call to recvmmsg. */
+    public static final int RECV_BATCH_SIZE = 16;
+
+    /**
+     * Returns true if the native transport should be used.
+     *
+     * Logs a warning if it was requested but is not available.
+     */
+    public static boolean isNative(boolean requested) {
+        if (!requested)
+            return false;
+        if (Epoll.isAvailable())
+            return true;
+        LOG.warn("Native epoll transport not available, using NIO: " + Epoll.unavailabilityCause());
+        return false;
+    }
+
+    @Nonnull
+    public static EventLoopGroup newEventLoopGroup(boolean isNative, @Nonnegative int threads, @Nonnull ThreadFactory factory) {
+        if (isNative)
+            return new EpollEventLoopGroup(threads, factory);
+        return new NioEventLoopGroup(threads, factory);
+    }
+
+    /**
+     * Sets the channel type and the common datagram options on the given Bootstrap.
+     *
+     * @param reusePort True to set SO_REUSEPORT; requires the native transport.
+     */
+    public static void configure(@Nonnull Bootstrap b, boolean isNative, boolean reusePort) {
+        b.option(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT);
+        if (isNative) {
+            b.channel(EpollDatagramChannel.class);
+            b.option(EpollChannelOption.MAX_DATAGRAM_PAYLOAD_SIZE, MAX_DATAGRAM_SIZE);
+            b.option(ChannelOption.RCVBUF_ALLOCATOR, new FixedRecvByteBufAllocator(MAX_DATAGRAM_SIZE * RECV_BATCH_SIZE));
+            b.option(EpollChannelOption.IP_RECVORIGDSTADDR, true);
+            if (reusePort)
+                b.option(EpollChannelOption.SO_REUSEPORT, true);
+        } else {
+            b.channel(NioDatagramChannel.class);
+            b.option(ChannelOption.RCVBUF_ALLOCATOR, new FixedRecvByteBufAllocator(MAX_DATAGRAM_SIZE));
+        }
+    }
+
+    private TransportUtils() {
+    }
+}
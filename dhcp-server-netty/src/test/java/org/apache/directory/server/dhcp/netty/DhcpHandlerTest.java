@@ -0,0 +1,270 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.apache.directory.server.dhcp.netty;
+
+import com.google.common.net.InetAddresses;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.channel.socket.DatagramPacket;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import org.anarres.dhcp.common.AdmissionController;
+import org.anarres.dhcp.common.ReplyCache;
+import org.anarres.dhcp.common.address.InterfaceAddress;
+import org.anarres.dhcp.common.concurrent.BoundedDropOldestExecutor;
+import org.anarres.dhcp.common.metrics.DefaultDhcpMetrics;
+import org.anarres.dhcp.common.metrics.DhcpMetrics;
+import org.apache.directory.server.dhcp.DhcpException;
+import org.apache.directory.server.dhcp.io.DhcpInterfaceManager;
+import org.apache.directory.server.dhcp.io.DhcpMessageDecoder;
+import org.apache.directory.server.dhcp.io.DhcpMessageEncoder;
+import org.apache.directory.server.dhcp.io.DhcpRequestContext;
+import org.apache.directory.server.dhcp.messages.DhcpMessage;
+import org.apache.directory.server.dhcp.messages.HardwareAddress;
+import org.apache.directory.server.dhcp.messages.HardwareAddressType;
+import org.apache.directory.server.dhcp.messages.MessageType;
+import org.apache.directory.server.dhcp.service.AbstractDhcpService;
+import org.apache.directory.server.dhcp.service.RequestPriority;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author shevek
+ */
+@SuppressWarnings("PMD.AvoidUsingHardCodedIP")
+public class DhcpHandlerTest {
+
+    private static final Logger LOG = LoggerFactory.getLogger(DhcpHandlerTest.class);
+    private static final InetSocketAddress SERVER = new InetSocketAddress(InetAddresses.forString("10.0.0.1"), 67);
+    private static final InetSocketAddress CLIENT = new InetSocketAddress(InetAddresses.forString("10.0.0.5"), 68);
+
+    /** Offers to every DISCOVER, and ignores every INFORM. */
+    private static class TestDhcpService extends AbstractDhcpService {
+
+        private final AtomicInteger discovers = new AtomicInteger();
+        private final AtomicInteger informs = new AtomicInteger();
+
+        @Override
+        protected DhcpMessage handleDISCOVER(DhcpRequestContext context, DhcpMessage request) throws DhcpException {
+            discovers.incrementAndGet();
+            DhcpMessage reply = new DhcpMessage();
+            reply.setOp(DhcpMessage.OP_BOOTREPLY);
+            reply.setMessageType(MessageType.DHCPOFFER);
+            reply.setTransactionId(request.getTransactionId());
+            reply.setHardwareAddress(request.getHardwareAddress());
+            reply.setAssignedClientAddress(InetAddresses.forString("10.0.0.10"));
+            return reply;
+        }
+
+        @Override
+        protected DhcpMessage handleINFORM(DhcpRequestContext context, DhcpMessage request) throws DhcpException {
+            informs.incrementAndGet();
+            return null;
+        }
+    }
+
+    /** Holds tasks until they are run by the test. */
+    private static class QueueExecutor implements Executor {
+
+        private final List<Runnable> tasks = new ArrayList<Runnable>();
+
+        @Override
+        public void execute(Runnable command) {
+            tasks.add(command);
+        }
+
+        /** Runs the queued tasks, and then the flushes they queued on the channel. */
+        public void runAll(@Nonnull EmbeddedChannel channel) {
+            for (Runnable task : tasks)
+                task.run();
+            tasks.clear();
+            channel.runPendingTasks();
+        }
+    }
+
+    private final TestDhcpService service = new TestDhcpService();
+    private final DefaultDhcpMetrics metrics = new DefaultDhcpMetrics();
+
+    @Nonnull
+    private EmbeddedChannel newChannel(@CheckForNull Executor executor, @CheckForNull ReplyCache replyCache, @CheckForNull AdmissionController admissionController) throws Exception {
+        DhcpInterfaceManager interfaceManager = new DhcpInterfaceManager();
+        interfaceManager.addInterface(new InterfaceAddress(SERVER.getAddress(), 24));
+        DhcpHandler handler = new DhcpHandler(service, interfaceManager, executor, replyCache, admissionController, metrics);
+        return new EmbeddedChannel(handler) {
+            @Override
+            protected SocketAddress localAddress0() {
+                return SERVER;
+            }
+        };
+    }
+
+    @Nonnull
+    private static DatagramPacket newRequest(int transactionId, @Nonnull MessageType type, int client) throws Exception {
+        DhcpMessage request = new DhcpMessage();
+        request.setOp(DhcpMessage.OP_BOOTREQUEST);
+        request.setMessageType(type);
+        request.setTransactionId(transactionId);
+        request.setHardwareAddress(new HardwareAddress(HardwareAddressType.Ethernet, new byte[]{0, 0x16, 0x3e, 0, 0, (byte) client}));
+        ByteBuffer buffer = ByteBuffer.allocate(1024);
+        new DhcpMessageEncoder().encode(buffer, request);
+        buffer.flip();
+        return new DatagramPacket(Unpooled.wrappedBuffer(buffer), SERVER, CLIENT);
+    }
+
+    /** Reads and releases every reply written to the channel. */
+    @Nonnull
+    private static List<DhcpMessage> readReplies(@Nonnull EmbeddedChannel channel) throws Exception {
+        List<DhcpMessage> replies = new ArrayList<DhcpMessage>();
+        for (;;) {
+            DatagramPacket packet = channel.readOutbound();
+            if (packet == null)
+                return replies;
+            try {
+                ByteBuf content = packet.content();
+                replies.add(new DhcpMessageDecoder().decode(content.nioBuffer()));
+            } finally {
+                packet.release();
+            }
+        }
+    }
+
+    @Test
+    public void testCache() throws Exception {
+        ReplyCache replyCache = new ReplyCache();
+        EmbeddedChannel channel = newChannel(null, replyCache, null);
+
+        // A retransmission in the same batch is answered from the cache.
+        channel.writeInbound(newRequest(42, MessageType.DHCPDISCOVER, 1), newRequest(42, MessageType.DHCPDISCOVER, 1));
+        List<DhcpMessage> replies = readReplies(channel);
+        assertEquals(2, replies.size());
+        for (DhcpMessage reply : replies) {
+            assertEquals(MessageType.DHCPOFFER, reply.getMessageType());
+            assertEquals(42, reply.getTransactionId());
+        }
+        assertEquals(1, service.discovers.get());
+
+        // As is one in a later batch.
+        channel.writeInbound(newRequest(42, MessageType.DHCPDISCOVER, 1));
+        assertEquals(1, readReplies(channel).size());
+        assertEquals(1, service.discovers.get());
+        assertEquals(1, replyCache.getMissCount());
+        assertEquals(2, replyCache.getHitCount());
+
+        // A new transaction, or another client, is passed to the service.
+        channel.writeInbound(newRequest(43, MessageType.DHCPDISCOVER, 1), newRequest(42, MessageType.DHCPDISCOVER, 2));
+        assertEquals(2, readReplies(channel).size());
+        assertEquals(3, service.discovers.get());
+        assertEquals(3, replyCache.getMissCount());
+
+        // A decision not to reply is not cached.
+        channel.writeInbound(newRequest(44, MessageType.DHCPINFORM, 1));
+        channel.writeInbound(newRequest(44, MessageType.DHCPINFORM, 1));
+        assertTrue(readReplies(channel).isEmpty());
+        assertEquals(2, service.informs.get());
+
+        LOG.info("Cache is " + replyCache);
+        LOG.info("Metrics are " + metrics);
+        assertEquals(5, metrics.getLatency(DhcpMetrics.Stage.SEND, MessageType.DHCPDISCOVER).getCount());
+        assertFalse(channel.finish());
+    }
+
+    @Test
+    public void testExpiry() throws Exception {
+        QueueExecutor executor = new QueueExecutor();
+        EmbeddedChannel channel = newChannel(executor, null, null);
+
+        channel.writeInbound(newRequest(42, MessageType.DHCPDISCOVER, 1));
+        executor.runAll(channel);
+        assertEquals(1, readReplies(channel).size());
+        assertEquals(0, metrics.getDropCount(DhcpMetrics.Drop.EXPIRED));
+
+        // A request which waits beyond its deadline is dropped.
+        channel.writeInbound(newRequest(43, MessageType.DHCPDISCOVER, 1));
+        Thread.sleep(TimeUnit.SECONDS.toMillis(RequestPriority.MIN_DEADLINE_SECONDS) + 200);
+        executor.runAll(channel);
+        assertTrue(readReplies(channel).isEmpty());
+        assertEquals(1, service.discovers.get());
+        assertEquals(1, metrics.getDropCount(DhcpMetrics.Drop.EXPIRED));
+        assertFalse(channel.finish());
+    }
+
+    @Test
+    public void testExecutor() throws Exception {
+        QueueExecutor executor = new QueueExecutor();
+        EmbeddedChannel channel = newChannel(executor, null, null);
+
+        // Each request is a task of its own, but the replies are flushed together.
+        channel.writeInbound(newRequest(42, MessageType.DHCPDISCOVER, 1), newRequest(43, MessageType.DHCPDISCOVER, 2), newRequest(44, MessageType.DHCPDISCOVER, 3));
+        assertEquals(3, executor.tasks.size());
+        executor.runAll(channel);
+        // Each reply is recorded as sent once it is flushed.
+        assertEquals(3, metrics.getLatency(DhcpMetrics.Stage.SEND, MessageType.DHCPDISCOVER).getCount());
+        assertEquals(3, readReplies(channel).size());
+        assertEquals(3, service.discovers.get());
+        assertFalse(channel.finish());
+    }
+
+    @Test
+    public void testOverflow() throws Exception {
+        BoundedDropOldestExecutor executor = new BoundedDropOldestExecutor(1, 1, Executors.defaultThreadFactory());
+        try {
+            // Occupy the single worker, so that each request displaces the one before.
+            final CountDownLatch started = new CountDownLatch(1);
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    started.countDown();
+                    try {
+                        new CountDownLatch(1).await();
+                    } catch (InterruptedException e) {
+                        // Shutdown.
+                    }
+                }
+            });
+            started.await();
+            EmbeddedChannel channel = newChannel(executor, null, null);
+            channel.writeInbound(newRequest(42, MessageType.DHCPDISCOVER, 1), newRequest(43, MessageType.DHCPDISCOVER, 2), newRequest(44, MessageType.DHCPDISCOVER, 3));
+            assertEquals(2, metrics.getDropCount(DhcpMetrics.Drop.OVERFLOW));
+        } finally {
+            executor.shutdown();
+            assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test
+    public void testAdmission() throws Exception {
+        AdmissionController admissionController = new AdmissionController();
+        // One request per client, and nothing more for a long time.
+        admissionController.setLimit(AdmissionController.Level.CLIENT, new AdmissionController.Limit(0.001, 1));
+        EmbeddedChannel channel = newChannel(null, null, admissionController);
+
+        channel.writeInbound(newRequest(42, MessageType.DHCPDISCOVER, 1), newRequest(43, MessageType.DHCPDISCOVER, 1), newRequest(44, MessageType.DHCPDISCOVER, 2));
+        List<DhcpMessage> replies = readReplies(channel);
+        assertEquals(2, replies.size());
+        assertEquals(42, replies.get(0).getTransactionId());
+        assertEquals(44, replies.get(1).getTransactionId());
+        assertEquals(2, service.discovers.get());
+        assertEquals(1, metrics.getDropCount(DhcpMetrics.Drop.ADMISSION));
+        assertEquals(1, admissionController.getDroppedCount(AdmissionController.Level.CLIENT));
+        // A dropped request is never decoded.
+        assertEquals(2, metrics.getLatency(DhcpMetrics.Stage.DECODE, MessageType.DHCPDISCOVER).getCount());
+        assertFalse(channel.finish());
+    }
+}
@@ -5,12 +5,18 @@
  */
 package org.anarres.dhcp.server.pcap;
 
+import com.google.common.base.Preconditions;
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 import java.util.Arrays;
+import javax.annotation.CheckForNull;
 import javax.annotation.Nonnull;
+import org.anarres.dhcp.common.AdmissionController;
 import org.anarres.dhcp.common.address.InterfaceAddress;
+import org.anarres.dhcp.common.metrics.DhcpMetrics;
+import org.apache.directory.server.dhcp.DhcpException;
 import org.apache.directory.server.dhcp.io.DhcpMessageDecoder;
 import org.apache.directory.server.dhcp.io.DhcpMessageEncoder;
 import org.apache.directory.server.dhcp.io.DhcpRequestContext;
@@ -38,11 +44,28 @@ public class DhcpPacketListener implements PacketListener {
     private final DhcpMessageEncoder encoder = new DhcpMessageEncoder();
     private final DhcpService service;
     private final InterfaceAddress[] interfaceAddresses;
+    private final AdmissionController admissionController;
+    private final DhcpMetrics metrics;
 
+    /**
+     * @param metrics The metrics which record the decode and encode
+     * latencies, and the requests dropped by this listener. Replies are
+     * not yet sent, so no send latency is recorded.
+     */
     @SuppressFBWarnings("EI_EXPOSE_REP2")
-    public DhcpPacketListener(@Nonnull DhcpService service, @Nonnull InterfaceAddress[] interfaceAddresses) {
+    public DhcpPacketListener(@Nonnull DhcpService service, @Nonnull InterfaceAddress[] interfaceAddresses, @CheckForNull AdmissionController admissionController, @Nonnull DhcpMetrics metrics) {
         this.service = service;
         this.interfaceAddresses = interfaceAddresses;
+        this.admissionController = admissionController;
+        this.metrics = Preconditions.checkNotNull(metrics, "DhcpMetrics was null.");
+    }
+
+    public DhcpPacketListener(@Nonnull DhcpService service, @Nonnull InterfaceAddress[] interfaceAddresses, @CheckForNull AdmissionController admissionController) {
+        this(service, interfaceAddresses, admissionController, DhcpMetrics.NOOP);
+    }
+
+    public DhcpPacketListener(@Nonnull DhcpService service, @Nonnull InterfaceAddress[] interfaceAddresses) {
+        this(service, interfaceAddresses, null);
     }
 
     @Override
@@ -52,18 +75,33 @@ public class DhcpPacketListener implements PacketListener {
             IpV4Packet ipPacket = rawPacket.get(IpV4Packet.class);
             UdpPacket udpPacket = rawPacket.get(UdpPacket.class);
             byte[] dhcpData = udpPacket.getPayload().getRawData();
+            if (admissionController != null && !admissionController.admit(ByteBuffer.wrap(dhcpData))) {
+                LOG.debug("Dropped DHCP from " + ipPacket.getHeader().getSrcAddr());
+                metrics.recordDrop(DhcpMetrics.Drop.ADMISSION);
+                return;
+            }
             InetSocketAddress remoteAddress = new InetSocketAddress(ipPacket.getHeader().getSrcAddr(), udpPacket.getHeader().getSrcPort().valueAsInt());
             InetSocketAddress localAddress = new InetSocketAddress(ipPacket.getHeader().getDstAddr(), udpPacket.getHeader().getDstPort().valueAsInt());
             DhcpRequestContext context = new DhcpRequestContext(interfaceAddresses, remoteAddress, localAddress);
-            DhcpMessage request = decoder.decode(ByteBuffer.wrap(dhcpData));
+            long start = System.nanoTime();
+            DhcpMessage request;
+            try {
+                request = decoder.decode(ByteBuffer.wrap(dhcpData));
+            } catch (DhcpException | IOException e) {
+                metrics.recordDrop(DhcpMetrics.Drop.MALFORMED);
+                throw e;
+            }
+            metrics.recordLatency(DhcpMetrics.Stage.DECODE, request.getMessageType(), System.nanoTime() - start);
             LOG.info("Read DHCP " + request);
             DhcpMessage reply = service.getReplyFor(context, request);
             if (reply == null)
                 return;
+            start = System.nanoTime();
             byte[] replyData = new byte[1536];
             ByteBuffer buffer = ByteBuffer.wrap(replyData);
             encoder.encode(buffer, reply);
             replyData = Arrays.copyOf(replyData, buffer.position());    // Truncate array to writer position.
+            metrics.recordLatency(DhcpMetrics.Stage.ENCODE, request.getMessageType(), System.nanoTime() - start);
             UnknownPacket.Builder dhcpBuilder = new UnknownPacket.Builder()
                     .rawData(replyData);
             UdpPacket.Builder udpBuilder = new UdpPacket.Builder()
@@ -12,12 +12,15 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.Executor;
+import javax.annotation.CheckForNull;
 import javax.annotation.Nonnegative;
 import javax.annotation.Nonnull;
 import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
+import org.anarres.dhcp.common.AdmissionController;
 import org.anarres.dhcp.common.address.AddressUtils;
 import org.anarres.dhcp.common.address.InterfaceAddress;
+import org.anarres.dhcp.common.metrics.DhcpMetrics;
 import org.apache.directory.server.dhcp.service.DhcpService;
 import org.apache.directory.server.dhcp.service.manager.LeaseManager;
 import org.apache.directory.server.dhcp.service.manager.LeaseManagerDhcpService;
@@ -39,6 +42,8 @@ public class DhcpServer {
     private final DhcpService service;
     private final int port;
     private Executor executor = MoreExecutors.directExecutor();
+    private AdmissionController admissionController;
+    private DhcpMetrics metrics = DhcpMetrics.NOOP;
 
     @Nonnull
     private static InterfaceAddress toInterfaceAddress(@Nonnull PcapAddress address) {
@@ -73,6 +78,34 @@ public class DhcpServer {
         this(new LeaseManagerDhcpService(manager));
     }
 
+    @CheckForNull
+    public AdmissionController getAdmissionController() {
+        return admissionController;
+    }
+
+    /** Sets the controller which decides whether a request is decoded at all. */
+    public void setAdmissionController(@CheckForNull AdmissionController admissionController) {
+        this.admissionController = admissionController;
+    }
+
+    @Nonnull
+    public DhcpMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Sets the metrics which record the decode and encode latencies,
+     * and the requests dropped before they reach the {@link DhcpService}.
+     *
+     * To record the latency of the service itself, set the metrics on the
+     * service as well.
+     *
+     * @see LeaseManagerDhcpService#setMetrics(DhcpMetrics)
+     */
+    public void setMetrics(@Nonnull DhcpMetrics metrics) {
+        this.metrics = Preconditions.checkNotNull(metrics, "DhcpMetrics was null.");
+    }
+
     @PostConstruct
     public void start() throws IOException, InterruptedException {
     }
@@ -91,7 +124,7 @@ public class DhcpServer {
         LOG.info("Addresses are " + Arrays.toString(interfaceAddresses));
 
         PcapHandle handle = iface.openLive(4096, PcapNetworkInterface.PromiscuousMode.PROMISCUOUS, 0);
-        handle.loop(10, new DhcpPacketListener(service, interfaceAddresses));
+        handle.loop(10, new DhcpPacketListener(service, interfaceAddresses, admissionController, metrics));
         // handle.setFilter("udp port " + port, BpfProgram.BpfCompileMode.OPTIMIZE);
         // handle.breakLoop();
         // handle.close();